@@ -0,0 +1,189 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.agent;
+
+import in.codebuckets.acmemanager.agent.dto.CertificateKeyPairEntry;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Renders the certificate and private key pair into the bundle formats configured with {@code app.deploy.formats},
+ * so consumers which cannot read a PEM pair load a ready bundle instead of converting it on every start.
+ * </br>
+ *
+ * The PKCS#12 and JKS bundles are encrypted with {@code app.deploy.bundlePassword}, which has no default, so
+ * the agent does not start with one of them enabled and no password configured.
+ * The bundles are rendered on a pool with a thread per CPU, because PKCS#12 and JKS encryption is CPU bound.
+ * {@link CertificateDeploymentService} writes them into the version directory with the PEM pair, so they are
+ * published atomically together with the pair they were rendered from.
+ */
+@Service
+public class BundleRenderer {
+
+    private final Set<BundleFormat> formats;
+    private final char[] password;
+    private final ExecutorService executorService;
+
+    public BundleRenderer(@Value("${app.deploy.formats:}") List<String> formats,
+                          @Value("${app.deploy.bundlePassword:}") String password) {
+        this.formats = EnumSet.noneOf(BundleFormat.class);
+        for (String format : formats) {
+            if (!format.isBlank()) {
+                this.formats.add(BundleFormat.valueOf(format.trim().toUpperCase(Locale.ROOT)));
+            }
+        }
+
+        if ((this.formats.contains(BundleFormat.PKCS12) || this.formats.contains(BundleFormat.JKS)) && password.isBlank()) {
+            throw new IllegalArgumentException("app.deploy.bundlePassword is required for the PKCS12 and JKS formats");
+        }
+
+        this.password = password.toCharArray();
+        this.executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                Thread.ofPlatform().name("BundleRenderer-", 0).daemon().factory());
+    }
+
+    @PreDestroy
+    public void close() {
+        executorService.shutdownNow();
+    }
+
+    /**
+     * File names of the configured bundles
+     */
+    public List<String> fileNames() {
+        return formats.stream().map(BundleFormat::fileName).toList();
+    }
+
+    /**
+     * Render the configured bundles of the certificate and private key pair
+     *
+     * @param certificateKeyPairEntry Certificate and private key pair to render
+     * @return Map of file name to content of the bundle, empty if no bundle is configured
+     * @throws IllegalArgumentException if the certificate or private key is invalid, or the private key does not match the certificate
+     * @throws IOException              if a bundle could not be rendered
+     */
+    public Map<String, byte[]> render(CertificateKeyPairEntry certificateKeyPairEntry) throws IOException {
+        if (formats.isEmpty()) {
+            return Map.of();
+        }
+
+        List<X509Certificate> chain = PemUtils.readCertificates(certificateKeyPairEntry.certificate());
+        PrivateKey privateKey = PemUtils.readPrivateKey(certificateKeyPairEntry.privateKey());
+        if (!PemUtils.matches(privateKey, chain.get(0))) {
+            throw new IllegalArgumentException("Private key does not match the certificate of " + certificateKeyPairEntry.domain());
+        }
+
+        List<Future<byte[]>> futures = new ArrayList<>(formats.size());
+        for (BundleFormat format : formats) {
+            futures.add(executorService.submit(() -> format.render(certificateKeyPairEntry, chain, privateKey, password)));
+        }
+
+        Map<String, byte[]> bundles = new LinkedHashMap<>();
+        int i = 0;
+        for (BundleFormat format : formats) {
+            try {
+                bundles.put(format.fileName(), futures.get(i++).get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while rendering " + format.fileName(), e);
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to render " + format.fileName(), e.getCause());
+            }
+        }
+        return bundles;
+    }
+
+    /**
+     * Bundle formats in addition to the PEM pair
+     */
+    enum BundleFormat {
+
+        /**
+         * Certificate chain followed by the private key, as read by HAProxy
+         */
+        COMBINED("combined.pem") {
+            @Override
+            byte[] render(CertificateKeyPairEntry entry, List<X509Certificate> chain, PrivateKey privateKey, char[] password) {
+                String certificate = entry.certificate().endsWith("\n") ? entry.certificate() : entry.certificate() + "\n";
+                return (certificate + entry.privateKey()).getBytes(UTF_8);
+            }
+        },
+        PKCS12("certificate.p12") {
+            @Override
+            byte[] render(CertificateKeyPairEntry entry, List<X509Certificate> chain, PrivateKey privateKey, char[] password)
+                    throws IOException, GeneralSecurityException {
+                return keyStore("PKCS12", entry, chain, privateKey, password);
+            }
+        },
+        JKS("certificate.jks") {
+            @Override
+            byte[] render(CertificateKeyPairEntry entry, List<X509Certificate> chain, PrivateKey privateKey, char[] password)
+                    throws IOException, GeneralSecurityException {
+                return keyStore("JKS", entry, chain, privateKey, password);
+            }
+        };
+
+        private final String fileName;
+
+        BundleFormat(String fileName) {
+            this.fileName = fileName;
+        }
+
+        String fileName() {
+            return fileName;
+        }
+
+        abstract byte[] render(CertificateKeyPairEntry entry, List<X509Certificate> chain, PrivateKey privateKey, char[] password)
+                throws IOException, GeneralSecurityException;
+
+        /**
+         * Key store with the private key and chain stored under the domain as alias
+         */
+        private static byte[] keyStore(String type, CertificateKeyPairEntry entry, List<X509Certificate> chain, PrivateKey privateKey,
+                                       char[] password) throws IOException, GeneralSecurityException {
+            KeyStore keyStore = KeyStore.getInstance(type);
+            keyStore.load(null, null);
+            keyStore.setKeyEntry(entry.domain().toLowerCase(Locale.ROOT), privateKey, password, chain.toArray(X509Certificate[]::new));
+
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            keyStore.store(outputStream, password);
+            return outputStream.toByteArray();
+        }
+    }
+}
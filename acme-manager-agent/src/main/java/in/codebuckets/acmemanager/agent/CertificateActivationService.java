@@ -0,0 +1,79 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.agent;
+
+import in.codebuckets.acmemanager.agent.dto.CertificateKeyPairEntry;
+import in.codebuckets.acmemanager.agent.dto.DeploymentResult;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+
+/**
+ * Deploys certificates and makes the local services pick them up, shared by the certificate API
+ * and the control channel.
+ */
+@Service
+public class CertificateActivationService {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private final CertificateDeploymentService certificateDeploymentService;
+    private final HaproxyRuntimeService haproxyRuntimeService;
+    private final ReloadHookService reloadHookService;
+
+    public CertificateActivationService(CertificateDeploymentService certificateDeploymentService, HaproxyRuntimeService haproxyRuntimeService,
+                                        ReloadHookService reloadHookService) {
+        this.certificateDeploymentService = certificateDeploymentService;
+        this.haproxyRuntimeService = haproxyRuntimeService;
+        this.reloadHookService = reloadHookService;
+    }
+
+    /**
+     * Deploy and activate the certificate
+     *
+     * @param certificateKeyPairEntry Certificate to deploy
+     * @return {@link DeploymentResult} of the certificate
+     */
+    public DeploymentResult deploy(CertificateKeyPairEntry certificateKeyPairEntry) {
+        try {
+            String version = certificateDeploymentService.deploy(certificateKeyPairEntry);
+            activate(certificateKeyPairEntry);
+            return DeploymentResult.deployed(certificateKeyPairEntry.domain(), version);
+        } catch (IllegalArgumentException e) {
+            return DeploymentResult.failed(certificateKeyPairEntry.domain(), e.getMessage());
+        } catch (IOException e) {
+            logger.error("Failed to add certificate for domain: {}", certificateKeyPairEntry.domain(), e);
+            return DeploymentResult.failed(certificateKeyPairEntry.domain(), "Failed to add certificate");
+        }
+    }
+
+    /**
+     * Make the local services pick up the deployed certificate, through the HAProxy runtime API
+     * if possible and with a reload otherwise
+     *
+     * @param certificateKeyPairEntry Certificate which was deployed
+     * @throws IOException If the certificate could not be written for HAProxy
+     */
+    public void activate(CertificateKeyPairEntry certificateKeyPairEntry) throws IOException {
+        if (!haproxyRuntimeService.update(certificateKeyPairEntry)) {
+            reloadHookService.requestReload();
+        }
+    }
+}
@@ -0,0 +1,404 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.agent;
+
+import in.codebuckets.acmemanager.agent.dto.CertificateKeyPairEntry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static in.codebuckets.acmemanager.common.utils.FingerprintUtil.fingerprint;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Deploys certificate and private key pairs to the certificate directory.
+ * </br>
+ *
+ * Every deployment is written to a new version directory and fsynced, then published by atomically
+ * replacing the {@code current} symlink of the domain. {@code certificate.crt} and {@code private.key}
+ * in the domain directory are symlinks through {@code current}, so a reader always sees a complete
+ * and matching pair. The last {@code app.deploy.keepVersions} versions are kept for rollback.
+ * <pre>
+ * {certificateDir}/{domain}/versions/{version}/certificate.crt
+ * {certificateDir}/{domain}/versions/{version}/private.key
+ * {certificateDir}/{domain}/current -> versions/{version}
+ * {certificateDir}/{domain}/certificate.crt -> current/certificate.crt
+ * {certificateDir}/{domain}/private.key -> current/private.key
+ * </pre>
+ * The bundles configured with {@code app.deploy.formats} are rendered by {@link BundleRenderer} into the version
+ * directory and linked through {@code current} in the same way.
+ * Deployments of different domains run concurrently, deployments of the same domain are serialized.
+ * </p>
+ * The fingerprint of the current pair of every domain is kept in memory as the inventory of the agent,
+ * so that the server can send only the certificates which are missing or have changed.
+ */
+@Service
+public class CertificateDeploymentService {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    public static final String CERTIFICATE_FILE = "certificate.crt";
+    public static final String PRIVATE_KEY_FILE = "private.key";
+
+    private static final String VERSIONS_DIRECTORY = "versions";
+    private static final String CURRENT_LINK = "current";
+
+    private static final Pattern DOMAIN_PATTERN = Pattern.compile(
+            "^(\\*\\.)?[A-Za-z0-9]([A-Za-z0-9-]{0,61}[A-Za-z0-9])?(\\.[A-Za-z0-9]([A-Za-z0-9-]{0,61}[A-Za-z0-9])?)*$");
+
+    private final Map<String, Object> domainLocks = new ConcurrentHashMap<>();
+    private final AtomicLong lastVersion = new AtomicLong();
+    private final Map<String, String> fingerprints = new ConcurrentHashMap<>();
+
+    private final Path certificateDirectory;
+    private final int keepVersions;
+    private final BundleRenderer bundleRenderer;
+
+    public CertificateDeploymentService(@Value("${app.certificateDir}") Path certificateDirectory,
+                                        @Value("${app.deploy.keepVersions:5}") int keepVersions,
+                                        BundleRenderer bundleRenderer) {
+        this.certificateDirectory = certificateDirectory;
+        this.keepVersions = Math.max(1, keepVersions);
+        this.bundleRenderer = bundleRenderer;
+        loadInventory();
+    }
+
+    /**
+     * Deploy the certificate and private key pair as a new version of the domain
+     *
+     * @param certificateKeyPairEntry {@link CertificateKeyPairEntry} to deploy
+     * @return Version which was deployed
+     * @throws IllegalArgumentException if the domain is not a valid domain name, or the pair cannot be rendered
+     *                                  into the configured bundles
+     * @throws IOException              if the files could not be written or published
+     */
+    public String deploy(CertificateKeyPairEntry certificateKeyPairEntry) throws IOException {
+        Path domainDirectory = domainDirectory(certificateKeyPairEntry.domain());
+
+        // Rendered before taking the lock, so deployments of the same domain only wait for the writes
+        Map<String, byte[]> bundles = bundleRenderer.render(certificateKeyPairEntry);
+
+        synchronized (lock(certificateKeyPairEntry.domain())) {
+            String version = nextVersion();
+            Path versionDirectory = domainDirectory.resolve(VERSIONS_DIRECTORY).resolve(version);
+            Files.createDirectories(versionDirectory);
+
+            // Files holding the private key are created readable by the owner only, they are never readable by others
+            FileAttribute<?>[] ownerOnly = ownerOnly(versionDirectory);
+            writeAndSync(versionDirectory.resolve(CERTIFICATE_FILE), certificateKeyPairEntry.certificate().getBytes(UTF_8));
+            writeAndSync(versionDirectory.resolve(PRIVATE_KEY_FILE), certificateKeyPairEntry.privateKey().getBytes(UTF_8), ownerOnly);
+            for (Map.Entry<String, byte[]> bundle : bundles.entrySet()) {
+                writeAndSync(versionDirectory.resolve(bundle.getKey()), bundle.getValue(), ownerOnly);
+            }
+            syncDirectory(versionDirectory);
+            syncDirectory(versionDirectory.getParent());
+
+            publish(domainDirectory, version);
+            pruneVersions(domainDirectory);
+
+            fingerprints.put(domainDirectory.getFileName().toString(),
+                    fingerprint(certificateKeyPairEntry.certificate(), certificateKeyPairEntry.privateKey()));
+
+            logger.info("Deployed certificate for domain: {} with version: {}", certificateKeyPairEntry.domain(), version);
+            return version;
+        }
+    }
+
+    /**
+     * Publish the version before the current version of the domain
+     *
+     * @param domain Domain to roll back
+     * @return Version which was published, or {@code null} if there is no previous version
+     * @throws IllegalArgumentException if the domain is not a valid domain name
+     * @throws IOException              if the version could not be published
+     */
+    public String rollback(String domain) throws IOException {
+        Path domainDirectory = domainDirectory(domain);
+
+        synchronized (lock(domain)) {
+            String currentVersion = currentVersion(domainDirectory);
+            if (currentVersion == null) {
+                return null;
+            }
+
+            String previousVersion = versions(domainDirectory).stream()
+                    .filter(version -> version.compareTo(currentVersion) < 0)
+                    .reduce((first, second) -> second)
+                    .orElse(null);
+
+            if (previousVersion == null) {
+                return null;
+            }
+
+            publish(domainDirectory, previousVersion);
+            fingerprints.put(domainDirectory.getFileName().toString(), currentFingerprint(domainDirectory));
+            logger.info("Rolled back certificate for domain: {} from version: {} to version: {}", domain, currentVersion, previousVersion);
+            return previousVersion;
+        }
+    }
+
+    /**
+     * Get the current version of the domain
+     *
+     * @param domain Domain to look up
+     * @return Current version, or {@code null} if the domain has not been deployed
+     * @throws IllegalArgumentException if the domain is not a valid domain name
+     * @throws IOException              if the current version could not be read
+     */
+    public String currentVersion(String domain) throws IOException {
+        return currentVersion(domainDirectory(domain));
+    }
+
+    /**
+     * Read the current certificate and private key pair of the domain
+     *
+     * @param domain Domain to look up
+     * @return Current {@link CertificateKeyPairEntry}, or {@code null} if the domain has not been deployed
+     * @throws IllegalArgumentException if the domain is not a valid domain name
+     * @throws IOException              if the files could not be read
+     */
+    public CertificateKeyPairEntry current(String domain) throws IOException {
+        Path domainDirectory = domainDirectory(domain);
+
+        synchronized (lock(domain)) {
+            if (currentVersion(domainDirectory) == null) {
+                return null;
+            }
+
+            Path currentDirectory = domainDirectory.resolve(CURRENT_LINK);
+            return new CertificateKeyPairEntry(domain,
+                    Files.readString(currentDirectory.resolve(CERTIFICATE_FILE), UTF_8),
+                    Files.readString(currentDirectory.resolve(PRIVATE_KEY_FILE), UTF_8));
+        }
+    }
+
+    /**
+     * Get all kept versions of the domain, oldest first
+     *
+     * @param domain Domain to look up
+     * @return List of versions
+     * @throws IllegalArgumentException if the domain is not a valid domain name
+     * @throws IOException              if the versions could not be listed
+     */
+    public List<String> versions(String domain) throws IOException {
+        return versions(domainDirectory(domain));
+    }
+
+    /**
+     * Get the fingerprints of the current certificate and private key pairs
+     *
+     * @return Map of domain to fingerprint
+     */
+    public Map<String, String> inventory() {
+        return Map.copyOf(fingerprints);
+    }
+
+    /**
+     * Resolve the directory of the domain
+     *
+     * @throws IllegalArgumentException if the domain is not a valid domain name
+     */
+    public Path domainDirectory(String domain) {
+        if (domain == null || domain.length() > 253 || !DOMAIN_PATTERN.matcher(domain).matches()) {
+            throw new IllegalArgumentException("Invalid domain: " + domain);
+        }
+
+        return certificateDirectory.resolve(domain.toLowerCase());
+    }
+
+    /**
+     * Fingerprint the certificates which were deployed before the agent started
+     */
+    private void loadInventory() {
+        if (!Files.isDirectory(certificateDirectory)) {
+            return;
+        }
+
+        try (Stream<Path> stream = Files.list(certificateDirectory)) {
+            for (Path domainDirectory : stream.filter(Files::isDirectory).toList()) {
+                if (Files.exists(domainDirectory.resolve(CERTIFICATE_FILE)) && Files.exists(domainDirectory.resolve(PRIVATE_KEY_FILE))) {
+                    fingerprints.put(domainDirectory.getFileName().toString(), currentFingerprint(domainDirectory));
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Failed to load certificate inventory from: {}", certificateDirectory, e);
+        }
+
+        logger.info("Loaded {} certificates into the inventory", fingerprints.size());
+    }
+
+    private static String currentFingerprint(Path domainDirectory) throws IOException {
+        return fingerprint(Files.readString(domainDirectory.resolve(CERTIFICATE_FILE), UTF_8),
+                Files.readString(domainDirectory.resolve(PRIVATE_KEY_FILE), UTF_8));
+    }
+
+    private Object lock(String domain) {
+        return domainLocks.computeIfAbsent(domain.toLowerCase(), key -> new Object());
+    }
+
+    /**
+     * Versions are zero-padded milliseconds, so they sort in deployment order
+     */
+    private String nextVersion() {
+        long version = lastVersion.updateAndGet(last -> Math.max(last + 1, System.currentTimeMillis()));
+        return String.format("%015d", version);
+    }
+
+    /**
+     * Point {@code current} to the version by renaming a new symlink over it, then make sure
+     * the certificate and private key links exist
+     */
+    private void publish(Path domainDirectory, String version) throws IOException {
+        Path currentLink = domainDirectory.resolve(CURRENT_LINK);
+        Path temporaryLink = domainDirectory.resolve(CURRENT_LINK + "." + version + ".tmp");
+
+        Files.deleteIfExists(temporaryLink);
+        Files.createSymbolicLink(temporaryLink, Path.of(VERSIONS_DIRECTORY, version));
+        Files.move(temporaryLink, currentLink, ATOMIC_MOVE, REPLACE_EXISTING);
+
+        link(domainDirectory, CERTIFICATE_FILE);
+        link(domainDirectory, PRIVATE_KEY_FILE);
+
+        // Versions deployed before a format was configured do not have its bundle
+        for (String fileName : bundleRenderer.fileNames()) {
+            if (Files.exists(domainDirectory.resolve(VERSIONS_DIRECTORY).resolve(version).resolve(fileName))) {
+                link(domainDirectory, fileName);
+            } else {
+                Files.deleteIfExists(domainDirectory.resolve(fileName));
+            }
+        }
+        syncDirectory(domainDirectory);
+    }
+
+    /**
+     * Make the file in the domain directory a symlink through {@code current}. Files written
+     * before versioned deployments are replaced atomically as well.
+     */
+    private static void link(Path domainDirectory, String fileName) throws IOException {
+        Path link = domainDirectory.resolve(fileName);
+        Path target = Path.of(CURRENT_LINK, fileName);
+
+        if (Files.isSymbolicLink(link) && Files.readSymbolicLink(link).equals(target)) {
+            return;
+        }
+
+        Path temporaryLink = domainDirectory.resolve(fileName + ".tmp");
+        Files.deleteIfExists(temporaryLink);
+        Files.createSymbolicLink(temporaryLink, target);
+        Files.move(temporaryLink, link, ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+
+    private static String currentVersion(Path domainDirectory) throws IOException {
+        Path currentLink = domainDirectory.resolve(CURRENT_LINK);
+        if (!Files.isSymbolicLink(currentLink)) {
+            return null;
+        }
+
+        return Files.readSymbolicLink(currentLink).getFileName().toString();
+    }
+
+    private static List<String> versions(Path domainDirectory) throws IOException {
+        Path versionsDirectory = domainDirectory.resolve(VERSIONS_DIRECTORY);
+        if (!Files.isDirectory(versionsDirectory, LinkOption.NOFOLLOW_LINKS)) {
+            return List.of();
+        }
+
+        try (Stream<Path> stream = Files.list(versionsDirectory)) {
+            return stream.map(path -> path.getFileName().toString())
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    /**
+     * Delete the oldest versions beyond the number of kept versions, never the current version
+     */
+    private void pruneVersions(Path domainDirectory) throws IOException {
+        List<String> versions = versions(domainDirectory);
+        String currentVersion = currentVersion(domainDirectory);
+
+        for (int i = 0; i < versions.size() - keepVersions; i++) {
+            if (versions.get(i).equals(currentVersion)) {
+                continue;
+            }
+
+            Path versionDirectory = domainDirectory.resolve(VERSIONS_DIRECTORY).resolve(versions.get(i));
+            try (Stream<Path> stream = Files.walk(versionDirectory)) {
+                for (Path path : stream.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    private static void writeAndSync(Path path, byte[] content, FileAttribute<?>... attributes) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(path, Set.of(CREATE_NEW, WRITE), attributes)) {
+            ByteBuffer buffer = ByteBuffer.wrap(content);
+            while (buffer.hasRemaining()) {
+                fileChannel.write(buffer);
+            }
+            fileChannel.force(true);
+        }
+    }
+
+    private static void syncDirectory(Path directory) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(directory, READ)) {
+            fileChannel.force(true);
+        } catch (FileSystemException e) {
+            // Not every platform allows a directory to be opened for fsync
+            logger.debug("Unable to sync directory: {}", directory, e);
+        }
+    }
+
+    /**
+     * Attributes creating a file readable and writable by the owner only, none if the file store has no POSIX permissions
+     */
+    private static FileAttribute<?>[] ownerOnly(Path directory) throws IOException {
+        if (!Files.getFileStore(directory).supportsFileAttributeView(PosixFileAttributeView.class)) {
+            logger.debug("POSIX permissions are not supported for: {}", directory);
+            return new FileAttribute<?>[0];
+        }
+
+        return new FileAttribute<?>[]{PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))};
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.agent;
+
+import in.codebuckets.acmemanager.agent.dto.CertificateInventory;
+import in.codebuckets.acmemanager.agent.dto.CertificateMetadata;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import static in.codebuckets.acmemanager.agent.CertificateDeploymentService.CERTIFICATE_FILE;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Scans the certificate directory for the certificates which are actually deployed.
+ * </br>
+ *
+ * Every {@code <domain>/certificate.crt} is resolved to the file it links to and read on a virtual thread, with at
+ * most {@code app.inventory.scanConcurrency} files open at a time. The parsed metadata is cached by the resolved path
+ * together with its modification time and size, so a scan only parses the certificates which were deployed or changed
+ * since the previous scan and only stats the rest. The result of the last scan is served from memory.
+ * </p>
+ * Certificates are identified by the SHA-256 fingerprint of their DER encoding, which matches what other X.509 tools
+ * show. It differs from the fingerprint in the deployment inventory of {@link CertificateDeploymentService}, which is
+ * computed over the PEM certificate and private key pair to compare deployments with the server.
+ */
+@Service
+public class CertificateInventoryScanner {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private static final int SUBJECT_ALTERNATIVE_NAME_DNS = 2;
+    private static final int SUBJECT_ALTERNATIVE_NAME_IP = 7;
+
+    private final Path certificateDirectory;
+    private final int scanConcurrency;
+    private final Map<Path, CachedCertificate> cache = new ConcurrentHashMap<>();
+    private volatile CertificateInventory inventory = CertificateInventory.EMPTY;
+
+    public CertificateInventoryScanner(@Value("${app.certificateDir}") Path certificateDirectory,
+                                       @Value("${app.inventory.scanConcurrency:64}") int scanConcurrency) {
+        this.certificateDirectory = certificateDirectory;
+        this.scanConcurrency = scanConcurrency;
+    }
+
+    /**
+     * Result of the last scan
+     */
+    public CertificateInventory inventory() {
+        return inventory;
+    }
+
+    @Scheduled(initialDelay = 0, fixedDelayString = "${app.inventory.scanIntervalSeconds:60}", timeUnit = SECONDS)
+    public void watch() {
+        scan();
+    }
+
+    /**
+     * Scan the certificate directory and replace the inventory with the result
+     *
+     * @return Result of the scan
+     */
+    public synchronized CertificateInventory scan() {
+        long startNanos = System.nanoTime();
+
+        List<Path> certificateFiles;
+        try {
+            certificateFiles = certificateFiles();
+        } catch (IOException e) {
+            logger.error("Failed to list certificate directory: {}", certificateDirectory, e);
+            return inventory;
+        }
+
+        Map<Path, CachedCertificate> scanned = new ConcurrentHashMap<>();
+        LongAdder parsed = new LongAdder();
+        LongAdder failed = new LongAdder();
+
+        Semaphore permits = new Semaphore(scanConcurrency);
+        try (ExecutorService executorService = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Path certificateFile : certificateFiles) {
+                executorService.execute(() -> {
+                    try {
+                        permits.acquire();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+
+                    try {
+                        scanFile(certificateFile, scanned, parsed);
+                    } catch (NoSuchFileException e) {
+                        // Removed while scanning
+                    } catch (IOException | CertificateException e) {
+                        logger.warn("Failed to read certificate: {}: {}", certificateFile, e.getMessage());
+                        failed.increment();
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+        }
+
+        // Entries of removed or replaced files are dropped
+        cache.keySet().retainAll(scanned.keySet());
+
+        List<CertificateMetadata> certificates = scanned.values().stream()
+                .map(CachedCertificate::metadata)
+                .sorted(Comparator.comparing(CertificateMetadata::domain))
+                .toList();
+
+        long scanMillis = Duration.ofNanos(System.nanoTime() - startNanos).toMillis();
+        inventory = new CertificateInventory(Instant.now(), scanMillis, certificates.size(), parsed.intValue(), failed.intValue(), certificates);
+
+        logger.debug("Scanned {} certificates in {} ms, parsed {}", certificates.size(), scanMillis, parsed.intValue());
+        return inventory;
+    }
+
+    /**
+     * Find the certificate file of every domain directory
+     */
+    private List<Path> certificateFiles() throws IOException {
+        if (!Files.isDirectory(certificateDirectory)) {
+            return List.of();
+        }
+
+        // Only <domain>/certificate.crt, the versions of the domain are not descended into
+        try (Stream<Path> stream = Files.walk(certificateDirectory, 2)) {
+            return stream.filter(path -> path.getNameCount() == certificateDirectory.getNameCount() + 2)
+                    .filter(path -> CERTIFICATE_FILE.equals(path.getFileName().toString()))
+                    .toList();
+        }
+    }
+
+    private void scanFile(Path certificateFile, Map<Path, CachedCertificate> scanned, LongAdder parsed)
+            throws IOException, CertificateException {
+        Path realPath = certificateFile.toRealPath();
+        BasicFileAttributes attributes = Files.readAttributes(realPath, BasicFileAttributes.class);
+        long lastModifiedMillis = attributes.lastModifiedTime().toMillis();
+
+        CachedCertificate cachedCertificate = cache.get(realPath);
+        if (cachedCertificate == null || cachedCertificate.lastModifiedMillis() != lastModifiedMillis
+                || cachedCertificate.size() != attributes.size()) {
+            String domain = certificateFile.getParent().getFileName().toString();
+            cachedCertificate = new CachedCertificate(lastModifiedMillis, attributes.size(), parse(domain, realPath));
+            cache.put(realPath, cachedCertificate);
+            parsed.increment();
+        }
+
+        scanned.put(realPath, cachedCertificate);
+    }
+
+    /**
+     * Parse the first certificate of the file
+     */
+    static CertificateMetadata parse(String domain, Path path) throws IOException, CertificateException {
+        X509Certificate certificate;
+        try (InputStream inputStream = Files.newInputStream(path)) {
+            certificate = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(inputStream);
+        }
+
+        return new CertificateMetadata(domain, path.toString(),
+                certificate.getSubjectX500Principal().getName(),
+                certificate.getIssuerX500Principal().getName(),
+                certificate.getNotBefore().toInstant(),
+                certificate.getNotAfter().toInstant(),
+                subjectAlternativeNames(certificate),
+                sha256Fingerprint(certificate.getEncoded()));
+    }
+
+    private static List<String> subjectAlternativeNames(X509Certificate certificate) throws CertificateParsingException {
+        Collection<List<?>> entries = certificate.getSubjectAlternativeNames();
+        if (entries == null) {
+            return List.of();
+        }
+
+        List<String> names = new ArrayList<>(entries.size());
+        for (List<?> entry : entries) {
+            int type = (Integer) entry.get(0);
+            if (type == SUBJECT_ALTERNATIVE_NAME_DNS || type == SUBJECT_ALTERNATIVE_NAME_IP) {
+                names.add((String) entry.get(1));
+            }
+        }
+        return names;
+    }
+
+    private static String sha256Fingerprint(byte[] encoded) {
+        try {
+            return HexFormat.of().withUpperCase().formatHex(MessageDigest.getInstance("SHA-256").digest(encoded));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private record CachedCertificate(long lastModifiedMillis, long size, CertificateMetadata metadata) {
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.agent;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Memory-mapped, append-only journal of the challenges stored in {@link HttpChallengeService}.
+ * </br>
+ *
+ * Every added and removed challenge is appended to a file of fixed size mapped into memory, so an
+ * append is a copy into the page cache and survives a restart of the agent. The journal is replayed
+ * into the challenge store on startup and compacted down to the live challenges when it is full.
+ * </p>
+ * Record layout: {@code [int length][long expiresAtMillis][int tokenLength][token][int authorizationLength][authorization][byte op]}.
+ * The op byte is written last, so a record torn by a crash has a zero op byte and ends the replay.
+ * </p>
+ * The journal is disabled unless {@code app.challenge.journal.enabled} is set. It is not thread-safe,
+ * {@link HttpChallengeService} serializes all access to it except {@link #compact(Map)}, which writes
+ * a separate file and may run while challenges are appended.
+ */
+@Component
+public class ChallengeJournal implements AutoCloseable {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private static final int MAGIC = 0x41434A31; // "ACJ1"
+    private static final int HEADER_SIZE = Integer.BYTES;
+    private static final int RECORD_OVERHEAD = Integer.BYTES + Long.BYTES + Integer.BYTES + Integer.BYTES + Byte.BYTES;
+
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+
+    private static final byte[] ZEROS = new byte[64 * 1024];
+
+    private final boolean enabled;
+    private final Path path;
+    private final int size;
+
+    private FileChannel fileChannel;
+    private MappedByteBuffer buffer;
+
+    public ChallengeJournal(@Value("${app.challenge.journal.enabled:false}") boolean enabled,
+                            @Value("${app.challenge.journal.path:/var/lib/acme-manager/challenges.journal}") Path path,
+                            @Value("${app.challenge.journal.size:16MB}") DataSize size) {
+        this.enabled = enabled;
+        this.path = path;
+        this.size = Math.toIntExact(size.toBytes());
+    }
+
+    /**
+     * Check if the journal is enabled
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Open the journal and read the challenges which were added and not removed.
+     * Appends continue after the last complete record.
+     *
+     * @return Map of challenge token to {@link JournalEntry}, in the order they were added
+     */
+    public Map<String, JournalEntry> open() {
+        Map<String, JournalEntry> entries = new LinkedHashMap<>();
+        if (!enabled) {
+            return entries;
+        }
+
+        try {
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+
+            map(FileChannel.open(path, CREATE, READ, WRITE));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open challenge journal: " + path, e);
+        }
+
+        if (buffer.getInt(0) != MAGIC) {
+            logger.warn("Challenge journal {} is empty or unreadable, starting a new journal", path);
+            zero(0);
+            writeHeader(buffer);
+            return entries;
+        }
+
+        buffer.position(HEADER_SIZE);
+        while (buffer.remaining() >= RECORD_OVERHEAD) {
+            int start = buffer.position();
+            try {
+                int length = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining() - Byte.BYTES) {
+                    buffer.position(start);
+                    break;
+                }
+
+                byte op = buffer.get(start + Integer.BYTES + length);
+                if (op != OP_ADD && op != OP_REMOVE) {
+                    buffer.position(start);
+                    break;
+                }
+
+                long expiresAtMillis = buffer.getLong();
+                String token = readString();
+                String authorization = readString();
+                buffer.get();
+
+                if (op == OP_ADD) {
+                    entries.remove(token);
+                    entries.put(token, new JournalEntry(authorization, expiresAtMillis));
+                } else {
+                    entries.remove(token);
+                }
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                buffer.position(start);
+                break;
+            }
+        }
+
+        // Clear the remains of a torn record so that they are not mistaken for a record later
+        if (buffer.getInt(buffer.position()) != 0) {
+            zero(buffer.position());
+        }
+
+        logger.info("Replayed {} challenges from challenge journal {}", entries.size(), path);
+        return entries;
+    }
+
+    /**
+     * Append an added challenge
+     *
+     * @return {@code true} if appended, {@code false} if the journal is full
+     */
+    public boolean appendAdd(String challengeToken, String challengeAuthorization, long expiresAtMillis) {
+        return buffer != null && append(buffer, OP_ADD, challengeToken, challengeAuthorization, expiresAtMillis);
+    }
+
+    /**
+     * Append a removed challenge
+     *
+     * @return {@code true} if appended, {@code false} if the journal is full
+     */
+    public boolean appendRemove(String challengeToken) {
+        return buffer != null && append(buffer, OP_REMOVE, challengeToken, "", 0);
+    }
+
+    /**
+     * Write the given challenges to a new journal next to the journal. The new journal replaces
+     * the journal once it is {@link #install(Compaction) installed}, so a crash before that leaves the old journal.
+     * </p>
+     * This does not touch the open journal and may run while challenges are appended to it.
+     *
+     * @param entries Map of challenge token to {@link JournalEntry}
+     * @return {@link Compaction} to install
+     */
+    public Compaction compact(Map<String, JournalEntry> entries) {
+        if (!enabled) {
+            throw new IllegalStateException("Challenge journal is disabled");
+        }
+
+        Path compactedPath = path.resolveSibling(path.getFileName() + ".compact");
+        FileChannel channel = null;
+        try {
+            // A new file reads as zeroes, so only the header has to be written
+            Files.deleteIfExists(compactedPath);
+            channel = FileChannel.open(compactedPath, CREATE_NEW, READ, WRITE);
+            MappedByteBuffer compactedBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            writeHeader(compactedBuffer);
+
+            int dropped = 0;
+            for (Map.Entry<String, JournalEntry> entry : entries.entrySet()) {
+                if (!append(compactedBuffer, OP_ADD, entry.getKey(), entry.getValue().authorization(), entry.getValue().expiresAtMillis())) {
+                    dropped++;
+                }
+            }
+
+            if (dropped > 0) {
+                logger.warn("Challenge journal {} is too small for {} challenges, {} are not journaled", path, entries.size(), dropped);
+            }
+
+            compactedBuffer.force();
+            return new Compaction(compactedPath, channel, compactedBuffer, entries.size() - dropped, dropped);
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw new UncheckedIOException("Failed to compact challenge journal: " + path, e);
+        }
+    }
+
+    /**
+     * Replace the journal with a journal written by {@link #compact(Map)}.
+     * Appends continue after the compacted challenges.
+     */
+    public void install(Compaction compaction) {
+        try {
+            Files.move(compaction.path, path, ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch (IOException e) {
+            closeQuietly(compaction.fileChannel);
+            throw new UncheckedIOException("Failed to replace challenge journal: " + path, e);
+        }
+
+        try {
+            close();
+        } catch (IOException e) {
+            logger.warn("Failed to close replaced challenge journal {}", path, e);
+        }
+
+        fileChannel = compaction.fileChannel;
+        buffer = compaction.buffer;
+        logger.info("Compacted challenge journal {} to {} challenges", path, compaction.challenges);
+    }
+
+    /**
+     * Number of bytes used by the journal
+     */
+    public int usedBytes() {
+        return buffer == null ? 0 : buffer.position();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (buffer != null) {
+            buffer.force();
+            buffer = null;
+        }
+
+        if (fileChannel != null) {
+            fileChannel.close();
+            fileChannel = null;
+        }
+    }
+
+    private static boolean append(MappedByteBuffer buffer, byte op, String challengeToken, String challengeAuthorization, long expiresAtMillis) {
+        byte[] token = challengeToken.getBytes(UTF_8);
+        byte[] authorization = challengeAuthorization.getBytes(UTF_8);
+        int length = Long.BYTES + Integer.BYTES + token.length + Integer.BYTES + authorization.length;
+
+        // Keep room for the length field of the next record, which terminates the replay while it is zero
+        if (buffer.remaining() < Integer.BYTES + length + Byte.BYTES + Integer.BYTES) {
+            return false;
+        }
+
+        int start = buffer.position();
+        buffer.putInt(length)
+                .putLong(expiresAtMillis)
+                .putInt(token.length)
+                .put(token)
+                .putInt(authorization.length)
+                .put(authorization);
+
+        // Op byte is written last to mark the record as complete
+        buffer.put(start + Integer.BYTES + length, op);
+        buffer.position(start + Integer.BYTES + length + Byte.BYTES);
+        return true;
+    }
+
+    private String readString() {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid string length: " + length);
+        }
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private void map(FileChannel channel) throws IOException {
+        fileChannel = channel;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private static void writeHeader(MappedByteBuffer buffer) {
+        buffer.putInt(0, MAGIC);
+        buffer.position(HEADER_SIZE);
+    }
+
+    private void zero(int from) {
+        for (int i = from; i < size; i += ZEROS.length) {
+            buffer.put(i, ZEROS, 0, Math.min(ZEROS.length, size - i));
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null) {
+            return;
+        }
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close challenge journal", e);
+        }
+    }
+
+    /**
+     * Challenge read from the journal
+     *
+     * @param authorization   Challenge authorization
+     * @param expiresAtMillis Expiry of the challenge in milliseconds
+     */
+    public record JournalEntry(String authorization, long expiresAtMillis) {
+    }
+
+    /**
+     * Compacted journal written by {@link #compact(Map)}, waiting to be installed
+     */
+    public static final class Compaction {
+
+        private final Path path;
+        private final FileChannel fileChannel;
+        private final MappedByteBuffer buffer;
+        private final int challenges;
+        private final int dropped;
+
+        private Compaction(Path path, FileChannel fileChannel, MappedByteBuffer buffer, int challenges, int dropped) {
+            this.path = path;
+            this.fileChannel = fileChannel;
+            this.buffer = buffer;
+            this.challenges = challenges;
+            this.dropped = dropped;
+        }
+
+        /**
+         * Number of challenges which did not fit into the journal
+         */
+        public int dropped() {
+            return dropped;
+        }
+
+    }
+}
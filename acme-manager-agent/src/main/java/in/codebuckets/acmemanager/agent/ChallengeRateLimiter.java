@@ -0,0 +1,86 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.agent;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Per client IP rate limiter for the HTTP-01 challenge endpoint.
+ * </br>
+ *
+ * Counts the requests of every client IP in a fixed one second window and rejects the requests above
+ * {@code app.challenge.rateLimit.requestsPerSecond}. The counters are dropped at the end of every window,
+ * so memory is bounded by the number of distinct clients seen within a second.
+ * The rate limiter is disabled unless {@code app.challenge.rateLimit.enabled} is set.
+ */
+@Component
+public class ChallengeRateLimiter {
+
+    private final Map<InetAddress, AtomicInteger> requestCounts = new ConcurrentHashMap<>();
+    private final LongAdder rejected = new LongAdder();
+
+    private final boolean enabled;
+    private final int requestsPerSecond;
+
+    public ChallengeRateLimiter(@Value("${app.challenge.rateLimit.enabled:false}") boolean enabled,
+                                @Value("${app.challenge.rateLimit.requestsPerSecond:20}") int requestsPerSecond) {
+        this.enabled = enabled;
+        this.requestsPerSecond = requestsPerSecond;
+    }
+
+    /**
+     * Count a request from the client
+     *
+     * @param clientAddress Address of the client, {@code null} if not known
+     * @return {@code true} if the request is allowed, {@code false} if the client is over the limit
+     */
+    public boolean tryAcquire(InetAddress clientAddress) {
+        if (!enabled || clientAddress == null) {
+            return true;
+        }
+
+        if (requestCounts.computeIfAbsent(clientAddress, key -> new AtomicInteger()).incrementAndGet() <= requestsPerSecond) {
+            return true;
+        }
+
+        rejected.increment();
+        return false;
+    }
+
+    /**
+     * Number of rejected requests
+     */
+    public long rejected() {
+        return rejected.sum();
+    }
+
+    @Scheduled(fixedRate = 1, timeUnit = SECONDS)
+    public void resetWindow() {
+        requestCounts.clear();
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.agent;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import in.codebuckets.acmemanager.agent.dto.AddChallenge;
+import in.codebuckets.acmemanager.agent.dto.CertificateKeyPairEntry;
+import in.codebuckets.acmemanager.agent.dto.DeploymentResult;
+import in.codebuckets.acmemanager.common.channel.ChannelMessage;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import org.springframework.web.reactive.socket.WebSocketSession;
+import org.springframework.web.reactive.socket.client.ReactorNettyWebSocketClient;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SynchronousSink;
+import reactor.core.scheduler.Schedulers;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.http.client.WebsocketClientSpec;
+import reactor.util.retry.Retry;
+
+import jakarta.annotation.PreDestroy;
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static in.codebuckets.acmemanager.agent.auth.WebSecurityConfig.AUTH_HEADER;
+
+/**
+ * Keeps a persistent control channel open to the server over a WebSocket.
+ * </br>
+ *
+ * The agent opens the channel itself, so the server can push challenges and certificates to agents which
+ * it cannot reach directly, without opening a new connection for every command. The channel sends a heartbeat
+ * every {@code app.server.heartbeatInterval} and is reopened with an exponential backoff whenever it is lost.
+ * At most {@code app.server.commandConcurrency} commands are executed at a time, and no more frames are read
+ * from the server until one of them completes.
+ * </p>
+ * The channel is disabled when {@code app.server.channelUrl} is empty.
+ */
+@Component
+public class ControlChannelClient {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private final HttpChallengeService httpChallengeService;
+    private final CertificateDeploymentService certificateDeploymentService;
+    private final CertificateActivationService certificateActivationService;
+    private final ObjectMapper objectMapper;
+
+    @Value("${app.server.channelUrl:}")
+    private String channelUrl;
+
+    @Value("${app.apiKey}")
+    private String apiKey;
+
+    @Value("${app.server.heartbeatInterval:15s}")
+    private Duration heartbeatInterval;
+
+    @Value("${app.server.reconnectMaxBackoff:1m}")
+    private Duration reconnectMaxBackoff;
+
+    @Value("${app.server.commandConcurrency:4}")
+    private int commandConcurrency;
+
+    @Value("${app.server.maxFrameLength:16MB}")
+    private DataSize maxFrameLength;
+
+    private volatile Disposable connection;
+    private volatile boolean isConnected;
+
+    public ControlChannelClient(HttpChallengeService httpChallengeService, CertificateDeploymentService certificateDeploymentService,
+                                CertificateActivationService certificateActivationService, ObjectMapper objectMapper) {
+        this.httpChallengeService = httpChallengeService;
+        this.certificateDeploymentService = certificateDeploymentService;
+        this.certificateActivationService = certificateActivationService;
+        this.objectMapper = objectMapper;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (channelUrl == null || channelUrl.isBlank()) {
+            logger.info("Control channel is disabled");
+            return;
+        }
+
+        URI uri = URI.create(channelUrl);
+        HttpHeaders headers = new HttpHeaders();
+        headers.add(AUTH_HEADER, apiKey);
+
+        // Certificates and the inventory are sent in a single frame, which is larger than the default limit of 64 KB
+        ReactorNettyWebSocketClient webSocketClient = new ReactorNettyWebSocketClient(HttpClient.create(),
+                () -> WebsocketClientSpec.builder().maxFramePayloadLength((int) maxFrameLength.toBytes()));
+
+        connection = Mono.defer(() -> webSocketClient.execute(uri, headers, this::handle))
+                .doOnError(throwable -> logger.warn("Control channel to {} failed: {}", uri, throwable.getMessage()))
+                .retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofSeconds(1)).maxBackoff(reconnectMaxBackoff))
+                // The server closed the channel, e.g. because it is restarting
+                .repeatWhen(closed -> closed.delayElements(Duration.ofSeconds(1)))
+                .subscribe();
+    }
+
+    @PreDestroy
+    public void stop() {
+        Disposable disposable = connection;
+        if (disposable != null) {
+            disposable.dispose();
+        }
+    }
+
+    /**
+     * Check if the control channel is open
+     */
+    public boolean isConnected() {
+        return isConnected;
+    }
+
+    private Mono<Void> handle(WebSocketSession session) {
+        logger.info("Opened control channel to server");
+        isConnected = true;
+
+        Flux<ChannelMessage> replies = session.receive()
+                .map(WebSocketMessage::getPayloadAsText)
+                .handle((String text, SynchronousSink<ChannelMessage> sink) -> {
+                    try {
+                        sink.next(objectMapper.readValue(text, ChannelMessage.class));
+                    } catch (JsonProcessingException e) {
+                        logger.warn("Ignoring invalid frame from server: {}", e.getMessage());
+                    }
+                })
+                .filter(message -> message.type() == ChannelMessage.Type.COMMAND)
+                .flatMap(message -> Mono.fromCallable(() -> execute(message))
+                        .subscribeOn(Schedulers.boundedElastic()), commandConcurrency);
+
+        Flux<ChannelMessage> heartbeats = Flux.interval(Duration.ZERO, heartbeatInterval)
+                .map(tick -> ChannelMessage.heartbeat())
+                .onBackpressureDrop();
+
+        Flux<WebSocketMessage> outbound = Flux.merge(heartbeats, replies)
+                .takeUntilOther(session.closeStatus())
+                .handle((ChannelMessage message, SynchronousSink<WebSocketMessage> sink) -> {
+                    try {
+                        sink.next(session.textMessage(objectMapper.writeValueAsString(message)));
+                    } catch (JsonProcessingException e) {
+                        logger.error("Failed to serialize frame", e);
+                    }
+                });
+
+        return session.send(outbound)
+                .doFinally(signal -> {
+                    isConnected = false;
+                    logger.info("Closed control channel to server");
+                });
+    }
+
+    /**
+     * Execute the command sent by the server
+     *
+     * @param message Command to execute
+     * @return Acknowledgement of the command
+     */
+    ChannelMessage execute(ChannelMessage message) {
+        try {
+            JsonNode payload = message.payload();
+            return switch (message.command()) {
+                case ChannelMessage.ADD_CHALLENGE -> {
+                    AddChallenge addChallenge = objectMapper.treeToValue(payload, AddChallenge.class);
+                    httpChallengeService.addChallenge(addChallenge.challengeToken(), addChallenge.challengeAuthorization(), addChallenge.expiresAt());
+                    yield ChannelMessage.ack(message.id(), null);
+                }
+                case ChannelMessage.REMOVE_CHALLENGE -> {
+                    httpChallengeService.removeChallenge(payload.path("challengeToken").asText());
+                    yield ChannelMessage.ack(message.id(), null);
+                }
+                case ChannelMessage.DEPLOY_CERTIFICATE -> {
+                    List<DeploymentResult> results = new ArrayList<>();
+                    for (JsonNode entry : payload) {
+                        results.add(certificateActivationService.deploy(objectMapper.treeToValue(entry, CertificateKeyPairEntry.class)));
+                    }
+                    yield ChannelMessage.ack(message.id(), objectMapper.valueToTree(results));
+                }
+                case ChannelMessage.INVENTORY -> ChannelMessage.ack(message.id(), objectMapper.valueToTree(certificateDeploymentService.inventory()));
+                default -> ChannelMessage.nack(message.id(), "Unknown command: " + message.command());
+            };
+        } catch (Exception e) {
+            logger.error("Failed to execute command: {}", message.command(), e);
+            return ChannelMessage.nack(message.id(), e.getMessage());
+        }
+    }
+}
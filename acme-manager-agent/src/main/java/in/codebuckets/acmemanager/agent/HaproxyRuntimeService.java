@@ -0,0 +1,225 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.agent;
+
+import in.codebuckets.acmemanager.agent.dto.CertificateKeyPairEntry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.net.StandardProtocolFamily.UNIX;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Updates certificates in a running HAProxy through its runtime API.
+ * </br>
+ *
+ * The certificate and private key are written as a combined PEM to {@code app.haproxy.certDir/{domain}.pem},
+ * which is where HAProxy is expected to load them from. If the runtime API socket at {@code app.haproxy.socket}
+ * is available and HAProxy already serves the file, the new certificate is swapped in with
+ * {@code set ssl cert} and {@code commit ssl cert} without a reload, so no connection is dropped.
+ * Otherwise the caller falls back to a reload, which picks up the written file.
+ * </p>
+ * HAProxy allows a single SSL certificate transaction at a time, so updates are serialized, which also keeps the
+ * written file and the certificate served by HAProxy in the same order.
+ */
+@Service
+public class HaproxyRuntimeService implements AutoCloseable {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private final ExecutorService executorService = Executors.newVirtualThreadPerTaskExecutor();
+    private final ReentrantLock updateLock = new ReentrantLock();
+
+    private final boolean enabled;
+    private final Path socketPath;
+    private final Path certificateDirectory;
+    private final Duration timeout;
+
+    public HaproxyRuntimeService(@Value("${app.haproxy.enabled:false}") boolean enabled,
+                                 @Value("${app.haproxy.socket:/var/run/haproxy/admin.sock}") Path socketPath,
+                                 @Value("${app.haproxy.certDir:/etc/haproxy/certs}") Path certificateDirectory,
+                                 @Value("${app.haproxy.timeout:5s}") Duration timeout) {
+        this.enabled = enabled;
+        this.socketPath = socketPath;
+        this.certificateDirectory = certificateDirectory;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Write the combined PEM of the certificate and update it in HAProxy
+     *
+     * @param certificateKeyPairEntry {@link CertificateKeyPairEntry} to update
+     * @return {@code true} if HAProxy serves the new certificate, {@code false} if a reload is required
+     * @throws IOException if the combined PEM could not be written
+     */
+    public boolean update(CertificateKeyPairEntry certificateKeyPairEntry) throws IOException {
+        if (!enabled) {
+            return false;
+        }
+
+        String pem = combinedPem(certificateKeyPairEntry);
+        Path pemPath = certificateDirectory.resolve(certificateKeyPairEntry.domain().toLowerCase() + ".pem");
+
+        updateLock.lock();
+        try {
+            writeAtomically(pemPath, pem);
+
+            if (!Files.exists(socketPath)) {
+                logger.info("HAProxy runtime API socket {} not found, reload required for: {}", socketPath, pemPath);
+                return false;
+            }
+
+            return commit(pemPath, pem);
+        } finally {
+            updateLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        executorService.shutdownNow();
+    }
+
+    /**
+     * Swap the certificate in with a single SSL certificate transaction, which is aborted if it can not be committed
+     *
+     * @return {@code true} if HAProxy serves the new certificate, {@code false} if a reload is required
+     */
+    private boolean commit(Path pemPath, String pem) {
+        boolean transactionOpen = false;
+        try {
+            String setResponse = command("set ssl cert " + pemPath + " <<\n" + pem + "\n");
+            if (!setResponse.contains("Transaction created") && !setResponse.contains("Transaction updated")) {
+                // HAProxy does not serve this file yet, e.g. a new domain
+                logger.info("HAProxy did not accept certificate {}, reload required: {}", pemPath, setResponse.strip());
+                return false;
+            }
+            transactionOpen = true;
+
+            String commitResponse = command("commit ssl cert " + pemPath + "\n");
+            if (!commitResponse.contains("Success")) {
+                logger.warn("HAProxy failed to commit certificate {}, reload required: {}", pemPath, commitResponse.strip());
+                return false;
+            }
+
+            transactionOpen = false;
+            logger.info("Updated certificate {} through HAProxy runtime API", pemPath);
+            return true;
+        } catch (IOException e) {
+            logger.warn("HAProxy runtime API is not reachable, reload required for: {}", pemPath, e);
+            return false;
+        } finally {
+            if (transactionOpen) {
+                abort(pemPath);
+            }
+        }
+    }
+
+    /**
+     * Abort the open transaction, so the next update can start a new one
+     */
+    private void abort(Path pemPath) {
+        try {
+            command("abort ssl cert " + pemPath + "\n");
+        } catch (IOException e) {
+            logger.warn("Failed to abort HAProxy transaction of certificate: {}", pemPath, e);
+        }
+    }
+
+    /**
+     * Send a single command to the runtime API and read the response until HAProxy closes the connection
+     */
+    String command(String command) throws IOException {
+        SocketChannel socketChannel = SocketChannel.open(UNIX);
+        Future<String> response = executorService.submit(() -> {
+            socketChannel.connect(UnixDomainSocketAddress.of(socketPath));
+
+            ByteBuffer request = ByteBuffer.wrap(command.getBytes(UTF_8));
+            while (request.hasRemaining()) {
+                socketChannel.write(request);
+            }
+
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            while (socketChannel.read(buffer) != -1) {
+                outputStream.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+            return outputStream.toString(UTF_8);
+        });
+
+        try (socketChannel) {
+            return response.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new IOException("HAProxy runtime API did not respond within " + timeout);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ioException ? ioException : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for HAProxy runtime API");
+        }
+    }
+
+    /**
+     * HAProxy expects the certificate followed by the private key. Payloads sent to the runtime API
+     * end at the first empty line, so empty lines are removed.
+     */
+    private static String combinedPem(CertificateKeyPairEntry certificateKeyPairEntry) {
+        String pem = certificateKeyPairEntry.certificate().strip() + "\n" + certificateKeyPairEntry.privateKey().strip() + "\n";
+        return pem.replaceAll("\n\\s*\n", "\n");
+    }
+
+    private static void writeAtomically(Path path, String content) throws IOException {
+        Files.createDirectories(path.getParent());
+
+        // A unique temporary file, so a write can never move a file which another write is still writing.
+        // It holds the private key, so it is created readable by the owner only.
+        Path temporaryPath = Files.getFileStore(path.getParent()).supportsFileAttributeView(PosixFileAttributeView.class)
+                ? Files.createTempFile(path.getParent(), path.getFileName() + ".", ".tmp",
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")))
+                : Files.createTempFile(path.getParent(), path.getFileName() + ".", ".tmp");
+        try {
+            Files.writeString(temporaryPath, content, UTF_8);
+            Files.move(temporaryPath, path, ATOMIC_MOVE, REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporaryPath);
+        }
+    }
+}
@@ -17,11 +17,31 @@
 
 package in.codebuckets.acmemanager.agent;
 
+import in.codebuckets.acmemanager.agent.ChallengeJournal.Compaction;
+import in.codebuckets.acmemanager.agent.ChallengeJournal.JournalEntry;
+import in.codebuckets.acmemanager.agent.dto.ChallengeStats;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
-import java.util.Collections;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.unmodifiableMap;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 /**
  * Service to store and retrieve challenge tokens and authorizations
@@ -30,37 +50,317 @@ import java.util.concurrent.ConcurrentHashMap;
  * challengeToken: Filename for a challenge file. e.g. {@code http://example.com/.well-known/acme-challenge/{KEY}}
  * </p>
  * challengeAuthorization: Content of the challenge file
+ * </p>
+ * Every challenge expires at the expiry of its authorization (or after {@code app.challenge.defaultTtl}
+ * if the expiry is not known) and the number of stored challenges is capped at {@code app.challenge.maxEntries}.
+ * When the cap is reached, the challenge closest to expiry is evicted to make room for the new one.
+ * </p>
+ * A {@link BloomFilter} over the stored tokens lets {@link #mightContain(String)} reject unknown tokens
+ * without touching the map. It is rebuilt whenever challenges are removed.
+ * </p>
+ * If the {@link ChallengeJournal} is enabled, added and removed challenges are appended to it and the
+ * challenges in it are restored on startup, so that an agent restart does not fail pending validations.
+ * A full journal is compacted in the background, challenges changed while it is compacted are appended
+ * to the compacted journal once it replaces the journal.
  */
 @Service
 public class HttpChallengeService {
 
-    private final Map<String, String> challengeMap = new ConcurrentHashMap<>();
+    private static final Logger logger = LogManager.getLogger();
+
+    private final Map<String, ChallengeEntry> challengeMap = new ConcurrentHashMap<>();
+    private final TimingWheel<String> expiryWheel = new TimingWheel<>(Duration.ofSeconds(1), 512, System.currentTimeMillis());
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private final ChallengeJournal challengeJournal;
+    private final Duration defaultTtl;
+    private final int maxChallenges;
 
     /**
-     * Add challenge token and authorization
+     * Filter over the tokens in {@link #challengeMap}. A token is added to the filter before it is added
+     * to the map, so the filter never rejects a stored token.
+     */
+    private volatile BloomFilter tokenFilter;
+
+    private volatile boolean compactionRequested;
+
+    /**
+     * Set when the last compaction could not fit all challenges, compacting again is pointless until one is removed
+     */
+    private boolean journalOverflowed;
+
+    /**
+     * Appends made while the journal is compacted, {@code null} if no compaction is running
+     */
+    private List<Predicate<ChallengeJournal>> pendingAppends;
+
+    public HttpChallengeService(ChallengeJournal challengeJournal,
+                                @Value("${app.challenge.defaultTtl:7d}") Duration defaultTtl,
+                                @Value("${app.challenge.maxEntries:10000}") int maxChallenges) {
+        this.challengeJournal = challengeJournal;
+        this.defaultTtl = defaultTtl;
+        this.maxChallenges = maxChallenges;
+        this.tokenFilter = newTokenFilter();
+
+        // Restore the challenges which have not expired while the agent was down
+        long now = System.currentTimeMillis();
+        challengeJournal.open().forEach((challengeToken, journalEntry) -> {
+            if (journalEntry.expiresAtMillis() > now) {
+                store(challengeToken, journalEntry.authorization(), journalEntry.expiresAtMillis());
+            }
+        });
+    }
+
+    /**
+     * Add challenge token and authorization which expires after the default TTL
      */
     public void addChallenge(String challengeToken, String challengeAuthorization) {
-        challengeMap.put(challengeToken, challengeAuthorization);
+        addChallenge(challengeToken, challengeAuthorization, null);
+    }
+
+    /**
+     * Add challenge token and authorization
+     *
+     * @param expiresAt Expiry of the authorization, or {@code null} to use the default TTL
+     */
+    public synchronized void addChallenge(String challengeToken, String challengeAuthorization, Instant expiresAt) {
+        long expiresAtMillis = expiresAt == null ? System.currentTimeMillis() + defaultTtl.toMillis() : expiresAt.toEpochMilli();
+        store(challengeToken, challengeAuthorization, expiresAtMillis);
+        journal(journal -> journal.appendAdd(challengeToken, challengeAuthorization, expiresAtMillis));
     }
 
     /**
      * Get challenge authorization
      */
     public String getAuthorization(String token) {
-        return challengeMap.get(token);
+        ChallengeEntry challengeEntry = lookup(token);
+        return challengeEntry == null ? null : challengeEntry.authorization();
+    }
+
+    /**
+     * Get challenge authorization as pre-encoded UTF-8 bytes, ready to be written to the response.
+     * The returned array is shared and must not be modified.
+     */
+    public byte[] getEncodedAuthorization(String token) {
+        ChallengeEntry challengeEntry = lookup(token);
+        return challengeEntry == null ? null : challengeEntry.encodedAuthorization();
     }
 
     /**
      * Remove challenge token and authorization
      */
-    public String removeChallenge(String challengeToken) {
-        return challengeMap.remove(challengeToken);
+    public synchronized String removeChallenge(String challengeToken) {
+        expiryWheel.cancel(challengeToken);
+        ChallengeEntry challengeEntry = challengeMap.remove(challengeToken);
+        if (challengeEntry == null) {
+            return null;
+        }
+
+        journalOverflowed = false;
+        rebuildTokenFilter();
+        journal(journal -> journal.appendRemove(challengeToken));
+
+        return challengeEntry.authorization();
+    }
+
+    /**
+     * Check if a challenge might be stored for the token. This is cheaper than a lookup,
+     * a rejected token is counted as a miss.
+     *
+     * @return {@code false} if no challenge is stored for the token, {@code true} otherwise
+     */
+    public boolean mightContain(String challengeToken) {
+        if (tokenFilter.mightContain(challengeToken)) {
+            return true;
+        }
+
+        misses.increment();
+        return false;
     }
 
     /**
      * Get all challenge tokens and authorizations
      */
     public Map<String, String> challengeMap() {
-        return Collections.unmodifiableMap(challengeMap);
+        Map<String, String> map = new HashMap<>();
+        challengeMap.forEach((challengeToken, challengeEntry) -> map.put(challengeToken, challengeEntry.authorization()));
+        return unmodifiableMap(map);
+    }
+
+    /**
+     * Get the hit, miss and eviction counters of the challenge store. Rate limited requests never reach
+     * the store, they are counted by {@link ChallengeRateLimiter}.
+     */
+    public ChallengeStats stats() {
+        return new ChallengeStats(challengeMap.size(), maxChallenges, hits.sum(), misses.sum(), evictions.sum(), 0);
+    }
+
+    /**
+     * Remove all challenges whose authorization has expired
+     */
+    @Scheduled(initialDelay = 1, fixedDelay = 1, timeUnit = SECONDS)
+    public synchronized void evictExpired() {
+        boolean evicted = false;
+        for (String challengeToken : expiryWheel.advance(System.currentTimeMillis())) {
+            logger.info("Challenge has expired: {}", challengeToken);
+            evicted |= evict(challengeToken);
+        }
+
+        if (evicted) {
+            rebuildTokenFilter();
+        }
+    }
+
+    /**
+     * Rewrite the challenge journal with the stored challenges, dropping the expired and removed ones.
+     * The compacted journal is written without holding the lock, so challenges can be added meanwhile.
+     */
+    @Scheduled(initialDelayString = "${app.challenge.journal.compactIntervalMinutes:60}",
+            fixedDelayString = "${app.challenge.journal.compactIntervalMinutes:60}", timeUnit = MINUTES)
+    public void compactJournal() {
+        Map<String, JournalEntry> entries = new LinkedHashMap<>();
+        synchronized (this) {
+            if (!challengeJournal.isEnabled() || pendingAppends != null) {
+                return;
+            }
+
+            compactionRequested = false;
+            pendingAppends = new ArrayList<>();
+            challengeMap.forEach((challengeToken, challengeEntry) ->
+                    entries.put(challengeToken, new JournalEntry(challengeEntry.authorization(), challengeEntry.expiresAtMillis())));
+        }
+
+        Compaction compaction = null;
+        try {
+            compaction = challengeJournal.compact(entries);
+        } catch (UncheckedIOException e) {
+            logger.error("Failed to compact challenge journal", e);
+        }
+
+        synchronized (this) {
+            List<Predicate<ChallengeJournal>> appends = pendingAppends;
+            pendingAppends = null;
+            if (compaction == null) {
+                return;
+            }
+
+            try {
+                challengeJournal.install(compaction);
+            } catch (UncheckedIOException e) {
+                logger.error("Failed to compact challenge journal", e);
+                return;
+            }
+
+            journalOverflowed = compaction.dropped() > 0;
+            for (Predicate<ChallengeJournal> append : appends) {
+                if (!append.test(challengeJournal)) {
+                    logger.warn("Challenge journal is full after compaction, challenges are not journaled until one is removed");
+                    journalOverflowed = true;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Compact the challenge journal if an append found it full
+     */
+    @Scheduled(initialDelay = 1, fixedDelay = 1, timeUnit = SECONDS)
+    public void compactJournalIfRequested() {
+        if (compactionRequested) {
+            compactJournal();
+        }
+    }
+
+    /**
+     * Append to the challenge journal, requesting a compaction if it is full.
+     * While a compaction is running the append is also kept to be replayed on the compacted journal.
+     */
+    private void journal(Predicate<ChallengeJournal> append) {
+        if (!challengeJournal.isEnabled()) {
+            return;
+        }
+
+        if (pendingAppends != null) {
+            pendingAppends.add(append);
+        }
+
+        if (!append.test(challengeJournal) && pendingAppends == null && !journalOverflowed) {
+            compactionRequested = true;
+        }
+    }
+
+    /**
+     * Store the challenge, evicting the challenge closest to expiry if the store is full
+     */
+    private void store(String challengeToken, String challengeAuthorization, long expiresAtMillis) {
+        // Make room for the new challenge if the store is full
+        if (!challengeMap.containsKey(challengeToken)) {
+            boolean evicted = false;
+            while (challengeMap.size() >= maxChallenges) {
+                String evictedToken = expiryWheel.nextExpiring();
+                if (evictedToken == null) {
+                    break;
+                }
+
+                logger.warn("Challenge store is full, evicting challenge: {}", evictedToken);
+                evicted |= evict(evictedToken);
+            }
+
+            if (evicted) {
+                rebuildTokenFilter();
+            }
+        }
+
+        tokenFilter.put(challengeToken);
+        challengeMap.put(challengeToken, new ChallengeEntry(challengeAuthorization, challengeAuthorization.getBytes(UTF_8), expiresAtMillis));
+        expiryWheel.schedule(challengeToken, expiresAtMillis);
+    }
+
+    private ChallengeEntry lookup(String token) {
+        ChallengeEntry challengeEntry = challengeMap.get(token);
+
+        // Expired challenges are treated as missing until the wheel evicts them
+        if (challengeEntry == null || challengeEntry.expiresAtMillis() <= System.currentTimeMillis()) {
+            misses.increment();
+            return null;
+        }
+
+        hits.increment();
+        return challengeEntry;
+    }
+
+    private boolean evict(String challengeToken) {
+        expiryWheel.cancel(challengeToken);
+        if (challengeMap.remove(challengeToken) == null) {
+            return false;
+        }
+
+        journalOverflowed = false;
+        evictions.increment();
+        return true;
+    }
+
+    /**
+     * Rebuild the token filter from the stored tokens, dropping the removed ones
+     */
+    private void rebuildTokenFilter() {
+        BloomFilter bloomFilter = newTokenFilter();
+        challengeMap.keySet().forEach(bloomFilter::put);
+        tokenFilter = bloomFilter;
+    }
+
+    private BloomFilter newTokenFilter() {
+        return new BloomFilter(maxChallenges, 0.01);
+    }
+
+    /**
+     * Challenge authorization along with its UTF-8 encoded form, so that the
+     * challenge endpoint does not have to encode it on every request.
+     */
+    private record ChallengeEntry(String authorization, byte[] encodedAuthorization, long expiresAtMillis) {
     }
 }
@@ -0,0 +1,135 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.agent;
+
+import org.springframework.core.Ordered;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+
+import java.net.InetSocketAddress;
+
+import static org.springframework.http.HttpStatus.NOT_FOUND;
+import static org.springframework.http.HttpStatus.OK;
+import static org.springframework.http.HttpStatus.TOO_MANY_REQUESTS;
+import static org.springframework.http.MediaType.TEXT_PLAIN;
+
+/**
+ * Serves {@code GET /.well-known/acme-challenge/{challengeToken}} ahead of the Spring Security
+ * filter chain and the annotated controllers.
+ * </br>
+ *
+ * The ACME server validates the HTTP-01 challenge from multiple vantage points and the endpoint is
+ * public, so it also receives a steady stream of scanner traffic. This filter answers those requests
+ * directly from {@link HttpChallengeService} with the pre-encoded authorization bytes and never
+ * reaches the rest of the framework.
+ * </p>
+ * Unknown tokens are rejected by the token filter of {@link HttpChallengeService} before the challenge map
+ * is looked up, and clients can optionally be rate limited per IP with {@link ChallengeRateLimiter}.
+ */
+@Component
+public class HttpChallengeWebFilter implements WebFilter, Ordered {
+
+    public static final String CHALLENGE_PATH = "/.well-known/acme-challenge/";
+
+    /**
+     * Path segment under {@link #CHALLENGE_PATH} which is handled by the controller and not a challenge token.
+     */
+    public static final String GET_ALL_CHALLENGES = "get-all";
+
+    private final HttpChallengeService httpChallengeService;
+    private final ChallengeRateLimiter challengeRateLimiter;
+
+    public HttpChallengeWebFilter(HttpChallengeService httpChallengeService, ChallengeRateLimiter challengeRateLimiter) {
+        this.httpChallengeService = httpChallengeService;
+        this.challengeRateLimiter = challengeRateLimiter;
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        ServerHttpRequest request = exchange.getRequest();
+        if (request.getMethod() != HttpMethod.GET) {
+            return chain.filter(exchange);
+        }
+
+        String challengeToken = challengeToken(request.getPath().value());
+        if (challengeToken == null) {
+            return chain.filter(exchange);
+        }
+
+        ServerHttpResponse response = exchange.getResponse();
+
+        InetSocketAddress remoteAddress = request.getRemoteAddress();
+        if (!challengeRateLimiter.tryAcquire(remoteAddress == null ? null : remoteAddress.getAddress())) {
+            response.setStatusCode(TOO_MANY_REQUESTS);
+            return response.setComplete();
+        }
+
+        if (!httpChallengeService.mightContain(challengeToken)) {
+            response.setStatusCode(NOT_FOUND);
+            return response.setComplete();
+        }
+
+        byte[] authorization = httpChallengeService.getEncodedAuthorization(challengeToken);
+        if (authorization == null) {
+            response.setStatusCode(NOT_FOUND);
+            return response.setComplete();
+        }
+
+        HttpHeaders headers = response.getHeaders();
+        headers.setContentType(TEXT_PLAIN);
+        headers.setContentLength(authorization.length);
+        response.setStatusCode(OK);
+        return response.writeWith(Mono.just(response.bufferFactory().wrap(authorization)));
+    }
+
+    @Override
+    public int getOrder() {
+        return Ordered.HIGHEST_PRECEDENCE;
+    }
+
+    /**
+     * Extract the challenge token from the request path
+     *
+     * @param path Request path
+     * @return Challenge token, or {@code null} if the path is not a challenge token path
+     */
+    static String challengeToken(String path) {
+        if (!path.startsWith(CHALLENGE_PATH) || path.length() == CHALLENGE_PATH.length()) {
+            return null;
+        }
+
+        // Tokens are a single path segment
+        if (path.indexOf('/', CHALLENGE_PATH.length()) != -1) {
+            return null;
+        }
+
+        String challengeToken = path.substring(CHALLENGE_PATH.length());
+        if (GET_ALL_CHALLENGES.equals(challengeToken)) {
+            return null;
+        }
+
+        return challengeToken;
+    }
+}
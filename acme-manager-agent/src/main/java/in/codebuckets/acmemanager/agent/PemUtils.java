@@ -0,0 +1,269 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.agent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * Reads PEM encoded certificates and private keys with the JDK only.
+ * </br>
+ *
+ * Private keys are accepted as PKCS#8 ({@code PRIVATE KEY}), PKCS#1 ({@code RSA PRIVATE KEY}) and SEC1
+ * ({@code EC PRIVATE KEY}). The JDK only reads PKCS#8, so PKCS#1 and SEC1 keys are wrapped into a PKCS#8
+ * structure first.
+ */
+final class PemUtils {
+
+    private static final Pattern PEM_BLOCK = Pattern.compile("-----BEGIN ([A-Z0-9 ]+)-----([A-Za-z0-9+/=\\s]+)-----END \\1-----");
+
+    private static final byte SEQUENCE = 0x30;
+    private static final byte INTEGER = 0x02;
+    private static final byte OCTET_STRING = 0x04;
+    private static final byte CONTEXT_0 = (byte) 0xA0;
+
+    // AlgorithmIdentifier { rsaEncryption, NULL }
+    private static final byte[] RSA_ALGORITHM = {0x30, 0x0D, 0x06, 0x09, 0x2A, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xF7, 0x0D, 0x01, 0x01, 0x01, 0x05, 0x00};
+
+    // OID id-ecPublicKey
+    private static final byte[] EC_PUBLIC_KEY_OID = {0x06, 0x07, 0x2A, (byte) 0x86, 0x48, (byte) 0xCE, 0x3D, 0x02, 0x01};
+
+    private static final String[] PKCS8_ALGORITHMS = {"RSA", "EC", "Ed25519", "Ed448"};
+
+    private PemUtils() {
+        // Prevent instantiation
+    }
+
+    /**
+     * Read all certificates of the PEM, leaf first
+     *
+     * @param pem PEM encoded certificate chain
+     * @return List of certificates
+     * @throws IllegalArgumentException if the PEM does not contain a valid certificate
+     */
+    static List<X509Certificate> readCertificates(String pem) {
+        try {
+            Collection<? extends Certificate> certificates = CertificateFactory.getInstance("X.509")
+                    .generateCertificates(new ByteArrayInputStream(pem.getBytes(US_ASCII)));
+            if (certificates.isEmpty()) {
+                throw new IllegalArgumentException("No certificate found");
+            }
+
+            return certificates.stream().map(X509Certificate.class::cast).toList();
+        } catch (CertificateException e) {
+            throw new IllegalArgumentException("Invalid certificate: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Read the private key of the PEM
+     *
+     * @param pem PEM encoded private key
+     * @return Private key
+     * @throws IllegalArgumentException if the PEM does not contain a supported private key
+     */
+    static PrivateKey readPrivateKey(String pem) {
+        Matcher matcher = PEM_BLOCK.matcher(pem);
+        while (matcher.find()) {
+            String label = matcher.group(1);
+            byte[] der = Base64.getMimeDecoder().decode(matcher.group(2));
+
+            switch (label) {
+                case "PRIVATE KEY" -> {
+                    for (String algorithm : PKCS8_ALGORITHMS) {
+                        try {
+                            return KeyFactory.getInstance(algorithm).generatePrivate(new PKCS8EncodedKeySpec(der));
+                        } catch (InvalidKeySpecException | NoSuchAlgorithmException e) {
+                            // Try the next algorithm
+                        }
+                    }
+                    throw new IllegalArgumentException("Unsupported private key algorithm");
+                }
+                case "RSA PRIVATE KEY" -> {
+                    return generatePrivate("RSA", pkcs8(RSA_ALGORITHM, der));
+                }
+                case "EC PRIVATE KEY" -> {
+                    byte[] algorithm = tlv(SEQUENCE, concat(EC_PUBLIC_KEY_OID, namedCurve(der)));
+                    return generatePrivate("EC", pkcs8(algorithm, der));
+                }
+                default -> {
+                    // Skip other blocks, e.g. EC PARAMETERS
+                }
+            }
+        }
+
+        throw new IllegalArgumentException("No private key found");
+    }
+
+    /**
+     * Check that the private key belongs to the public key of the certificate, by signing with the one and verifying with the other
+     *
+     * @param privateKey  Private key
+     * @param certificate Leaf certificate
+     * @return {@code true} if the private key matches the certificate
+     */
+    static boolean matches(PrivateKey privateKey, X509Certificate certificate) {
+        PublicKey publicKey = certificate.getPublicKey();
+        if (!privateKey.getAlgorithm().equals(publicKey.getAlgorithm())) {
+            return false;
+        }
+
+        String algorithm = switch (privateKey.getAlgorithm()) {
+            case "RSA" -> "SHA256withRSA";
+            case "EC" -> "SHA256withECDSA";
+            default -> privateKey.getAlgorithm();
+        };
+
+        try {
+            byte[] data = certificate.getSignature();
+
+            Signature signer = Signature.getInstance(algorithm);
+            signer.initSign(privateKey);
+            signer.update(data);
+            byte[] signature = signer.sign();
+
+            Signature verifier = Signature.getInstance(algorithm);
+            verifier.initVerify(publicKey);
+            verifier.update(data);
+            return verifier.verify(signature);
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    private static PrivateKey generatePrivate(String algorithm, byte[] pkcs8) {
+        try {
+            return KeyFactory.getInstance(algorithm).generatePrivate(new PKCS8EncodedKeySpec(pkcs8));
+        } catch (InvalidKeySpecException | NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Invalid private key: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * PrivateKeyInfo { version 0, algorithm, OCTET STRING privateKey }
+     */
+    private static byte[] pkcs8(byte[] algorithm, byte[] privateKey) {
+        return tlv(SEQUENCE, concat(new byte[]{INTEGER, 0x01, 0x00}, algorithm, tlv(OCTET_STRING, privateKey)));
+    }
+
+    /**
+     * Find the named curve OID in the {@code [0] parameters} of the SEC1 ECPrivateKey
+     */
+    private static byte[] namedCurve(byte[] sec1) {
+        int[] header = header(sec1, 0);
+        if (sec1[0] != SEQUENCE) {
+            throw new IllegalArgumentException("Invalid EC private key");
+        }
+
+        int offset = header[0];
+        int end = header[0] + header[1];
+        while (offset < end) {
+            int[] element = header(sec1, offset);
+            if (sec1[offset] == CONTEXT_0) {
+                byte[] curve = new byte[element[1]];
+                System.arraycopy(sec1, element[0], curve, 0, element[1]);
+                return curve;
+            }
+            offset = element[0] + element[1];
+        }
+
+        throw new IllegalArgumentException("EC private key does not name its curve");
+    }
+
+    /**
+     * Read the header of the DER element at the offset
+     *
+     * @return Offset of the content and length of the content
+     */
+    private static int[] header(byte[] der, int offset) {
+        if (offset + 1 >= der.length) {
+            throw new IllegalArgumentException("Truncated private key");
+        }
+
+        int length = der[offset + 1] & 0xFF;
+        int contentOffset = offset + 2;
+        if (length > 0x7F) {
+            int lengthBytes = length & 0x7F;
+            if (lengthBytes > 3 || contentOffset + lengthBytes > der.length) {
+                throw new IllegalArgumentException("Invalid private key length");
+            }
+
+            length = 0;
+            for (int i = 0; i < lengthBytes; i++) {
+                length = (length << 8) | (der[contentOffset++] & 0xFF);
+            }
+        }
+
+        if (contentOffset + length > der.length) {
+            throw new IllegalArgumentException("Truncated private key");
+        }
+        return new int[]{contentOffset, length};
+    }
+
+    private static byte[] tlv(byte tag, byte[] content) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(content.length + 6);
+        outputStream.write(tag);
+
+        int length = content.length;
+        if (length < 0x80) {
+            outputStream.write(length);
+        } else if (length < 0x100) {
+            outputStream.write(0x81);
+            outputStream.write(length);
+        } else if (length < 0x10000) {
+            outputStream.write(0x82);
+            outputStream.write(length >> 8);
+            outputStream.write(length);
+        } else {
+            outputStream.write(0x83);
+            outputStream.write(length >> 16);
+            outputStream.write(length >> 8);
+            outputStream.write(length);
+        }
+
+        outputStream.writeBytes(content);
+        return outputStream.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        for (byte[] array : arrays) {
+            outputStream.writeBytes(array);
+        }
+        return outputStream.toByteArray();
+    }
+}
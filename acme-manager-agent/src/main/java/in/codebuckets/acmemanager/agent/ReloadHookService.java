@@ -0,0 +1,212 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.agent;
+
+import in.codebuckets.acmemanager.agent.dto.ReloadStats;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Runs the post-deploy reload command once a burst of deployments has settled.
+ * </br>
+ *
+ * Every deployment requests a reload. The reload runs {@code app.deploy.reloadDebounce} after the last request,
+ * but no later than {@code app.deploy.reloadMaxDelay} after the first pending request, so a burst of deployments
+ * coalesces into a single reload. Reloads never run more often than {@code app.deploy.reloadMinInterval}
+ * and never concurrently, a request which arrives during a reload schedules another one.
+ * </p>
+ * The command is run with {@code sh -c}, e.g. {@code nginx -s reload} or {@code systemctl reload haproxy}.
+ * No reload is run if {@code app.deploy.reloadCommand} is empty.
+ */
+@Service
+public class ReloadHookService {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private final TaskScheduler taskScheduler;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder reloads = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder totalLatencyMillis = new LongAdder();
+    private volatile long lastLatencyMillis;
+    private volatile String lastError;
+
+    private final String reloadCommand;
+    private final Duration debounce;
+    private final Duration maxDelay;
+    private final Duration minInterval;
+    private final Duration timeout;
+
+    // Guarded by this
+    private Instant firstPendingRequest;
+    private Instant lastPendingRequest;
+    private Instant lastReloadStarted = Instant.EPOCH;
+    private boolean reloading;
+    private ScheduledFuture<?> scheduledReload;
+
+    public ReloadHookService(TaskScheduler taskScheduler,
+                             @Value("${app.deploy.reloadCommand:}") String reloadCommand,
+                             @Value("${app.deploy.reloadDebounce:2s}") Duration debounce,
+                             @Value("${app.deploy.reloadMaxDelay:30s}") Duration maxDelay,
+                             @Value("${app.deploy.reloadMinInterval:10s}") Duration minInterval,
+                             @Value("${app.deploy.reloadTimeout:60s}") Duration timeout) {
+        this.taskScheduler = taskScheduler;
+        this.reloadCommand = reloadCommand;
+        this.debounce = debounce;
+        this.maxDelay = maxDelay;
+        this.minInterval = minInterval;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Check if a reload command is configured
+     */
+    public boolean isEnabled() {
+        return !reloadCommand.isBlank();
+    }
+
+    /**
+     * Request a reload after a deployment
+     */
+    public synchronized void requestReload() {
+        if (!isEnabled()) {
+            return;
+        }
+
+        requests.increment();
+
+        Instant now = Instant.now();
+        if (firstPendingRequest == null) {
+            firstPendingRequest = now;
+        }
+        lastPendingRequest = now;
+
+        // A running reload schedules the next one when it completes
+        if (!reloading) {
+            schedule();
+        }
+    }
+
+    /**
+     * Get the reload counters
+     */
+    public ReloadStats stats() {
+        long count = reloads.sum();
+        return new ReloadStats(requests.sum(), count, failures.sum(), lastLatencyMillis,
+                count == 0 ? 0 : totalLatencyMillis.sum() / count, lastError);
+    }
+
+    private void schedule() {
+        Instant debounced = lastPendingRequest.plus(debounce);
+        Instant latest = firstPendingRequest.plus(maxDelay);
+        Instant runAt = debounced.isBefore(latest) ? debounced : latest;
+
+        Instant earliest = lastReloadStarted.plus(minInterval);
+        if (runAt.isBefore(earliest)) {
+            runAt = earliest;
+        }
+
+        if (scheduledReload != null) {
+            scheduledReload.cancel(false);
+        }
+        scheduledReload = taskScheduler.schedule(this::startReload, runAt);
+    }
+
+    private synchronized void startReload() {
+        if (reloading || firstPendingRequest == null) {
+            return;
+        }
+
+        reloading = true;
+        firstPendingRequest = null;
+        lastPendingRequest = null;
+        scheduledReload = null;
+        lastReloadStarted = Instant.now();
+
+        // The command can take a while, keep it off the scheduler threads
+        Thread.ofVirtual().name("reload-hook").start(this::runReload);
+    }
+
+    private void runReload() {
+        long startNanos = System.nanoTime();
+        try {
+            reload();
+            logger.info("Reload command completed: {}", reloadCommand);
+        } catch (Exception e) {
+            failures.increment();
+            lastError = e.getMessage();
+            logger.error("Reload command failed: {}", reloadCommand, e);
+        } finally {
+            long latencyMillis = Duration.ofNanos(System.nanoTime() - startNanos).toMillis();
+            reloads.increment();
+            totalLatencyMillis.add(latencyMillis);
+            lastLatencyMillis = latencyMillis;
+
+            synchronized (this) {
+                reloading = false;
+                if (firstPendingRequest != null) {
+                    schedule();
+                }
+            }
+        }
+    }
+
+    private void reload() throws IOException, InterruptedException {
+        Process process = new ProcessBuilder("sh", "-c", reloadCommand)
+                .redirectErrorStream(true)
+                .start();
+
+        // Drain the output while waiting, so that a chatty command does not block on a full pipe
+        CompletableFuture<String> outputFuture = new CompletableFuture<>();
+        Thread.ofVirtual().start(() -> {
+            try {
+                outputFuture.complete(new String(process.getInputStream().readAllBytes(), UTF_8).strip());
+            } catch (IOException e) {
+                outputFuture.complete("");
+            }
+        });
+
+        if (!process.waitFor(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+            process.destroyForcibly();
+            throw new IOException("Reload command timed out after " + timeout);
+        }
+
+        String output = outputFuture.completeOnTimeout("", 1, TimeUnit.SECONDS).join();
+        if (process.exitValue() != 0) {
+            throw new IOException("Reload command exited with status " + process.exitValue() + ": " + output);
+        }
+
+        if (!output.isEmpty()) {
+            logger.info("Reload command output: {}", output);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.agent;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Hashed timing wheel which tracks the deadline of keys.
+ * </br>
+ *
+ * Keys are hashed into a slot by their deadline tick. Advancing the wheel only visits the
+ * slots for the ticks that have elapsed, so the cost of expiring keys does not depend on the
+ * total number of keys in the wheel. Keys whose deadline is more than one revolution away
+ * stay in their slot until a later revolution reaches their deadline.
+ *
+ * @param <K> the type of the key
+ */
+final class TimingWheel<K> {
+
+    private final long tickMillis;
+    private final List<Set<K>> slots;
+    private final Map<K, Timeout> timeouts = new HashMap<>();
+
+    /**
+     * The last tick which was completely processed by {@link #advance(long)}. A tick is only
+     * completely processed once it has elapsed, so every deadline hashed into it has passed.
+     */
+    private long currentTick;
+
+    /**
+     * Create a new {@link TimingWheel}
+     *
+     * @param tick       Duration of a single tick
+     * @param wheelSize  Number of slots in the wheel
+     * @param nowMillis  Current time in milliseconds
+     */
+    TimingWheel(Duration tick, int wheelSize, long nowMillis) {
+        if (tick.toMillis() <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("Tick and wheel size must be positive");
+        }
+
+        this.tickMillis = tick.toMillis();
+        this.slots = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            slots.add(new HashSet<>());
+        }
+        this.currentTick = nowMillis / tickMillis - 1;
+    }
+
+    /**
+     * Schedule the key to expire at the given deadline, replacing any existing deadline for the key
+     *
+     * @param key            Key to schedule
+     * @param deadlineMillis Deadline in milliseconds
+     */
+    synchronized void schedule(K key, long deadlineMillis) {
+        cancel(key);
+
+        // Deadlines which have already passed are picked up by the next tick
+        int slot = slotOf(Math.max(deadlineMillis / tickMillis, currentTick + 1));
+        slots.get(slot).add(key);
+        timeouts.put(key, new Timeout(deadlineMillis, slot));
+    }
+
+    /**
+     * Remove the key from the wheel
+     *
+     * @param key Key to remove
+     * @return {@code true} if the key was scheduled, {@code false} otherwise
+     */
+    synchronized boolean cancel(K key) {
+        Timeout timeout = timeouts.remove(key);
+        if (timeout == null) {
+            return false;
+        }
+
+        slots.get(timeout.slot()).remove(key);
+        return true;
+    }
+
+    /**
+     * Advance the wheel to the given time and remove all keys whose deadline has passed
+     *
+     * @param nowMillis Current time in milliseconds
+     * @return List of expired keys
+     */
+    synchronized List<K> advance(long nowMillis) {
+        long nowTick = nowMillis / tickMillis;
+        if (nowTick <= currentTick) {
+            return Collections.emptyList();
+        }
+
+        List<K> expired = new ArrayList<>();
+
+        // The tick in progress is visited as well, but only the keys whose deadline has passed are removed.
+        // If more than one revolution has passed, every slot is visited exactly once.
+        long ticks = Math.min(nowTick - currentTick, slots.size());
+        for (long tick = currentTick + 1; ticks > 0; tick++, ticks--) {
+            Iterator<K> iterator = slots.get(slotOf(tick)).iterator();
+            while (iterator.hasNext()) {
+                K key = iterator.next();
+                if (timeouts.get(key).deadlineMillis() <= nowMillis) {
+                    iterator.remove();
+                    timeouts.remove(key);
+                    expired.add(key);
+                }
+            }
+        }
+
+        // The tick in progress has not completely elapsed, so it is visited again by the next advance
+        currentTick = nowTick - 1;
+        return expired;
+    }
+
+    /**
+     * Find the key with the earliest deadline
+     *
+     * @return Key with the earliest deadline, or {@code null} if the wheel is empty
+     */
+    synchronized K nextExpiring() {
+        K nextKey = null;
+        long nextDeadline = Long.MAX_VALUE;
+        for (Map.Entry<K, Timeout> entry : timeouts.entrySet()) {
+            if (entry.getValue().deadlineMillis() < nextDeadline) {
+                nextKey = entry.getKey();
+                nextDeadline = entry.getValue().deadlineMillis();
+            }
+        }
+        return nextKey;
+    }
+
+    /**
+     * Number of keys in the wheel
+     */
+    synchronized int size() {
+        return timeouts.size();
+    }
+
+    private int slotOf(long tick) {
+        return (int) (tick % slots.size());
+    }
+
+    private record Timeout(long deadlineMillis, int slot) {
+    }
+}
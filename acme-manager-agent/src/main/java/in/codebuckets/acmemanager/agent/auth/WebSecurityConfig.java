@@ -23,7 +23,6 @@ import in.codebuckets.acmemanager.common.auth.TokenAuthenticationManager;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.http.HttpMethod;
 import org.springframework.security.config.Customizer;
 import org.springframework.security.config.annotation.method.configuration.EnableReactiveMethodSecurity;
 import org.springframework.security.config.annotation.web.reactive.EnableWebFluxSecurity;
@@ -48,7 +47,6 @@ public class WebSecurityConfig {
     @Bean
     public SecurityWebFilterChain springSecurityFilterChain(ServerHttpSecurity http) {
         return http.authorizeExchange(exchanges -> exchanges
-                        .pathMatchers(HttpMethod.GET, "/.well-known/acme-challenge/*").permitAll() // For ACME client to verify domain ownership
                         .pathMatchers("/**").access(new TokenAuthenticationManager())
                         .anyExchange()
                         .permitAll())
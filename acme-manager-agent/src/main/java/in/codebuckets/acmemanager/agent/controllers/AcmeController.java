@@ -23,18 +23,18 @@ import in.codebuckets.acmemanager.common.json.Responses;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
-import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import static in.codebuckets.acmemanager.agent.HttpChallengeWebFilter.CHALLENGE_PATH;
+import static in.codebuckets.acmemanager.agent.HttpChallengeWebFilter.GET_ALL_CHALLENGES;
 import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
 import static org.springframework.http.ResponseEntity.notFound;
-import static org.springframework.http.ResponseEntity.ok;
 
-@RequestMapping("/.well-known/acme-challenge/")
+@RequestMapping(CHALLENGE_PATH)
 @RestController
 public class AcmeController {
 
@@ -44,25 +44,16 @@ public class AcmeController {
         this.httpChallengeService = httpChallengeService;
     }
 
-    @GetMapping("/{challengeToken}")
-    public ResponseEntity<String> getChallenge(@PathVariable String challengeToken) {
-        String challengeAuthorization = httpChallengeService.getAuthorization(challengeToken);
+    // GET /{challengeToken} is served by HttpChallengeWebFilter ahead of the security filter chain
 
-        if (challengeAuthorization == null) {
-            return notFound().build();
-        } else {
-            return ok(challengeAuthorization);
-        }
-    }
-
-    @GetMapping(value = "/get-all", produces = APPLICATION_JSON_VALUE)
+    @GetMapping(value = "/" + GET_ALL_CHALLENGES, produces = APPLICATION_JSON_VALUE)
     public ResponseEntity<String> getAllChallenges() {
         return Responses.ok(httpChallengeService.challengeMap());
     }
 
     @PostMapping(value = "/", consumes = APPLICATION_JSON_VALUE, produces = APPLICATION_JSON_VALUE)
     public ResponseEntity<String> addChallenge(@RequestBody AddChallenge addChallenge) {
-        httpChallengeService.addChallenge(addChallenge.challengeToken(), addChallenge.challengeAuthorization());
+        httpChallengeService.addChallenge(addChallenge.challengeToken(), addChallenge.challengeAuthorization(), addChallenge.expiresAt());
         return Responses.ok("Challenge added successfully");
     }
 
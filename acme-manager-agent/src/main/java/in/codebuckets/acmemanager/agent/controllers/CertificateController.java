@@ -17,29 +17,38 @@
 
 package in.codebuckets.acmemanager.agent.controllers;
 
+import in.codebuckets.acmemanager.agent.CertificateActivationService;
+import in.codebuckets.acmemanager.agent.CertificateDeploymentService;
 import in.codebuckets.acmemanager.agent.dto.CertificateKeyPairEntry;
-import in.codebuckets.acmemanager.common.json.Responses;
+import in.codebuckets.acmemanager.agent.dto.DeploymentResult;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 
 import static in.codebuckets.acmemanager.common.json.Responses.badRequest;
 import static in.codebuckets.acmemanager.common.json.Responses.internalServerError;
+import static in.codebuckets.acmemanager.common.json.Responses.notFound;
+import static in.codebuckets.acmemanager.common.json.Responses.ok;
 import static in.codebuckets.acmemanager.common.json.Responses.responseMessage;
 import static java.util.concurrent.CompletableFuture.supplyAsync;
 import static org.springframework.http.HttpStatus.CREATED;
 import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+import static org.springframework.http.MediaType.APPLICATION_NDJSON_VALUE;
 
 @RequestMapping("/v1/agent/certificate")
 @RestController
@@ -47,33 +56,84 @@ public class CertificateController {
 
     private static final Logger logger = LogManager.getLogger();
 
-    @Value("${app.certificateDir}")
-    private String certificateDirectory;
+    private final CertificateDeploymentService certificateDeploymentService;
+    private final CertificateActivationService certificateActivationService;
+
+    @Value("${app.deploy.bulkConcurrency:8}")
+    private int bulkConcurrency;
+
+    public CertificateController(CertificateDeploymentService certificateDeploymentService,
+                                 CertificateActivationService certificateActivationService) {
+        this.certificateDeploymentService = certificateDeploymentService;
+        this.certificateActivationService = certificateActivationService;
+    }
 
     @PostMapping(value = "/add", consumes = APPLICATION_JSON_VALUE, produces = APPLICATION_JSON_VALUE)
     public CompletableFuture<ResponseEntity<String>> addCertificateKeyPair(@RequestBody CertificateKeyPairEntry certificateKeyPairEntry) {
         return supplyAsync(() -> {
-            String directory = certificateKeyPairEntry.directory(certificateDirectory);
-
-            // Create a directory if it does not exist
             try {
-                Files.createDirectories(new File(directory).toPath());
+                certificateDeploymentService.deploy(certificateKeyPairEntry);
+                certificateActivationService.activate(certificateKeyPairEntry);
+                return responseMessage(CREATED, "Certificate added successfully");
+            } catch (IllegalArgumentException e) {
+                return badRequest(e.getMessage());
             } catch (IOException e) {
-                logger.error("Failed to create directory", e);
-                return internalServerError("Failed to create directory");
+                logger.error("Failed to add certificate", e);
+                return internalServerError("Failed to add certificate");
             }
+        });
+    }
 
-            // Create certificate and private key files
-            try (FileWriter certificateWriter = new FileWriter(directory + "certificate.crt", false);
-                 FileWriter privateKeyWriter = new FileWriter(directory + "private.key", false)) {
+    /**
+     * Deploy a stream of certificates sent as NDJSON, one {@link CertificateKeyPairEntry} per line.
+     * Entries are deployed as they arrive with at most {@code app.deploy.bulkConcurrency} in flight,
+     * so only that many entries are held in memory, and a {@link DeploymentResult} is streamed back
+     * for every entry as soon as it completes.
+     */
+    @PostMapping(value = "/bulk", consumes = APPLICATION_NDJSON_VALUE, produces = APPLICATION_NDJSON_VALUE)
+    public Flux<DeploymentResult> addCertificateKeyPairs(@RequestBody Flux<CertificateKeyPairEntry> certificateKeyPairEntries) {
+        return certificateKeyPairEntries.flatMap(certificateKeyPairEntry -> Mono.fromCallable(() -> certificateActivationService.deploy(certificateKeyPairEntry))
+                .subscribeOn(Schedulers.boundedElastic()), bulkConcurrency, 1);
+    }
 
-                certificateWriter.write(certificateKeyPairEntry.certificate());
-                privateKeyWriter.write(certificateKeyPairEntry.privateKey());
+    @GetMapping(value = "/inventory", produces = APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> getInventory() {
+        return ok(certificateDeploymentService.inventory());
+    }
 
-                return responseMessage(CREATED, "Certificate added successfully");
-            } catch (Exception e) {
-                logger.error("Failed to add certificate", e);
-                return badRequest("Failed to add certificate");
+    @GetMapping(value = "/versions", produces = APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<String>> getVersions(@RequestParam String domain) {
+        return supplyAsync(() -> {
+            try {
+                Map<String, Object> map = new HashMap<>();
+                map.put("current", certificateDeploymentService.currentVersion(domain));
+                map.put("versions", certificateDeploymentService.versions(domain));
+                return ok(map);
+            } catch (IllegalArgumentException e) {
+                return badRequest(e.getMessage());
+            } catch (IOException e) {
+                logger.error("Failed to list certificate versions", e);
+                return internalServerError("Failed to list certificate versions");
+            }
+        });
+    }
+
+    @PostMapping(value = "/rollback", produces = APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<String>> rollback(@RequestParam String domain) {
+        return supplyAsync(() -> {
+            try {
+                String version = certificateDeploymentService.rollback(domain);
+                if (version == null) {
+                    return notFound("No previous version to roll back to");
+                }
+
+                certificateActivationService.activate(certificateDeploymentService.current(domain));
+                return ok("version", version);
+            } catch (IllegalArgumentException e) {
+                return badRequest(e.getMessage());
+            } catch (IOException e) {
+                logger.error("Failed to roll back certificate", e);
+                return internalServerError("Failed to roll back certificate");
             }
         });
     }
@@ -17,6 +17,10 @@
 
 package in.codebuckets.acmemanager.agent.controllers;
 
+import in.codebuckets.acmemanager.agent.CertificateInventoryScanner;
+import in.codebuckets.acmemanager.agent.ChallengeRateLimiter;
+import in.codebuckets.acmemanager.agent.HttpChallengeService;
+import in.codebuckets.acmemanager.agent.ReloadHookService;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -33,13 +37,41 @@ import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
 @RestController
 public class MetadataController {
 
+    private final HttpChallengeService httpChallengeService;
+    private final ChallengeRateLimiter challengeRateLimiter;
+    private final ReloadHookService reloadHookService;
+    private final CertificateInventoryScanner certificateInventoryScanner;
+
     @Value("${app.version}")
     private String version;
 
+    public MetadataController(HttpChallengeService httpChallengeService, ChallengeRateLimiter challengeRateLimiter,
+                              ReloadHookService reloadHookService, CertificateInventoryScanner certificateInventoryScanner) {
+        this.httpChallengeService = httpChallengeService;
+        this.challengeRateLimiter = challengeRateLimiter;
+        this.reloadHookService = reloadHookService;
+        this.certificateInventoryScanner = certificateInventoryScanner;
+    }
+
     @GetMapping(value = "/", produces = APPLICATION_JSON_VALUE)
     public ResponseEntity<String> getMetadata() {
         Map<String, Object> map = new HashMap<>();
         map.put("version", version);
         return ok(map);
     }
+
+    @GetMapping(value = "/challenges", produces = APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> getChallengeStats() {
+        return ok(httpChallengeService.stats().withRateLimited(challengeRateLimiter.rejected()));
+    }
+
+    @GetMapping(value = "/reloads", produces = APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> getReloadStats() {
+        return ok(reloadHookService.stats());
+    }
+
+    @GetMapping(value = "/certificates", produces = APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> getCertificates() {
+        return ok(certificateInventoryScanner.inventory());
+    }
 }
@@ -17,5 +17,18 @@
 
 package in.codebuckets.acmemanager.agent.dto;
 
-public record AddChallenge(String challengeToken, String challengeAuthorization) {
+import java.time.Instant;
+
+/**
+ * Add HTTP challenge
+ *
+ * @param challengeToken         Filename for the challenge file
+ * @param challengeAuthorization Content of the challenge file
+ * @param expiresAt              Expiry of the authorization, {@code null} to use the default TTL of the agent
+ */
+public record AddChallenge(String challengeToken, String challengeAuthorization, Instant expiresAt) {
+
+    public AddChallenge(String challengeToken, String challengeAuthorization) {
+        this(challengeToken, challengeAuthorization, null);
+    }
 }
@@ -0,0 +1,37 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.agent.dto;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Result of the last scan of the certificate directory
+ *
+ * @param scannedAt    Time the scan completed, {@code null} if no scan has completed yet
+ * @param scanMillis   Duration of the scan in milliseconds
+ * @param total        Number of certificates found
+ * @param parsed       Number of certificates which were new or changed and had to be parsed
+ * @param failed       Number of certificate files which could not be read or parsed
+ * @param certificates Metadata of the certificates ordered by domain
+ */
+public record CertificateInventory(Instant scannedAt, long scanMillis, int total, int parsed, int failed,
+                                   List<CertificateMetadata> certificates) {
+
+    public static final CertificateInventory EMPTY = new CertificateInventory(null, 0, 0, 0, 0, List.of());
+}
@@ -0,0 +1,38 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.agent.dto;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Metadata of a certificate found by the inventory scanner
+ *
+ * @param domain                  Domain directory the certificate was found in
+ * @param path                    Resolved path of the certificate file
+ * @param subject                 Subject of the certificate
+ * @param issuer                  Issuer of the certificate
+ * @param notBefore               Start of the validity of the certificate
+ * @param notAfter                Expiry of the certificate
+ * @param subjectAlternativeNames DNS names and IP addresses of the certificate
+ * @param sha256Fingerprint       Upper case hex SHA-256 of the DER encoded certificate, as shown by {@code openssl x509 -fingerprint -sha256}.
+ *                                It is not the deployment fingerprint of {@code FingerprintUtil}, which covers the PEM certificate and private key
+ */
+public record CertificateMetadata(String domain, String path, String subject, String issuer, Instant notBefore, Instant notAfter,
+                                  List<String> subjectAlternativeNames, String sha256Fingerprint) {
+}
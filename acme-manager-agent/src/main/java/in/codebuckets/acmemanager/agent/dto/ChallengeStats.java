@@ -0,0 +1,38 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.agent.dto;
+
+/**
+ * Counters of the HTTP challenge store
+ *
+ * @param challenges    Number of stored challenges
+ * @param maxChallenges Maximum number of stored challenges
+ * @param hits          Number of lookups which found a challenge
+ * @param misses        Number of lookups which did not find a challenge
+ * @param evictions     Number of challenges removed because they expired or the store was full
+ * @param rateLimited   Number of challenge requests rejected by the per client rate limit
+ */
+public record ChallengeStats(int challenges, int maxChallenges, long hits, long misses, long evictions, long rateLimited) {
+
+    /**
+     * Copy of the counters with the given number of rate limited requests
+     */
+    public ChallengeStats withRateLimited(long rateLimited) {
+        return new ChallengeStats(challenges, maxChallenges, hits, misses, evictions, rateLimited);
+    }
+}
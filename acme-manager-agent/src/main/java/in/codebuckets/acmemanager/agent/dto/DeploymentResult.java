@@ -0,0 +1,37 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.agent.dto;
+
+/**
+ * Result of deploying a single {@link CertificateKeyPairEntry}
+ *
+ * @param domain  Domain of the certificate
+ * @param success {@code true} if the certificate was deployed
+ * @param version Version which was deployed, {@code null} if the deployment failed
+ * @param error   Reason of the failure, {@code null} if the deployment succeeded
+ */
+public record DeploymentResult(String domain, boolean success, String version, String error) {
+
+    public static DeploymentResult deployed(String domain, String version) {
+        return new DeploymentResult(domain, true, version, null);
+    }
+
+    public static DeploymentResult failed(String domain, String error) {
+        return new DeploymentResult(domain, false, null, error);
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.agent.dto;
+
+/**
+ * Counters of the reload hook
+ *
+ * @param requests             Number of reloads requested by deployments
+ * @param reloads              Number of reloads which were run
+ * @param failures             Number of reloads which failed or timed out
+ * @param lastLatencyMillis    Duration of the last reload in milliseconds
+ * @param averageLatencyMillis Average duration of all reloads in milliseconds
+ * @param lastError            Error of the last failed reload, {@code null} if none has failed
+ */
+public record ReloadStats(long requests, long reloads, long failures, long lastLatencyMillis,
+                          long averageLatencyMillis, String lastError) {
+}
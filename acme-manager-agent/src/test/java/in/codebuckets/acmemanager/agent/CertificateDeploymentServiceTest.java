@@ -0,0 +1,126 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.agent;
+
+import in.codebuckets.acmemanager.agent.dto.CertificateKeyPairEntry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import java.util.Map;
+
+import static in.codebuckets.acmemanager.agent.CertificateDeploymentService.CERTIFICATE_FILE;
+import static in.codebuckets.acmemanager.agent.CertificateDeploymentService.PRIVATE_KEY_FILE;
+import static in.codebuckets.acmemanager.common.utils.FingerprintUtil.fingerprint;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CertificateDeploymentServiceTest {
+
+    @TempDir
+    private Path certificateDirectory;
+
+    private BundleRenderer bundleRenderer;
+    private CertificateDeploymentService certificateDeploymentService;
+
+    @BeforeEach
+    void setUp() {
+        bundleRenderer = new BundleRenderer(List.of(), "changeit");
+        certificateDeploymentService = new CertificateDeploymentService(certificateDirectory, 2, bundleRenderer);
+    }
+
+    @AfterEach
+    void tearDown() {
+        bundleRenderer.close();
+    }
+
+    @Test
+    void deploy_publishesMatchingPair() throws IOException {
+        certificateDeploymentService.deploy(new CertificateKeyPairEntry("example.com", "certificate1", "key1"));
+        certificateDeploymentService.deploy(new CertificateKeyPairEntry("example.com", "certificate2", "key2"));
+
+        Path domainDirectory = certificateDirectory.resolve("example.com");
+        assertEquals("certificate2", Files.readString(domainDirectory.resolve(CERTIFICATE_FILE)));
+        assertEquals("key2", Files.readString(domainDirectory.resolve(PRIVATE_KEY_FILE)));
+    }
+
+    @Test
+    void deploy_replacesFilesWrittenInPlace() throws IOException {
+        Path domainDirectory = Files.createDirectories(certificateDirectory.resolve("example.com"));
+        Files.writeString(domainDirectory.resolve(CERTIFICATE_FILE), "old");
+        Files.writeString(domainDirectory.resolve(PRIVATE_KEY_FILE), "old");
+
+        certificateDeploymentService.deploy(new CertificateKeyPairEntry("example.com", "certificate", "key"));
+
+        assertEquals("certificate", Files.readString(domainDirectory.resolve(CERTIFICATE_FILE)));
+        assertEquals("key", Files.readString(domainDirectory.resolve(PRIVATE_KEY_FILE)));
+    }
+
+    @Test
+    void deploy_privateKeyIsReadableByOwnerOnly() throws IOException {
+        certificateDeploymentService.deploy(new CertificateKeyPairEntry("example.com", "certificate", "key"));
+
+        Path domainDirectory = certificateDirectory.resolve("example.com");
+        assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(domainDirectory.resolve(PRIVATE_KEY_FILE)));
+    }
+
+    @Test
+    void deploy_keepsConfiguredNumberOfVersions() throws IOException {
+        for (int i = 0; i < 4; i++) {
+            certificateDeploymentService.deploy(new CertificateKeyPairEntry("example.com", "certificate" + i, "key" + i));
+        }
+
+        List<String> versions = certificateDeploymentService.versions("example.com");
+        assertEquals(2, versions.size());
+        assertEquals(versions.get(1), certificateDeploymentService.currentVersion("example.com"));
+    }
+
+    @Test
+    void rollback_publishesPreviousVersion() throws IOException {
+        String firstVersion = certificateDeploymentService.deploy(new CertificateKeyPairEntry("example.com", "certificate1", "key1"));
+        certificateDeploymentService.deploy(new CertificateKeyPairEntry("example.com", "certificate2", "key2"));
+
+        assertEquals(firstVersion, certificateDeploymentService.rollback("example.com"));
+        assertEquals("certificate1", Files.readString(certificateDirectory.resolve("example.com").resolve(CERTIFICATE_FILE)));
+
+        assertNull(certificateDeploymentService.rollback("example.com"));
+    }
+
+    @Test
+    void inventory_containsFingerprintOfCurrentPair() throws IOException {
+        certificateDeploymentService.deploy(new CertificateKeyPairEntry("Example.com", "certificate", "key"));
+        assertEquals(Map.of("example.com", fingerprint("certificate", "key")), certificateDeploymentService.inventory());
+
+        // Deployed certificates are loaded into the inventory on startup
+        CertificateDeploymentService restarted = new CertificateDeploymentService(certificateDirectory, 2, bundleRenderer);
+        assertEquals(Map.of("example.com", fingerprint("certificate", "key")), restarted.inventory());
+    }
+
+    @Test
+    void deploy_invalidDomain_throws() {
+        assertThrows(IllegalArgumentException.class,
+                () -> certificateDeploymentService.deploy(new CertificateKeyPairEntry("../example.com", "certificate", "key")));
+    }
+}
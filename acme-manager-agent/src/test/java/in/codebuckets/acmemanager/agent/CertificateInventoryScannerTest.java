@@ -0,0 +1,133 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.agent;
+
+import in.codebuckets.acmemanager.agent.dto.CertificateInventory;
+import in.codebuckets.acmemanager.agent.dto.CertificateKeyPairEntry;
+import in.codebuckets.acmemanager.agent.dto.CertificateMetadata;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.List;
+
+import static in.codebuckets.acmemanager.agent.CertificateDeploymentService.CERTIFICATE_FILE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CertificateInventoryScannerTest {
+
+    // Self-signed for example.com and www.example.com, valid until 2126
+    private static final String CERTIFICATE = """
+            -----BEGIN CERTIFICATE-----
+            MIIBrTCCAVKgAwIBAgIUTgpuxCbnQD2lDOwrQBumOnNPIzowCgYIKoZIzj0EAwIw
+            FjEUMBIGA1UEAwwLZXhhbXBsZS5jb20wIBcNMjYxMDE4MjM1MDA2WhgPMjEyNjA5
+            MjQyMzUwMDZaMBYxFDASBgNVBAMMC2V4YW1wbGUuY29tMFkwEwYHKoZIzj0CAQYI
+            KoZIzj0DAQcDQgAEtMOVippwRw8SXV7Bbjo5pex4oyVUyTG/6vD0R4CtIYE+6vQo
+            wMPX7349kX494hQycG+eV6iQkCXMT2i71yf476N8MHowHQYDVR0OBBYEFOs6zQbV
+            wdoMvtMaHwppk4CSjg/PMB8GA1UdIwQYMBaAFOs6zQbVwdoMvtMaHwppk4CSjg/P
+            MA8GA1UdEwEB/wQFMAMBAf8wJwYDVR0RBCAwHoILZXhhbXBsZS5jb22CD3d3dy5l
+            eGFtcGxlLmNvbTAKBggqhkjOPQQDAgNJADBGAiEA8kALiUAGZjmDoYq4W1Z7Q7WA
+            CVQXC9AzvlGtL6+6/4sCIQDEalmIJ/O/BD7+fzFemCKx0/1FaZ6qYyZoISvFLb5s
+            CA==
+            -----END CERTIFICATE-----
+            """;
+
+    @TempDir
+    private Path directory;
+
+    private BundleRenderer bundleRenderer;
+
+    @AfterEach
+    void tearDown() {
+        if (bundleRenderer != null) {
+            bundleRenderer.close();
+        }
+    }
+
+    @Test
+    void scan_parsesCertificates() throws IOException {
+        Files.createDirectories(directory.resolve("example.com"));
+        Files.writeString(directory.resolve("example.com").resolve(CERTIFICATE_FILE), CERTIFICATE);
+
+        CertificateInventory inventory = scanner().scan();
+
+        assertEquals(1, inventory.total());
+        assertEquals(1, inventory.parsed());
+        assertEquals(0, inventory.failed());
+
+        CertificateMetadata metadata = inventory.certificates().get(0);
+        assertEquals("example.com", metadata.domain());
+        assertEquals("CN=example.com", metadata.subject());
+        assertEquals(List.of("example.com", "www.example.com"), metadata.subjectAlternativeNames());
+        assertTrue(metadata.notAfter().isAfter(Instant.parse("2126-01-01T00:00:00Z")));
+        assertEquals(64, metadata.sha256Fingerprint().length());
+    }
+
+    @Test
+    void scan_deployedLayout_followsLinks() throws IOException {
+        bundleRenderer = new BundleRenderer(List.of(), "changeit");
+        CertificateDeploymentService certificateDeploymentService = new CertificateDeploymentService(directory, 5, bundleRenderer);
+        certificateDeploymentService.deploy(new CertificateKeyPairEntry("example.com", CERTIFICATE, "key"));
+
+        CertificateInventory inventory = scanner().scan();
+
+        // The versions of the domain are not counted separately
+        assertEquals(1, inventory.total());
+        assertTrue(inventory.certificates().get(0).path().contains("versions"));
+    }
+
+    @Test
+    void scan_unchangedCertificates_notParsedAgain() throws IOException {
+        Path certificateFile = directory.resolve("example.com").resolve(CERTIFICATE_FILE);
+        Files.createDirectories(certificateFile.getParent());
+        Files.writeString(certificateFile, CERTIFICATE);
+
+        CertificateInventoryScanner scanner = scanner();
+        assertEquals(1, scanner.scan().parsed());
+        assertEquals(0, scanner.scan().parsed());
+
+        Files.setLastModifiedTime(certificateFile, FileTime.from(Instant.now().plusSeconds(60)));
+        assertEquals(1, scanner.scan().parsed());
+
+        Files.delete(certificateFile);
+        CertificateInventory inventory = scanner.scan();
+        assertEquals(0, inventory.total());
+        assertEquals(inventory, scanner.inventory());
+    }
+
+    @Test
+    void scan_invalidCertificate_countedAsFailed() throws IOException {
+        Files.createDirectories(directory.resolve("example.com"));
+        Files.writeString(directory.resolve("example.com").resolve(CERTIFICATE_FILE), "not a certificate");
+
+        CertificateInventory inventory = scanner().scan();
+
+        assertEquals(0, inventory.total());
+        assertEquals(1, inventory.failed());
+    }
+
+    private CertificateInventoryScanner scanner() {
+        return new CertificateInventoryScanner(directory, 4);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.agent;
+
+import in.codebuckets.acmemanager.agent.ChallengeJournal.JournalEntry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChallengeJournalTest {
+
+    @TempDir
+    private Path directory;
+
+    @Test
+    void open_replaysAddedAndRemovedChallenges() throws Exception {
+        Path path = directory.resolve("challenges.journal");
+
+        try (ChallengeJournal challengeJournal = new ChallengeJournal(true, path, DataSize.ofKilobytes(64))) {
+            assertTrue(challengeJournal.open().isEmpty());
+            assertTrue(challengeJournal.appendAdd("token1", "authorization1", 1000));
+            assertTrue(challengeJournal.appendAdd("token2", "authorization2", 2000));
+            assertTrue(challengeJournal.appendRemove("token1"));
+        }
+
+        try (ChallengeJournal challengeJournal = new ChallengeJournal(true, path, DataSize.ofKilobytes(64))) {
+            Map<String, JournalEntry> entries = challengeJournal.open();
+            assertEquals(Map.of("token2", new JournalEntry("authorization2", 2000)), entries);
+
+            // Appends continue after the replayed records
+            assertTrue(challengeJournal.appendAdd("token3", "authorization3", 3000));
+        }
+
+        try (ChallengeJournal challengeJournal = new ChallengeJournal(true, path, DataSize.ofKilobytes(64))) {
+            assertThat(challengeJournal.open()).containsOnlyKeys("token2", "token3");
+        }
+    }
+
+    @Test
+    void compact_keepsOnlyGivenChallenges() throws Exception {
+        Path path = directory.resolve("challenges.journal");
+
+        try (ChallengeJournal challengeJournal = new ChallengeJournal(true, path, DataSize.ofBytes(256))) {
+            challengeJournal.open();
+            while (challengeJournal.appendAdd("token", "authorization", 1000)) {
+                // Fill the journal
+            }
+
+            assertFalse(challengeJournal.appendAdd("token", "authorization", 1000));
+            challengeJournal.install(challengeJournal.compact(Map.of("token", new JournalEntry("authorization", 1000))));
+            assertTrue(challengeJournal.appendAdd("other", "authorization", 1000));
+        }
+
+        try (ChallengeJournal challengeJournal = new ChallengeJournal(true, path, DataSize.ofBytes(256))) {
+            assertThat(challengeJournal.open()).containsOnlyKeys("token", "other");
+        }
+    }
+
+    @Test
+    void compact_notInstalled_keepsJournal() throws Exception {
+        Path path = directory.resolve("challenges.journal");
+
+        try (ChallengeJournal challengeJournal = new ChallengeJournal(true, path, DataSize.ofKilobytes(64))) {
+            challengeJournal.open();
+            assertTrue(challengeJournal.appendAdd("token", "authorization", 1000));
+
+            // Appends keep going to the journal while the compacted journal is written
+            challengeJournal.compact(Map.of());
+            assertTrue(challengeJournal.appendAdd("other", "authorization", 1000));
+        }
+
+        try (ChallengeJournal challengeJournal = new ChallengeJournal(true, path, DataSize.ofKilobytes(64))) {
+            assertThat(challengeJournal.open()).containsOnlyKeys("token", "other");
+        }
+    }
+
+    @Test
+    void compact_tooManyChallenges_countsDropped() throws Exception {
+        try (ChallengeJournal challengeJournal = new ChallengeJournal(true, directory.resolve("challenges.journal"), DataSize.ofBytes(256))) {
+            challengeJournal.open();
+
+            Map<String, JournalEntry> entries = new LinkedHashMap<>();
+            for (int i = 0; i < 20; i++) {
+                entries.put("token" + i, new JournalEntry("authorization", 1000));
+            }
+
+            ChallengeJournal.Compaction compaction = challengeJournal.compact(entries);
+            assertThat(compaction.dropped()).isPositive().isLessThan(20);
+            challengeJournal.install(compaction);
+            assertFalse(challengeJournal.appendAdd("other", "authorization", 1000));
+        }
+    }
+
+    @Test
+    void disabled_doesNothing() throws Exception {
+        try (ChallengeJournal challengeJournal = new ChallengeJournal(false, directory.resolve("challenges.journal"), DataSize.ofKilobytes(64))) {
+            assertTrue(challengeJournal.open().isEmpty());
+            assertFalse(challengeJournal.appendAdd("token", "authorization", 1000));
+        }
+    }
+}
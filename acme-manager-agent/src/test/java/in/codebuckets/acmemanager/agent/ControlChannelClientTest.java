@@ -0,0 +1,111 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.agent;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import in.codebuckets.acmemanager.agent.dto.CertificateKeyPairEntry;
+import in.codebuckets.acmemanager.agent.dto.DeploymentResult;
+import in.codebuckets.acmemanager.common.channel.ChannelMessage;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ControlChannelClientTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+    private final HttpChallengeService httpChallengeService = mock(HttpChallengeService.class);
+    private final CertificateDeploymentService certificateDeploymentService = mock(CertificateDeploymentService.class);
+    private final CertificateActivationService certificateActivationService = mock(CertificateActivationService.class);
+    private final ControlChannelClient controlChannelClient = new ControlChannelClient(httpChallengeService, certificateDeploymentService,
+            certificateActivationService, objectMapper);
+
+    @Test
+    void execute_addChallenge() {
+        ObjectNode payload = objectMapper.createObjectNode()
+                .put("challengeToken", "token")
+                .put("challengeAuthorization", "authorization");
+
+        ChannelMessage ack = controlChannelClient.execute(ChannelMessage.command("1", ChannelMessage.ADD_CHALLENGE, payload));
+
+        assertEquals(ChannelMessage.Type.ACK, ack.type());
+        assertEquals("1", ack.id());
+        assertTrue(ack.success());
+        verify(httpChallengeService).addChallenge("token", "authorization", null);
+    }
+
+    @Test
+    void execute_removeChallenge() {
+        ChannelMessage ack = controlChannelClient.execute(ChannelMessage.command("2", ChannelMessage.REMOVE_CHALLENGE,
+                objectMapper.createObjectNode().put("challengeToken", "token")));
+
+        assertTrue(ack.success());
+        verify(httpChallengeService).removeChallenge("token");
+    }
+
+    @Test
+    void execute_deployCertificate_returnsResults() {
+        when(certificateActivationService.deploy(any(CertificateKeyPairEntry.class)))
+                .thenAnswer(invocation -> {
+                    CertificateKeyPairEntry entry = invocation.getArgument(0);
+                    return entry.domain().startsWith("invalid")
+                            ? DeploymentResult.failed(entry.domain(), "Invalid domain")
+                            : DeploymentResult.deployed(entry.domain(), "1");
+                });
+
+        List<CertificateKeyPairEntry> entries = List.of(
+                new CertificateKeyPairEntry("example.com", "certificate", "privateKey"),
+                new CertificateKeyPairEntry("invalid..com", "certificate", "privateKey"));
+
+        ChannelMessage ack = controlChannelClient.execute(ChannelMessage.command("3", ChannelMessage.DEPLOY_CERTIFICATE,
+                objectMapper.valueToTree(entries)));
+
+        assertTrue(ack.success());
+        assertEquals(2, ack.payload().size());
+        assertTrue(ack.payload().get(0).path("success").asBoolean());
+        assertFalse(ack.payload().get(1).path("success").asBoolean());
+    }
+
+    @Test
+    void execute_inventory() {
+        when(certificateDeploymentService.inventory()).thenReturn(Map.of("example.com", "ABCD"));
+
+        ChannelMessage ack = controlChannelClient.execute(ChannelMessage.command("4", ChannelMessage.INVENTORY, null));
+
+        assertTrue(ack.success());
+        assertEquals("ABCD", ack.payload().path("example.com").asText());
+    }
+
+    @Test
+    void execute_unknownCommand_nack() {
+        ChannelMessage ack = controlChannelClient.execute(ChannelMessage.command("5", "UNKNOWN", null));
+
+        assertEquals("5", ack.id());
+        assertFalse(ack.success());
+        assertEquals("Unknown command: UNKNOWN", ack.error());
+    }
+}
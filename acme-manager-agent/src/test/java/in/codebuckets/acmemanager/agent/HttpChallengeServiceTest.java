@@ -17,16 +17,25 @@
 
 package in.codebuckets.acmemanager.agent;
 
+import in.codebuckets.acmemanager.agent.dto.ChallengeStats;
 import org.junit.jupiter.api.MethodOrderer.OrderAnnotation;
 import org.junit.jupiter.api.Order;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestMethodOrder;
+import org.junit.jupiter.api.io.TempDir;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
 
 import static org.assertj.core.api.AssertionsForInterfaceTypes.assertThat;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
 
 @TestMethodOrder(OrderAnnotation.class)
@@ -60,4 +69,57 @@ class HttpChallengeServiceTest {
         httpChallengeService.removeChallenge("token");
         assertNull(httpChallengeService.getAuthorization("token"));
     }
+
+    @Order(5)
+    @Test
+    void mightContain() {
+        httpChallengeService.addChallenge("filtered", "authorization");
+        assertTrue(httpChallengeService.mightContain("filtered"));
+
+        httpChallengeService.removeChallenge("filtered");
+        assertFalse(httpChallengeService.mightContain("filtered"));
+    }
+
+    @Order(6)
+    @Test
+    void expiredChallenge() {
+        httpChallengeService.addChallenge("expired", "authorization", Instant.now().minusSeconds(1));
+        assertNull(httpChallengeService.getAuthorization("expired"));
+
+        httpChallengeService.evictExpired();
+        assertThat(httpChallengeService.challengeMap()).doesNotContainKey("expired");
+    }
+
+    @Order(7)
+    @Test
+    void stats() {
+        ChallengeStats challengeStats = httpChallengeService.stats();
+        assertThat(challengeStats.hits()).isPositive();
+        assertThat(challengeStats.misses()).isPositive();
+    }
+
+    @Order(8)
+    @Test
+    void journalFull_compactsInBackground(@TempDir Path directory) throws Exception {
+        Path path = directory.resolve("challenges.journal");
+
+        try (ChallengeJournal challengeJournal = new ChallengeJournal(true, path, DataSize.ofBytes(512))) {
+            HttpChallengeService service = new HttpChallengeService(challengeJournal, Duration.ofDays(1), 100);
+
+            // Re-adding the same challenge fills the journal without adding challenges to compact
+            for (int i = 0; i < 20; i++) {
+                service.addChallenge("token", "authorization");
+            }
+            int usedBytes = challengeJournal.usedBytes();
+
+            service.compactJournalIfRequested();
+            assertThat(challengeJournal.usedBytes()).isLessThan(usedBytes);
+
+            service.addChallenge("other", "authorization");
+        }
+
+        try (ChallengeJournal challengeJournal = new ChallengeJournal(true, path, DataSize.ofBytes(512))) {
+            assertThat(challengeJournal.open()).containsOnlyKeys("token", "other");
+        }
+    }
 }
@@ -0,0 +1,97 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.agent;
+
+import in.codebuckets.acmemanager.agent.dto.ReloadStats;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+class ReloadHookServiceTest {
+
+    @TempDir
+    private Path directory;
+
+    private ThreadPoolTaskScheduler taskScheduler;
+
+    @BeforeEach
+    void setUp() {
+        taskScheduler = new ThreadPoolTaskScheduler();
+        taskScheduler.initialize();
+    }
+
+    @AfterEach
+    void tearDown() {
+        taskScheduler.shutdown();
+    }
+
+    @Test
+    void requestReload_burstCoalescesIntoSingleReload() throws Exception {
+        Path reloads = directory.resolve("reloads");
+        ReloadHookService reloadHookService = reloadHookService("echo reload >> " + reloads);
+
+        for (int i = 0; i < 100; i++) {
+            reloadHookService.requestReload();
+        }
+
+        awaitReloads(reloadHookService, 1);
+        Thread.sleep(500);
+
+        assertEquals(1, Files.readAllLines(reloads).size());
+        assertEquals(100, reloadHookService.stats().requests());
+    }
+
+    @Test
+    void requestReload_failingCommand_countsFailure() throws Exception {
+        ReloadHookService reloadHookService = reloadHookService("exit 3");
+        reloadHookService.requestReload();
+
+        ReloadStats reloadStats = awaitReloads(reloadHookService, 1);
+        assertEquals(1, reloadStats.failures());
+        assertNotNull(reloadStats.lastError());
+    }
+
+    @Test
+    void requestReload_noCommand_doesNothing() {
+        ReloadHookService reloadHookService = reloadHookService("");
+        reloadHookService.requestReload();
+
+        assertEquals(0, reloadHookService.stats().requests());
+    }
+
+    private ReloadHookService reloadHookService(String command) {
+        return new ReloadHookService(taskScheduler, command, Duration.ofMillis(100), Duration.ofSeconds(5),
+                Duration.ofSeconds(10), Duration.ofSeconds(10));
+    }
+
+    private static ReloadStats awaitReloads(ReloadHookService reloadHookService, long reloads) throws InterruptedException {
+        for (int i = 0; i < 100 && reloadHookService.stats().reloads() < reloads; i++) {
+            Thread.sleep(50);
+        }
+        return reloadHookService.stats();
+    }
+}
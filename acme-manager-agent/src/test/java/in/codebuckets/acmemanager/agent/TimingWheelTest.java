@@ -0,0 +1,74 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.agent;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimingWheelTest {
+
+    @Test
+    void advance_expiresOnlyPassedDeadlines() {
+        TimingWheel<String> timingWheel = new TimingWheel<>(Duration.ofSeconds(1), 8, 0);
+        timingWheel.schedule("a", 1_500);
+        timingWheel.schedule("b", 3_000);
+
+        assertTrue(timingWheel.advance(1_000).isEmpty());
+        assertEquals(List.of("a"), timingWheel.advance(2_000));
+        assertEquals(List.of("b"), timingWheel.advance(4_000));
+        assertEquals(0, timingWheel.size());
+    }
+
+    @Test
+    void advance_keepsDeadlinesBeyondOneRevolution() {
+        TimingWheel<String> timingWheel = new TimingWheel<>(Duration.ofSeconds(1), 4, 0);
+        timingWheel.schedule("a", 10_000);
+
+        assertTrue(timingWheel.advance(6_000).isEmpty());
+        assertEquals(List.of("a"), timingWheel.advance(11_000));
+    }
+
+    @Test
+    void cancel_removesKey() {
+        TimingWheel<String> timingWheel = new TimingWheel<>(Duration.ofSeconds(1), 8, 0);
+        timingWheel.schedule("a", 1_000);
+
+        assertTrue(timingWheel.cancel("a"));
+        assertFalse(timingWheel.cancel("a"));
+        assertTrue(timingWheel.advance(5_000).isEmpty());
+    }
+
+    @Test
+    void nextExpiring_returnsEarliestDeadline() {
+        TimingWheel<String> timingWheel = new TimingWheel<>(Duration.ofSeconds(1), 8, 0);
+        assertNull(timingWheel.nextExpiring());
+
+        timingWheel.schedule("a", 5_000);
+        timingWheel.schedule("b", 2_000);
+        timingWheel.schedule("c", 9_000);
+
+        assertEquals("b", timingWheel.nextExpiring());
+    }
+}
@@ -81,6 +81,15 @@ public class AcmeControllerTest {
                 .expectBody(Map.class).isEqualTo(Collections.emptyMap());
     }
 
+    @Order(4)
+    @Test
+    void getAllChallenges_Unauthorized() {
+        webClient.get()
+                .uri("/.well-known/acme-challenge/get-all")
+                .exchange()
+                .expectStatus().isUnauthorized();
+    }
+
     @Order(1)
     @Test
     void addChallenge() {
@@ -19,6 +19,7 @@ package in.codebuckets.acmemanager.agent.controllers;
 
 import in.codebuckets.acmemanager.agent.AbstractTest;
 import in.codebuckets.acmemanager.agent.dto.CertificateKeyPairEntry;
+import in.codebuckets.acmemanager.agent.dto.DeploymentResult;
 import org.junit.jupiter.api.MethodOrderer;
 import org.junit.jupiter.api.MethodOrderer.OrderAnnotation;
 import org.junit.jupiter.api.Order;
@@ -27,15 +28,18 @@ import org.junit.jupiter.api.TestMethodOrder;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.web.server.LocalServerPort;
 import org.springframework.http.ResponseEntity;
+import reactor.core.publisher.Flux;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.List;
 
 import static in.codebuckets.acmemanager.agent.auth.WebSecurityConfig.AUTH_HEADER;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.springframework.http.HttpStatus.CREATED;
 import static org.springframework.http.MediaType.APPLICATION_JSON;
+import static org.springframework.http.MediaType.APPLICATION_NDJSON;
 
 @TestMethodOrder(OrderAnnotation.class)
 class CertificateControllerTest extends AbstractTest {
@@ -98,4 +102,25 @@ class CertificateControllerTest extends AbstractTest {
         assertEquals(certificate, cert);
         assertEquals(key, privateKey);
     }
+
+    @Order(3)
+    @Test
+    void addCertificateKeyPairs() {
+        List<DeploymentResult> deploymentResults = webClient.post()
+                .uri("/v1/agent/certificate/bulk")
+                .header(AUTH_HEADER, apiKey)
+                .accept(APPLICATION_NDJSON)
+                .contentType(APPLICATION_NDJSON)
+                .body(Flux.just(new CertificateKeyPairEntry("bulk.example.com", certificate, key),
+                        new CertificateKeyPairEntry("../example.com", certificate, key)), CertificateKeyPairEntry.class)
+                .retrieve()
+                .bodyToFlux(DeploymentResult.class)
+                .collectList()
+                .block();
+
+        assertNotNull(deploymentResults);
+        assertEquals(2, deploymentResults.size());
+        assertTrue(deploymentResults.stream().anyMatch(result -> result.domain().equals("bulk.example.com") && result.success()));
+        assertTrue(deploymentResults.stream().anyMatch(result -> result.domain().equals("../example.com") && !result.success()));
+    }
 }
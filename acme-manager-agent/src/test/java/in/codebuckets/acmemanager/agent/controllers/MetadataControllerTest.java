@@ -68,6 +68,25 @@ class MetadataControllerTest extends AbstractTest {
         assertEquals(version, map.get("version"));
     }
 
+    @Test
+    void getChallengeStats_validApiKey_returnsRateLimitedRequests() throws Exception {
+        ResponseEntity<String> responseEntity = webClient.get()
+                .uri("/v1/agent/metadata/challenges")
+                .header(AUTH_HEADER, apiKey)
+                .accept(APPLICATION_JSON)
+                .retrieve()
+                .toEntity(String.class)
+                .block();
+
+        assertEquals(OK, responseEntity.getStatusCode());
+
+        Map<String, Object> map = objectMapper.readValue(responseEntity.getBody(), new TypeReference<>() {
+        });
+
+        // The rate limiter is disabled in the tests, so no request has been rejected
+        assertEquals(0, map.get("rateLimited"));
+    }
+
     @Test
     void getMetadata_invalidApiKey_returnsUnauthorized() throws Exception {
         String invalidApiKey = "invalidApiKey";
@@ -0,0 +1,66 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.common.channel;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Frame of the control channel between the server and an agent. Every frame is sent as a JSON text message.
+ *
+ * <ul>
+ * <li>{@link Type#HEARTBEAT}: Sent by the agent to keep the channel alive</li>
+ * <li>{@link Type#COMMAND}: Sent by the server, {@code command} names the command and {@code payload} holds its arguments</li>
+ * <li>{@link Type#ACK}: Sent by the agent in reply to a command with the same {@code id}</li>
+ * </ul>
+ *
+ * @param type    Type of the frame
+ * @param id      Id of the command, {@code null} for heartbeats
+ * @param command Name of the command, {@code null} for other frames
+ * @param success {@code true} if the command succeeded, only set on acknowledgements
+ * @param error   Reason the command failed, only set on failed acknowledgements
+ * @param payload Arguments of the command or result of the acknowledgement, can be {@code null}
+ */
+public record ChannelMessage(Type type, String id, String command, boolean success, String error, JsonNode payload) {
+
+    public static final String ADD_CHALLENGE = "ADD_CHALLENGE";
+    public static final String REMOVE_CHALLENGE = "REMOVE_CHALLENGE";
+    public static final String DEPLOY_CERTIFICATE = "DEPLOY_CERTIFICATE";
+    public static final String INVENTORY = "INVENTORY";
+
+    public static ChannelMessage heartbeat() {
+        return new ChannelMessage(Type.HEARTBEAT, null, null, true, null, null);
+    }
+
+    public static ChannelMessage command(String id, String command, JsonNode payload) {
+        return new ChannelMessage(Type.COMMAND, id, command, false, null, payload);
+    }
+
+    public static ChannelMessage ack(String id, JsonNode payload) {
+        return new ChannelMessage(Type.ACK, id, null, true, null, payload);
+    }
+
+    public static ChannelMessage nack(String id, String error) {
+        return new ChannelMessage(Type.ACK, id, null, false, error, null);
+    }
+
+    public enum Type {
+        HEARTBEAT,
+        COMMAND,
+        ACK
+    }
+}
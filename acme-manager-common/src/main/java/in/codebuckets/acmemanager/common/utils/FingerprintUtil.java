@@ -0,0 +1,51 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.common.utils;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public final class FingerprintUtil {
+
+    private FingerprintUtil() {
+        // private constructor to prevent instantiation
+    }
+
+    /**
+     * Generates the fingerprint of a deployed certificate and private key pair, used by the server and the
+     * agents to compare what is deployed with what should be deployed.
+     *
+     * @param certificate Certificate PEM
+     * @param privateKey  Private key PEM
+     * @return Upper case hex SHA-256 of the certificate and private key
+     */
+    public static String fingerprint(String certificate, String privateKey) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(certificate.getBytes(UTF_8));
+            digest.update((byte) '\n');
+            digest.update(privateKey.getBytes(UTF_8));
+            return HexFormat.of().withUpperCase().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -48,6 +48,11 @@ public class Filters {
     @JsonProperty("sort")
     private Sort sort;
 
+    @Schema(description = "Enables cursor pagination: an empty string for the first page, then the 'nextCursor' of the previous page. " +
+            "'page' is ignored when set")
+    @JsonProperty("cursor")
+    private String cursor;
+
     public Filters() {
         // Empty constructor needed for Jackson.
     }
@@ -65,11 +70,16 @@ public class Filters {
     }
 
     public Filters(String search, List<Filter> filters, int page, int size, Sort sort) {
+        this(search, filters, page, size, sort, null);
+    }
+
+    public Filters(String search, List<Filter> filters, int page, int size, Sort sort, String cursor) {
         this.search = search;
         this.filters = new ArrayList<>(filters);
         this.page = page;
         this.size = size;
         this.sort = sort;
+        this.cursor = cursor;
     }
 
     public String search() {
@@ -92,6 +102,13 @@ public class Filters {
         return sort;
     }
 
+    /**
+     * Cursor of the page to return, {@code null} if pages are selected by {@link #page()}
+     */
+    public String cursor() {
+        return cursor;
+    }
+
     public static class Filter {
         @Schema(description = "The type of filter to apply")
         @JsonProperty("type")
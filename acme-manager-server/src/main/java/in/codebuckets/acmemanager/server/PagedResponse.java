@@ -17,16 +17,23 @@
 
 package in.codebuckets.acmemanager.server;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 import java.util.List;
 
 /**
  * {@link PagedResponse} is used to return paginated data.
  *
  * @param content       The list of data
- * @param pages         The number of pages
- * @param totalElements The total number of elements in this list
+ * @param pages         The number of pages, {@code -1} if it was not counted
+ * @param totalElements The total number of elements in this list, {@code -1} if it was not counted
+ * @param nextCursor    The cursor of the next page in cursor pagination, {@code null} if this is the last page
  * @param <T>           The type of data
  */
-public record PagedResponse<T>(List<T> content, int pages, long totalElements) {
-    // NO-OP
+public record PagedResponse<T>(List<T> content, int pages, long totalElements,
+                               @JsonInclude(JsonInclude.Include.NON_NULL) String nextCursor) {
+
+    public PagedResponse(List<T> content, int pages, long totalElements) {
+        this(content, pages, totalElements, null);
+    }
 }
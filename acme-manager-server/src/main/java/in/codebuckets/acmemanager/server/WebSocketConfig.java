@@ -0,0 +1,53 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.server;
+
+import in.codebuckets.acmemanager.server.services.channel.AgentChannelHandler;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.reactive.HandlerMapping;
+import org.springframework.web.reactive.config.WebFluxConfigurer;
+import org.springframework.web.reactive.handler.SimpleUrlHandlerMapping;
+import org.springframework.web.reactive.socket.server.WebSocketService;
+import org.springframework.web.reactive.socket.server.support.HandshakeWebSocketService;
+import org.springframework.web.reactive.socket.server.upgrade.ReactorNettyRequestUpgradeStrategy;
+import reactor.netty.http.server.WebsocketServerSpec;
+
+import java.util.Map;
+
+@Component
+public class WebSocketConfig implements WebFluxConfigurer {
+
+    @Value("${agent.channel.maxFrameLength:16MB}")
+    private DataSize maxFrameLength;
+
+    @Bean
+    public HandlerMapping webSocketHandlerMapping(AgentChannelHandler agentChannelHandler) {
+        // Ahead of the annotated controllers
+        return new SimpleUrlHandlerMapping(Map.of(AgentChannelHandler.CHANNEL_PATH, agentChannelHandler), -1);
+    }
+
+    @Override
+    public WebSocketService getWebSocketService() {
+        // Certificates are deployed in a single frame, which is larger than the default limit of 64 KB
+        return new HandshakeWebSocketService(new ReactorNettyRequestUpgradeStrategy(() -> WebsocketServerSpec.builder()
+                .maxFramePayloadLength((int) maxFrameLength.toBytes())));
+    }
+}
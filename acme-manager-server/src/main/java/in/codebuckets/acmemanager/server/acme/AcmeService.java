@@ -23,8 +23,10 @@ import in.codebuckets.acmemanager.server.dto.ExecuteOrderResult;
 import in.codebuckets.acmemanager.server.dto.PlaceOrder;
 import in.codebuckets.acmemanager.server.jpa.Certificate;
 import in.codebuckets.acmemanager.server.jpa.CertificateRepository;
+import in.codebuckets.acmemanager.server.jpa.CertificateStatus;
 import in.codebuckets.acmemanager.server.jpa.ValidationRequest;
 import in.codebuckets.acmemanager.server.jpa.ValidationRequestRepository;
+import in.codebuckets.acmemanager.server.services.AgentClient;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.shredzone.acme4j.Account;
@@ -39,11 +41,13 @@ import org.shredzone.acme4j.challenge.Dns01Challenge;
 import org.shredzone.acme4j.challenge.Http01Challenge;
 import org.shredzone.acme4j.exception.AcmeException;
 import org.shredzone.acme4j.util.KeyPairUtils;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.StringWriter;
 import java.net.URL;
 import java.security.KeyPair;
 import java.time.Instant;
@@ -55,6 +59,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletionException;
 import java.util.function.Supplier;
 
 import static in.codebuckets.acmemanager.server.utils.CryptoUtils.sha256;
@@ -71,10 +76,15 @@ public class AcmeService {
 
     private final ValidationRequestRepository validationRequestRepository;
     private final CertificateRepository certificateRepository;
+    private final AgentClient agentClient;
+    private final ApplicationEventPublisher applicationEventPublisher;
 
-    public AcmeService(ValidationRequestRepository validationRequestRepository, CertificateRepository certificateRepository) {
+    public AcmeService(ValidationRequestRepository validationRequestRepository, CertificateRepository certificateRepository,
+                       AgentClient agentClient, ApplicationEventPublisher applicationEventPublisher) {
         this.validationRequestRepository = validationRequestRepository;
         this.certificateRepository = certificateRepository;
+        this.agentClient = agentClient;
+        this.applicationEventPublisher = applicationEventPublisher;
     }
 
     /**
@@ -167,7 +177,7 @@ public class AcmeService {
         KeyPair domainKeyPair = generateKey();
 
         Map<String, ExecuteOrderResult> results = new HashMap<>();
-        Order order = login.bindOrder(new URL(certificate.orderId()));
+        Order order = login.bindOrder(new URL(certificate.orderUrl()));
 
         // Authorize the order
         for (ValidationRequest validationRequest : certificate.validationRequests()) {
@@ -188,7 +198,14 @@ public class AcmeService {
                             continue;
                         }
 
+                        // HTTP challenges must be served by every agent before the ACME server validates them
+                        Http01Challenge http01Challenge = challenge instanceof Http01Challenge ? (Http01Challenge) challenge : null;
+
                         try {
+                            if (http01Challenge != null) {
+                                pushChallenge(http01Challenge, authorization);
+                            }
+
                             challenge.trigger();
 
                             // Poll for the challenge to complete.
@@ -208,6 +225,10 @@ public class AcmeService {
                             logger.error("Failed to trigger challenge for domain: {}", domain, acmeException);
                             results.put(domain, new ExecuteOrderResult(false, acmeException.getMessage()));
                             break;
+                        } finally {
+                            if (http01Challenge != null) {
+                                removeChallenge(http01Challenge);
+                            }
                         }
                     }
                 }
@@ -241,9 +262,59 @@ public class AcmeService {
             }
         }
 
+        if (status == VALID) {
+            StringWriter certificateChain = new StringWriter();
+            order.getCertificate().writeCertificate(certificateChain);
+
+            StringWriter privateKey = new StringWriter();
+            KeyPairUtils.writeKeyPair(domainKeyPair, privateKey);
+
+            certificate.certificateStatus(CertificateStatus.CERTIFICATE_ISSUED);
+            certificateRepository.save(certificate);
+
+            // Deployment to the routed agents starts as soon as the certificate is issued. Deploying keeps the private key
+            // for the agents, so it only happens if the key pair may be saved.
+            if (certificate.saveKeyPair()) {
+                applicationEventPublisher.publishEvent(new CertificateIssuedEvent(certificate, certificateChain.toString(), privateKey.toString()));
+            } else {
+                logger.info("Certificate {} is not deployed to agents because its key pair is not saved", certificate.id());
+            }
+        } else {
+            certificate.certificateStatus(CertificateStatus.VALIDATION_FAILED);
+            certificateRepository.save(certificate);
+        }
+
         return results;
     }
 
+    /**
+     * Push the HTTP challenge to all connected agents and wait for all of them to acknowledge it
+     *
+     * @param challenge     {@link Http01Challenge} to push
+     * @param authorization {@link Authorization} of the challenge
+     * @throws AcmeException if any agent has failed to acknowledge the challenge or no agent is connected
+     */
+    private void pushChallenge(Http01Challenge challenge, Authorization authorization) throws AcmeException {
+        try {
+            agentClient.pushChallenge(challenge.getToken(), challenge.getAuthorization(), authorization.getExpires().orElse(null)).join();
+        } catch (CompletionException completionException) {
+            throw new AcmeException("Failed to push challenge to agents: " + completionException.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Remove the HTTP challenge from all connected agents without waiting for them.
+     * Agents expire the challenge on their own if the removal fails.
+     *
+     * @param challenge {@link Http01Challenge} to remove
+     */
+    private void removeChallenge(Http01Challenge challenge) {
+        agentClient.removeChallenge(challenge.getToken()).exceptionally(throwable -> {
+            logger.warn("Failed to remove challenge from agents: {}", challenge.getToken(), throwable);
+            return null;
+        });
+    }
+
     /**
      * Find all {@link Challenge} for the given {@link Authorization}
      *
@@ -0,0 +1,37 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.acme;
+
+import in.codebuckets.acmemanager.server.jpa.Certificate;
+
+/**
+ * Published once the order of a {@link Certificate} is VALID and its certificate chain has been downloaded,
+ * if the key pair of the certificate may be saved ({@link Certificate#saveKeyPair()})
+ *
+ * @param certificate      {@link Certificate} which was issued
+ * @param certificateChain Certificate chain PEM
+ * @param privateKey       Private key PEM
+ */
+public record CertificateIssuedEvent(Certificate certificate, String certificateChain, String privateKey) {
+
+    @Override
+    public String toString() {
+        return "CertificateIssuedEvent{certificate=" + certificate.id() + ", domains=" + certificate.domains() + '}';
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.acme;
+
+import in.codebuckets.acmemanager.server.jpa.Certificate;
+import in.codebuckets.acmemanager.server.jpa.Job;
+import in.codebuckets.acmemanager.server.services.job.JobHandler;
+import org.springframework.stereotype.Component;
+
+/**
+ * Executes the order of a {@link Certificate} from the job queue. The payload of the job is the order id.
+ */
+@Component
+public class ExecuteOrderJobHandler implements JobHandler {
+
+    public static final String TYPE = "execute-order";
+
+    private final OrderExecutionService orderExecutionService;
+
+    public ExecuteOrderJobHandler(OrderExecutionService orderExecutionService) {
+        this.orderExecutionService = orderExecutionService;
+    }
+
+    @Override
+    public String type() {
+        return TYPE;
+    }
+
+    /**
+     * Execute the order, which does nothing if the certificate has already been issued by an earlier attempt
+     */
+    @Override
+    public void handle(Job job) throws Exception {
+        orderExecutionService.execute(job.payload());
+    }
+}
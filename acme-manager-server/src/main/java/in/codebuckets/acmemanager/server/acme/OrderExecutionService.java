@@ -0,0 +1,233 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.acme;
+
+import in.codebuckets.acmemanager.server.ServiceException;
+import in.codebuckets.acmemanager.server.jpa.Certificate;
+import in.codebuckets.acmemanager.server.jpa.CertificateRepository;
+import in.codebuckets.acmemanager.server.jpa.CertificateStatus;
+import in.codebuckets.acmemanager.server.services.AccountService;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.shredzone.acme4j.Login;
+import org.shredzone.acme4j.exception.AcmeException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Executes each order at most once at a time across every server node.
+ * </br>
+ *
+ * Concurrent executions of the same order on this node attach to the execution which is already running and
+ * receive its result, without touching the database. The running execution claims a lease on the certificate row
+ * with a conditional update, so an execution on another node waits for it and then finds the certificate already
+ * issued instead of triggering the challenges and finalizing the order with a different key pair.
+ * </p>
+ * No connection is held while the order is executed or while waiting for the lease. The lease is renewed while the
+ * execution is running and expires if the node dies, so the order can be executed again by another node.
+ */
+@Service
+public class OrderExecutionService {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    static final String CLAIM = """
+            UPDATE certificates SET execution_lease_owner = ?, execution_lease_expires_at = now() + ? * INTERVAL '1 millisecond'
+            WHERE order_id = ? AND (execution_lease_expires_at IS NULL OR execution_lease_expires_at < now())""";
+
+    static final String RENEW = """
+            UPDATE certificates SET execution_lease_expires_at = now() + ? * INTERVAL '1 millisecond'
+            WHERE order_id = ? AND execution_lease_owner = ?""";
+
+    static final String RELEASE = """
+            UPDATE certificates SET execution_lease_owner = NULL, execution_lease_expires_at = NULL
+            WHERE order_id = ? AND execution_lease_owner = ?""";
+
+    private final Map<String, CompletableFuture<Certificate>> executions = new ConcurrentHashMap<>();
+
+    /**
+     * Owner of the lease of every order which is being executed on this node
+     */
+    private final Map<String, String> leases = new ConcurrentHashMap<>();
+
+    private final AcmeService acmeService;
+    private final AccountService accountService;
+    private final CertificateRepository certificateRepository;
+    private final JdbcTemplate jdbcTemplate;
+
+    @Value("${acme.orderLock.waitTimeout:10m}")
+    private Duration lockWaitTimeout;
+
+    @Value("${acme.orderLock.pollInterval:1s}")
+    private Duration lockPollInterval;
+
+    @Value("${acme.orderLock.leaseDuration:2m}")
+    private Duration leaseDuration;
+
+    public OrderExecutionService(AcmeService acmeService, AccountService accountService, CertificateRepository certificateRepository,
+                                 JdbcTemplate jdbcTemplate) {
+        this.acmeService = acmeService;
+        this.accountService = accountService;
+        this.certificateRepository = certificateRepository;
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Execute the order of the certificate, or wait for the execution which is already running
+     *
+     * @param orderId Order ID of the {@link Certificate}
+     * @return {@link Certificate} after the execution
+     * @throws ServiceException if the certificate does not exist or the order could not be claimed
+     * @throws AcmeException    if the order could not be executed
+     * @throws IOException      if an I/O error occurs
+     */
+    public Certificate execute(String orderId) throws AcmeException, IOException {
+        CompletableFuture<Certificate> execution = new CompletableFuture<>();
+        CompletableFuture<Certificate> running = executions.putIfAbsent(orderId, execution);
+        if (running != null) {
+            logger.info("Order {} is already being executed, waiting for its result", orderId);
+            return await(running);
+        }
+
+        try {
+            Certificate certificate = executeClaimed(orderId);
+            execution.complete(certificate);
+            return certificate;
+        } catch (Throwable throwable) {
+            execution.completeExceptionally(throwable);
+            throw throwable;
+        } finally {
+            executions.remove(orderId, execution);
+        }
+    }
+
+    /**
+     * Number of orders being executed on this node
+     */
+    public int running() {
+        return executions.size();
+    }
+
+    /**
+     * Renew the leases of the orders being executed on this node
+     */
+    @Scheduled(initialDelay = 0, fixedDelayString = "${acme.orderLock.renewIntervalSeconds:30}", timeUnit = SECONDS)
+    public void renewLeases() {
+        leases.forEach((orderId, owner) -> {
+            try {
+                if (jdbcTemplate.update(RENEW, leaseDuration.toMillis(), orderId, owner) == 0) {
+                    logger.warn("Lost the lease of Order ID: {}", orderId);
+                }
+            } catch (Exception e) {
+                logger.error("Failed to renew the lease of Order ID: {}", orderId, e);
+            }
+        });
+    }
+
+    private Certificate executeClaimed(String orderId) throws AcmeException, IOException {
+        String owner = UUID.randomUUID().toString();
+        claim(orderId, owner);
+
+        leases.put(orderId, owner);
+        try {
+            Certificate certificate = certificateRepository.findByOrderId(orderId)
+                    .orElseThrow(() -> new ServiceException("Certificate not found for Order ID: " + orderId));
+
+            // Another node has executed the order while this node was waiting for the lease
+            if (certificate.certificateStatus() == CertificateStatus.CERTIFICATE_ISSUED) {
+                logger.info("Certificate already issued for Order ID: {}", orderId);
+                return certificate;
+            }
+
+            Login login = accountService.loginAccount(certificate.acmeProvider().session(), certificate.account());
+            acmeService.executeOrder(login, certificate);
+            return certificate;
+        } finally {
+            leases.remove(orderId, owner);
+            release(orderId, owner);
+        }
+    }
+
+    private void claim(String orderId, String owner) {
+        long deadline = System.nanoTime() + lockWaitTimeout.toNanos();
+        boolean waiting = false;
+
+        while (jdbcTemplate.update(CLAIM, owner, leaseDuration.toMillis(), orderId) == 0) {
+            // The claim also matches no row if the certificate does not exist, which no amount of waiting changes
+            if (!certificateRepository.existsByOrderId(orderId)) {
+                throw new ServiceException("Certificate not found for Order ID: " + orderId);
+            }
+
+            if (!waiting) {
+                logger.info("Order {} is being executed by another node, waiting for it", orderId);
+                waiting = true;
+            }
+
+            if (System.nanoTime() - deadline >= 0) {
+                throw new ServiceException("Timed out waiting for the execution of Order ID " + orderId + " on another node");
+            }
+
+            try {
+                Thread.sleep(lockPollInterval.toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ServiceException("Interrupted while waiting for the lease of Order ID " + orderId);
+            }
+        }
+    }
+
+    private void release(String orderId, String owner) {
+        try {
+            jdbcTemplate.update(RELEASE, orderId, owner);
+        } catch (Exception e) {
+            // The lease expires on its own
+            logger.error("Failed to release the lease of Order ID: {}", orderId, e);
+        }
+    }
+
+    private static Certificate await(CompletableFuture<Certificate> running) throws AcmeException, IOException {
+        try {
+            return running.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof AcmeException acmeException) {
+                throw acmeException;
+            } else if (cause instanceof IOException ioException) {
+                throw ioException;
+            } else if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            } else if (cause instanceof Error error) {
+                throw error;
+            }
+            throw new ServiceException("Execution of the order failed: " + cause);
+        }
+    }
+}
@@ -22,7 +22,9 @@ import in.codebuckets.acmemanager.common.auth.CustomAuthenticationEntryPoint;
 import in.codebuckets.acmemanager.common.auth.TokenAuthenticationManager;
 import in.codebuckets.acmemanager.server.jpa.Account;
 import in.codebuckets.acmemanager.server.jpa.AccountRepository;
+import in.codebuckets.acmemanager.server.services.AgentClient;
 import in.codebuckets.acmemanager.server.services.JwtService;
+import in.codebuckets.acmemanager.server.services.channel.AgentChannelHandler;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.security.config.Customizer;
@@ -58,6 +60,9 @@ public class WebSecurityConfig {
                         .pathMatchers("/v1/account/**").permitAll()
                         .pathMatchers("/v1/general/**").permitAll()
                         .pathMatchers("/v1/agent/register").permitAll()
+                        .pathMatchers(AgentChannelHandler.CHANNEL_PATH).permitAll()
+                        // Forwarded commands are authenticated with a node JWT by the controller
+                        .pathMatchers(AgentClient.FORWARD_PATH + "*").permitAll()
                         .pathMatchers("/**").access(new TokenAuthenticationManager())
                         .anyExchange()
                         .permitAll())
@@ -17,17 +17,20 @@
 
 package in.codebuckets.acmemanager.server.controllers;
 
+import in.codebuckets.acmemanager.server.ServiceException;
 import in.codebuckets.acmemanager.server.acme.AcmeService;
+import in.codebuckets.acmemanager.server.acme.ExecuteOrderJobHandler;
+import in.codebuckets.acmemanager.server.acme.OrderExecutionService;
 import in.codebuckets.acmemanager.server.dto.PlaceOrder;
 import in.codebuckets.acmemanager.server.jpa.AccountRepository;
 import in.codebuckets.acmemanager.server.jpa.Certificate;
 import in.codebuckets.acmemanager.server.jpa.CertificateRepository;
 import in.codebuckets.acmemanager.server.services.AccountService;
 import in.codebuckets.acmemanager.server.services.JwtService;
+import in.codebuckets.acmemanager.server.services.job.JobQueue;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.shredzone.acme4j.Account;
-import org.shredzone.acme4j.Login;
 import org.shredzone.acme4j.exception.AcmeException;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PatchMapping;
@@ -60,13 +63,18 @@ public class AcmeController {
     private final AccountRepository accountRepository;
     private final AccountService accountService;
     private final CertificateRepository certificateRepository;
+    private final JobQueue jobQueue;
+    private final OrderExecutionService orderExecutionService;
 
-    public AcmeController(AcmeService acmeService, JwtService jwtService, AccountRepository accountRepository, AccountService accountService, CertificateRepository certificateRepository) {
+    public AcmeController(AcmeService acmeService, JwtService jwtService, AccountRepository accountRepository, AccountService accountService,
+                          CertificateRepository certificateRepository, JobQueue jobQueue, OrderExecutionService orderExecutionService) {
         this.acmeService = acmeService;
         this.jwtService = jwtService;
         this.accountRepository = accountRepository;
         this.accountService = accountService;
         this.certificateRepository = certificateRepository;
+        this.jobQueue = jobQueue;
+        this.orderExecutionService = orderExecutionService;
     }
 
     @PostMapping(value = "/place-order", consumes = APPLICATION_JSON_VALUE, produces = APPLICATION_JSON_VALUE)
@@ -94,25 +102,36 @@ public class AcmeController {
     @PatchMapping(value = "execute-order", consumes = APPLICATION_JSON_VALUE, produces = APPLICATION_JSON_VALUE)
     public CompletableFuture<ResponseEntity<String>> executeOrder(@RequestParam String orderId) {
         return supplyAsync(() -> {
-            Optional<Certificate> optionalCertificate = certificateRepository.findByOrderId(orderId);
-            if (optionalCertificate.isEmpty()) {
+            if (certificateRepository.findByOrderId(orderId).isEmpty()) {
                 return notFound("Certificate not found");
             }
 
-            Certificate certificate = optionalCertificate.get();
-
-            Login login = accountService.loginAccount(certificate.acmeProvider().session(), certificate.account());
-
             try {
-                acmeService.executeOrder(login, certificate);
-                return ok(certificate);
+                return ok(orderExecutionService.execute(orderId));
             } catch (AcmeException e) {
                 logger.error("ACME error while placing order", e);
                 return badRequest("ACME error while placing order: " + e.getMessage());
             } catch (IOException e) {
                 logger.error("Error while executing order for certificate with Order ID: {}", orderId, e);
                 return badRequest("Error while executing order for certificate with Order ID: " + orderId);
+            } catch (ServiceException e) {
+                logger.error("Error while executing order for certificate with Order ID: {}", orderId, e);
+                return badRequest(e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Queue the execution of the order, which is executed by the first server node with a free job slot
+     */
+    @PostMapping(value = "execute-order/queue", produces = APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<String>> queueExecuteOrder(@RequestParam String orderId,
+                                                                       @RequestParam(defaultValue = "0") int priority) {
+        return supplyAsync(() -> {
+            if (certificateRepository.findByOrderId(orderId).isEmpty()) {
+                return notFound("Certificate not found");
             }
+            return ok(jobQueue.enqueue(ExecuteOrderJobHandler.TYPE, orderId, priority));
         });
     }
 }
@@ -20,47 +20,83 @@ package in.codebuckets.acmemanager.server.controllers;
 import in.codebuckets.acmemanager.server.AvailableFilters;
 import in.codebuckets.acmemanager.server.Filters;
 import in.codebuckets.acmemanager.server.PagedResponse;
+import in.codebuckets.acmemanager.server.ServiceException;
+import in.codebuckets.acmemanager.server.dto.AddAgent;
+import in.codebuckets.acmemanager.server.dto.AgentBulkResult;
 import in.codebuckets.acmemanager.server.dto.AgentRegister;
+import in.codebuckets.acmemanager.server.dto.DesiredCertificate;
 import in.codebuckets.acmemanager.server.jpa.Agent;
-import in.codebuckets.acmemanager.server.jpa.AgentRepository;
+import in.codebuckets.acmemanager.server.services.AgentClient;
+import in.codebuckets.acmemanager.server.services.AgentRegistry;
 import in.codebuckets.acmemanager.server.services.AgentService;
+import in.codebuckets.acmemanager.server.services.AgentSyncService;
 import in.codebuckets.acmemanager.server.services.FilterService;
+import in.codebuckets.acmemanager.server.services.LabelSelector;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 
+import static in.codebuckets.acmemanager.common.json.Responses.badRequest;
+import static in.codebuckets.acmemanager.common.json.Responses.notFound;
 import static in.codebuckets.acmemanager.common.json.Responses.ok;
 import static in.codebuckets.acmemanager.common.json.Responses.responseError;
 import static java.util.concurrent.CompletableFuture.supplyAsync;
 import static org.springframework.http.HttpStatus.CONFLICT;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
 import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+import static org.springframework.http.MediaType.APPLICATION_NDJSON_VALUE;
 
 @RequestMapping("/v1/agent")
 @RestController
 public class AgentController {
 
-    private final AgentRepository agentRepository;
+    private static final Logger logger = LogManager.getLogger();
+
+    private final AgentRegistry agentRegistry;
     private final FilterService filterService;
     private final AgentService agentService;
+    private final AgentClient agentClient;
+    private final AgentSyncService agentSyncService;
+    private final int bulkBatchSize;
 
-    public AgentController(AgentRepository agentRepository, FilterService filterService, AgentService agentService) {
-        this.agentRepository = agentRepository;
+    public AgentController(AgentRegistry agentRegistry, FilterService filterService, AgentService agentService,
+                           AgentClient agentClient, AgentSyncService agentSyncService,
+                           @Value("${agent.bulk.batchSize:500}") int bulkBatchSize) {
+        this.agentRegistry = agentRegistry;
         this.filterService = filterService;
         this.agentService = agentService;
+        this.agentClient = agentClient;
+        this.agentSyncService = agentSyncService;
+        this.bulkBatchSize = bulkBatchSize;
     }
 
     @PutMapping(value = "/register", consumes = APPLICATION_JSON_VALUE, produces = APPLICATION_JSON_VALUE)
     public CompletableFuture<ResponseEntity<String>> register(@RequestBody AgentRegister agentRegister) {
         return supplyAsync(() -> {
-            Optional<Agent> optionalAgent = agentRepository.findAgentByToken(agentRegister.token());
+            Optional<Agent> optionalAgent = agentRegistry.findByToken(agentRegister.token());
             if (optionalAgent.isEmpty()) {
                 return ok("Agent not found");
             }
@@ -69,8 +105,7 @@ public class AgentController {
 
             if (agentService.register(agent)) {
                 agent.url(agentRegister.url());
-                agentRepository.save(agent);
-                return ok(agent);
+                return ok(agentRegistry.save(agent));
             } else {
                 return responseError(CONFLICT, "Agent already registered");
             }
@@ -80,7 +115,7 @@ public class AgentController {
     @DeleteMapping(value = "/deregister", consumes = APPLICATION_JSON_VALUE, produces = APPLICATION_JSON_VALUE)
     public CompletableFuture<ResponseEntity<String>> deregister(@RequestBody AgentRegister agentRegister) {
         return supplyAsync(() -> {
-            Optional<Agent> optionalAgent = agentRepository.findAgentByToken(agentRegister.token());
+            Optional<Agent> optionalAgent = agentRegistry.findByToken(agentRegister.token());
             if (optionalAgent.isEmpty()) {
                 return ok("Agent not found");
             }
@@ -88,19 +123,35 @@ public class AgentController {
             Agent agent = optionalAgent.get();
 
             if (agentService.unregister(agent)) {
-                agentRepository.save(agent);
-                return ok(agent);
+                return ok(agentRegistry.save(agent));
             } else {
                 return responseError(CONFLICT, "Agent not registered");
             }
         });
     }
 
+    /**
+     * Register a stream of agents sent as NDJSON, one {@link AgentRegister} per line.
+     * Agents are looked up in memory and registered in batches of {@code agent.bulk.batchSize}, each
+     * persisted with a single JDBC batch, and an {@link AgentBulkResult} is streamed back for every item.
+     */
+    @PutMapping(value = "/register/bulk", consumes = APPLICATION_NDJSON_VALUE, produces = APPLICATION_NDJSON_VALUE)
+    public Flux<AgentBulkResult> registerAll(@RequestBody Flux<AgentRegister> agentRegisters) {
+        return agentRegisters.buffer(bulkBatchSize)
+                .concatMap(batch -> Mono.fromCallable(() -> registerAll(batch))
+                        .subscribeOn(Schedulers.boundedElastic())
+                        .flatMapIterable(results -> results));
+    }
+
     @PostMapping(value = "/get", consumes = APPLICATION_JSON_VALUE, produces = APPLICATION_JSON_VALUE)
     public CompletableFuture<ResponseEntity<String>> get(@RequestBody Filters filters) {
         return supplyAsync(() -> {
-            PagedResponse<Agent> pagedResponse = filterService.filter(filters, AvailableFilters.CERTIFICATE_FILTER_KEYS, Agent.class);
-            return ok(pagedResponse);
+            try {
+                PagedResponse<Agent> pagedResponse = filterService.filter(filters, AvailableFilters.CERTIFICATE_FILTER_KEYS, Agent.class);
+                return ok(pagedResponse);
+            } catch (IllegalArgumentException e) {
+                return badRequest(e.getMessage());
+            }
         });
     }
 
@@ -112,7 +163,181 @@ public class AgentController {
                     .token(UUID.randomUUID().toString())
                     .build();
 
-            return ok(agentRepository.save(agent));
+            return ok(agentRegistry.save(agent));
+        });
+    }
+
+    /**
+     * Create a stream of agents sent as NDJSON, one {@link AddAgent} per line.
+     * Agents are inserted in batches of {@code agent.bulk.batchSize} and an {@link AgentBulkResult}
+     * with the token of the new agent is streamed back for every item.
+     */
+    @PostMapping(value = "/add/bulk", consumes = APPLICATION_NDJSON_VALUE, produces = APPLICATION_NDJSON_VALUE)
+    public Flux<AgentBulkResult> addAll(@RequestBody Flux<AddAgent> addAgents) {
+        return addAgents.buffer(bulkBatchSize)
+                .concatMap(batch -> Mono.fromCallable(() -> addAll(batch))
+                        .subscribeOn(Schedulers.boundedElastic())
+                        .flatMapIterable(results -> results));
+    }
+
+    @PutMapping(value = "/{agentId}/labels", consumes = APPLICATION_JSON_VALUE, produces = APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<String>> setLabels(@PathVariable long agentId, @RequestBody Map<String, String> labels) {
+        return supplyAsync(() -> {
+            try {
+                LabelSelector.validateLabels(labels);
+            } catch (IllegalArgumentException e) {
+                return badRequest(e.getMessage());
+            }
+
+            return agentRegistry.findById(agentId)
+                    .map(agent -> ok(agentRegistry.save(agent.labels(new HashMap<>(labels)))))
+                    .orElseGet(() -> notFound("Agent not found"));
+        });
+    }
+
+    /**
+     * Find the agents whose labels match the selector, e.g. {@code role=edge,region in (eu-west,eu-north)}
+     */
+    @GetMapping(value = "/select", produces = APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<String>> select(@RequestParam(required = false) String selector) {
+        return supplyAsync(() -> {
+            LabelSelector labelSelector;
+            try {
+                labelSelector = LabelSelector.parse(selector);
+            } catch (IllegalArgumentException e) {
+                return badRequest(e.getMessage());
+            }
+
+            try {
+                return ok(agentRegistry.select(labelSelector));
+            } catch (ServiceException e) {
+                return responseError(SERVICE_UNAVAILABLE, e.getMessage());
+            }
+        });
+    }
+
+    @GetMapping(value = "/stats/push", produces = APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<String>> pushStats() {
+        return supplyAsync(() -> ok(agentClient.pushStats()));
+    }
+
+    @GetMapping(value = "/stats/health", produces = APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<String>> healthStats() {
+        return supplyAsync(() -> ok(agentService.healthStats()));
+    }
+
+    @PutMapping(value = "/{agentId}/certificate", consumes = APPLICATION_JSON_VALUE, produces = APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<String>> setDesiredCertificate(@PathVariable long agentId,
+                                                                          @RequestBody DesiredCertificate desiredCertificate) {
+        return supplyAsync(() -> {
+            try {
+                return agentRegistry.findById(agentId)
+                        .map(agent -> ok(agentSyncService.setDesiredCertificate(agent, desiredCertificate)))
+                        .orElseGet(() -> notFound("Agent not found"));
+            } catch (ServiceException e) {
+                return badRequest(e.getMessage());
+            }
         });
     }
+
+    @GetMapping(value = "/{agentId}/pending", produces = APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<String>> pendingDeliveries(@PathVariable long agentId) {
+        return supplyAsync(() -> agentRegistry.findById(agentId)
+                .map(agent -> ok(agentSyncService.pendingDeliveries(agentId)))
+                .orElseGet(() -> notFound("Agent not found")));
+    }
+
+    @PostMapping(value = "/{agentId}/sync", produces = APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<String>> sync(@PathVariable long agentId) {
+        return supplyAsync(() -> agentRegistry.findById(agentId))
+                .thenCompose(optionalAgent -> optionalAgent
+                        .map(agent -> agentSyncService.sync(agent).thenApply(syncResult -> ok(syncResult)))
+                        .orElseGet(() -> CompletableFuture.completedFuture(notFound("Agent not found"))));
+    }
+
+    @PostMapping(value = "/sync", produces = APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<String>> syncAll() {
+        return supplyAsync(agentSyncService::syncAll)
+                .thenCompose(future -> future)
+                .thenApply(syncResults -> ok(syncResults));
+    }
+
+    private List<AgentBulkResult> addAll(List<AddAgent> batch) {
+        List<AgentBulkResult> results = new ArrayList<>(batch.size());
+        List<Agent> agents = new ArrayList<>();
+        for (AddAgent addAgent : batch) {
+            Map<String, String> labels = addAgent.labels() == null ? new HashMap<>() : new HashMap<>(addAgent.labels());
+            try {
+                LabelSelector.validateLabels(labels);
+            } catch (IllegalArgumentException e) {
+                results.add(AgentBulkResult.failed(null, addAgent.name(), e.getMessage()));
+                continue;
+            }
+
+            Agent agent = Agent.builder()
+                    .name(addAgent.name())
+                    .token(UUID.randomUUID().toString())
+                    .labels(labels)
+                    .build();
+            agents.add(agent);
+            results.add(null);
+        }
+
+        List<AgentBulkResult> saved;
+
+        try {
+            saved = agentRegistry.saveAll(agents).stream()
+                    .map(agent -> new AgentBulkResult(agent.id(), agent.name(), agent.token(), null))
+                    .toList();
+        } catch (Exception e) {
+            logger.error("Failed to add a batch of {} agents", agents.size(), e);
+            saved = agents.stream()
+                    .map(agent -> AgentBulkResult.failed(null, agent.name(), "Failed to add agent"))
+                    .toList();
+        }
+
+        // Fill in the results of the saved agents in the order of the batch
+        for (int i = 0, j = 0; i < results.size(); i++) {
+            if (results.get(i) == null) {
+                results.set(i, saved.get(j++));
+            }
+        }
+        return results;
+    }
+
+    private List<AgentBulkResult> registerAll(List<AgentRegister> batch) {
+        List<AgentBulkResult> results = new ArrayList<>(batch.size());
+        List<Agent> registered = new ArrayList<>();
+        Set<Long> agentIds = new HashSet<>();
+
+        for (AgentRegister agentRegister : batch) {
+            Optional<Agent> optionalAgent = agentRegistry.findByToken(agentRegister.token());
+            if (optionalAgent.isEmpty()) {
+                results.add(AgentBulkResult.failed(null, null, "Agent not found"));
+                continue;
+            }
+
+            Agent agent = optionalAgent.get();
+
+            // The same agent may appear more than once in the batch
+            if (!agentIds.add(agent.id()) || !agentService.register(agent)) {
+                results.add(AgentBulkResult.failed(agent.id(), agent.name(), "Agent already registered"));
+                continue;
+            }
+
+            agent.url(agentRegister.url());
+            registered.add(agent);
+            results.add(new AgentBulkResult(agent.id(), agent.name(), null, null));
+        }
+
+        try {
+            agentRegistry.updateAll(registered);
+        } catch (Exception e) {
+            logger.error("Failed to register a batch of {} agents", registered.size(), e);
+            return results.stream()
+                    .map(result -> result.error() == null ? AgentBulkResult.failed(result.agentId(), result.name(), "Failed to register agent") : result)
+                    .toList();
+        }
+        return results;
+    }
 }
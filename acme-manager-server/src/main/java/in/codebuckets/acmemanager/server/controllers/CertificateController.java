@@ -66,8 +66,12 @@ public class CertificateController {
     @PostMapping(value = "/get", consumes = APPLICATION_JSON_VALUE, produces = APPLICATION_JSON_VALUE)
     public CompletableFuture<ResponseEntity<String>> get(@RequestBody Filters filters) {
         return supplyAsync(() -> {
-            PagedResponse<Certificate> pagedResponse = filterService.filter(filters, AvailableFilters.CERTIFICATE_FILTER_KEYS, Certificate.class);
-            return ok(pagedResponse);
+            try {
+                PagedResponse<Certificate> pagedResponse = filterService.filter(filters, AvailableFilters.CERTIFICATE_FILTER_KEYS, Certificate.class);
+                return ok(pagedResponse);
+            } catch (IllegalArgumentException e) {
+                return badRequest(e.getMessage());
+            }
         });
     }
 }
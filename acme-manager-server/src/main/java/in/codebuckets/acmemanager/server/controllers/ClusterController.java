@@ -0,0 +1,103 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.controllers;
+
+import in.codebuckets.acmemanager.server.dto.ChannelCommand;
+import in.codebuckets.acmemanager.server.jpa.ClusterNodeRepository;
+import in.codebuckets.acmemanager.server.services.AgentClient;
+import in.codebuckets.acmemanager.server.services.JwtService;
+import in.codebuckets.acmemanager.server.services.cluster.ClusterMembership;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static in.codebuckets.acmemanager.common.json.Responses.badRequest;
+import static in.codebuckets.acmemanager.common.json.Responses.notFound;
+import static in.codebuckets.acmemanager.common.json.Responses.ok;
+import static in.codebuckets.acmemanager.common.json.Responses.responseError;
+import static in.codebuckets.acmemanager.common.json.Responses.unauthorized;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.concurrent.CompletableFuture.supplyAsync;
+import static org.springframework.http.HttpHeaders.AUTHORIZATION;
+import static org.springframework.http.HttpStatus.BAD_GATEWAY;
+import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+
+@RequestMapping("/v1/cluster")
+@RestController
+public class ClusterController {
+
+    private final ClusterMembership clusterMembership;
+    private final ClusterNodeRepository clusterNodeRepository;
+    private final AgentClient agentClient;
+    private final JwtService jwtService;
+
+    public ClusterController(ClusterMembership clusterMembership, ClusterNodeRepository clusterNodeRepository,
+                             AgentClient agentClient, JwtService jwtService) {
+        this.clusterMembership = clusterMembership;
+        this.clusterNodeRepository = clusterNodeRepository;
+        this.agentClient = agentClient;
+        this.jwtService = jwtService;
+    }
+
+    /**
+     * Membership as seen by this node, and every node which has recently held a lease
+     */
+    @GetMapping(produces = APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<String>> cluster() {
+        return supplyAsync(() -> {
+            Map<String, Object> cluster = new LinkedHashMap<>();
+            cluster.put("nodeId", clusterMembership.nodeId());
+            cluster.put("leader", clusterMembership.isLeader());
+            cluster.put("liveNodeIds", clusterMembership.nodeIds());
+            cluster.put("nodes", clusterNodeRepository.findAllByOrderByIdAsc());
+            return ok(cluster);
+        });
+    }
+
+    /**
+     * Send a command forwarded by another node over the control channel which the agent has opened to this node.
+     * Only accepts requests authenticated with a node JWT, see {@link JwtService#generateNodeJwt(String)}.
+     */
+    @PostMapping(value = "/channel/{agentId}", consumes = APPLICATION_JSON_VALUE, produces = APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<String>> command(@RequestHeader(value = AUTHORIZATION, required = false) String authorization,
+                                                             @PathVariable long agentId, @RequestBody ChannelCommand channelCommand) {
+        if (!jwtService.isNodeJwtValid(authorization)) {
+            return completedFuture(unauthorized("Invalid node token"));
+        }
+
+        if (channelCommand.command() == null || channelCommand.timeoutMillis() <= 0) {
+            return completedFuture(badRequest("Command and timeout are required"));
+        }
+
+        return agentClient.forwarded(agentId, channelCommand)
+                .map(result -> result.handle((payload, throwable) -> throwable == null
+                        ? ok(payload)
+                        : responseError(BAD_GATEWAY, throwable.getMessage())))
+                .orElseGet(() -> completedFuture(notFound("Agent has no control channel open to this node")));
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.controllers;
+
+import in.codebuckets.acmemanager.server.ServiceException;
+import in.codebuckets.acmemanager.server.dto.AddDomainRoute;
+import in.codebuckets.acmemanager.server.jpa.DomainRoute;
+import in.codebuckets.acmemanager.server.jpa.DomainRouteRepository;
+import in.codebuckets.acmemanager.server.services.DomainRoutingTable;
+import in.codebuckets.acmemanager.server.services.LabelSelector;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static in.codebuckets.acmemanager.common.json.Responses.badRequest;
+import static in.codebuckets.acmemanager.common.json.Responses.notFound;
+import static in.codebuckets.acmemanager.common.json.Responses.ok;
+import static in.codebuckets.acmemanager.common.json.Responses.responseError;
+import static java.util.concurrent.CompletableFuture.supplyAsync;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
+import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+
+@RequestMapping("/v1/route")
+@RestController
+public class DomainRouteController {
+
+    private final DomainRouteRepository domainRouteRepository;
+    private final DomainRoutingTable domainRoutingTable;
+
+    public DomainRouteController(DomainRouteRepository domainRouteRepository, DomainRoutingTable domainRoutingTable) {
+        this.domainRouteRepository = domainRouteRepository;
+        this.domainRoutingTable = domainRoutingTable;
+    }
+
+    /**
+     * Add a route, or replace the selector of the route with the same pattern
+     */
+    @PutMapping(consumes = APPLICATION_JSON_VALUE, produces = APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<String>> put(@RequestBody AddDomainRoute addDomainRoute) {
+        return supplyAsync(() -> {
+            String pattern;
+            try {
+                pattern = DomainRoutingTable.normalizePattern(addDomainRoute.pattern());
+                LabelSelector.parse(addDomainRoute.selector());
+            } catch (IllegalArgumentException e) {
+                return badRequest(e.getMessage());
+            }
+
+            DomainRoute domainRoute = domainRouteRepository.findByPattern(pattern)
+                    .orElseGet(() -> DomainRoute.builder().pattern(pattern).build());
+            domainRoute.selector(addDomainRoute.selector() == null ? "" : addDomainRoute.selector());
+
+            domainRoute = domainRouteRepository.save(domainRoute);
+            domainRoutingTable.reload();
+            return ok(domainRoute);
+        });
+    }
+
+    @GetMapping(produces = APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<String>> list() {
+        return supplyAsync(() -> ok(domainRouteRepository.findAll()));
+    }
+
+    @DeleteMapping(value = "/{routeId}", produces = APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<String>> delete(@PathVariable long routeId) {
+        return supplyAsync(() -> {
+            if (!domainRouteRepository.existsById(routeId)) {
+                return notFound("Route not found");
+            }
+
+            domainRouteRepository.deleteById(routeId);
+            domainRoutingTable.reload();
+            return ok("Route deleted");
+        });
+    }
+
+    /**
+     * Resolve the routes and target agents of the domains of a certificate
+     */
+    @GetMapping(value = "/resolve", produces = APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<String>> resolve(@RequestParam List<String> domain) {
+        return supplyAsync(() -> {
+            try {
+                Map<String, Object> map = new HashMap<>();
+                map.put("routes", domainRoutingTable.routes(domain).stream().map(DomainRoutingTable.Route::pattern).toList());
+                map.put("agentIds", domainRoutingTable.resolve(domain));
+                return ok(map);
+            } catch (ServiceException e) {
+                return responseError(SERVICE_UNAVAILABLE, e.getMessage());
+            }
+        });
+    }
+}
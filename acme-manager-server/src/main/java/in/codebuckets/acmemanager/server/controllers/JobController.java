@@ -0,0 +1,83 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.controllers;
+
+import in.codebuckets.acmemanager.server.jpa.JobRepository;
+import in.codebuckets.acmemanager.server.jpa.JobStatus;
+import in.codebuckets.acmemanager.server.services.job.JobQueue;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.concurrent.CompletableFuture;
+
+import static in.codebuckets.acmemanager.common.json.Responses.notFound;
+import static in.codebuckets.acmemanager.common.json.Responses.ok;
+import static in.codebuckets.acmemanager.common.json.Responses.responseError;
+import static java.util.concurrent.CompletableFuture.supplyAsync;
+import static org.springframework.http.HttpStatus.CONFLICT;
+import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+
+@RequestMapping("/v1/job")
+@RestController
+public class JobController {
+
+    private final JobRepository jobRepository;
+    private final JobQueue jobQueue;
+
+    public JobController(JobRepository jobRepository, JobQueue jobQueue) {
+        this.jobRepository = jobRepository;
+        this.jobQueue = jobQueue;
+    }
+
+    @GetMapping(value = "/{jobId}", produces = APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<String>> job(@PathVariable long jobId) {
+        return supplyAsync(() -> jobRepository.findById(jobId)
+                .map(job -> ok(job))
+                .orElseGet(() -> notFound("Job not found")));
+    }
+
+    /**
+     * Latest 100 jobs with the status
+     */
+    @GetMapping(produces = APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<String>> jobs(@RequestParam JobStatus status) {
+        return supplyAsync(() -> ok(jobRepository.findTop100ByStatusOrderByIdDesc(status)));
+    }
+
+    /**
+     * Queue a dead job again with a fresh set of attempts
+     */
+    @PostMapping(value = "/{jobId}/retry", produces = APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<String>> retry(@PathVariable long jobId) {
+        return supplyAsync(() -> {
+            if (!jobRepository.existsById(jobId)) {
+                return notFound("Job not found");
+            }
+            if (!jobQueue.retry(jobId)) {
+                return responseError(CONFLICT, "Job is not dead");
+            }
+            return ok(jobRepository.findById(jobId).orElseThrow());
+        });
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.controllers;
+
+import in.codebuckets.acmemanager.server.ServiceException;
+import in.codebuckets.acmemanager.server.dto.StartRollout;
+import in.codebuckets.acmemanager.server.services.AgentRegistry;
+import in.codebuckets.acmemanager.server.services.LabelSelector;
+import in.codebuckets.acmemanager.server.services.rollout.RolloutService;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import static in.codebuckets.acmemanager.common.json.Responses.badRequest;
+import static in.codebuckets.acmemanager.common.json.Responses.notFound;
+import static in.codebuckets.acmemanager.common.json.Responses.ok;
+import static in.codebuckets.acmemanager.common.json.Responses.responseError;
+import static java.util.concurrent.CompletableFuture.supplyAsync;
+import static org.springframework.http.HttpStatus.CONFLICT;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
+import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+
+@RequestMapping("/v1/rollout")
+@RestController
+public class RolloutController {
+
+    private final RolloutService rolloutService;
+    private final AgentRegistry agentRegistry;
+
+    public RolloutController(RolloutService rolloutService, AgentRegistry agentRegistry) {
+        this.rolloutService = rolloutService;
+        this.agentRegistry = agentRegistry;
+    }
+
+    /**
+     * Roll a certificate out to the agents matching the selector
+     */
+    @PostMapping(consumes = APPLICATION_JSON_VALUE, produces = APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<String>> start(@RequestBody StartRollout startRollout) {
+        return supplyAsync(() -> {
+            if (startRollout.certificate() == null || startRollout.certificate().domain() == null) {
+                return badRequest("Certificate is required");
+            }
+
+            Set<Long> agentIds;
+            try {
+                agentIds = agentRegistry.selectIds(LabelSelector.parse(startRollout.selector()));
+            } catch (IllegalArgumentException e) {
+                return badRequest(e.getMessage());
+            } catch (ServiceException e) {
+                return responseError(SERVICE_UNAVAILABLE, e.getMessage());
+            }
+
+            if (agentIds.isEmpty()) {
+                return badRequest("No agent matches the selector");
+            }
+
+            return ok(rolloutService.start(startRollout.certificate(), agentIds));
+        });
+    }
+
+    @GetMapping(produces = APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<String>> list() {
+        return supplyAsync(() -> ok(rolloutService.progress()));
+    }
+
+    @GetMapping(value = "/{rolloutId}", produces = APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<String>> progress(@PathVariable long rolloutId) {
+        return supplyAsync(() -> rolloutService.progress(rolloutId)
+                .map(progress -> ok(progress))
+                .orElseGet(() -> notFound("Rollout not found")));
+    }
+
+    @GetMapping(value = "/{rolloutId}/agents", produces = APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<String>> deployments(@PathVariable long rolloutId) {
+        return supplyAsync(() -> rolloutService.deployments(rolloutId)
+                .map(deployments -> ok(deployments))
+                .orElseGet(() -> notFound("Rollout not found")));
+    }
+
+    @PostMapping(value = "/{rolloutId}/pause", produces = APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<String>> pause(@PathVariable long rolloutId) {
+        return supplyAsync(() -> transition(rolloutId, rolloutService.pause(rolloutId), "Rollout is not running"));
+    }
+
+    @PostMapping(value = "/{rolloutId}/resume", produces = APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<String>> resume(@PathVariable long rolloutId) {
+        return supplyAsync(() -> transition(rolloutId, rolloutService.resume(rolloutId), "Rollout is not paused"));
+    }
+
+    @PostMapping(value = "/{rolloutId}/cancel", produces = APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<String>> cancel(@PathVariable long rolloutId) {
+        return supplyAsync(() -> transition(rolloutId, rolloutService.cancel(rolloutId), "Rollout has already finished"));
+    }
+
+    private ResponseEntity<String> transition(long rolloutId, boolean transitioned, String conflict) {
+        if (transitioned) {
+            return ok(rolloutService.progress(rolloutId).orElseThrow());
+        }
+
+        return rolloutService.progress(rolloutId).isPresent() ? responseError(CONFLICT, conflict) : notFound("Rollout not found");
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.dto;
+
+/**
+ * Route from a domain pattern to the agents matching a label selector
+ *
+ * @param pattern  Exact ({@code www.example.com}), wildcard ({@code *.example.com}) or suffix ({@code .example.com}) pattern
+ * @param selector Label selector of the target agents
+ */
+public record AddDomainRoute(String pattern, String selector) {
+}
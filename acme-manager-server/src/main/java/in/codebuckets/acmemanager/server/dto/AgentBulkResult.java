@@ -0,0 +1,37 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * Result of a single item of a bulk agent request. Results are streamed in the order of the request items.
+ *
+ * @param agentId Agent id, {@code null} if no agent matched the item
+ * @param name    Agent name
+ * @param token   Token of the created agent, only set for new agents
+ * @param error   Reason the item failed, {@code null} if it succeeded
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public record AgentBulkResult(Long agentId, String name, String token, String error) {
+
+    public static AgentBulkResult failed(Long agentId, String name, String error) {
+        return new AgentBulkResult(agentId, name, null, error);
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.dto;
+
+import in.codebuckets.acmemanager.server.services.rollout.AgentDeploymentStatus;
+
+/**
+ * Deployment of a rollout to a single agent
+ *
+ * @param agentId Agent id
+ * @param wave    Index of the wave of the agent, the canary wave is 0
+ * @param status  {@link AgentDeploymentStatus} of the agent
+ * @param error   Reason the deployment failed, {@code null} otherwise
+ */
+public record AgentDeployment(long agentId, int wave, AgentDeploymentStatus status, String error) {
+}
@@ -0,0 +1,34 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.server.dto;
+
+import java.time.Instant;
+
+/**
+ * Health of an agent as tracked by the failure detector
+ *
+ * @param agentId        Agent id
+ * @param isConnected    {@code true} if the agent is considered connected
+ * @param phi            Suspicion level of the failure detector at the time of the last check
+ * @param lastSeen       Time of the last successful check, {@code null} if the agent has not responded yet
+ * @param intervalMillis Current interval between checks in milliseconds
+ * @param nextCheck      Time of the next check
+ */
+public record AgentHealthStats(long agentId, boolean isConnected, double phi, Instant lastSeen, long intervalMillis,
+                               Instant nextCheck) {
+}
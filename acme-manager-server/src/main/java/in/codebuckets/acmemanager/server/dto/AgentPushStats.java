@@ -0,0 +1,32 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.server.dto;
+
+/**
+ * Latency of challenge pushes to an agent
+ *
+ * @param agentId              Agent id
+ * @param pushes               Number of pushes
+ * @param failures             Number of failed pushes
+ * @param lastLatencyMillis    Latency of the last push in milliseconds
+ * @param averageLatencyMillis Average latency of all pushes in milliseconds
+ * @param maxLatencyMillis     Maximum latency of all pushes in milliseconds
+ */
+public record AgentPushStats(long agentId, long pushes, long failures, long lastLatencyMillis,
+                             long averageLatencyMillis, long maxLatencyMillis) {
+}
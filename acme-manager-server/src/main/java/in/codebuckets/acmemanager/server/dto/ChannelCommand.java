@@ -0,0 +1,31 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.dto;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Command forwarded by a server node to the node which holds the control channel of the agent
+ *
+ * @param command       Command, see {@link in.codebuckets.acmemanager.common.channel.ChannelMessage}
+ * @param payload       Payload of the command
+ * @param timeoutMillis Time to wait for the agent to respond
+ */
+public record ChannelCommand(String command, JsonNode payload, long timeoutMillis) {
+}
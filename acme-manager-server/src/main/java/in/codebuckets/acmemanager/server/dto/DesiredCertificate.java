@@ -0,0 +1,28 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.server.dto;
+
+/**
+ * Certificate and private key pair which should be deployed on an agent
+ *
+ * @param domain      Domain of the certificate, the agent deploys it to a directory of this name
+ * @param certificate Certificate PEM
+ * @param privateKey  Private key PEM
+ */
+public record DesiredCertificate(String domain, String certificate, String privateKey) {
+}
@@ -26,7 +26,8 @@ import java.util.List;
  *
  * @param acmeProvider      {@link AcmeProvider} to use
  * @param domains            List of domains to order the certificate for
- * @param saveKeyPair        {@code true} if the key pair should be saved, {@code false} otherwise
+ * @param saveKeyPair        {@code true} if the key pair should be saved, {@code false} otherwise. The certificate is only
+ *                           deployed to the routed agents if the key pair is saved
  */
 public record PlaceOrder(AcmeProvider acmeProvider, List<String> domains, boolean saveKeyPair) {
 
@@ -0,0 +1,45 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.dto;
+
+import in.codebuckets.acmemanager.server.services.rollout.RolloutStatus;
+
+import java.time.Instant;
+
+/**
+ * Progress of a rollout
+ *
+ * @param rolloutId   Rollout id
+ * @param domain      Domain of the certificate
+ * @param status      {@link RolloutStatus} of the rollout
+ * @param waves       Number of waves
+ * @param nextWave    Index of the next wave to deploy, equal to {@code waves} once every wave has been deployed
+ * @param agents      Number of target agents
+ * @param pending     Number of agents whose wave has not started yet
+ * @param succeeded   Number of agents which have deployed the certificate
+ * @param failed      Number of agents which have failed to deploy the certificate
+ * @param deferred    Number of disconnected agents which receive the certificate with their next sync
+ * @param pauseReason Reason the rollout was paused, {@code null} if it was not paused
+ * @param createdAt   Time the rollout was started
+ * @param completedAt Time the rollout completed or was cancelled, {@code null} otherwise
+ */
+public record RolloutProgress(long rolloutId, String domain, RolloutStatus status, int waves, int nextWave, int agents,
+                              int pending, int succeeded, int failed, int deferred, String pauseReason,
+                              Instant createdAt, Instant completedAt) {
+}
@@ -0,0 +1,37 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.server.dto;
+
+import java.util.List;
+
+/**
+ * Result of synchronizing the certificates of an agent with its desired state
+ *
+ * @param agentId  Agent id
+ * @param desired  Number of certificates in the desired state
+ * @param upToDate Number of certificates the agent already had
+ * @param deployed Number of certificates sent to and deployed by the agent
+ * @param failed   Domains which the agent failed to deploy
+ * @param error    Reason the synchronization failed, {@code null} if it completed
+ */
+public record SyncResult(long agentId, int desired, int upToDate, int deployed, List<String> failed, String error) {
+
+    public static SyncResult failed(long agentId, String error) {
+        return new SyncResult(agentId, 0, 0, 0, List.of(), error);
+    }
+}
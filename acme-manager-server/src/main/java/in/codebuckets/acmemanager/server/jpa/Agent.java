@@ -20,10 +20,15 @@ package in.codebuckets.acmemanager.server.jpa;
 import com.fasterxml.jackson.annotation.JsonFormat;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import io.hypersistence.utils.hibernate.id.Tsid;
+import jakarta.persistence.CollectionTable;
 import jakarta.persistence.Column;
+import jakarta.persistence.ElementCollection;
 import jakarta.persistence.Entity;
+import jakarta.persistence.FetchType;
 import jakarta.persistence.Id;
 import jakarta.persistence.Index;
+import jakarta.persistence.JoinColumn;
+import jakarta.persistence.MapKeyColumn;
 import jakarta.persistence.Table;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
@@ -31,16 +36,19 @@ import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
 import lombok.experimental.Accessors;
+import org.hibernate.annotations.BatchSize;
 import org.hibernate.annotations.CreationTimestamp;
 import org.hibernate.annotations.UpdateTimestamp;
 
 import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
 
 import static com.fasterxml.jackson.annotation.JsonFormat.Shape.STRING;
 
 @Entity
 @Table(name = "agent", indexes = @Index(name = "idx_agent_token", columnList = "token"))
-@Builder
+@Builder(toBuilder = true)
 @NoArgsConstructor
 @AllArgsConstructor
 @Getter
@@ -77,4 +85,24 @@ public class Agent {
 
     @Column
     private String url;
+
+    /**
+     * Id of the server node which holds the control channel of the agent, {@code null} if the agent has no open channel
+     */
+    @JsonProperty
+    @Column
+    private String channelNodeId;
+
+    /**
+     * Key/value labels used to select the agent, see {@link in.codebuckets.acmemanager.server.services.LabelSelector}
+     */
+    @JsonProperty
+    @ElementCollection(fetch = FetchType.EAGER)
+    @CollectionTable(name = "agent_labels", joinColumns = @JoinColumn(name = "agent_id"),
+            indexes = @Index(name = "idx_agent_labels_key_value", columnList = "label_key, label_value"))
+    @MapKeyColumn(name = "label_key", length = 63)
+    @Column(name = "label_value", length = 63)
+    @BatchSize(size = 500)
+    @Builder.Default
+    private Map<String, String> labels = new HashMap<>();
 }
@@ -0,0 +1,107 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.server.jpa;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.hypersistence.utils.hibernate.id.Tsid;
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.JoinColumn;
+import jakarta.persistence.ManyToOne;
+import jakarta.persistence.Table;
+import jakarta.persistence.UniqueConstraint;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import org.hibernate.annotations.CreationTimestamp;
+import org.hibernate.annotations.UpdateTimestamp;
+
+import java.time.Instant;
+
+import static com.fasterxml.jackson.annotation.JsonFormat.Shape.STRING;
+import static jakarta.persistence.FetchType.LAZY;
+
+/**
+ * Certificate which should be deployed on an {@link Agent}, the desired state of the agent
+ */
+@Entity
+@Table(name = "agent_certificates", uniqueConstraints = @UniqueConstraint(name = "uk_agent_certificates_agent_domain",
+        columnNames = {"agent_id", "domain"}))
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Setter
+@Accessors(fluent = true)
+public class AgentCertificate {
+
+    @Tsid
+    @Id
+    @JsonProperty
+    private Long id;
+
+    @JsonIgnore
+    @ManyToOne(fetch = LAZY, optional = false)
+    @JoinColumn(name = "agent_id", nullable = false, updatable = false)
+    private Agent agent;
+
+    @Column(length = 512, nullable = false, updatable = false)
+    @JsonProperty
+    private String domain;
+
+    @Column(length = 64, nullable = false)
+    @JsonProperty
+    private String fingerprint;
+
+    @JsonIgnore
+    @Column(columnDefinition = "TEXT", nullable = false)
+    private String certificate;
+
+    /**
+     * Private key encrypted by the {@link in.codebuckets.acmemanager.server.services.PrivateKeyCipher}
+     */
+    @JsonIgnore
+    @Column(columnDefinition = "TEXT", nullable = false)
+    private String privateKey;
+
+    /**
+     * Start of the validity of the certificate, {@code null} if the certificate could not be parsed
+     */
+    @JsonFormat(shape = STRING, timezone = "UTC")
+    @Column
+    @JsonProperty
+    private Instant notBefore;
+
+    @JsonFormat(shape = STRING, timezone = "UTC")
+    @Column(updatable = false)
+    @JsonProperty
+    @CreationTimestamp
+    private Instant createdAt;
+
+    @JsonFormat(shape = STRING, timezone = "UTC")
+    @Column
+    @JsonProperty
+    @UpdateTimestamp
+    private Instant updatedAt;
+}
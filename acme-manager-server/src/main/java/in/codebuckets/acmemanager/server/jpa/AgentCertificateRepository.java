@@ -0,0 +1,61 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.server.jpa;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+public interface AgentCertificateRepository extends JpaRepository<AgentCertificate, Long> {
+
+    List<AgentCertificate> findAllByAgent(Agent agent);
+
+    Optional<AgentCertificate> findByAgentAndDomain(Agent agent, String domain);
+
+    List<AgentCertificate> findAllByPrivateKeyNotLike(String pattern);
+
+    /**
+     * Replace the private key, unless it was changed since it was read
+     *
+     * @return Number of replaced private keys
+     */
+    @Transactional
+    @Modifying
+    @Query("update AgentCertificate c set c.privateKey = :privateKey where c.id = :id and c.privateKey = :previousPrivateKey")
+    int replacePrivateKey(@Param("id") long id, @Param("previousPrivateKey") String previousPrivateKey,
+                          @Param("privateKey") String privateKey);
+
+    /**
+     * Replace the certificate, unless the stored certificate became valid after the new one
+     *
+     * @return Number of replaced certificates
+     */
+    @Transactional
+    @Modifying
+    @Query("update AgentCertificate c set c.certificate = :certificate, c.privateKey = :privateKey, c.fingerprint = :fingerprint, " +
+            "c.notBefore = :notBefore, c.updatedAt = :updatedAt where c.id = :id and (c.notBefore is null or c.notBefore <= :notBefore)")
+    int replaceUnlessNewer(@Param("id") long id, @Param("certificate") String certificate, @Param("privateKey") String privateKey,
+                           @Param("fingerprint") String fingerprint, @Param("notBefore") Instant notBefore,
+                           @Param("updatedAt") Instant updatedAt);
+}
@@ -25,4 +25,6 @@ import java.util.Optional;
 public interface AgentRepository extends JpaRepository<Agent, Long> {
 
     Optional<Agent> findAgentByToken(String token);
+
+    List<Agent> findAllByIsConnectedTrue();
 }
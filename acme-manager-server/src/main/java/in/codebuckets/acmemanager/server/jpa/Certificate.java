@@ -18,6 +18,7 @@
 package in.codebuckets.acmemanager.server.jpa;
 
 import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import in.codebuckets.acmemanager.server.acme.AcmeProvider;
 import io.hypersistence.utils.hibernate.id.Tsid;
@@ -28,6 +29,7 @@ import jakarta.persistence.Entity;
 import jakarta.persistence.EnumType;
 import jakarta.persistence.Enumerated;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
 import jakarta.persistence.JoinColumn;
 import jakarta.persistence.ManyToOne;
 import jakarta.persistence.OneToMany;
@@ -48,7 +50,11 @@ import static com.fasterxml.jackson.annotation.JsonFormat.Shape.STRING;
 import static jakarta.persistence.FetchType.EAGER;
 
 @Entity
-@Table(name = "certificates")
+@Table(name = "certificates", indexes = {
+        // Sortable columns with the id tiebreaker, for the seek predicate of cursor pagination
+        @Index(name = "idx_certificates_created_at_id", columnList = "created_at, id"),
+        @Index(name = "idx_certificates_updated_at_id", columnList = "updated_at, id")
+})
 @Builder
 @NoArgsConstructor
 @AllArgsConstructor
@@ -109,6 +115,18 @@ public class Certificate {
     @UpdateTimestamp
     private Instant updatedAt;
 
+    /**
+     * Lease of the execution of the order, see {@link in.codebuckets.acmemanager.server.acme.OrderExecutionService}.
+     * It is only written with SQL, so saving the certificate during the execution never overwrites it.
+     */
+    @JsonIgnore
+    @Column(insertable = false, updatable = false)
+    private String executionLeaseOwner;
+
+    @JsonIgnore
+    @Column(insertable = false, updatable = false)
+    private Instant executionLeaseExpiresAt;
+
     public void certificateStatus(CertificateStatus certificateStatus) {
         this.certificateStatus = certificateStatus;
     }
@@ -24,4 +24,6 @@ import java.util.Optional;
 public interface CertificateRepository extends JpaRepository<Certificate, Long> {
 
     Optional<Certificate> findByOrderId(String orderId);
+
+    boolean existsByOrderId(String orderId);
 }
@@ -0,0 +1,80 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.jpa;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.experimental.Accessors;
+
+import java.time.Instant;
+
+import static com.fasterxml.jackson.annotation.JsonFormat.Shape.STRING;
+
+/**
+ * Server node which is a member of the cluster while its lease has not expired.
+ * The lease is renewed by the heartbeat of the node.
+ */
+@Entity
+@Table(name = "cluster_nodes")
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Accessors(fluent = true)
+public class ClusterNode {
+
+    @Id
+    @JsonProperty
+    @Column(length = 64)
+    private String id;
+
+    @JsonProperty
+    @Column(length = 255)
+    private String hostname;
+
+    /**
+     * URL at which the other nodes reach the node
+     */
+    @JsonProperty
+    @Column(length = 1024)
+    private String url;
+
+    @JsonFormat(shape = STRING, timezone = "UTC")
+    @JsonProperty
+    @Column(nullable = false, updatable = false)
+    private Instant startedAt;
+
+    @JsonFormat(shape = STRING, timezone = "UTC")
+    @JsonProperty
+    @Column(nullable = false)
+    private Instant heartbeatAt;
+
+    @JsonFormat(shape = STRING, timezone = "UTC")
+    @JsonProperty
+    @Column(nullable = false)
+    private Instant leaseExpiresAt;
+}
@@ -0,0 +1,83 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.jpa;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.hypersistence.utils.hibernate.id.Tsid;
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import org.hibernate.annotations.CreationTimestamp;
+import org.hibernate.annotations.UpdateTimestamp;
+
+import java.time.Instant;
+
+import static com.fasterxml.jackson.annotation.JsonFormat.Shape.STRING;
+
+/**
+ * Routes the certificates of the domains matching {@link #pattern} to the agents matching {@link #selector}.
+ * </br>
+ *
+ * The pattern is either an exact domain ({@code www.example.com}), a wildcard which matches a single
+ * label ({@code *.example.com}), or a suffix which matches the domain and every domain below it
+ * ({@code .example.com}). The selector is a {@link in.codebuckets.acmemanager.server.services.LabelSelector}.
+ */
+@Entity
+@Table(name = "domain_routes")
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Setter
+@Accessors(fluent = true)
+public class DomainRoute {
+
+    @Tsid
+    @Id
+    @JsonProperty
+    private Long id;
+
+    @JsonProperty
+    @Column(length = 512, nullable = false, unique = true)
+    private String pattern;
+
+    @JsonProperty
+    @Column(length = 1024, nullable = false)
+    private String selector;
+
+    @JsonFormat(shape = STRING, timezone = "UTC")
+    @Column(updatable = false)
+    @JsonProperty
+    @CreationTimestamp
+    private Instant createdAt;
+
+    @JsonFormat(shape = STRING, timezone = "UTC")
+    @Column
+    @JsonProperty
+    @UpdateTimestamp
+    private Instant updatedAt;
+}
@@ -0,0 +1,127 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.jpa;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.hypersistence.utils.hibernate.id.Tsid;
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.experimental.Accessors;
+import org.hibernate.annotations.CreationTimestamp;
+import org.hibernate.annotations.SourceType;
+import org.hibernate.annotations.UpdateTimestamp;
+
+import java.time.Instant;
+
+import static com.fasterxml.jackson.annotation.JsonFormat.Shape.STRING;
+
+/**
+ * Unit of work which is claimed and executed by exactly one server node at a time.
+ * </br>
+ *
+ * The job is leased to the node which claimed it. If the node does not complete the job or renew the lease
+ * before it expires, the job is claimed again by another node. {@code attempts} is incremented by every claim
+ * and is used together with {@code leasedBy} to reject the completion of a lease which has been lost.
+ */
+@Entity
+@Table(name = "jobs", indexes = @Index(name = "idx_jobs_claim", columnList = "status, priority, run_at"))
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Accessors(fluent = true)
+public class Job {
+
+    @Tsid
+    @Id
+    @JsonProperty
+    private Long id;
+
+    @JsonProperty
+    @Column(length = 64, nullable = false, updatable = false)
+    private String type;
+
+    @JsonProperty
+    @Column(columnDefinition = "TEXT", updatable = false)
+    private String payload;
+
+    @JsonProperty
+    @Enumerated(EnumType.STRING)
+    @Column(columnDefinition = "VARCHAR(30)", nullable = false)
+    private JobStatus status;
+
+    /**
+     * Jobs with a higher priority are claimed first
+     */
+    @JsonProperty
+    @Column
+    private int priority;
+
+    @JsonProperty
+    @Column
+    private int attempts;
+
+    @JsonProperty
+    @Column
+    private int maxAttempts;
+
+    /**
+     * Time from which the job can be claimed. It is set from the database clock on insert and moved by retries.
+     */
+    @JsonFormat(shape = STRING, timezone = "UTC")
+    @JsonProperty
+    @Column(nullable = false)
+    @CreationTimestamp(source = SourceType.DB)
+    private Instant runAt;
+
+    @JsonProperty
+    @Column(length = 64)
+    private String leasedBy;
+
+    @JsonFormat(shape = STRING, timezone = "UTC")
+    @JsonProperty
+    @Column
+    private Instant leaseExpiresAt;
+
+    @JsonProperty
+    @Column(length = 1024)
+    private String lastError;
+
+    @JsonFormat(shape = STRING, timezone = "UTC")
+    @Column(updatable = false)
+    @JsonProperty
+    @CreationTimestamp(source = SourceType.DB)
+    private Instant createdAt;
+
+    @JsonFormat(shape = STRING, timezone = "UTC")
+    @Column
+    @JsonProperty
+    @UpdateTimestamp(source = SourceType.DB)
+    private Instant updatedAt;
+}
@@ -0,0 +1,45 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.jpa;
+
+/**
+ * The status of a {@link Job}
+ */
+public enum JobStatus {
+
+    /**
+     * Job is waiting to be claimed, it can be claimed once its run time has passed
+     */
+    PENDING,
+
+    /**
+     * Job has been claimed by a node and is leased to it until the lease expires
+     */
+    RUNNING,
+
+    /**
+     * Job has completed
+     */
+    SUCCEEDED,
+
+    /**
+     * Job has failed on every attempt, or can not be handled, and is no longer retried
+     */
+    DEAD
+}
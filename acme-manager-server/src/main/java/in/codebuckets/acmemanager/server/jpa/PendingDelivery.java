@@ -0,0 +1,97 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.jpa;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.hypersistence.utils.hibernate.id.Tsid;
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import jakarta.persistence.UniqueConstraint;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import org.hibernate.annotations.CreationTimestamp;
+import org.hibernate.annotations.UpdateTimestamp;
+
+import java.time.Instant;
+
+import static com.fasterxml.jackson.annotation.JsonFormat.Shape.STRING;
+
+/**
+ * Certificate of the desired state of an agent which the agent has not confirmed yet.
+ * </br>
+ *
+ * There is at most one pending delivery per agent and domain. A newer certificate for the domain replaces the
+ * fingerprint of the pending delivery, so superseded versions are never delivered. The certificate itself is
+ * read from the {@link AgentCertificate} when the agent is synchronized.
+ */
+@Entity
+@Table(name = "pending_deliveries", uniqueConstraints = @UniqueConstraint(name = "uk_pending_deliveries_agent_domain",
+        columnNames = {"agent_id", "domain"}))
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Setter
+@Accessors(fluent = true)
+public class PendingDelivery {
+
+    @Tsid
+    @Id
+    @JsonProperty
+    private Long id;
+
+    @JsonProperty
+    @Column(name = "agent_id", nullable = false, updatable = false)
+    private Long agentId;
+
+    @JsonProperty
+    @Column(length = 512, nullable = false, updatable = false)
+    private String domain;
+
+    @JsonProperty
+    @Column(length = 64, nullable = false)
+    private String fingerprint;
+
+    @JsonProperty
+    @Column
+    private int attempts;
+
+    @JsonProperty
+    @Column(length = 1024)
+    private String lastError;
+
+    @JsonFormat(shape = STRING, timezone = "UTC")
+    @Column(updatable = false)
+    @JsonProperty
+    @CreationTimestamp
+    private Instant createdAt;
+
+    @JsonFormat(shape = STRING, timezone = "UTC")
+    @Column
+    @JsonProperty
+    @UpdateTimestamp
+    private Instant updatedAt;
+}
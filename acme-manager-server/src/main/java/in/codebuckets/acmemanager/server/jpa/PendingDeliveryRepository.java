@@ -0,0 +1,59 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.jpa;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.List;
+import java.util.Optional;
+
+public interface PendingDeliveryRepository extends JpaRepository<PendingDelivery, Long> {
+
+    List<PendingDelivery> findAllByAgentId(long agentId);
+
+    Optional<PendingDelivery> findByAgentIdAndDomain(long agentId, String domain);
+
+    /**
+     * Ids of the agents which have pending deliveries
+     */
+    @Query("select distinct p.agentId from PendingDelivery p")
+    List<Long> findAgentIds();
+
+    /**
+     * Delete the pending delivery, unless it has been replaced by a newer certificate in the meantime
+     *
+     * @return Number of deleted pending deliveries
+     */
+    @Transactional
+    @Modifying
+    @Query("delete from PendingDelivery p where p.id = :id and p.fingerprint = :fingerprint")
+    int deleteDelivered(@Param("id") long id, @Param("fingerprint") String fingerprint);
+
+    /**
+     * Record a failed delivery attempt for every pending delivery of the agent
+     */
+    @Transactional
+    @Modifying
+    @Query("update PendingDelivery p set p.attempts = p.attempts + 1, p.lastError = :error where p.agentId = :agentId")
+    int recordFailure(@Param("agentId") long agentId, @Param("error") String error);
+}
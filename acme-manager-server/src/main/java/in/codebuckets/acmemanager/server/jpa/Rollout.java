@@ -0,0 +1,120 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.jpa;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import in.codebuckets.acmemanager.server.services.rollout.RolloutStatus;
+import io.hypersistence.utils.hibernate.id.Tsid;
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.experimental.Accessors;
+import org.hibernate.annotations.CreationTimestamp;
+
+import java.time.Instant;
+
+import static com.fasterxml.jackson.annotation.JsonFormat.Shape.STRING;
+
+/**
+ * Rollout of a certificate to a set of agents, see {@link in.codebuckets.acmemanager.server.services.rollout.RolloutService}.
+ * The waves are deployed by the node which holds the lease of the rollout.
+ */
+@Entity
+@Table(name = "rollouts", indexes = @Index(name = "idx_rollouts_status", columnList = "status"))
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Accessors(fluent = true)
+public class Rollout {
+
+    @Tsid
+    @Id
+    @JsonProperty
+    private Long id;
+
+    @JsonProperty
+    @Column(length = 512, nullable = false, updatable = false)
+    private String domain;
+
+    @JsonIgnore
+    @Column(columnDefinition = "TEXT", nullable = false, updatable = false)
+    private String certificate;
+
+    /**
+     * Private key encrypted by the {@link in.codebuckets.acmemanager.server.services.PrivateKeyCipher},
+     * {@code null} once the rollout has finished
+     */
+    @JsonIgnore
+    @Column(columnDefinition = "TEXT")
+    private String privateKey;
+
+    @JsonProperty
+    @Enumerated(EnumType.STRING)
+    @Column(columnDefinition = "VARCHAR(30)", nullable = false)
+    private RolloutStatus status;
+
+    /**
+     * Number of waves
+     */
+    @JsonProperty
+    @Column
+    private int waves;
+
+    /**
+     * Index of the wave which is deployed next
+     */
+    @JsonProperty
+    @Column
+    private int nextWave;
+
+    @JsonProperty
+    @Column(length = 1024)
+    private String pauseReason;
+
+    @JsonProperty
+    @Column(length = 64)
+    private String leasedBy;
+
+    @JsonFormat(shape = STRING, timezone = "UTC")
+    @JsonProperty
+    @Column
+    private Instant leaseExpiresAt;
+
+    @JsonFormat(shape = STRING, timezone = "UTC")
+    @Column(updatable = false)
+    @JsonProperty
+    @CreationTimestamp
+    private Instant createdAt;
+
+    @JsonFormat(shape = STRING, timezone = "UTC")
+    @JsonProperty
+    @Column
+    private Instant completedAt;
+}
@@ -0,0 +1,77 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.jpa;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import in.codebuckets.acmemanager.server.services.rollout.AgentDeploymentStatus;
+import io.hypersistence.utils.hibernate.id.Tsid;
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+import jakarta.persistence.UniqueConstraint;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.experimental.Accessors;
+
+/**
+ * Deployment of a {@link Rollout} to a single agent
+ */
+@Entity
+@Table(name = "rollout_deployments",
+        uniqueConstraints = @UniqueConstraint(name = "uk_rollout_deployments_rollout_agent", columnNames = {"rollout_id", "agent_id"}),
+        indexes = @Index(name = "idx_rollout_deployments_wave", columnList = "rollout_id, wave"))
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Accessors(fluent = true)
+public class RolloutDeployment {
+
+    @Tsid
+    @Id
+    @JsonProperty
+    private Long id;
+
+    @JsonProperty
+    @Column(name = "rollout_id", nullable = false, updatable = false)
+    private Long rolloutId;
+
+    @JsonProperty
+    @Column(name = "agent_id", nullable = false, updatable = false)
+    private Long agentId;
+
+    @JsonProperty
+    @Column(nullable = false, updatable = false)
+    private int wave;
+
+    @JsonProperty
+    @Enumerated(EnumType.STRING)
+    @Column(columnDefinition = "VARCHAR(30)", nullable = false)
+    private AgentDeploymentStatus status;
+
+    @JsonProperty
+    @Column(length = 1024)
+    private String error;
+}
@@ -0,0 +1,452 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.server.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import in.codebuckets.acmemanager.common.channel.ChannelMessage;
+import in.codebuckets.acmemanager.server.ServiceException;
+import in.codebuckets.acmemanager.server.dto.AgentPushStats;
+import in.codebuckets.acmemanager.server.dto.ChannelCommand;
+import in.codebuckets.acmemanager.server.dto.DesiredCertificate;
+import in.codebuckets.acmemanager.server.jpa.Agent;
+import in.codebuckets.acmemanager.server.jpa.AgentRepository;
+import in.codebuckets.acmemanager.server.services.channel.AgentChannel;
+import in.codebuckets.acmemanager.server.services.channel.AgentChannelRegistry;
+import in.codebuckets.acmemanager.server.services.cluster.ClusterMembership;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Client for the HTTP-01 challenge and certificate APIs of the agents.
+ * </br>
+ *
+ * Challenges are pushed to all connected agents concurrently over the shared {@link HttpClient}, which
+ * multiplexes the requests to an agent over a single HTTP/2 connection. The latency of every request
+ * is recorded per agent.
+ * </p>
+ * Agents which have opened a control channel to the server are sent commands over the channel instead,
+ * so they do not need to be reachable by the server. If the channel is open on another server node, the command
+ * is forwarded to that node, which sends it over the channel.
+ */
+@Service
+public class AgentClient {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    public static final String AUTH_HEADER = "X-Api-Key";
+    private static final String CHALLENGE_PATH = "/.well-known/acme-challenge/";
+    private static final String CERTIFICATE_PATH = "/v1/agent/certificate/";
+    public static final String FORWARD_PATH = "/v1/cluster/channel/";
+
+    /**
+     * Time the node forwarding a command waits for the other node in addition to the time that node waits for the agent
+     */
+    private static final Duration FORWARD_TIMEOUT_MARGIN = Duration.ofSeconds(5);
+
+    private final AgentRepository agentRepository;
+    private final HttpClient httpClient;
+    private final ObjectMapper objectMapper;
+    private final AgentChannelRegistry agentChannelRegistry;
+    private final ClusterMembership clusterMembership;
+    private final JwtService jwtService;
+    private final Map<Long, PushLatency> pushLatencies = new ConcurrentHashMap<>();
+
+    @Value("${agent.challenge.pushTimeout:10s}")
+    private Duration pushTimeout;
+
+    /**
+     * Timeout of a deployment, which writes and syncs every certificate on the agent and takes longer than a challenge push
+     */
+    @Value("${agent.deploy.timeout:1m}")
+    private Duration deployTimeout;
+
+    public AgentClient(AgentRepository agentRepository, HttpClient httpClient, ObjectMapper objectMapper,
+                       AgentChannelRegistry agentChannelRegistry, ClusterMembership clusterMembership, JwtService jwtService) {
+        this.agentRepository = agentRepository;
+        this.httpClient = httpClient;
+        this.objectMapper = objectMapper;
+        this.agentChannelRegistry = agentChannelRegistry;
+        this.clusterMembership = clusterMembership;
+        this.jwtService = jwtService;
+    }
+
+    /**
+     * Push the challenge to all connected agents
+     *
+     * @param challengeToken         Challenge token
+     * @param challengeAuthorization Challenge authorization
+     * @param expiresAt              Expiry of the authorization, {@code null} if not known
+     * @return {@link CompletableFuture} which completes when all agents have acknowledged the challenge,
+     * or completes exceptionally if any agent has failed to or no agent is connected
+     */
+    public CompletableFuture<Void> pushChallenge(String challengeToken, String challengeAuthorization, Instant expiresAt) {
+        Map<String, Object> body = new HashMap<>();
+        body.put("challengeToken", challengeToken);
+        body.put("challengeAuthorization", challengeAuthorization);
+        body.put("expiresAt", expiresAt);
+
+        String json;
+        try {
+            json = objectMapper.writeValueAsString(body);
+        } catch (JsonProcessingException e) {
+            throw new ServiceException("Failed to serialize challenge: " + e.getMessage());
+        }
+
+        List<Agent> agents = agentRepository.findAllByIsConnectedTrue();
+        if (agents.isEmpty()) {
+            // Nothing would serve the challenge, so the validation is bound to fail
+            return CompletableFuture.failedFuture(new ServiceException("No connected agents to serve challenge: " + challengeToken));
+        }
+
+        JsonNode payload = objectMapper.valueToTree(body);
+        CompletableFuture<?>[] futures = agents.stream()
+                .map(agent -> dispatch(agent, ChannelMessage.ADD_CHALLENGE, payload, () -> exchange(agent, HttpRequest.newBuilder()
+                        .uri(URI.create(agent.url() + CHALLENGE_PATH))
+                        .header("Content-Type", "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofString(json)), pushTimeout)))
+                .toArray(CompletableFuture[]::new);
+
+        return CompletableFuture.allOf(futures);
+    }
+
+    /**
+     * Remove the challenge from all connected agents
+     *
+     * @param challengeToken Challenge token
+     * @return {@link CompletableFuture} which completes when all agents have removed the challenge
+     */
+    public CompletableFuture<Void> removeChallenge(String challengeToken) {
+        String query = "?challengeToken=" + URLEncoder.encode(challengeToken, UTF_8);
+        JsonNode payload = objectMapper.createObjectNode().put("challengeToken", challengeToken);
+
+        CompletableFuture<?>[] futures = agentRepository.findAllByIsConnectedTrue().stream()
+                .map(agent -> dispatch(agent, ChannelMessage.REMOVE_CHALLENGE, payload, () -> exchange(agent, HttpRequest.newBuilder()
+                        .uri(URI.create(agent.url() + CHALLENGE_PATH + query))
+                        .DELETE(), pushTimeout)))
+                .toArray(CompletableFuture[]::new);
+
+        return CompletableFuture.allOf(futures);
+    }
+
+    /**
+     * Get the fingerprints of the certificates deployed on the agent
+     *
+     * @param agent {@link Agent} to query
+     * @return {@link CompletableFuture} of the map of domain to fingerprint
+     */
+    public CompletableFuture<Map<String, String>> inventory(Agent agent) {
+        Optional<CompletableFuture<JsonNode>> channelCommand = channelCommand(agent, ChannelMessage.INVENTORY, null, pushTimeout);
+        if (channelCommand.isPresent()) {
+            return channelCommand.get()
+                    .thenApply(result -> objectMapper.convertValue(result, new TypeReference<Map<String, String>>() {
+                    }));
+        }
+
+        return exchange(agent, HttpRequest.newBuilder()
+                .uri(URI.create(agent.url() + CERTIFICATE_PATH + "inventory"))
+                .GET(), pushTimeout)
+                .thenApply(body -> {
+                    try {
+                        return objectMapper.readValue(body, new TypeReference<Map<String, String>>() {
+                        });
+                    } catch (JsonProcessingException e) {
+                        throw new ServiceException("Invalid inventory from agent " + agent.name() + ": " + e.getMessage());
+                    }
+                });
+    }
+
+    /**
+     * Deploy the certificates on the agent with a single streaming bulk request
+     *
+     * @param agent        {@link Agent} to deploy to
+     * @param certificates Certificates to deploy
+     * @return {@link CompletableFuture} of the domains which the agent failed to deploy
+     */
+    public CompletableFuture<List<String>> deploy(Agent agent, List<DesiredCertificate> certificates) {
+        Optional<CompletableFuture<JsonNode>> channelCommand = channelCommand(agent, ChannelMessage.DEPLOY_CERTIFICATE,
+                objectMapper.valueToTree(certificates), deployTimeout);
+        if (channelCommand.isPresent()) {
+            return channelCommand.get().thenApply(AgentClient::failedDomains);
+        }
+
+        // The agent deploys the entries as the lines arrive, so they are serialized one line at a time as well
+        List<byte[]> lines = new ArrayList<>(certificates.size());
+        for (DesiredCertificate certificate : certificates) {
+            try {
+                lines.add((objectMapper.writeValueAsString(certificate) + "\n").getBytes(UTF_8));
+            } catch (JsonProcessingException e) {
+                throw new ServiceException("Failed to serialize certificate: " + e.getMessage());
+            }
+        }
+
+        return exchange(agent, HttpRequest.newBuilder()
+                .uri(URI.create(agent.url() + CERTIFICATE_PATH + "bulk"))
+                .header("Content-Type", "application/x-ndjson")
+                .header("Accept", "application/x-ndjson")
+                .POST(HttpRequest.BodyPublishers.ofByteArrays(lines)), deployTimeout)
+                .thenApply(body -> {
+                    List<JsonNode> results = new ArrayList<>();
+                    for (String line : body.split("\n")) {
+                        if (line.isBlank()) {
+                            continue;
+                        }
+
+                        try {
+                            results.add(objectMapper.readTree(line));
+                        } catch (JsonProcessingException e) {
+                            throw new ServiceException("Invalid deployment result from agent " + agent.name() + ": " + e.getMessage());
+                        }
+                    }
+                    return failedDomains(objectMapper.valueToTree(results));
+                });
+    }
+
+    /**
+     * Get the push latency of all agents which have been pushed to
+     */
+    public List<AgentPushStats> pushStats() {
+        return pushLatencies.entrySet().stream()
+                .map(entry -> entry.getValue().toStats(entry.getKey()))
+                .toList();
+    }
+
+    /**
+     * Send a command forwarded by another node over the control channel which the agent has opened to this node
+     *
+     * @param agentId        Agent id
+     * @param channelCommand {@link ChannelCommand} to send
+     * @return {@link CompletableFuture} of the result of the command, or empty if the agent has no channel open to this node
+     */
+    public Optional<CompletableFuture<JsonNode>> forwarded(long agentId, ChannelCommand channelCommand) {
+        return agentChannelRegistry.channel(agentId)
+                .map(agentChannel -> agentChannel.send(channelCommand.command(), channelCommand.payload(),
+                                Duration.ofMillis(channelCommand.timeoutMillis()))
+                        .thenApply(ChannelMessage::payload));
+    }
+
+    /**
+     * Send the command over the control channel of the agent if it is open, otherwise send the HTTP request
+     */
+    private CompletableFuture<Void> dispatch(Agent agent, String command, JsonNode payload, Supplier<CompletableFuture<String>> request) {
+        return channelCommand(agent, command, payload, pushTimeout)
+                .orElseGet(() -> request.get().thenApply(body -> null))
+                .thenApply(result -> null);
+    }
+
+    /**
+     * Send the command over the control channel of the agent if it is open to this node, or forward it to the
+     * live node which the agent has opened its channel to
+     *
+     * @param timeout Time to wait for the agent to respond
+     * @return {@link CompletableFuture} of the result of the command, or empty if the agent has no open channel
+     */
+    private Optional<CompletableFuture<JsonNode>> channelCommand(Agent agent, String command, JsonNode payload, Duration timeout) {
+        Optional<AgentChannel> agentChannel = agentChannelRegistry.channel(agent.id());
+        if (agentChannel.isPresent()) {
+            return Optional.of(command(agent, agentChannel.get(), command, payload, timeout));
+        }
+
+        String channelNodeId = agent.channelNodeId();
+        if (channelNodeId == null || channelNodeId.equals(clusterMembership.nodeId())) {
+            return Optional.empty();
+        }
+        return clusterMembership.nodeUrl(channelNodeId).map(nodeUrl -> forward(agent, nodeUrl, command, payload, timeout));
+    }
+
+    /**
+     * Send the command over the control channel of the agent and record its latency
+     *
+     * @return {@link CompletableFuture} of the result of the command
+     */
+    private CompletableFuture<JsonNode> command(Agent agent, AgentChannel agentChannel, String command, JsonNode payload, Duration timeout) {
+        PushLatency pushLatency = pushLatencies.computeIfAbsent(agent.id(), id -> new PushLatency());
+        long startNanos = System.nanoTime();
+
+        return agentChannel.send(command, payload, timeout)
+                .handle((message, throwable) -> {
+                    long latencyMillis = Duration.ofNanos(System.nanoTime() - startNanos).toMillis();
+                    pushLatency.record(latencyMillis, throwable == null);
+
+                    if (throwable != null) {
+                        logger.error("Failed to send {} to agent: {}", command, agent.name(), throwable);
+                        throw new ServiceException("Failed to send " + command + " to agent " + agent.name() + ": " + throwable.getMessage());
+                    }
+
+                    logger.debug("Agent {} acknowledged {} in {} ms", agent.name(), command, latencyMillis);
+                    return message.payload();
+                });
+    }
+
+    /**
+     * Forward the command to the node which holds the control channel of the agent and record its latency
+     *
+     * @return {@link CompletableFuture} of the result of the command
+     */
+    private CompletableFuture<JsonNode> forward(Agent agent, String nodeUrl, String command, JsonNode payload, Duration timeout) {
+        String json;
+        try {
+            json = objectMapper.writeValueAsString(new ChannelCommand(command, payload, timeout.toMillis()));
+        } catch (JsonProcessingException e) {
+            throw new ServiceException("Failed to serialize " + command + ": " + e.getMessage());
+        }
+
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(nodeUrl + FORWARD_PATH + agent.id()))
+                .header("Content-Type", "application/json")
+                .header("Authorization", "Bearer " + jwtService.generateNodeJwt(clusterMembership.nodeId()))
+                .timeout(timeout.plus(FORWARD_TIMEOUT_MARGIN))
+                .POST(HttpRequest.BodyPublishers.ofString(json))
+                .build();
+
+        PushLatency pushLatency = pushLatencies.computeIfAbsent(agent.id(), id -> new PushLatency());
+        long startNanos = System.nanoTime();
+
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                .handle((response, throwable) -> {
+                    long latencyMillis = Duration.ofNanos(System.nanoTime() - startNanos).toMillis();
+                    boolean isSuccess = throwable == null && response.statusCode() / 100 == 2;
+                    pushLatency.record(latencyMillis, isSuccess);
+
+                    if (throwable != null) {
+                        logger.error("Failed to forward {} for agent {} to node: {}", command, agent.name(), agent.channelNodeId(), throwable);
+                        throw new ServiceException("Failed to forward " + command + " to the node of agent " + agent.name() + ": " + throwable.getMessage());
+                    }
+
+                    if (!isSuccess) {
+                        logger.error("Node {} responded to {} for agent {} with status: {}", agent.channelNodeId(), command, agent.name(), response.statusCode());
+                        throw new ServiceException("Failed to send " + command + " to agent " + agent.name() + " on node "
+                                + agent.channelNodeId() + ": " + response.body());
+                    }
+
+                    logger.debug("Agent {} acknowledged {} forwarded to node {} in {} ms", agent.name(), command, agent.channelNodeId(), latencyMillis);
+                    try {
+                        return objectMapper.readTree(response.body());
+                    } catch (JsonProcessingException e) {
+                        throw new ServiceException("Invalid result of " + command + " from node " + agent.channelNodeId() + ": " + e.getMessage());
+                    }
+                });
+    }
+
+    /**
+     * Get the domains of the failed deployment results
+     */
+    private static List<String> failedDomains(JsonNode results) {
+        List<String> failed = new ArrayList<>();
+        if (results == null) {
+            return failed;
+        }
+
+        for (JsonNode result : results) {
+            if (!result.path("success").asBoolean()) {
+                failed.add(result.path("domain").asText());
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Send the request to the agent and record its latency
+     *
+     * @param timeout Time to wait for the response
+     * @return {@link CompletableFuture} of the response body, which completes exceptionally
+     * if the agent could not be reached or did not respond with 2xx
+     */
+    private CompletableFuture<String> exchange(Agent agent, HttpRequest.Builder requestBuilder, Duration timeout) {
+        HttpRequest request = requestBuilder
+                .header(AUTH_HEADER, agent.token())
+                .timeout(timeout)
+                .build();
+
+        PushLatency pushLatency = pushLatencies.computeIfAbsent(agent.id(), id -> new PushLatency());
+        long startNanos = System.nanoTime();
+
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                .handle((response, throwable) -> {
+                    long latencyMillis = Duration.ofNanos(System.nanoTime() - startNanos).toMillis();
+                    boolean isSuccess = throwable == null && response.statusCode() / 100 == 2;
+                    pushLatency.record(latencyMillis, isSuccess);
+
+                    if (throwable != null) {
+                        logger.error("Failed to send {} {} to agent: {}", request.method(), request.uri().getPath(), agent.name(), throwable);
+                        throw new ServiceException("Failed to reach agent " + agent.name() + ": " + throwable.getMessage());
+                    }
+
+                    if (!isSuccess) {
+                        logger.error("Agent {} responded to {} {} with status: {}", agent.name(), request.method(), request.uri().getPath(), response.statusCode());
+                        throw new ServiceException("Agent " + agent.name() + " responded with status: " + response.statusCode());
+                    }
+
+                    logger.debug("Agent {} acknowledged {} {} in {} ms", agent.name(), request.method(), request.uri().getPath(), latencyMillis);
+                    return response.body();
+                });
+    }
+
+    /**
+     * Push latency counters of a single agent
+     */
+    private static final class PushLatency {
+
+        private final LongAdder pushes = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder totalLatencyMillis = new LongAdder();
+        private final AtomicLong lastLatencyMillis = new AtomicLong();
+        private final AtomicLong maxLatencyMillis = new AtomicLong();
+
+        void record(long latencyMillis, boolean isSuccess) {
+            pushes.increment();
+            if (!isSuccess) {
+                failures.increment();
+            }
+
+            totalLatencyMillis.add(latencyMillis);
+            lastLatencyMillis.set(latencyMillis);
+            maxLatencyMillis.accumulateAndGet(latencyMillis, Math::max);
+        }
+
+        AgentPushStats toStats(long agentId) {
+            long count = pushes.sum();
+            return new AgentPushStats(agentId, count, failures.sum(), lastLatencyMillis.get(),
+                    count == 0 ? 0 : totalLatencyMillis.sum() / count, maxLatencyMillis.get());
+        }
+    }
+}
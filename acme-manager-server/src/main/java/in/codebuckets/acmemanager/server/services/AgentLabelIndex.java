@@ -0,0 +1,174 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.services;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Inverted index from label key and value to the ids of the agents which carry the label.
+ * </br>
+ *
+ * A selection starts from the smallest set of agents which can match one of the positive requirements
+ * ({@code =}, {@code in}, exists) and checks the remaining requirements with lookups into the index, so its
+ * cost depends on the number of candidate agents instead of the total number of agents.
+ */
+final class AgentLabelIndex {
+
+    private final Map<Long, Map<String, String>> labelsById = new ConcurrentHashMap<>();
+    private final Map<String, Set<Long>> idsByKey = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Set<Long>>> idsByLabel = new ConcurrentHashMap<>();
+
+    /**
+     * Index the labels of the agent, replacing its previous labels
+     */
+    void put(long agentId, Map<String, String> labels) {
+        remove(agentId);
+
+        Map<String, String> copy = Map.copyOf(labels);
+        for (Map.Entry<String, String> label : copy.entrySet()) {
+            addId(idsByKey, label.getKey(), agentId);
+            addId(idsByLabel.computeIfAbsent(label.getKey(), key -> new ConcurrentHashMap<>()), label.getValue(), agentId);
+        }
+        labelsById.put(agentId, copy);
+    }
+
+    /**
+     * Remove the agent from the index
+     */
+    void remove(long agentId) {
+        Map<String, String> labels = labelsById.remove(agentId);
+        if (labels == null) {
+            return;
+        }
+
+        for (Map.Entry<String, String> label : labels.entrySet()) {
+            removeId(idsByKey, label.getKey(), agentId);
+            Map<String, Set<Long>> idsByValue = idsByLabel.get(label.getKey());
+            if (idsByValue != null) {
+                removeId(idsByValue, label.getValue(), agentId);
+            }
+        }
+    }
+
+    /**
+     * Find the ids of the agents which match the selector
+     */
+    Set<Long> select(LabelSelector selector) {
+        List<Collection<Set<Long>>> requirementSets = new ArrayList<>(selector.requirements().size());
+        int smallest = -1;
+        int smallestCount = Integer.MAX_VALUE;
+
+        for (LabelSelector.Requirement requirement : selector.requirements()) {
+            Collection<Set<Long>> sets = sets(requirement);
+            requirementSets.add(sets);
+
+            if (requirement.isPositive()) {
+                int count = sets.stream().mapToInt(Set::size).sum();
+                if (count < smallestCount) {
+                    smallest = requirementSets.size() - 1;
+                    smallestCount = count;
+                }
+            }
+        }
+
+        Collection<Set<Long>> candidates = smallest == -1 ? List.of(labelsById.keySet()) : requirementSets.get(smallest);
+
+        Set<Long> agentIds = new HashSet<>();
+        for (Set<Long> ids : candidates) {
+            for (Long agentId : ids) {
+                if (matches(agentId, selector.requirements(), requirementSets, smallest)) {
+                    agentIds.add(agentId);
+                }
+            }
+        }
+        return agentIds;
+    }
+
+    int size() {
+        return labelsById.size();
+    }
+
+    /**
+     * Check the agent against every requirement using the sets of the index, skipping the requirement
+     * whose sets the agent was taken from
+     */
+    private static boolean matches(Long agentId, List<LabelSelector.Requirement> requirements,
+                                   List<Collection<Set<Long>>> requirementSets, int skip) {
+        for (int i = 0; i < requirements.size(); i++) {
+            if (i == skip) {
+                continue;
+            }
+
+            boolean contained = false;
+            for (Set<Long> ids : requirementSets.get(i)) {
+                if (ids.contains(agentId)) {
+                    contained = true;
+                    break;
+                }
+            }
+
+            if (contained != requirements.get(i).isPositive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets of the agents which carry a label named by the requirement, regardless of whether
+     * the requirement is positive or negative
+     */
+    private Collection<Set<Long>> sets(LabelSelector.Requirement requirement) {
+        if (requirement.operator() == LabelSelector.Operator.EXISTS || requirement.operator() == LabelSelector.Operator.DOES_NOT_EXIST) {
+            return List.of(idsByKey.getOrDefault(requirement.key(), Set.of()));
+        }
+
+        Map<String, Set<Long>> idsByValue = idsByLabel.getOrDefault(requirement.key(), Map.of());
+        List<Set<Long>> sets = new ArrayList<>(requirement.values().size());
+        for (String value : requirement.values()) {
+            sets.add(idsByValue.getOrDefault(value, Set.of()));
+        }
+        return sets;
+    }
+
+    /**
+     * Add the id under the key. Sets are added and removed while holding the lock of their key,
+     * so an id is never added to a set which was just removed.
+     */
+    private static <K> void addId(Map<K, Set<Long>> index, K key, long agentId) {
+        index.compute(key, (k, ids) -> {
+            Set<Long> agentIds = ids == null ? ConcurrentHashMap.newKeySet() : ids;
+            agentIds.add(agentId);
+            return agentIds;
+        });
+    }
+
+    private static <K> void removeId(Map<K, Set<Long>> index, K key, long agentId) {
+        index.computeIfPresent(key, (k, ids) -> {
+            ids.remove(agentId);
+            return ids.isEmpty() ? null : ids;
+        });
+    }
+}
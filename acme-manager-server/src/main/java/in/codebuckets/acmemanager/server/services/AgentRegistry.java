@@ -0,0 +1,490 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.services;
+
+import in.codebuckets.acmemanager.server.ServiceException;
+import in.codebuckets.acmemanager.server.jpa.Agent;
+import in.codebuckets.acmemanager.server.jpa.AgentRepository;
+import jakarta.annotation.PreDestroy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static in.codebuckets.acmemanager.server.utils.CryptoUtils.sha256;
+
+/**
+ * Write-through cache of the {@link Agent}s indexed by the hash of their token and by their id.
+ * </br>
+ *
+ * Every agent is loaded once the application is ready, so lookups are answered from memory. Writes go to the
+ * database first and then replace the cached agent. Other server nodes are told about the change with a Postgres
+ * {@code NOTIFY} on {@link #CHANNEL}, and reload the agent from the database when they receive it.
+ * </p>
+ * Notifications are lost while the listener connection is down, so the cache falls back to the database on a miss
+ * until the listener is connected again and every agent has been reloaded.
+ */
+@Service
+public class AgentRegistry {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    static final String CHANNEL = "agent_changed";
+
+    private static final int PAGE_SIZE = 500;
+
+    /**
+     * Postgres limits the payload of a notification to 8000 bytes
+     */
+    private static final int MAX_PAYLOAD_LENGTH = 7900;
+
+    /**
+     * Identifies the notifications sent by this node, which are already applied to the cache
+     */
+    private final String nodeId = UUID.randomUUID().toString();
+
+    private final Map<Long, Agent> agentsById = new ConcurrentHashMap<>();
+    private final Map<String, Long> agentIdsByToken = new ConcurrentHashMap<>();
+    private final AgentLabelIndex agentLabelIndex = new AgentLabelIndex();
+
+    private final AgentRepository agentRepository;
+    private final JdbcTemplate jdbcTemplate;
+    private final ApplicationEventPublisher applicationEventPublisher;
+    private final Duration pollInterval;
+    private final Duration reconnectDelay;
+
+    private volatile boolean complete;
+    private volatile boolean running;
+    private Thread listener;
+
+    public AgentRegistry(AgentRepository agentRepository, JdbcTemplate jdbcTemplate,
+                         ApplicationEventPublisher applicationEventPublisher,
+                         @Value("${agent.registry.pollInterval:1s}") Duration pollInterval,
+                         @Value("${agent.registry.reconnectDelay:5s}") Duration reconnectDelay) {
+        this.agentRepository = agentRepository;
+        this.jdbcTemplate = jdbcTemplate;
+        this.applicationEventPublisher = applicationEventPublisher;
+        this.pollInterval = pollInterval;
+        this.reconnectDelay = reconnectDelay;
+    }
+
+    /**
+     * Start listening for changes made by the other nodes, which also loads every agent into the cache
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+
+        running = true;
+        listener = Thread.ofPlatform()
+                .name("AgentRegistryListener")
+                .daemon()
+                .start(this::listen);
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        running = false;
+        if (listener != null) {
+            listener.interrupt();
+        }
+    }
+
+    /**
+     * Find the {@link Agent} with the given token
+     *
+     * @param token Token of the agent
+     * @return Copy of the cached {@link Agent}, or empty if no agent has the token
+     */
+    public Optional<Agent> findByToken(String token) {
+        if (token == null) {
+            return Optional.empty();
+        }
+
+        Long agentId = agentIdsByToken.get(sha256(token));
+        Agent agent = agentId == null ? null : agentsById.get(agentId);
+        if (agent != null) {
+            return Optional.of(copy(agent));
+        }
+
+        if (complete) {
+            return Optional.empty();
+        }
+
+        return agentRepository.findAgentByToken(token).map(this::cache);
+    }
+
+    /**
+     * Find the {@link Agent} with the given id
+     *
+     * @param agentId Id of the agent
+     * @return Copy of the cached {@link Agent}, or empty if there is no such agent
+     */
+    public Optional<Agent> findById(long agentId) {
+        Agent agent = agentsById.get(agentId);
+        if (agent != null) {
+            return Optional.of(copy(agent));
+        }
+
+        if (complete) {
+            return Optional.empty();
+        }
+
+        return agentRepository.findById(agentId).map(this::cache);
+    }
+
+    /**
+     * Id of the node which holds the control channel of the agent, as last seen by this node
+     *
+     * @param agentId Id of the agent
+     * @return Id of the node, or {@code null} if the agent has no open channel or does not exist
+     */
+    public String channelNodeId(long agentId) {
+        Agent agent = agentsById.get(agentId);
+        if (agent != null) {
+            return agent.channelNodeId();
+        }
+
+        return findById(agentId).map(Agent::channelNodeId).orElse(null);
+    }
+
+    /**
+     * Save the {@link Agent} to the database, update the cache and notify the other nodes
+     *
+     * @param agent {@link Agent} to save
+     * @return Copy of the saved {@link Agent}
+     */
+    public Agent save(Agent agent) {
+        boolean wasConnected = isCachedConnected(agent.id());
+        Agent saved = cache(agentRepository.save(agent));
+        publish(List.of(saved.id()));
+        publishConnected(wasConnected, saved);
+        return saved;
+    }
+
+    /**
+     * Insert the new {@link Agent}s, which Hibernate sends to the database in JDBC batches,
+     * update the cache and notify the other nodes
+     *
+     * @param agents New {@link Agent}s to insert
+     * @return Copies of the saved {@link Agent}s
+     */
+    public List<Agent> saveAll(List<Agent> agents) {
+        List<Agent> saved = agentRepository.saveAll(agents).stream()
+                .map(this::cache)
+                .toList();
+        publish(saved.stream().map(Agent::id).toList());
+        return saved;
+    }
+
+    /**
+     * Update the url and the connection state of existing {@link Agent}s with a single JDBC batch,
+     * update the cache and notify the other nodes
+     *
+     * @param agents Existing {@link Agent}s to update
+     * @return Copies of the updated {@link Agent}s
+     */
+    public List<Agent> updateAll(List<Agent> agents) {
+        if (agents.isEmpty()) {
+            return List.of();
+        }
+
+        Set<Long> wasConnected = new HashSet<>();
+        for (Agent agent : agents) {
+            if (isCachedConnected(agent.id())) {
+                wasConnected.add(agent.id());
+            }
+        }
+
+        Instant now = Instant.now();
+        jdbcTemplate.batchUpdate("UPDATE agent SET url = ?, is_connected = ?, updated_at = ? WHERE id = ?", agents, agents.size(),
+                (preparedStatement, agent) -> {
+                    preparedStatement.setString(1, agent.url());
+                    preparedStatement.setBoolean(2, agent.isConnected());
+                    preparedStatement.setTimestamp(3, Timestamp.from(now));
+                    preparedStatement.setLong(4, agent.id());
+                });
+
+        List<Agent> updated = agents.stream()
+                .map(agent -> cache(agent.toBuilder().updatedAt(now).build()))
+                .toList();
+        publish(updated.stream().map(Agent::id).toList());
+        updated.forEach(agent -> publishConnected(wasConnected.contains(agent.id()), agent));
+        return updated;
+    }
+
+    private boolean isCachedConnected(Long agentId) {
+        Agent cached = agentId == null ? null : agentsById.get(agentId);
+        return cached != null && cached.isConnected();
+    }
+
+    /**
+     * Publish an {@link AgentConnectedEvent} if the agent was saved as connected and was not connected before
+     */
+    private void publishConnected(boolean wasConnected, Agent agent) {
+        if (!wasConnected && agent.isConnected()) {
+            applicationEventPublisher.publishEvent(new AgentConnectedEvent(agent.id()));
+        }
+    }
+
+    /**
+     * Find the {@link Agent}s whose labels match the selector, using the in-memory label index
+     *
+     * @param labelSelector {@link LabelSelector} to match
+     * @return Ids of the matching agents
+     * @throws ServiceException if the registry has not loaded every agent yet
+     */
+    public Set<Long> selectIds(LabelSelector labelSelector) {
+        if (!complete) {
+            throw new ServiceException("Agent registry is still loading");
+        }
+        return agentLabelIndex.select(labelSelector);
+    }
+
+    /**
+     * Find the {@link Agent}s whose labels match the selector
+     *
+     * @param labelSelector {@link LabelSelector} to match
+     * @return Copies of the matching {@link Agent}s
+     * @throws ServiceException if the registry has not loaded every agent yet
+     */
+    public List<Agent> select(LabelSelector labelSelector) {
+        return selectIds(labelSelector).stream()
+                .map(agentsById::get)
+                .filter(Objects::nonNull)
+                .map(AgentRegistry::copy)
+                .toList();
+    }
+
+    /**
+     * Number of cached agents
+     */
+    public int size() {
+        return agentsById.size();
+    }
+
+    /**
+     * Check if every agent is cached and lookups no longer fall back to the database
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Load every agent from the database and drop the cached agents which no longer exist
+     */
+    void warm() {
+        Set<Long> agentIds = new HashSet<>();
+
+        Page<Agent> page = agentRepository.findAll(PageRequest.of(0, PAGE_SIZE));
+        while (true) {
+            for (Agent agent : page.getContent()) {
+                cache(agent);
+                agentIds.add(agent.id());
+            }
+
+            if (!page.hasNext()) {
+                break;
+            }
+            page = agentRepository.findAll(page.nextPageable());
+        }
+
+        for (Long agentId : agentsById.keySet()) {
+            if (!agentIds.contains(agentId)) {
+                evict(agentId);
+            }
+        }
+
+        logger.info("Loaded {} agents into the registry", agentsById.size());
+    }
+
+    /**
+     * Apply a change notification by reloading the agents from the database
+     *
+     * @param payload Payload of the notification, {@code <nodeId>:<agentId>[,<agentId>...]}
+     */
+    void onNotification(String payload) {
+        int separator = payload.lastIndexOf(':');
+        if (separator == -1) {
+            logger.warn("Ignoring invalid agent change notification: {}", payload);
+            return;
+        }
+
+        // Changes made by this node are already cached
+        if (nodeId.equals(payload.substring(0, separator))) {
+            return;
+        }
+
+        for (String id : payload.substring(separator + 1).split(",")) {
+            long agentId = Long.parseLong(id);
+            agentRepository.findById(agentId).ifPresentOrElse(this::cache, () -> evict(agentId));
+        }
+    }
+
+    void markComplete() {
+        complete = true;
+    }
+
+    String nodeId() {
+        return nodeId;
+    }
+
+    private void listen() {
+        while (running) {
+            try (Connection connection = Objects.requireNonNull(jdbcTemplate.getDataSource()).getConnection();
+                 Statement statement = connection.createStatement()) {
+                statement.execute("LISTEN " + CHANNEL);
+                PGConnection pgConnection = connection.unwrap(PGConnection.class);
+
+                // Changes made while not listening were missed, so reload every agent
+                warm();
+                complete = true;
+
+                try {
+                    while (running) {
+                        PGNotification[] notifications = pgConnection.getNotifications((int) pollInterval.toMillis());
+                        if (notifications == null) {
+                            continue;
+                        }
+
+                        for (PGNotification notification : notifications) {
+                            try {
+                                onNotification(notification.getParameter());
+                            } catch (Exception e) {
+                                logger.error("Failed to apply agent change notification: {}", notification.getParameter(), e);
+                            }
+                        }
+                    }
+                } finally {
+                    complete = false;
+                    statement.execute("UNLISTEN *");
+                }
+            } catch (Exception e) {
+                complete = false;
+                if (!running) {
+                    break;
+                }
+
+                logger.error("Agent registry listener failed, reconnecting in {}", reconnectDelay, e);
+                try {
+                    Thread.sleep(reconnectDelay);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Notify the other nodes about the changed agents, splitting the ids over as many notifications
+     * as needed to stay below the payload limit of Postgres
+     */
+    private void publish(List<Long> agentIds) {
+        StringBuilder payload = new StringBuilder();
+        for (Long agentId : agentIds) {
+            if (!payload.isEmpty() && payload.length() + 21 > MAX_PAYLOAD_LENGTH) {
+                notify(payload.toString());
+                payload.setLength(0);
+            }
+            payload.append(payload.isEmpty() ? nodeId + ':' : ",").append(agentId);
+        }
+
+        if (!payload.isEmpty()) {
+            notify(payload.toString());
+        }
+    }
+
+    private void notify(String payload) {
+        try {
+            jdbcTemplate.query("SELECT pg_notify(?, ?)", resultSet -> {
+            }, CHANNEL, payload);
+        } catch (Exception e) {
+            logger.error("Failed to notify other nodes about the changed agents: {}", payload, e);
+        }
+    }
+
+    /**
+     * Cache a copy of the agent, unless a more recent version of it is already cached
+     *
+     * @return Copy of the cached {@link Agent}
+     */
+    private Agent cache(Agent agent) {
+        Agent cached = agentsById.compute(agent.id(), (agentId, previous) -> {
+            if (previous != null && previous.updatedAt() != null && agent.updatedAt() != null
+                    && agent.updatedAt().isBefore(previous.updatedAt())) {
+                return previous;
+            }
+
+            if (previous != null && previous.token() != null && !previous.token().equals(agent.token())) {
+                agentIdsByToken.remove(sha256(previous.token()), agentId);
+            }
+            if (agent.token() != null) {
+                agentIdsByToken.put(sha256(agent.token()), agentId);
+            }
+            agentLabelIndex.put(agentId, agent.labels() == null ? Map.of() : agent.labels());
+            return copy(agent);
+        });
+        return copy(cached);
+    }
+
+    private void evict(long agentId) {
+        agentsById.computeIfPresent(agentId, (id, previous) -> {
+            if (previous.token() != null) {
+                agentIdsByToken.remove(sha256(previous.token()), id);
+            }
+            agentLabelIndex.remove(id);
+            return null;
+        });
+    }
+
+    /**
+     * Callers modify the agents they look up, so the cached agents are never handed out
+     */
+    private static Agent copy(Agent agent) {
+        return agent.toBuilder()
+                .labels(agent.labels() == null ? new HashMap<>() : new HashMap<>(agent.labels()))
+                .build();
+    }
+}
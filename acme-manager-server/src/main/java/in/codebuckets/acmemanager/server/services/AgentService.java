@@ -17,25 +17,38 @@
 
 package in.codebuckets.acmemanager.server.services;
 
+import in.codebuckets.acmemanager.server.dto.AgentHealthStats;
 import in.codebuckets.acmemanager.server.jpa.Agent;
 import in.codebuckets.acmemanager.server.jpa.AgentRepository;
 import in.codebuckets.acmemanager.server.jpa.BackpressureAwareRepositoryRetriever;
+import in.codebuckets.acmemanager.server.services.channel.AgentChannelRegistry;
+import in.codebuckets.acmemanager.server.services.cluster.ClusterChangedEvent;
+import in.codebuckets.acmemanager.server.services.cluster.ClusterMembership;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
-import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.time.Duration;
-import java.time.temporal.ChronoUnit;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 @Service
@@ -43,12 +56,40 @@ public class AgentService extends BackpressureAwareRepositoryRetriever<Agent> {
 
     private static final Logger logger = LogManager.getLogger();
 
+    private static final int HISTORY_SIZE = 100;
+
     private final AgentRepository agentRepository;
     private final HttpClient httpClient;
+    private final AgentChannelRegistry agentChannelRegistry;
+    private final AgentRegistry agentRegistry;
+    private final ClusterMembership clusterMembership;
+
+    @Value("${agent.healthCheck.concurrency:64}")
+    private int healthCheckConcurrency;
+
+    @Value("${agent.healthCheck.timeout:10s}")
+    private Duration healthCheckTimeout;
+
+    @Value("${agent.healthCheck.minInterval:10s}")
+    private Duration healthCheckMinInterval;
+
+    @Value("${agent.healthCheck.maxInterval:5m}")
+    private Duration healthCheckMaxInterval;
+
+    @Value("${agent.healthCheck.phiThreshold:8}")
+    private double healthCheckPhiThreshold;
 
-    public AgentService(AgentRepository agentRepository, HttpClient httpClient) {
+    private final Map<Long, AgentHealth> agentHealths = new ConcurrentHashMap<>();
+    private Set<Long> trackedAgentIds;
+    private Semaphore healthChecks;
+
+    public AgentService(AgentRepository agentRepository, HttpClient httpClient, AgentChannelRegistry agentChannelRegistry,
+                        AgentRegistry agentRegistry, ClusterMembership clusterMembership) {
         this.agentRepository = agentRepository;
         this.httpClient = httpClient;
+        this.agentChannelRegistry = agentChannelRegistry;
+        this.agentRegistry = agentRegistry;
+        this.clusterMembership = clusterMembership;
     }
 
     /**
@@ -63,6 +104,7 @@ public class AgentService extends BackpressureAwareRepositoryRetriever<Agent> {
         }
 
         agent.isConnected(true);
+        resetHealth(agent);
         return true;
     }
 
@@ -78,37 +120,122 @@ public class AgentService extends BackpressureAwareRepositoryRetriever<Agent> {
         }
 
         agent.isConnected(false);
+        resetHealth(agent);
         return true;
     }
 
+    /**
+     * Track the agents of the repository which are owned by this node. New agents are checked right away, and agents
+     * which were removed from the repository or moved to another node are no longer checked.
+     */
     @Scheduled(initialDelay = 0, fixedDelay = 30, timeUnit = SECONDS)
-    public void watch() {
+    public synchronized void watch() {
+        trackedAgentIds = ConcurrentHashMap.newKeySet();
         processElements();
+        agentHealths.keySet().retainAll(trackedAgentIds);
+    }
+
+    /**
+     * Take over the agents assigned to this node right away when a node joins or leaves the cluster
+     */
+    @EventListener
+    public void onClusterChanged(ClusterChangedEvent event) {
+        watch();
+    }
+
+    @Scheduled(initialDelay = 1, fixedDelay = 1, timeUnit = SECONDS)
+    public void checkDueAgents() {
+        check();
+    }
+
+    /**
+     * Health of all tracked agents
+     */
+    public List<AgentHealthStats> healthStats() {
+        return agentHealths.values().stream()
+                .map(AgentHealth::toStats)
+                .toList();
     }
 
     /**
-     * Run health check on the agent
+     * Start the health check of every agent which is due. Up to {@code agent.healthCheck.concurrency} checks are
+     * in flight at a time and every check is bounded by {@code agent.healthCheck.timeout}. Agents which are due
+     * but do not get a slot are checked by a later call.
      *
-     * @param agent {@link Agent} to check
+     * @return {@link CompletableFuture} which completes when the started checks have completed
+     */
+    CompletableFuture<Void> check() {
+        long nowMillis = System.currentTimeMillis();
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+
+        for (AgentHealth agentHealth : agentHealths.values()) {
+            // Agents which moved to another node are dropped by the next watch
+            if (!clusterMembership.owns(agentHealth.agentId)) {
+                continue;
+            }
+
+            // The connection state of agents with an open control channel on any node is tracked by the channel itself
+            if (hasLiveChannel(agentHealth.agentId)) {
+                agentHealth.channelOpened();
+                continue;
+            }
+            if (agentHealth.channelClosed()) {
+                agentRegistry.findById(agentHealth.agentId).ifPresent(agent -> agentHealth.reset(agent.isConnected()));
+            }
+
+            if (!agentHealth.isDue(nowMillis)) {
+                continue;
+            }
+
+            if (!healthChecks().tryAcquire()) {
+                break;
+            }
+
+            Agent agent = agentHealth.startCheck();
+            futures.add(doHealthCheck(agent).handle((isHealthy, throwable) -> {
+                try {
+                    if (throwable != null) {
+                        logger.debug("Health check of agent {} failed: {}", agent.name(), throwable.getMessage());
+                    }
+
+                    Agent changed = agentHealth.completeCheck(throwable == null && isHealthy, System.currentTimeMillis());
+                    if (changed != null) {
+                        saveHealth(changed);
+                    }
+                } catch (Exception e) {
+                    logger.error("Failed to update agent: {}", agent.name(), e);
+                } finally {
+                    healthChecks.release();
+                }
+                return null;
+            }));
+        }
+
+        return CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * Track the agent if it is owned by this node, keeping the health of agents which are already tracked
+     *
+     * @param agent {@link Agent} to track
      */
     @Override
     protected boolean handle(Agent agent) {
-        try {
-            boolean isSuccess = doHealthCheck(agent);
-
-            // If the health check is successful and the agent is not connected, then connect the agent
-            // If the health check is successful and the agent is connected, then disconnect the agent
-            if (isSuccess && !agent.isConnected()) {
-                agent.isConnected(true);
-                agentRepository.save(agent);
-            } else if (isSuccess && agent.isConnected()) {
-                agent.isConnected(false);
-                agentRepository.save(agent);
-            }
-        } catch (URISyntaxException | IOException | InterruptedException e) {
-            logger.error("Failed to connect to agent", e);
+        if (!clusterMembership.owns(agent.id())) {
+            return true;
         }
 
+        trackedAgentIds.add(agent.id());
+        agentHealths.compute(agent.id(), (id, agentHealth) -> {
+            if (agentHealth == null) {
+                return new AgentHealth(agent, new PhiAccrualFailureDetector(HISTORY_SIZE,
+                        healthCheckMinInterval.toMillis() / 2, healthCheckTimeout.toMillis(), healthCheckMinInterval.toMillis()),
+                        healthCheckMinInterval.toMillis());
+            }
+
+            agentHealth.refresh(agent);
+            return agentHealth;
+        });
         return true;
     }
 
@@ -117,25 +244,187 @@ public class AgentService extends BackpressureAwareRepositoryRetriever<Agent> {
         return agentRepository.findAll(pageable);
     }
 
+    /**
+     * Adopt the state the agent was registered or unregistered with and check it right away
+     */
+    private void resetHealth(Agent agent) {
+        AgentHealth agentHealth = agent.id() == null ? null : agentHealths.get(agent.id());
+        if (agentHealth != null) {
+            agentHealth.reset(agent.isConnected());
+        }
+    }
+
+    /**
+     * Check if a live node, this one or another, holds the control channel of the agent
+     */
+    private boolean hasLiveChannel(long agentId) {
+        if (agentChannelRegistry.isConnected(agentId)) {
+            return true;
+        }
+
+        String channelNodeId = agentRegistry.channelNodeId(agentId);
+        return channelNodeId != null && clusterMembership.nodeIds().contains(channelNodeId);
+    }
+
+    /**
+     * Save the state found by a health check on the latest version of the agent, unless a control channel to the agent
+     * was opened while the check was in flight
+     */
+    private void saveHealth(Agent checked) {
+        if (hasLiveChannel(checked.id())) {
+            return;
+        }
+
+        agentRegistry.findById(checked.id()).ifPresent(current -> {
+            // The channel of a node which has left the cluster is gone with the node
+            current.isConnected(checked.isConnected());
+            current.channelNodeId(null);
+            agentRegistry.save(current);
+            logger.info("Agent {} is now {}", current.name(), current.isConnected() ? "connected" : "disconnected");
+        });
+    }
+
+    private synchronized Semaphore healthChecks() {
+        if (healthChecks == null) {
+            healthChecks = new Semaphore(healthCheckConcurrency);
+        }
+        return healthChecks;
+    }
+
     /**
      * Perform health check on the agent by calling the metadata endpoint
      * and checking if the response is 200 OK, if so then the agent is healthy
      * otherwise the agent is unhealthy.
      *
      * @param agent {@link Agent} to check
-     * @return true if the agent is healthy, false otherwise
-     * @throws URISyntaxException   If the URI is invalid
-     * @throws IOException          If an I/O error occurs
-     * @throws InterruptedException If the operation is interrupted
+     * @return {@link CompletableFuture} which completes with true if the agent is healthy and false otherwise,
+     * or completes exceptionally if the agent could not be reached within the timeout
+     */
+    CompletableFuture<Boolean> doHealthCheck(Agent agent) {
+        HttpRequest request;
+        try {
+            request = HttpRequest.newBuilder()
+                    .uri(new URI(agent.url() + "/v1/agent/metadata"))
+                    .header(AgentClient.AUTH_HEADER, agent.token())
+                    .GET()
+                    .timeout(healthCheckTimeout)
+                    .build();
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        // The request timeout does not cover connecting, so the whole exchange is bounded as well
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .orTimeout(healthCheckTimeout.toMillis(), MILLISECONDS)
+                .thenApply(response -> response.statusCode() == 200);
+    }
+
+    /**
+     * Health of a single agent, kept in memory between checks.
+     * </br>
+     *
+     * A successful check counts as a heartbeat of the failure detector. The interval between checks doubles up to
+     * {@code agent.healthCheck.maxInterval} while the agent keeps responding, drops to {@code agent.healthCheck.minInterval}
+     * as soon as a check fails, and backs off again once the agent is considered disconnected. The agent is only
+     * disconnected once the suspicion level reaches {@code agent.healthCheck.phiThreshold}, and only reconnected by
+     * a successful check, so a single failed check does not flap its state.
      */
-    boolean doHealthCheck(Agent agent) throws URISyntaxException, IOException, InterruptedException {
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(new URI(agent.url() + "/v1/agent/metadata"))
-                .GET()
-                .timeout(Duration.of(10, ChronoUnit.SECONDS))
-                .build();
-
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-        return response.statusCode() == 200;
+    private final class AgentHealth {
+
+        private final long agentId;
+        private final PhiAccrualFailureDetector failureDetector;
+        private Agent agent;
+        private boolean isConnected;
+        private boolean isChecking;
+        private boolean hasChannel;
+        private double phi;
+        private long intervalMillis;
+        private long nextCheckMillis;
+
+        AgentHealth(Agent agent, PhiAccrualFailureDetector failureDetector, long intervalMillis) {
+            this.agentId = agent.id();
+            this.agent = agent;
+            this.isConnected = agent.isConnected();
+            this.failureDetector = failureDetector;
+            this.intervalMillis = intervalMillis;
+        }
+
+        synchronized void refresh(Agent agent) {
+            // The state in memory is more recent than the state in the repository
+            agent.isConnected(isConnected);
+            this.agent = agent;
+        }
+
+        synchronized void reset(boolean isConnected) {
+            this.isConnected = isConnected;
+            agent.isConnected(isConnected);
+            intervalMillis = healthCheckMinInterval.toMillis();
+            nextCheckMillis = 0;
+        }
+
+        synchronized void channelOpened() {
+            hasChannel = true;
+        }
+
+        /**
+         * @return {@code true} if the agent had a control channel until now, so its state has to be adopted from the channel
+         */
+        synchronized boolean channelClosed() {
+            boolean hadChannel = hasChannel;
+            hasChannel = false;
+            return hadChannel;
+        }
+
+        synchronized boolean isDue(long nowMillis) {
+            return !isChecking && nextCheckMillis <= nowMillis;
+        }
+
+        synchronized Agent startCheck() {
+            isChecking = true;
+            return agent;
+        }
+
+        /**
+         * Record the result of the check and schedule the next check
+         *
+         * @return {@link Agent} to save if its state has changed, {@code null} otherwise
+         */
+        synchronized Agent completeCheck(boolean isHealthy, long nowMillis) {
+            isChecking = false;
+            boolean wasConnected = isConnected;
+
+            if (isHealthy) {
+                failureDetector.heartbeat(nowMillis);
+                phi = 0;
+                intervalMillis = wasConnected ? Math.min(intervalMillis * 2, healthCheckMaxInterval.toMillis()) : healthCheckMinInterval.toMillis();
+                isConnected = true;
+            } else {
+                phi = failureDetector.phi(nowMillis);
+                if (phi < healthCheckPhiThreshold) {
+                    // Suspected, confirm quickly
+                    intervalMillis = healthCheckMinInterval.toMillis();
+                } else if (wasConnected) {
+                    intervalMillis = healthCheckMinInterval.toMillis();
+                    isConnected = false;
+                } else {
+                    intervalMillis = Math.min(intervalMillis * 2, healthCheckMaxInterval.toMillis());
+                }
+            }
+
+            nextCheckMillis = nowMillis + intervalMillis;
+            if (isConnected == wasConnected) {
+                return null;
+            }
+
+            agent.isConnected(isConnected);
+            return agent;
+        }
+
+        synchronized AgentHealthStats toStats() {
+            long lastHeartbeatMillis = failureDetector.lastHeartbeatMillis();
+            return new AgentHealthStats(agentId, isConnected, phi,
+                    lastHeartbeatMillis < 0 ? null : Instant.ofEpochMilli(lastHeartbeatMillis),
+                    intervalMillis, Instant.ofEpochMilli(nextCheckMillis));
+        }
     }
 }
@@ -0,0 +1,258 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.server.services;
+
+import in.codebuckets.acmemanager.server.ServiceException;
+import in.codebuckets.acmemanager.server.dto.DesiredCertificate;
+import in.codebuckets.acmemanager.server.dto.SyncResult;
+import in.codebuckets.acmemanager.server.jpa.Agent;
+import in.codebuckets.acmemanager.server.jpa.AgentCertificate;
+import in.codebuckets.acmemanager.server.jpa.AgentCertificateRepository;
+import in.codebuckets.acmemanager.server.jpa.AgentRepository;
+import in.codebuckets.acmemanager.server.jpa.PendingDelivery;
+import in.codebuckets.acmemanager.server.jpa.PendingDeliveryRepository;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayInputStream;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import static in.codebuckets.acmemanager.common.utils.FingerprintUtil.fingerprint;
+
+/**
+ * Keeps the certificates deployed on the agents in sync with their desired state.
+ * </br>
+ *
+ * The desired state of an agent is the set of {@link AgentCertificate} stored for it. A sync fetches the
+ * fingerprints of the certificates the agent has deployed and sends only the certificates which are
+ * missing or whose fingerprint differs, so the cost of a sync is proportional to the change.
+ * </p>
+ * The private keys of the desired state are stored encrypted with the {@link PrivateKeyCipher}, and are only decrypted
+ * to be sent to the agent.
+ * </p>
+ * Every change of the desired state is also recorded as a {@link PendingDelivery}, which is only removed once a
+ * sync has confirmed that the agent has the certificate, so changes made while an agent is offline survive a restart.
+ */
+@Service
+public class AgentSyncService {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private final AgentCertificateRepository agentCertificateRepository;
+    private final AgentRepository agentRepository;
+    private final PendingDeliveryRepository pendingDeliveryRepository;
+    private final AgentClient agentClient;
+    private final PrivateKeyCipher privateKeyCipher;
+
+    public AgentSyncService(AgentCertificateRepository agentCertificateRepository, AgentRepository agentRepository,
+                            PendingDeliveryRepository pendingDeliveryRepository, AgentClient agentClient,
+                            PrivateKeyCipher privateKeyCipher) {
+        this.agentCertificateRepository = agentCertificateRepository;
+        this.agentRepository = agentRepository;
+        this.pendingDeliveryRepository = pendingDeliveryRepository;
+        this.agentClient = agentClient;
+        this.privateKeyCipher = privateKeyCipher;
+    }
+
+    /**
+     * Encrypt the private keys which were stored in plaintext before they were encrypted
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void encryptPlaintextKeys() {
+        int encrypted = 0;
+        for (AgentCertificate agentCertificate : agentCertificateRepository.findAllByPrivateKeyNotLike(PrivateKeyCipher.PREFIX + "%")) {
+            encrypted += agentCertificateRepository.replacePrivateKey(agentCertificate.id(), agentCertificate.privateKey(),
+                    privateKeyCipher.encrypt(agentCertificate.privateKey()));
+        }
+
+        if (encrypted > 0) {
+            logger.info("Encrypted {} private keys of the desired state of agents", encrypted);
+        }
+    }
+
+    /**
+     * Add or replace a certificate in the desired state of the agent and record it as a pending delivery.
+     * A pending delivery of an older certificate for the same domain is replaced.
+     * </p>
+     * A certificate which became valid after the new one is never replaced, so a late write of a superseded rollout
+     * cannot roll the agent back. The comparison is made by the database, so concurrent writes are ordered as well.
+     *
+     * @param agent              {@link Agent} to deploy the certificate to
+     * @param desiredCertificate {@link DesiredCertificate} to deploy
+     * @return {@link AgentCertificate} which was saved
+     * @throws ServiceException if the agent already has a newer certificate for the domain
+     */
+    public AgentCertificate setDesiredCertificate(Agent agent, DesiredCertificate desiredCertificate) {
+        String domain = desiredCertificate.domain().toLowerCase();
+        String fingerprint = fingerprint(desiredCertificate.certificate(), desiredCertificate.privateKey());
+        Instant notBefore = notBefore(desiredCertificate.certificate());
+        String privateKey = privateKeyCipher.encrypt(desiredCertificate.privateKey());
+
+        AgentCertificate saved = agentCertificateRepository.findByAgentAndDomain(agent, domain)
+                .map(existing -> {
+                    if (agentCertificateRepository.replaceUnlessNewer(existing.id(), desiredCertificate.certificate(),
+                            privateKey, fingerprint, notBefore, Instant.now()) == 0) {
+                        throw new ServiceException("Agent " + agent.name() + " already has a newer certificate for " + domain);
+                    }
+
+                    return existing.certificate(desiredCertificate.certificate())
+                            .privateKey(privateKey)
+                            .fingerprint(fingerprint)
+                            .notBefore(notBefore);
+                })
+                .orElseGet(() -> agentCertificateRepository.save(AgentCertificate.builder()
+                        .agent(agent)
+                        .domain(domain)
+                        .certificate(desiredCertificate.certificate())
+                        .privateKey(privateKey)
+                        .fingerprint(fingerprint)
+                        .notBefore(notBefore)
+                        .build()));
+
+        PendingDelivery pendingDelivery = pendingDeliveryRepository.findByAgentIdAndDomain(agent.id(), domain)
+                .orElseGet(() -> PendingDelivery.builder()
+                        .agentId(agent.id())
+                        .domain(domain)
+                        .build());
+
+        pendingDeliveryRepository.save(pendingDelivery.fingerprint(saved.fingerprint())
+                .attempts(0)
+                .lastError(null));
+
+        return saved;
+    }
+
+    /**
+     * Start of the validity of the leaf certificate of the PEM chain
+     *
+     * @param certificate Certificate PEM
+     * @return {@code notBefore} of the leaf certificate, or {@code null} if the PEM could not be parsed
+     */
+    static Instant notBefore(String certificate) {
+        try {
+            X509Certificate x509Certificate = (X509Certificate) CertificateFactory.getInstance("X.509")
+                    .generateCertificate(new ByteArrayInputStream(certificate.getBytes(UTF_8)));
+            return x509Certificate.getNotBefore().toInstant();
+        } catch (Exception e) {
+            logger.debug("Failed to parse certificate: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Find the certificates which have not been confirmed by the agent yet
+     *
+     * @param agentId Agent id
+     * @return List of {@link PendingDelivery}
+     */
+    public List<PendingDelivery> pendingDeliveries(long agentId) {
+        return pendingDeliveryRepository.findAllByAgentId(agentId);
+    }
+
+    /**
+     * Send the certificates which are missing or changed on the agent and remove the pending deliveries
+     * which the agent has confirmed
+     *
+     * @param agent {@link Agent} to synchronize
+     * @return {@link CompletableFuture} of the {@link SyncResult}
+     */
+    public CompletableFuture<SyncResult> sync(Agent agent) {
+        // Pending deliveries are read before the desired state, so a delivery is never removed for a
+        // certificate which was replaced after the desired state was read
+        List<PendingDelivery> pendingDeliveries = pendingDeliveryRepository.findAllByAgentId(agent.id());
+        List<AgentCertificate> desiredCertificates = agentCertificateRepository.findAllByAgent(agent);
+
+        return agentClient.inventory(agent).thenCompose(inventory -> {
+            List<DesiredCertificate> changedCertificates = changed(desiredCertificates, inventory, privateKeyCipher);
+            int upToDate = desiredCertificates.size() - changedCertificates.size();
+
+            if (changedCertificates.isEmpty()) {
+                return CompletableFuture.completedFuture(new SyncResult(agent.id(), desiredCertificates.size(), upToDate, 0, List.of(), null));
+            }
+
+            logger.info("Sending {} of {} certificates to agent: {}", changedCertificates.size(), desiredCertificates.size(), agent.name());
+
+            return agentClient.deploy(agent, changedCertificates).thenApply(failed -> new SyncResult(agent.id(),
+                    desiredCertificates.size(), upToDate, changedCertificates.size() - failed.size(), failed, null));
+        }).thenApply(syncResult -> {
+            removeDelivered(pendingDeliveries, syncResult.failed());
+            if (!syncResult.failed().isEmpty()) {
+                pendingDeliveryRepository.recordFailure(agent.id(), truncate("Failed to deploy: " + String.join(", ", syncResult.failed())));
+            }
+            return syncResult;
+        }).exceptionally(throwable -> {
+            logger.error("Failed to sync agent: {}", agent.name(), throwable);
+            if (!pendingDeliveries.isEmpty()) {
+                pendingDeliveryRepository.recordFailure(agent.id(), truncate(throwable.getMessage()));
+            }
+            return SyncResult.failed(agent.id(), throwable.getMessage());
+        });
+    }
+
+    /**
+     * Remove the pending deliveries which were not reported as failed. A delivery whose fingerprint was
+     * replaced during the sync is kept for the next sync.
+     */
+    private void removeDelivered(List<PendingDelivery> pendingDeliveries, List<String> failed) {
+        for (PendingDelivery pendingDelivery : pendingDeliveries) {
+            if (!failed.contains(pendingDelivery.domain())) {
+                pendingDeliveryRepository.deleteDelivered(pendingDelivery.id(), pendingDelivery.fingerprint());
+            }
+        }
+    }
+
+    private static String truncate(String error) {
+        return error == null || error.length() <= 1024 ? error : error.substring(0, 1024);
+    }
+
+    /**
+     * Synchronize all connected agents concurrently
+     *
+     * @return {@link CompletableFuture} of the {@link SyncResult} of every agent
+     */
+    public CompletableFuture<List<SyncResult>> syncAll() {
+        List<CompletableFuture<SyncResult>> futures = agentRepository.findAllByIsConnectedTrue().stream()
+                .map(this::sync)
+                .toList();
+
+        return CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new))
+                .thenApply(ignored -> futures.stream().map(CompletableFuture::join).toList());
+    }
+
+    /**
+     * Find the desired certificates which the agent does not have or has with a different fingerprint, with their private keys decrypted
+     */
+    static List<DesiredCertificate> changed(List<AgentCertificate> desiredCertificates, Map<String, String> inventory,
+                                            PrivateKeyCipher privateKeyCipher) {
+        return desiredCertificates.stream()
+                .filter(agentCertificate -> !agentCertificate.fingerprint().equals(inventory.get(agentCertificate.domain())))
+                .map(agentCertificate -> new DesiredCertificate(agentCertificate.domain(), agentCertificate.certificate(),
+                        privateKeyCipher.decrypt(agentCertificate.privateKey())))
+                .toList();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.services;
+
+import in.codebuckets.acmemanager.server.acme.CertificateIssuedEvent;
+import in.codebuckets.acmemanager.server.dto.DesiredCertificate;
+import in.codebuckets.acmemanager.server.dto.RolloutProgress;
+import in.codebuckets.acmemanager.server.jpa.Certificate;
+import in.codebuckets.acmemanager.server.services.rollout.RolloutService;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.util.Set;
+
+/**
+ * Rolls issued certificates out to the agents resolved by the {@link DomainRoutingTable} with the {@link RolloutService}
+ */
+@Component
+public class CertificateIssuedListener {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private final DomainRoutingTable domainRoutingTable;
+    private final RolloutService rolloutService;
+
+    public CertificateIssuedListener(DomainRoutingTable domainRoutingTable, RolloutService rolloutService) {
+        this.domainRoutingTable = domainRoutingTable;
+        this.rolloutService = rolloutService;
+    }
+
+    @EventListener
+    public void onCertificateIssued(CertificateIssuedEvent event) {
+        Certificate certificate = event.certificate();
+
+        Set<Long> agentIds;
+        try {
+            agentIds = domainRoutingTable.resolve(certificate.domains());
+        } catch (Exception e) {
+            logger.error("Failed to resolve the target agents of certificate: {}", certificate.id(), e);
+            return;
+        }
+
+        if (agentIds.isEmpty()) {
+            logger.info("No route matches the domains of certificate {}: {}", certificate.id(), certificate.domains());
+            return;
+        }
+
+        DesiredCertificate desiredCertificate = new DesiredCertificate(certificate.domains().get(0), event.certificateChain(),
+                event.privateKey());
+
+        RolloutProgress rolloutProgress = rolloutService.start(desiredCertificate, agentIds);
+        logger.info("Rolling certificate {} out to {} agents in {} waves with rollout {}", certificate.id(), agentIds.size(),
+                rolloutProgress.waves(), rolloutProgress.rolloutId());
+    }
+}
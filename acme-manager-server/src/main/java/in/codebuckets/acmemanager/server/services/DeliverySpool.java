@@ -0,0 +1,184 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.services;
+
+import in.codebuckets.acmemanager.server.dto.SyncResult;
+import in.codebuckets.acmemanager.server.jpa.Agent;
+import in.codebuckets.acmemanager.server.jpa.PendingDelivery;
+import in.codebuckets.acmemanager.server.jpa.PendingDeliveryRepository;
+import in.codebuckets.acmemanager.server.services.cluster.ClusterMembership;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivers the {@link PendingDelivery}s of agents which were offline when their desired state changed.
+ * </br>
+ *
+ * An agent is drained as soon as it reconnects, and a periodic sweep drains the connected agents owned by this
+ * node which still have pending deliveries, for example because a drain failed or the agent reconnected to another node.
+ * Agents are queued at most once and drained by at most {@code agent.spool.drainConcurrency} workers, so a
+ * reconnect storm does not overload the server or the agents.
+ */
+@Service
+public class DeliverySpool {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private final Set<Long> queued = ConcurrentHashMap.newKeySet();
+    private final Queue<Long> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger workers = new AtomicInteger();
+
+    private final PendingDeliveryRepository pendingDeliveryRepository;
+    private final AgentRegistry agentRegistry;
+    private final AgentSyncService agentSyncService;
+    private final ClusterMembership clusterMembership;
+    private final int drainConcurrency;
+    private final Duration syncTimeout;
+
+    public DeliverySpool(PendingDeliveryRepository pendingDeliveryRepository, AgentRegistry agentRegistry,
+                         AgentSyncService agentSyncService, ClusterMembership clusterMembership,
+                         @Value("${agent.spool.drainConcurrency:16}") int drainConcurrency,
+                         @Value("${agent.spool.syncTimeout:2m}") Duration syncTimeout) {
+        this.pendingDeliveryRepository = pendingDeliveryRepository;
+        this.agentRegistry = agentRegistry;
+        this.agentSyncService = agentSyncService;
+        this.clusterMembership = clusterMembership;
+        this.drainConcurrency = drainConcurrency;
+        this.syncTimeout = syncTimeout;
+    }
+
+    @EventListener
+    public void onAgentConnected(AgentConnectedEvent event) {
+        schedule(event.agentId());
+    }
+
+    /**
+     * Queue the connected agents owned by this node which have pending deliveries
+     */
+    @Scheduled(fixedDelayString = "${agent.spool.sweepIntervalSeconds:60}", initialDelayString = "${agent.spool.sweepIntervalSeconds:60}",
+            timeUnit = TimeUnit.SECONDS)
+    public void sweep() {
+        try {
+            for (Long agentId : pendingDeliveryRepository.findAgentIds()) {
+                if (clusterMembership.owns(agentId) && agentRegistry.findById(agentId).map(Agent::isConnected).orElse(false)) {
+                    schedule(agentId);
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Failed to sweep pending deliveries", e);
+        }
+    }
+
+    /**
+     * Queue the agent to be drained, unless it is already queued
+     *
+     * @param agentId Agent id
+     */
+    public void schedule(long agentId) {
+        if (!queued.add(agentId)) {
+            return;
+        }
+
+        queue.add(agentId);
+        startWorker();
+    }
+
+    /**
+     * Deliver the pending deliveries of the agent, if it is connected
+     *
+     * @param agentId Agent id
+     * @return {@link SyncResult} of the drain, or empty if there was nothing to deliver
+     */
+    public Optional<SyncResult> drain(long agentId) throws Exception {
+        Optional<Agent> optionalAgent = agentRegistry.findById(agentId);
+        if (optionalAgent.isEmpty() || !optionalAgent.get().isConnected()) {
+            return Optional.empty();
+        }
+
+        List<PendingDelivery> pendingDeliveries = pendingDeliveryRepository.findAllByAgentId(agentId);
+        if (pendingDeliveries.isEmpty()) {
+            return Optional.empty();
+        }
+
+        Agent agent = optionalAgent.get();
+        logger.info("Delivering {} pending certificates to agent: {}", pendingDeliveries.size(), agent.name());
+        return Optional.of(agentSyncService.sync(agent).get(syncTimeout.toMillis(), TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Number of agents waiting to be drained
+     */
+    public int queued() {
+        return queued.size();
+    }
+
+    private void startWorker() {
+        if (tryAcquireWorker()) {
+            Thread.ofVirtual().name("DeliverySpool").start(this::work);
+        }
+    }
+
+    private void work() {
+        while (true) {
+            Long agentId;
+            while ((agentId = queue.poll()) != null) {
+                // Remove the agent before draining, so a reconnect during the drain queues it again
+                queued.remove(agentId);
+                try {
+                    drain(agentId);
+                } catch (Exception e) {
+                    logger.error("Failed to drain pending deliveries of agent: {}", agentId, e);
+                }
+            }
+
+            workers.decrementAndGet();
+
+            // An agent queued after the poll above but before the decrement would not have started a worker
+            if (queue.isEmpty() || !tryAcquireWorker()) {
+                return;
+            }
+        }
+    }
+
+    private boolean tryAcquireWorker() {
+        while (true) {
+            int current = workers.get();
+            if (current >= drainConcurrency) {
+                return false;
+            }
+            if (workers.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.services;
+
+import in.codebuckets.acmemanager.server.jpa.DomainRoute;
+import in.codebuckets.acmemanager.server.jpa.DomainRouteRepository;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Resolves the agents which should receive the certificate of a domain from the {@link DomainRoute}s.
+ * </br>
+ *
+ * The routes are held in a trie keyed by the labels of the pattern in reverse order, so {@code www.example.com}
+ * is stored under {@code com -> example -> www}. Resolving a domain walks the trie once from the top level
+ * domain down and collects the suffix routes on the way, the wildcard routes of the parent and the exact
+ * routes of the domain itself.
+ * </p>
+ * The trie is rebuilt from the database when routes change and every {@code agent.routing.refreshIntervalSeconds}
+ * to pick up the changes made by other server nodes.
+ */
+@Service
+public class DomainRoutingTable {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private final DomainRouteRepository domainRouteRepository;
+    private final AgentRegistry agentRegistry;
+
+    private volatile Node root = new Node();
+
+    public DomainRoutingTable(DomainRouteRepository domainRouteRepository, AgentRegistry agentRegistry) {
+        this.domainRouteRepository = domainRouteRepository;
+        this.agentRegistry = agentRegistry;
+    }
+
+    /**
+     * Rebuild the trie from the routes in the database
+     */
+    @Scheduled(initialDelay = 0, fixedDelayString = "${agent.routing.refreshIntervalSeconds:60}", timeUnit = SECONDS)
+    public void reload() {
+        root = build(domainRouteRepository.findAll());
+    }
+
+    /**
+     * Find the routes which match any of the domains
+     *
+     * @param domains Domains to match, e.g. the subject alternative names of a certificate
+     * @return Matching routes
+     */
+    public Set<Route> routes(Collection<String> domains) {
+        Set<Route> routes = new LinkedHashSet<>();
+        Node root = this.root;
+        for (String domain : domains) {
+            collect(root, domain, routes);
+        }
+        return routes;
+    }
+
+    /**
+     * Resolve the ids of the agents which should receive the certificate of the domains. Every matching route
+     * is resolved against the label index of the {@link AgentRegistry} once, even if it matches several domains.
+     *
+     * @param domains Domains of the certificate
+     * @return Ids of the target agents
+     */
+    public Set<Long> resolve(Collection<String> domains) {
+        Set<Long> agentIds = new HashSet<>();
+        for (Route route : routes(domains)) {
+            agentIds.addAll(agentRegistry.selectIds(route.selector()));
+        }
+        return agentIds;
+    }
+
+    /**
+     * Validate and normalize a route pattern
+     *
+     * @param pattern Pattern to validate
+     * @return Lower case pattern
+     * @throws IllegalArgumentException if the pattern is not an exact, wildcard or suffix pattern
+     */
+    public static String normalizePattern(String pattern) {
+        if (pattern == null || pattern.isBlank()) {
+            throw new IllegalArgumentException("Pattern must not be empty");
+        }
+
+        String normalized = pattern.trim().toLowerCase(Locale.ROOT);
+        String domain = normalized.startsWith("*.") ? normalized.substring(2) : normalized.startsWith(".") ? normalized.substring(1) : normalized;
+        for (String label : domain.split("\\.", -1)) {
+            if (label.isEmpty() || label.length() > 63 || !label.chars().allMatch(c -> Character.isLetterOrDigit(c) || c == '-')) {
+                throw new IllegalArgumentException("Invalid pattern: " + pattern);
+            }
+        }
+        return normalized;
+    }
+
+    static Node build(List<DomainRoute> domainRoutes) {
+        Node root = new Node();
+        for (DomainRoute domainRoute : domainRoutes) {
+            Route route;
+            try {
+                route = new Route(domainRoute.id(), domainRoute.pattern(), LabelSelector.parse(domainRoute.selector()));
+            } catch (IllegalArgumentException e) {
+                logger.error("Ignoring route {} with invalid selector: {}", domainRoute.pattern(), e.getMessage());
+                continue;
+            }
+
+            String pattern = domainRoute.pattern();
+            if (pattern.startsWith("*.")) {
+                root.descend(pattern.substring(2)).wildcardRoutes.add(route);
+            } else if (pattern.startsWith(".")) {
+                root.descend(pattern.substring(1)).suffixRoutes.add(route);
+            } else {
+                root.descend(pattern).exactRoutes.add(route);
+            }
+        }
+        return root;
+    }
+
+    static void collect(Node root, String domain, Set<Route> routes) {
+        String[] labels = domain.toLowerCase(Locale.ROOT).split("\\.");
+        Node node = root;
+        for (int i = labels.length - 1; i >= 0; i--) {
+            node = node.children.get(labels[i]);
+            if (node == null) {
+                return;
+            }
+
+            routes.addAll(node.suffixRoutes);
+            if (i == 1) {
+                routes.addAll(node.wildcardRoutes);
+            } else if (i == 0) {
+                routes.addAll(node.exactRoutes);
+            }
+        }
+    }
+
+    /**
+     * Route of the routing table
+     *
+     * @param id       Id of the {@link DomainRoute}
+     * @param pattern  Domain pattern
+     * @param selector Selector of the target agents
+     */
+    public record Route(long id, String pattern, LabelSelector selector) {
+    }
+
+    /**
+     * Node of the trie for a single domain label. The trie is never modified once it is built.
+     */
+    static final class Node {
+
+        private final Map<String, Node> children = new HashMap<>();
+        private final List<Route> exactRoutes = new ArrayList<>();
+        private final List<Route> wildcardRoutes = new ArrayList<>();
+        private final List<Route> suffixRoutes = new ArrayList<>();
+
+        private Node descend(String domain) {
+            String[] labels = domain.split("\\.");
+            Node node = this;
+            for (int i = labels.length - 1; i >= 0; i--) {
+                node = node.children.computeIfAbsent(labels[i], label -> new Node());
+            }
+            return node;
+        }
+    }
+}
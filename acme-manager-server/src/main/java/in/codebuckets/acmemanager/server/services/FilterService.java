@@ -17,6 +17,8 @@
 
 package in.codebuckets.acmemanager.server.services;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import in.codebuckets.acmemanager.server.AvailableFilters;
 import in.codebuckets.acmemanager.server.Filters;
 import in.codebuckets.acmemanager.server.InvalidFilterKeysException;
@@ -29,20 +31,26 @@ import jakarta.persistence.criteria.Order;
 import jakarta.persistence.criteria.Path;
 import jakarta.persistence.criteria.Predicate;
 import jakarta.persistence.criteria.Root;
+import org.hibernate.Hibernate;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.lang.reflect.Field;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Date;
 import java.util.List;
 import java.util.regex.Pattern;
 
+import static in.codebuckets.acmemanager.common.json.Jackson.JSON_MAPPER;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 @Service
 public final class FilterService {
 
@@ -62,8 +70,17 @@ public final class FilterService {
      * @param <T>               The type of data
      * @return {@link PagedResponse} containing the paginated data
      * @throws InvalidFilterKeysException if the filter keys are invalid
+     * @throws IllegalArgumentException   if the page size is not positive or the cursor is invalid
      */
     public <T> PagedResponse<T> filter(Filters filters, List<AvailableFilters> availableFilters, Class<T> clazz) {
+        if (filters.size() <= 0) {
+            throw new IllegalArgumentException("Invalid page size: " + filters.size());
+        }
+
+        if (filters.cursor() != null) {
+            return filterByCursor(filters, availableFilters, clazz);
+        }
+
         SessionFactory sessionFactory = entityManagerFactory.unwrap(SessionFactory.class);
 
         try (Session contentSession = sessionFactory.openSession()) {
@@ -97,6 +114,210 @@ public final class FilterService {
         }
     }
 
+    /**
+     * Apply {@link Filters} on a given table and return the page after {@link Filters#cursor()}.
+     * </br>
+     *
+     * The cursor holds the sort key and the id of the last row of the previous page, and the page is selected
+     * with a seek predicate on them instead of an offset, so every page costs the same as the first one.
+     * The id breaks ties between rows with the same sort key, so no row is skipped or repeated.
+     * The total is only counted for the first page, later pages return {@code -1}.
+     *
+     * @param filters           The {@link Filters} to apply
+     * @param availableFilters The list of {@link AvailableFilters} that can be applied
+     * @param clazz             The class of the table
+     * @param <T>               The type of data
+     * @return {@link PagedResponse} containing the page and the cursor of the next page
+     * @throws InvalidFilterKeysException if the filter keys are invalid
+     * @throws IllegalArgumentException   if the cursor is invalid
+     */
+    private <T> PagedResponse<T> filterByCursor(Filters filters, List<AvailableFilters> availableFilters, Class<T> clazz) {
+        SessionFactory sessionFactory = entityManagerFactory.unwrap(SessionFactory.class);
+        Filters.Sort sort = filters.sort();
+        Cursor cursor = filters.cursor().isEmpty() ? null : decodeCursor(filters.cursor());
+
+        try (Session contentSession = sessionFactory.openSession()) {
+            // One extra row tells if there is a next page
+            int limit = filters.size() + 1;
+            List<T> content = new ArrayList<>(seek(contentSession, filters, availableFilters, clazz, cursor, false, limit));
+
+            // Rows with a null sort key come after all the others, so they are read from their own range once the others run out
+            if (content.size() < limit && cursor != null && sort != null && !ID_KEY.equals(sort.key()) && !cursor.key().isNull()) {
+                content.addAll(seek(contentSession, filters, availableFilters, clazz, null, true, limit - content.size()));
+            }
+
+            String nextCursor = null;
+            if (content.size() > filters.size()) {
+                content = content.subList(0, filters.size());
+                T last = content.get(content.size() - 1);
+                nextCursor = encodeCursor(sort == null ? null : attributeValue(last, sort.key()), attributeValue(last, ID_KEY));
+            }
+
+            if (!filters.cursor().isEmpty()) {
+                return new PagedResponse<>(content, -1, -1, nextCursor);
+            }
+
+            try (Session countSession = sessionFactory.openSession()) {
+                CriteriaBuilder criteriaBuilderCount = countSession.getCriteriaBuilder();
+                CriteriaQuery<Long> criteriaQueryCount = criteriaBuilderCount.createQuery(Long.class);
+                Root<T> rootCount = criteriaQueryCount.from(clazz);
+                criteriaQueryCount.select(criteriaBuilderCount.count(rootCount));
+                criteriaQueryCount.where(applyFilters(rootCount, criteriaBuilderCount, filters, availableFilters));
+
+                Long totalElements = countSession.createQuery(criteriaQueryCount).getSingleResult();
+
+                int totalPages = (int) Math.ceil((double) totalElements / filters.size());
+                return new PagedResponse<>(content, totalPages, totalElements, nextCursor);
+            }
+        }
+    }
+
+    /**
+     * Select at most {@code limit} rows after the cursor, or only the rows with a {@code null} sort key if {@code nullKeys} is set
+     */
+    private static <T> List<T> seek(Session session, Filters filters, List<AvailableFilters> availableFilters, Class<T> clazz,
+                                    Cursor cursor, boolean nullKeys, int limit) {
+        CriteriaBuilder criteriaBuilder = session.getCriteriaBuilder();
+        CriteriaQuery<T> criteriaQuery = criteriaBuilder.createQuery(clazz);
+        Root<T> root = criteriaQuery.from(clazz);
+
+        Predicate predicate = applyFiltersToRootQuery(root, criteriaBuilder, criteriaQuery, filters, availableFilters);
+        if (nullKeys) {
+            criteriaQuery.where(criteriaBuilder.and(predicate, criteriaBuilder.isNull(keyExpression(root, filters.sort().key()))));
+        } else if (cursor != null) {
+            criteriaQuery.where(criteriaBuilder.and(predicate, seekPredicate(root, criteriaBuilder, filters.sort(), cursor)));
+        }
+
+        return session.createQuery(criteriaQuery)
+                .setMaxResults(limit)
+                .getResultList();
+    }
+
+    /**
+     * Predicate which selects the rows after the cursor in the order of {@link #orders(Root, CriteriaBuilder, Filters.Sort)}.
+     * Rows with a {@code null} sort key are sorted last, see {@code hibernate.order_by.default_null_ordering}, and are not selected
+     * after a non-null sort key.
+     * </br>
+     *
+     * The bound on the sort key ahead of the tiebreaker lets the database start a range scan of the
+     * {@code (key, id)} index at the cursor instead of filtering every row.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Predicate seekPredicate(Root<?> root, CriteriaBuilder criteriaBuilder, Filters.Sort sort, Cursor cursor) {
+        Expression<Comparable> id = keyExpression(root, ID_KEY);
+        Comparable lastId = (Comparable) cursorValue(cursor.id(), id.getJavaType());
+
+        boolean ascending = sort == null || sort.order() == Filters.SortOrder.ASC;
+        Predicate afterId = ascending ? criteriaBuilder.greaterThan(id, lastId) : criteriaBuilder.lessThan(id, lastId);
+
+        if (sort == null || ID_KEY.equals(sort.key())) {
+            return afterId;
+        }
+
+        Expression<Comparable> key = keyExpression(root, sort.key());
+        Comparable lastKey = (Comparable) cursorValue(cursor.key(), key.getJavaType());
+
+        if (lastKey == null) {
+            return criteriaBuilder.and(criteriaBuilder.isNull(key), afterId);
+        }
+
+        Predicate bound = ascending ? criteriaBuilder.greaterThanOrEqualTo(key, lastKey) : criteriaBuilder.lessThanOrEqualTo(key, lastKey);
+        Predicate afterKey = ascending ? criteriaBuilder.greaterThan(key, lastKey) : criteriaBuilder.lessThan(key, lastKey);
+        return criteriaBuilder.and(bound, criteriaBuilder.or(afterKey, criteriaBuilder.and(criteriaBuilder.equal(key, lastKey), afterId)));
+    }
+
+    /**
+     * Order by the sort key, then by id in the same direction, so that rows with the same sort key keep a stable order
+     */
+    private static List<Order> orders(Root<?> root, CriteriaBuilder criteriaBuilder, Filters.Sort sort) {
+        List<Order> orders = new ArrayList<>();
+        boolean ascending = sort == null || sort.order() == Filters.SortOrder.ASC;
+
+        if (sort != null && !ID_KEY.equals(sort.key())) {
+            orders.add(ascending ? criteriaBuilder.asc(keyExpression(root, sort.key())) : criteriaBuilder.desc(keyExpression(root, sort.key())));
+        }
+        orders.add(ascending ? criteriaBuilder.asc(keyExpression(root, ID_KEY)) : criteriaBuilder.desc(keyExpression(root, ID_KEY)));
+
+        return orders;
+    }
+
+    /**
+     * Encode the sort key and the id of the last row of a page into an opaque cursor
+     */
+    static String encodeCursor(Object key, Object id) {
+        ArrayNode cursor = JSON_MAPPER.createArrayNode();
+        cursor.add(JSON_MAPPER.valueToTree(key));
+        cursor.add(JSON_MAPPER.valueToTree(id));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.toString().getBytes(UTF_8));
+    }
+
+    /**
+     * Decode a cursor created by {@link #encodeCursor(Object, Object)}
+     *
+     * @throws IllegalArgumentException if the cursor is invalid
+     */
+    static Cursor decodeCursor(String cursor) {
+        JsonNode jsonNode;
+        try {
+            jsonNode = JSON_MAPPER.readTree(Base64.getUrlDecoder().decode(cursor));
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+
+        if (!jsonNode.isArray() || jsonNode.size() != 2 || jsonNode.get(1).isNull()) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+        return new Cursor(jsonNode.get(0), jsonNode.get(1));
+    }
+
+    private static Object cursorValue(JsonNode jsonNode, Class<?> type) {
+        if (jsonNode.isNull()) {
+            return null;
+        }
+
+        try {
+            return JSON_MAPPER.treeToValue(jsonNode, type);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Invalid cursor value: " + jsonNode);
+        }
+    }
+
+    /**
+     * Read the value of a possibly nested attribute from an entity
+     */
+    private static Object attributeValue(Object entity, String key) {
+        Object value = entity;
+        for (String name : DOT_REGEX.split(key)) {
+            if (value == null) {
+                return null;
+            }
+
+            value = Hibernate.unproxy(value);
+            try {
+                value = field(value.getClass(), name).get(value);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException("Invalid key: " + key, e);
+            }
+        }
+        return value;
+    }
+
+    private static Field field(Class<?> clazz, String name) throws NoSuchFieldException {
+        for (Class<?> current = clazz; current != null; current = current.getSuperclass()) {
+            try {
+                Field field = current.getDeclaredField(name);
+                field.setAccessible(true);
+                return field;
+            } catch (NoSuchFieldException e) {
+                // Look in the superclass
+            }
+        }
+        throw new NoSuchFieldException(name);
+    }
+
+    record Cursor(JsonNode key, JsonNode id) {
+    }
+
     private static Predicate applyFilters(Root<?> root, CriteriaBuilder criteriaBuilder, Filters saasFilter, List<AvailableFilters> validKeys) {
         return applyFiltersToRootQuery(root, criteriaBuilder, null, saasFilter, validKeys);
     }
@@ -151,7 +372,6 @@ public final class FilterService {
 
         // If the 'criteriaQuery' is not null, apply 'where' and 'order by' to the query
         if (criteriaQuery != null) {
-            List<Order> orders = new ArrayList<>();
             Filters.Sort sort = saasFilter.sort();
 
             if (sort != null) {
@@ -166,16 +386,11 @@ public final class FilterService {
                 if (!wasFound) {
                     throw new InvalidFilterKeysException(validKeys);
                 }
-
-                orders.add(sort.order() == Filters.SortOrder.ASC ? criteriaBuilder.asc(keyExpression(root, sort.key())) :
-                        criteriaBuilder.desc(root.get(sort.key())));
             }
 
             // Apply 'where' and 'order by' to the query
             criteriaQuery.where(predicate);
-            if (!orders.isEmpty()) {
-                criteriaQuery.orderBy(orders);
-            }
+            criteriaQuery.orderBy(orders(root, criteriaBuilder, sort));
         }
 
         return predicate;
@@ -284,6 +499,7 @@ public final class FilterService {
         return expression;
     }
 
+    private static final String ID_KEY = "id";
     private static final Pattern NUMBER_REGEX = Pattern.compile("-?\\d+(\\.\\d+)?");
     private static final Pattern DOT_REGEX = Pattern.compile("\\.");
     private static final Pattern HYPHEN_REGEX = Pattern.compile("-");
@@ -29,6 +29,7 @@ import java.util.Map;
 import java.util.UUID;
 
 import static java.time.temporal.ChronoUnit.HOURS;
+import static java.time.temporal.ChronoUnit.MINUTES;
 
 @Service
 public class JwtService {
@@ -66,6 +67,40 @@ public class JwtService {
                 .sign(algorithm);
     }
 
+    /**
+     * Generate a short-lived JWT with which this node authenticates its requests to the other server nodes.
+     * It is signed with the same key, but is not accepted as the JWT of a user.
+     *
+     * @param nodeId Id of this node
+     * @return the JWT
+     */
+    public String generateNodeJwt(String nodeId) {
+        return JWT.create()
+                .withIssuer("ACME Manager Server")
+                .withAudience("ACME Manager Node")
+                .withSubject(nodeId)
+                .withIssuedAt(Instant.now())
+                .withExpiresAt(Instant.now().plus(1, MINUTES))
+                .withJWTId(UUID.randomUUID().toString())
+                .sign(algorithm);
+    }
+
+    /**
+     * Check if the Authorization header value carries a JWT generated by {@link #generateNodeJwt(String)}
+     */
+    public boolean isNodeJwtValid(String bearer) {
+        try {
+            JWT.require(algorithm)
+                    .withIssuer("ACME Manager Server")
+                    .withAudience("ACME Manager Node")
+                    .build()
+                    .verify(extractToken(bearer));
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
     public DecodedJWT decodeJwt(String jwt) {
         return JWT.require(algorithm)
                 .withIssuer("ACME Manager Server")
@@ -0,0 +1,234 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Selects agents by their labels.
+ * </br>
+ *
+ * A selector is a comma separated list of requirements which must all match:
+ * <ul>
+ *     <li> {@code key=value} or {@code key==value} </li>
+ *     <li> {@code key!=value} </li>
+ *     <li> {@code key in (value1, value2)} </li>
+ *     <li> {@code key notin (value1, value2)} </li>
+ *     <li> {@code key} and {@code !key} </li>
+ * </ul>
+ * An empty selector matches every agent.
+ */
+public final class LabelSelector {
+
+    private static final Pattern KEY_PATTERN = Pattern.compile("[A-Za-z0-9]([A-Za-z0-9._/-]{0,62})");
+    private static final Pattern VALUE_PATTERN = Pattern.compile("([A-Za-z0-9][A-Za-z0-9._-]{0,62})?");
+    private static final Pattern SET_PATTERN = Pattern.compile("(\\S+)\\s+(in|notin)\\s*\\((.*)\\)");
+
+    private final List<Requirement> requirements;
+
+    private LabelSelector(List<Requirement> requirements) {
+        this.requirements = Collections.unmodifiableList(requirements);
+    }
+
+    /**
+     * Parse a label selector
+     *
+     * @param selector Selector to parse, {@code null} or blank for a selector which matches every agent
+     * @return Parsed {@link LabelSelector}
+     * @throws IllegalArgumentException if the selector is invalid
+     */
+    public static LabelSelector parse(String selector) {
+        List<Requirement> requirements = new ArrayList<>();
+        if (selector == null || selector.isBlank()) {
+            return new LabelSelector(requirements);
+        }
+
+        for (String requirement : split(selector)) {
+            requirements.add(parseRequirement(requirement.trim()));
+        }
+        return new LabelSelector(requirements);
+    }
+
+    /**
+     * Validate the labels of an agent
+     *
+     * @param labels Labels to validate
+     * @throws IllegalArgumentException if a label key or value is invalid
+     */
+    public static void validateLabels(Map<String, String> labels) {
+        for (Map.Entry<String, String> label : labels.entrySet()) {
+            checkKey(label.getKey());
+            checkValue(label.getValue());
+        }
+    }
+
+    public List<Requirement> requirements() {
+        return requirements;
+    }
+
+    /**
+     * Check if the labels match every requirement of the selector
+     */
+    public boolean matches(Map<String, String> labels) {
+        for (Requirement requirement : requirements) {
+            if (!requirement.matches(labels)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return String.join(",", requirements.stream().map(Requirement::toString).toList());
+    }
+
+    private static Requirement parseRequirement(String requirement) {
+        var setMatcher = SET_PATTERN.matcher(requirement);
+        if (setMatcher.matches()) {
+            Set<String> values = new LinkedHashSet<>();
+            for (String value : setMatcher.group(3).split(",")) {
+                values.add(checkValue(value.trim()));
+            }
+
+            Operator operator = "in".equals(setMatcher.group(2)) ? Operator.IN : Operator.NOT_IN;
+            return new Requirement(checkKey(setMatcher.group(1)), operator, values);
+        }
+
+        int index;
+        if ((index = requirement.indexOf("!=")) != -1) {
+            return new Requirement(checkKey(requirement.substring(0, index).trim()), Operator.NOT_EQUALS,
+                    Set.of(checkValue(requirement.substring(index + 2).trim())));
+        }
+        if ((index = requirement.indexOf("==")) != -1) {
+            return new Requirement(checkKey(requirement.substring(0, index).trim()), Operator.EQUALS,
+                    Set.of(checkValue(requirement.substring(index + 2).trim())));
+        }
+        if ((index = requirement.indexOf('=')) != -1) {
+            return new Requirement(checkKey(requirement.substring(0, index).trim()), Operator.EQUALS,
+                    Set.of(checkValue(requirement.substring(index + 1).trim())));
+        }
+        if (requirement.startsWith("!")) {
+            return new Requirement(checkKey(requirement.substring(1).trim()), Operator.DOES_NOT_EXIST, Set.of());
+        }
+        return new Requirement(checkKey(requirement), Operator.EXISTS, Set.of());
+    }
+
+    /**
+     * Split the selector on the commas which are not inside a set of values
+     */
+    private static List<String> split(String selector) {
+        List<String> parts = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < selector.length(); i++) {
+            char c = selector.charAt(i);
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                parts.add(selector.substring(start, i));
+                start = i + 1;
+            }
+
+            if (depth < 0 || depth > 1) {
+                throw new IllegalArgumentException("Unbalanced parentheses in label selector: " + selector);
+            }
+        }
+
+        if (depth != 0) {
+            throw new IllegalArgumentException("Unbalanced parentheses in label selector: " + selector);
+        }
+
+        parts.add(selector.substring(start));
+        return parts;
+    }
+
+    private static String checkKey(String key) {
+        if (key == null || !KEY_PATTERN.matcher(key).matches()) {
+            throw new IllegalArgumentException("Invalid label key: " + key);
+        }
+        return key;
+    }
+
+    private static String checkValue(String value) {
+        if (value == null || !VALUE_PATTERN.matcher(value).matches()) {
+            throw new IllegalArgumentException("Invalid label value: " + value);
+        }
+        return value;
+    }
+
+    public enum Operator {
+        EQUALS,
+        NOT_EQUALS,
+        IN,
+        NOT_IN,
+        EXISTS,
+        DOES_NOT_EXIST
+    }
+
+    /**
+     * Single requirement of a {@link LabelSelector}
+     *
+     * @param key      Label key
+     * @param operator Operator
+     * @param values   Values of the requirement, empty for {@link Operator#EXISTS} and {@link Operator#DOES_NOT_EXIST}
+     */
+    public record Requirement(String key, Operator operator, Set<String> values) {
+
+        /**
+         * Check if the labels match the requirement
+         */
+        public boolean matches(Map<String, String> labels) {
+            String value = labels.get(key);
+            return switch (operator) {
+                case EQUALS, IN -> value != null && values.contains(value);
+                case NOT_EQUALS, NOT_IN -> value == null || !values.contains(value);
+                case EXISTS -> value != null;
+                case DOES_NOT_EXIST -> value == null;
+            };
+        }
+
+        /**
+         * Check if only agents which have the label can match the requirement
+         */
+        public boolean isPositive() {
+            return operator == Operator.EQUALS || operator == Operator.IN || operator == Operator.EXISTS;
+        }
+
+        @Override
+        public String toString() {
+            return switch (operator) {
+                case EQUALS -> key + '=' + values.iterator().next();
+                case NOT_EQUALS -> key + "!=" + values.iterator().next();
+                case IN -> key + " in (" + String.join(",", values) + ')';
+                case NOT_IN -> key + " notin (" + String.join(",", values) + ')';
+                case EXISTS -> key;
+                case DOES_NOT_EXIST -> '!' + key;
+            };
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.server.services;
+
+/**
+ * Phi accrual failure detector, as described by Hayashibara et al.
+ * </br>
+ *
+ * Instead of a fixed timeout, the detector keeps a window of the intervals between heartbeats and computes
+ * {@code phi}, the suspicion that the monitored process has failed, from how unlikely the time since the last
+ * heartbeat is under a normal distribution of those intervals. A {@code phi} of 1 means the chance of a false
+ * positive is about 10%, 2 about 1%, 3 about 0.1% and so on.
+ * </p>
+ * Not thread safe.
+ */
+final class PhiAccrualFailureDetector {
+
+    private final long[] intervals;
+    private final long minStdDeviationMillis;
+    private final long acceptablePauseMillis;
+    private final long firstHeartbeatEstimateMillis;
+
+    private int size;
+    private int next;
+    private long sum;
+    private long squaredSum;
+    private long lastHeartbeatMillis = -1;
+
+    /**
+     * Create a new {@link PhiAccrualFailureDetector}
+     *
+     * @param windowSize            Number of intervals to keep
+     * @param minStdDeviationMillis Minimum standard deviation, so that very regular heartbeats do not make the
+     *                              detector overly sensitive
+     * @param acceptablePauseMillis Pause which is added to the mean interval before suspecting a failure
+     * @param firstHeartbeatEstimateMillis Interval which is assumed until heartbeats have been measured, so that
+     *                              a process which fails after its first heartbeat is still suspected
+     */
+    PhiAccrualFailureDetector(int windowSize, long minStdDeviationMillis, long acceptablePauseMillis, long firstHeartbeatEstimateMillis) {
+        if (windowSize <= 0 || minStdDeviationMillis <= 0 || firstHeartbeatEstimateMillis <= 0) {
+            throw new IllegalArgumentException("Window size, minimum standard deviation and first heartbeat estimate must be positive");
+        }
+
+        this.intervals = new long[windowSize];
+        this.minStdDeviationMillis = minStdDeviationMillis;
+        this.acceptablePauseMillis = acceptablePauseMillis;
+        this.firstHeartbeatEstimateMillis = firstHeartbeatEstimateMillis;
+    }
+
+    /**
+     * Record a heartbeat
+     *
+     * @param nowMillis Time of the heartbeat in milliseconds
+     */
+    void heartbeat(long nowMillis) {
+        if (lastHeartbeatMillis >= 0) {
+            add(Math.max(0, nowMillis - lastHeartbeatMillis));
+        } else {
+            // Seed the window with the estimate and a standard deviation of a quarter of it,
+            // the measured intervals replace it as the window fills up
+            long stdDeviation = firstHeartbeatEstimateMillis / 4;
+            add(firstHeartbeatEstimateMillis - stdDeviation);
+            add(firstHeartbeatEstimateMillis + stdDeviation);
+        }
+
+        lastHeartbeatMillis = nowMillis;
+    }
+
+    private void add(long interval) {
+        if (size == intervals.length) {
+            long oldest = intervals[next];
+            sum -= oldest;
+            squaredSum -= oldest * oldest;
+        } else {
+            size++;
+        }
+
+        intervals[next] = interval;
+        next = (next + 1) % intervals.length;
+        sum += interval;
+        squaredSum += interval * interval;
+    }
+
+    /**
+     * Suspicion level at the given time
+     *
+     * @param nowMillis Current time in milliseconds
+     * @return {@code phi}, {@link Double#POSITIVE_INFINITY} if no heartbeat has been recorded
+     */
+    double phi(long nowMillis) {
+        if (lastHeartbeatMillis < 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        double mean = (double) sum / size;
+        double variance = (double) squaredSum / size - mean * mean;
+        double stdDeviation = Math.max(Math.sqrt(Math.max(variance, 0)), minStdDeviationMillis);
+
+        // Logistic approximation of the cumulative distribution function of the normal distribution
+        double y = (nowMillis - lastHeartbeatMillis - (mean + acceptablePauseMillis)) / stdDeviation;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (y > 0) {
+            return -Math.log10(e / (1 + e));
+        } else {
+            return -Math.log10(1 - 1 / (1 + e));
+        }
+    }
+
+    /**
+     * Time of the last heartbeat in milliseconds, {@code -1} if no heartbeat has been recorded
+     */
+    long lastHeartbeatMillis() {
+        return lastHeartbeatMillis;
+    }
+}
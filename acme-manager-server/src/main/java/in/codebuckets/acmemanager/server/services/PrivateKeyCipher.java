@@ -0,0 +1,117 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.services;
+
+import in.codebuckets.acmemanager.server.ServiceException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Encrypts the private keys which the server keeps to deliver them to agents, so they are never stored in plaintext.
+ * </br>
+ *
+ * Keys are encrypted with AES-256-GCM under the SHA-256 of {@code agent.certificate.encryptionKey}, and stored as
+ * {@value #PREFIX} followed by the base64 of the IV and the ciphertext. Every node must be configured with the same key.
+ */
+@Component
+public class PrivateKeyCipher {
+
+    static final String PREFIX = "enc:v1:";
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH_BITS = 128;
+
+    private final SecretKeySpec secretKey;
+    private final SecureRandom secureRandom = new SecureRandom();
+
+    public PrivateKeyCipher(@Value("${agent.certificate.encryptionKey}") String encryptionKey) {
+        if (encryptionKey.isBlank()) {
+            throw new IllegalArgumentException("agent.certificate.encryptionKey must not be blank");
+        }
+
+        try {
+            secretKey = new SecretKeySpec(MessageDigest.getInstance("SHA-256").digest(encryptionKey.getBytes(UTF_8)), "AES");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Encrypt the private key
+     *
+     * @param privateKey Private key PEM
+     * @return Encrypted private key
+     */
+    public String encrypt(String privateKey) {
+        byte[] iv = new byte[IV_LENGTH];
+        secureRandom.nextBytes(iv);
+
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, secretKey, new GCMParameterSpec(TAG_LENGTH_BITS, iv));
+            byte[] ciphertext = cipher.doFinal(privateKey.getBytes(UTF_8));
+
+            return PREFIX + Base64.getEncoder().encodeToString(ByteBuffer.allocate(iv.length + ciphertext.length)
+                    .put(iv)
+                    .put(ciphertext)
+                    .array());
+        } catch (GeneralSecurityException e) {
+            throw new ServiceException("Failed to encrypt private key: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Decrypt a private key encrypted by {@link #encrypt(String)}
+     *
+     * @param encrypted Encrypted private key
+     * @return Private key PEM
+     * @throws ServiceException if the value is not encrypted or was encrypted with another key
+     */
+    public String decrypt(String encrypted) {
+        if (!isEncrypted(encrypted)) {
+            throw new ServiceException("Private key is not encrypted");
+        }
+
+        try {
+            byte[] bytes = Base64.getDecoder().decode(encrypted.substring(PREFIX.length()));
+
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, secretKey, new GCMParameterSpec(TAG_LENGTH_BITS, bytes, 0, IV_LENGTH));
+            return new String(cipher.doFinal(bytes, IV_LENGTH, bytes.length - IV_LENGTH), UTF_8);
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            throw new ServiceException("Failed to decrypt private key: " + e.getMessage());
+        }
+    }
+
+    public static boolean isEncrypted(String value) {
+        return value != null && value.startsWith(PREFIX);
+    }
+}
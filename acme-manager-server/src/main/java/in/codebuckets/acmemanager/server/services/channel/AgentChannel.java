@@ -0,0 +1,124 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.server.services.channel;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import in.codebuckets.acmemanager.common.channel.ChannelMessage;
+import in.codebuckets.acmemanager.server.ServiceException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+import reactor.util.concurrent.Queues;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Open control channel of a single agent.
+ * </br>
+ *
+ * Outgoing commands are queued in a bounded sink which is drained by the WebSocket session as fast as the
+ * agent reads them. When the queue is full, new commands fail immediately instead of buffering without limit.
+ */
+public final class AgentChannel {
+
+    private final long agentId;
+    private final Sinks.Many<ChannelMessage> outbound;
+    private final Map<String, CompletableFuture<ChannelMessage>> pendingCommands = new ConcurrentHashMap<>();
+    private volatile Instant lastSeen = Instant.now();
+
+    AgentChannel(long agentId, int queueSize) {
+        this.agentId = agentId;
+        this.outbound = Sinks.many().unicast().onBackpressureBuffer(Queues.<ChannelMessage>get(queueSize).get());
+    }
+
+    public long agentId() {
+        return agentId;
+    }
+
+    public Instant lastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * Send a command to the agent
+     *
+     * @param command Name of the command
+     * @param payload Arguments of the command
+     * @param timeout Time to wait for the acknowledgement
+     * @return {@link CompletableFuture} of the acknowledgement, which completes exceptionally
+     * if the agent rejects the command, does not acknowledge it in time or the channel is full
+     */
+    public CompletableFuture<ChannelMessage> send(String command, JsonNode payload, Duration timeout) {
+        String id = UUID.randomUUID().toString();
+        CompletableFuture<ChannelMessage> future = new CompletableFuture<>();
+        pendingCommands.put(id, future);
+
+        Sinks.EmitResult emitResult;
+        synchronized (outbound) {
+            // The sink only accepts one producer at a time
+            emitResult = outbound.tryEmitNext(ChannelMessage.command(id, command, payload));
+        }
+
+        if (emitResult.isFailure()) {
+            pendingCommands.remove(id);
+            return CompletableFuture.failedFuture(new ServiceException("Control channel of agent " + agentId + " is full or closed"));
+        }
+
+        return future.orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS)
+                .whenComplete((message, throwable) -> pendingCommands.remove(id))
+                .thenApply(message -> {
+                    if (!message.success()) {
+                        throw new ServiceException("Agent " + agentId + " rejected " + command + ": " + message.error());
+                    }
+                    return message;
+                });
+    }
+
+    Flux<ChannelMessage> outbound() {
+        return outbound.asFlux();
+    }
+
+    /**
+     * Handle a frame received from the agent
+     */
+    void receive(ChannelMessage message) {
+        lastSeen = Instant.now();
+
+        if (message.type() == ChannelMessage.Type.ACK && message.id() != null) {
+            CompletableFuture<ChannelMessage> future = pendingCommands.get(message.id());
+            if (future != null) {
+                future.complete(message);
+            }
+        }
+    }
+
+    /**
+     * Fail all pending commands and stop sending
+     */
+    void close() {
+        outbound.tryEmitComplete();
+        pendingCommands.values().forEach(future -> future.completeExceptionally(
+                new ServiceException("Control channel of agent " + agentId + " was closed")));
+        pendingCommands.clear();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.server.services.channel;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import in.codebuckets.acmemanager.common.channel.ChannelMessage;
+import in.codebuckets.acmemanager.server.jpa.Agent;
+import in.codebuckets.acmemanager.server.services.AgentRegistry;
+import in.codebuckets.acmemanager.server.services.cluster.ClusterMembership;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.socket.CloseStatus;
+import org.springframework.web.reactive.socket.WebSocketHandler;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import org.springframework.web.reactive.socket.WebSocketSession;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SynchronousSink;
+import reactor.core.scheduler.Schedulers;
+
+import static in.codebuckets.acmemanager.server.services.AgentClient.AUTH_HEADER;
+
+/**
+ * Accepts the control channels opened by the agents on {@link #CHANNEL_PATH}.
+ * </br>
+ *
+ * The agent authenticates the handshake with its token in the {@link in.codebuckets.acmemanager.server.services.AgentClient#AUTH_HEADER}
+ * header. While the channel is open the agent is marked as connected, and commands for the agent are sent over the
+ * channel instead of opening a new HTTP request to the agent.
+ * </p>
+ * The id of this node is saved as the {@link Agent#channelNodeId()} of the agent, so no node probes the agent over HTTP
+ * and overwrites its connection state while the channel is open.
+ */
+@Component
+public class AgentChannelHandler implements WebSocketHandler {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    public static final String CHANNEL_PATH = "/v1/agent/channel";
+
+    private final AgentRegistry agentRegistry;
+    private final AgentChannelRegistry agentChannelRegistry;
+    private final ClusterMembership clusterMembership;
+    private final ObjectMapper objectMapper;
+
+    public AgentChannelHandler(AgentRegistry agentRegistry, AgentChannelRegistry agentChannelRegistry, ClusterMembership clusterMembership,
+                               ObjectMapper objectMapper) {
+        this.agentRegistry = agentRegistry;
+        this.agentChannelRegistry = agentChannelRegistry;
+        this.clusterMembership = clusterMembership;
+        this.objectMapper = objectMapper;
+    }
+
+    @Override
+    public Mono<Void> handle(WebSocketSession session) {
+        String token = session.getHandshakeInfo().getHeaders().getFirst(AUTH_HEADER);
+        if (token == null || token.isBlank()) {
+            return session.close(CloseStatus.POLICY_VIOLATION);
+        }
+
+        return Mono.fromCallable(() -> agentRegistry.findByToken(token))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(optionalAgent -> optionalAgent
+                        .map(agent -> serve(session, agent))
+                        .orElseGet(() -> {
+                            logger.warn("Rejected control channel with unknown token from: {}", session.getHandshakeInfo().getRemoteAddress());
+                            return session.close(CloseStatus.POLICY_VIOLATION);
+                        }));
+    }
+
+    private Mono<Void> serve(WebSocketSession session, Agent agent) {
+        AgentChannel agentChannel = agentChannelRegistry.open(agent.id());
+        logger.info("Agent {} opened control channel", agent.name());
+
+        Mono<Void> input = session.receive()
+                .map(WebSocketMessage::getPayloadAsText)
+                .handle((String text, SynchronousSink<ChannelMessage> sink) -> {
+                    try {
+                        sink.next(objectMapper.readValue(text, ChannelMessage.class));
+                    } catch (JsonProcessingException e) {
+                        logger.warn("Ignoring invalid frame from agent {}: {}", agent.name(), e.getMessage());
+                    }
+                })
+                .doOnNext(agentChannel::receive)
+                .then();
+
+        // Closing the channel, e.g. when the agent reconnects, also closes the session
+        Mono<Void> output = session.send(agentChannel.outbound()
+                .handle((ChannelMessage message, SynchronousSink<WebSocketMessage> sink) -> {
+                    try {
+                        sink.next(session.textMessage(objectMapper.writeValueAsString(message)));
+                    } catch (JsonProcessingException e) {
+                        logger.error("Failed to serialize command for agent {}", agent.name(), e);
+                    }
+                }));
+
+        return opened(agent)
+                .then(Mono.when(input.doFinally(signal -> agentChannel.close()), output.then(Mono.defer(session::close))))
+                .onErrorResume(throwable -> {
+                    logger.warn("Control channel of agent {} failed: {}", agent.name(), throwable.getMessage());
+                    return Mono.empty();
+                })
+                .then(Mono.defer(() -> {
+                    logger.info("Agent {} closed control channel", agent.name());
+
+                    // The agent may have reconnected over a new channel in the meantime
+                    return agentChannelRegistry.close(agentChannel) ? closed(agent) : Mono.empty();
+                }));
+    }
+
+    private Mono<Void> opened(Agent agent) {
+        return Mono.fromRunnable(() -> agentRegistry.findById(agent.id()).ifPresent(current -> {
+                    current.isConnected(true);
+                    current.channelNodeId(clusterMembership.nodeId());
+                    agentRegistry.save(current);
+                }))
+                .subscribeOn(Schedulers.boundedElastic())
+                .then();
+    }
+
+    private Mono<Void> closed(Agent agent) {
+        return Mono.fromRunnable(() -> agentRegistry.findById(agent.id()).ifPresent(current -> {
+                    // The agent may have reconnected to another node in the meantime
+                    if (!clusterMembership.nodeId().equals(current.channelNodeId())) {
+                        return;
+                    }
+
+                    current.isConnected(false);
+                    current.channelNodeId(null);
+                    agentRegistry.save(current);
+                }))
+                .subscribeOn(Schedulers.boundedElastic())
+                .then();
+    }
+}
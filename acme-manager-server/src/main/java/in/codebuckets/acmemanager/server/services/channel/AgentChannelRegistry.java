@@ -0,0 +1,82 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.server.services.channel;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the open control channels by agent id
+ */
+@Component
+public class AgentChannelRegistry {
+
+    private final Map<Long, AgentChannel> channels = new ConcurrentHashMap<>();
+    private final int queueSize;
+
+    public AgentChannelRegistry(@Value("${agent.channel.queueSize:64}") int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Get the open channel of the agent
+     */
+    public Optional<AgentChannel> channel(long agentId) {
+        return Optional.ofNullable(channels.get(agentId));
+    }
+
+    /**
+     * Check if the agent has an open channel
+     */
+    public boolean isConnected(long agentId) {
+        return channels.containsKey(agentId);
+    }
+
+    /**
+     * Number of open channels
+     */
+    public int size() {
+        return channels.size();
+    }
+
+    /**
+     * Open a channel for the agent, closing the previous channel of the agent if any
+     */
+    AgentChannel open(long agentId) {
+        AgentChannel agentChannel = new AgentChannel(agentId, queueSize);
+        AgentChannel previous = channels.put(agentId, agentChannel);
+        if (previous != null) {
+            previous.close();
+        }
+        return agentChannel;
+    }
+
+    /**
+     * Close the channel, unless the agent has opened a newer one
+     *
+     * @return {@code true} if the channel was registered, {@code false} otherwise
+     */
+    boolean close(AgentChannel agentChannel) {
+        agentChannel.close();
+        return channels.remove(agentChannel.agentId(), agentChannel);
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.services.cluster;
+
+import java.util.List;
+
+/**
+ * Published when a node joins or leaves the cluster, after the ownership of keys has been rebalanced
+ *
+ * @param nodeIds Ids of the live nodes
+ */
+public record ClusterChangedEvent(List<String> nodeIds) {
+}
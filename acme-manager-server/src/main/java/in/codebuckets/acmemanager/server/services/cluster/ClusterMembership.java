@@ -0,0 +1,231 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.services.cluster;
+
+import jakarta.annotation.PreDestroy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.net.InetAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Membership of this server node in the cluster of server nodes sharing the database.
+ * </br>
+ *
+ * Every node holds a lease in the {@code cluster_nodes} table which it renews with a heartbeat. The nodes whose
+ * lease has not expired are the live nodes, and keys such as agent ids are sharded across them with a
+ * {@link HashRing}, so work which must run once per key is done by exactly one node. When a node joins or leaves,
+ * the ring is rebuilt on the next heartbeat of every node and a {@link ClusterChangedEvent} is published.
+ * </p>
+ * A node which can not renew its lease gives up every key and leadership once the lease would have expired,
+ * as the other nodes consider it dead from then on. The leader is the live node with the lowest id.
+ * </p>
+ * Every node advertises the URL at which the other nodes reach it, {@code cluster.advertisedUrl}, so work which
+ * can only be done by a certain node, such as sending a command over the control channel of an agent, can be
+ * forwarded to that node.
+ */
+@Service
+public class ClusterMembership {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private static final String HEARTBEAT = """
+            INSERT INTO cluster_nodes (id, hostname, url, started_at, heartbeat_at, lease_expires_at)
+            VALUES (?, ?, ?, now(), now(), now() + ? * INTERVAL '1 millisecond')
+            ON CONFLICT (id) DO UPDATE SET url = EXCLUDED.url, heartbeat_at = now(), lease_expires_at = EXCLUDED.lease_expires_at""";
+
+    private static final String LIVE_NODES = "SELECT id, url FROM cluster_nodes WHERE lease_expires_at > now() ORDER BY id";
+
+    private static final String PURGE = "DELETE FROM cluster_nodes WHERE lease_expires_at < now() - INTERVAL '1 hour'";
+
+    private final String nodeId = UUID.randomUUID().toString();
+    private final String hostname = hostname();
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ApplicationEventPublisher applicationEventPublisher;
+    private final Duration leaseDuration;
+    private final int virtualNodes;
+
+    /**
+     * URL at which the other nodes reach this node, defaults to the hostname and port of this node
+     */
+    @Value("${cluster.advertisedUrl:}")
+    private String advertisedUrl;
+
+    @Value("${server.port:8080}")
+    private int serverPort;
+
+    private volatile HashRing hashRing;
+
+    /**
+     * URLs of the live nodes which have advertised one, by node id
+     */
+    private volatile Map<String, String> nodeUrls = Map.of();
+
+    /**
+     * {@link System#nanoTime()} after which this node must assume that its lease has expired
+     */
+    private volatile long leaseDeadline;
+
+    public ClusterMembership(JdbcTemplate jdbcTemplate, ApplicationEventPublisher applicationEventPublisher,
+                             @Value("${cluster.leaseDuration:15s}") Duration leaseDuration,
+                             @Value("${cluster.virtualNodes:128}") int virtualNodes) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.applicationEventPublisher = applicationEventPublisher;
+        this.leaseDuration = leaseDuration;
+        this.virtualNodes = virtualNodes;
+
+        // Until the first heartbeat, this node assumes that it is the only node
+        this.hashRing = new HashRing(List.of(nodeId), virtualNodes);
+        this.leaseDeadline = System.nanoTime() + leaseDuration.toNanos();
+    }
+
+    /**
+     * Renew the lease of this node and rebuild the ring if the live nodes have changed
+     */
+    @Scheduled(initialDelay = 0, fixedDelayString = "${cluster.heartbeatIntervalSeconds:5}", timeUnit = SECONDS)
+    public void heartbeat() {
+        // The lease is measured from before the heartbeat, so this node never outlives the lease seen by the others
+        long startNanos = System.nanoTime();
+        try {
+            jdbcTemplate.update(HEARTBEAT, nodeId, hostname, url(), leaseDuration.toMillis());
+
+            List<String> liveNodeIds = new ArrayList<>();
+            Map<String, String> liveNodeUrls = new HashMap<>();
+            jdbcTemplate.query(LIVE_NODES, resultSet -> {
+                liveNodeIds.add(resultSet.getString("id"));
+                if (resultSet.getString("url") != null) {
+                    liveNodeUrls.put(resultSet.getString("id"), resultSet.getString("url"));
+                }
+            });
+            nodeUrls = liveNodeUrls;
+            apply(liveNodeIds, startNanos);
+
+            if (isLeader()) {
+                jdbcTemplate.update(PURGE);
+            }
+        } catch (Exception e) {
+            logger.error("Failed to renew the lease of cluster node: {}", nodeId, e);
+        }
+    }
+
+    /**
+     * Leave the cluster, so the other nodes take over the keys of this node with their next heartbeat
+     */
+    @PreDestroy
+    public void leave() {
+        try {
+            jdbcTemplate.update("DELETE FROM cluster_nodes WHERE id = ?", nodeId);
+        } catch (Exception e) {
+            logger.warn("Failed to leave the cluster", e);
+        }
+    }
+
+    /**
+     * Check if this node owns the key
+     *
+     * @param key Key, such as an agent id
+     * @return {@code true} if this node holds its lease and the key is assigned to it
+     */
+    public boolean owns(long key) {
+        return hasLease() && nodeId.equals(hashRing.owner(key));
+    }
+
+    /**
+     * Check if this node is the leader of the cluster, which is the live node with the lowest id
+     */
+    public boolean isLeader() {
+        List<String> nodeIds = hashRing.nodeIds();
+        return hasLease() && !nodeIds.isEmpty() && nodeIds.get(0).equals(nodeId);
+    }
+
+    /**
+     * Ids of the live nodes, in ascending order
+     */
+    public List<String> nodeIds() {
+        return hashRing.nodeIds();
+    }
+
+    public String nodeId() {
+        return nodeId;
+    }
+
+    /**
+     * URL of the node, if it is live and has advertised one
+     *
+     * @param nodeId Node id
+     * @return URL at which the node can be reached
+     */
+    public Optional<String> nodeUrl(String nodeId) {
+        return Optional.ofNullable(nodeUrls.get(nodeId));
+    }
+
+    /**
+     * Adopt the live nodes read by a heartbeat which started at {@code startNanos}
+     */
+    void apply(List<String> liveNodeIds, long startNanos) {
+        leaseDeadline = startNanos + leaseDuration.toNanos();
+
+        // The heartbeat has just renewed the lease of this node, so it is live even if the query raced with a purge
+        List<String> nodeIds = liveNodeIds.contains(nodeId) ? liveNodeIds
+                : Stream.concat(liveNodeIds.stream(), Stream.of(nodeId)).sorted().toList();
+
+        if (nodeIds.equals(hashRing.nodeIds())) {
+            return;
+        }
+
+        logger.info("Cluster membership changed from {} to {} nodes: {}", hashRing.nodeIds().size(), nodeIds.size(), nodeIds);
+        hashRing = new HashRing(nodeIds, virtualNodes);
+        applicationEventPublisher.publishEvent(new ClusterChangedEvent(nodeIds));
+    }
+
+    private String url() {
+        if (advertisedUrl != null && !advertisedUrl.isBlank()) {
+            return advertisedUrl;
+        }
+        return hostname == null ? null : "http://" + hostname + ":" + serverPort;
+    }
+
+    private boolean hasLease() {
+        return System.nanoTime() - leaseDeadline < 0;
+    }
+
+    private static String hostname() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.services.cluster;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Consistent hash ring which assigns keys to nodes.
+ * </br>
+ *
+ * Every node is placed on the ring at {@code virtualNodes} positions derived from its id, and a key is owned by
+ * the node at the first position after the hash of the key. When a node joins or leaves, only the keys next to
+ * its positions move, about {@code 1 / nodes} of all keys, and the virtual nodes spread the keys evenly.
+ * The ring only depends on the node ids, so every node computes the same owners.
+ */
+final class HashRing {
+
+    private final List<String> nodeIds;
+    private final long[] tokens;
+    private final String[] owners;
+
+    HashRing(List<String> nodeIds, int virtualNodes) {
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("Virtual nodes must be positive");
+        }
+
+        List<Position> positions = new ArrayList<>(nodeIds.size() * virtualNodes);
+        MessageDigest digest = sha256();
+        for (String nodeId : nodeIds) {
+            for (int i = 0; i < virtualNodes; i++) {
+                byte[] hash = digest.digest((nodeId + "#" + i).getBytes(UTF_8));
+                positions.add(new Position(ByteBuffer.wrap(hash).getLong(), nodeId));
+            }
+        }
+        positions.sort(Comparator.comparingLong(Position::token).thenComparing(Position::nodeId));
+
+        this.nodeIds = nodeIds.stream().sorted().distinct().toList();
+        this.tokens = new long[positions.size()];
+        this.owners = new String[positions.size()];
+        for (int i = 0; i < positions.size(); i++) {
+            tokens[i] = positions.get(i).token();
+            owners[i] = positions.get(i).nodeId();
+        }
+    }
+
+    /**
+     * Find the node which owns the key
+     *
+     * @param key Key to look up
+     * @return Id of the owning node, or {@code null} if the ring is empty
+     */
+    String owner(long key) {
+        if (tokens.length == 0) {
+            return null;
+        }
+
+        int index = Arrays.binarySearch(tokens, mix(key));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return owners[index == tokens.length ? 0 : index];
+    }
+
+    /**
+     * Ids of the nodes on the ring, in ascending order
+     */
+    List<String> nodeIds() {
+        return nodeIds;
+    }
+
+    /**
+     * Finalization mix of MurmurHash3, which spreads sequential ids such as TSIDs over the whole ring
+     */
+    static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private record Position(long token, String nodeId) {
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.services.job;
+
+import in.codebuckets.acmemanager.server.jpa.Job;
+
+/**
+ * Executes the {@link Job}s of a type. Jobs are retried when the handler throws, so handlers must be idempotent.
+ */
+public interface JobHandler {
+
+    /**
+     * Type of the jobs handled by this handler
+     */
+    String type();
+
+    /**
+     * Execute the job
+     *
+     * @param job {@link Job} to execute
+     * @throws Exception if the job has failed and should be retried
+     */
+    void handle(Job job) throws Exception;
+}
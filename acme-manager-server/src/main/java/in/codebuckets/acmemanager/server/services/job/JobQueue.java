@@ -0,0 +1,269 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.services.job;
+
+import in.codebuckets.acmemanager.server.jpa.Job;
+import in.codebuckets.acmemanager.server.jpa.JobRepository;
+import in.codebuckets.acmemanager.server.jpa.JobStatus;
+import in.codebuckets.acmemanager.server.services.cluster.ClusterMembership;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Service;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * PostgreSQL backed queue of {@link Job}s shared by every server node.
+ * </br>
+ *
+ * Jobs are claimed with {@code SELECT ... FOR UPDATE SKIP LOCKED}, so concurrent claims from different nodes never
+ * wait for each other and never claim the same job. A claimed job is leased to the node for {@code jobs.leaseDuration};
+ * jobs whose lease has expired are claimed again, and failed jobs are retried with exponential backoff until
+ * {@code maxAttempts} is reached, after which they are {@link JobStatus#DEAD}. A job whose lease expired on its last
+ * attempt is never claimed again, only {@link #reap()} moves it to {@link JobStatus#DEAD}.
+ * </p>
+ * All timestamps are taken from the database clock, so the clocks of the nodes do not need to agree.
+ */
+@Service
+public class JobQueue {
+
+    private static final String CLAIM = """
+            UPDATE jobs
+            SET status = 'RUNNING', leased_by = ?, lease_expires_at = now() + ? * INTERVAL '1 millisecond',
+                attempts = attempts + 1, updated_at = now()
+            WHERE id IN (SELECT id FROM jobs
+                         WHERE (status = 'PENDING' AND run_at <= now())
+                            OR (status = 'RUNNING' AND lease_expires_at < now() AND attempts < max_attempts)
+                         ORDER BY priority DESC, run_at, id
+                         LIMIT ?
+                         FOR UPDATE SKIP LOCKED)
+            RETURNING id, type, payload, status, priority, attempts, max_attempts, run_at, leased_by, lease_expires_at,
+                      created_at, updated_at""";
+
+    private static final String REAP = """
+            UPDATE jobs
+            SET status = 'DEAD', leased_by = NULL, lease_expires_at = NULL, last_error = 'Lease expired on the last attempt',
+                updated_at = now()
+            WHERE status = 'RUNNING' AND lease_expires_at < now() AND attempts >= max_attempts""";
+
+    private static final String RENEW = """
+            UPDATE jobs SET lease_expires_at = now() + ? * INTERVAL '1 millisecond'
+            WHERE id = ? AND status = 'RUNNING' AND leased_by = ? AND attempts = ?""";
+
+    private static final String COMPLETE = """
+            UPDATE jobs SET status = 'SUCCEEDED', leased_by = NULL, lease_expires_at = NULL, last_error = NULL, updated_at = now()
+            WHERE id = ? AND status = 'RUNNING' AND leased_by = ? AND attempts = ?""";
+
+    private static final String RETRY = """
+            UPDATE jobs
+            SET status = 'PENDING', leased_by = NULL, lease_expires_at = NULL, last_error = ?,
+                run_at = now() + ? * INTERVAL '1 millisecond', updated_at = now()
+            WHERE id = ? AND status = 'RUNNING' AND leased_by = ? AND attempts = ?""";
+
+    private static final String BURY = """
+            UPDATE jobs SET status = 'DEAD', leased_by = NULL, lease_expires_at = NULL, last_error = ?, updated_at = now()
+            WHERE id = ? AND status = 'RUNNING' AND leased_by = ? AND attempts = ?""";
+
+    private static final String RESURRECT = """
+            UPDATE jobs SET status = 'PENDING', attempts = 0, run_at = now(), last_error = NULL, updated_at = now()
+            WHERE id = ? AND status = 'DEAD'""";
+
+    private static final RowMapper<Job> JOB_ROW_MAPPER = (resultSet, rowNum) -> Job.builder()
+            .id(resultSet.getLong("id"))
+            .type(resultSet.getString("type"))
+            .payload(resultSet.getString("payload"))
+            .status(JobStatus.valueOf(resultSet.getString("status")))
+            .priority(resultSet.getInt("priority"))
+            .attempts(resultSet.getInt("attempts"))
+            .maxAttempts(resultSet.getInt("max_attempts"))
+            .runAt(toInstant(resultSet.getTimestamp("run_at")))
+            .leasedBy(resultSet.getString("leased_by"))
+            .leaseExpiresAt(toInstant(resultSet.getTimestamp("lease_expires_at")))
+            .createdAt(toInstant(resultSet.getTimestamp("created_at")))
+            .updatedAt(toInstant(resultSet.getTimestamp("updated_at")))
+            .build();
+
+    /**
+     * Identifies the leases held by this node
+     */
+    private final String nodeId;
+
+    private final JobRepository jobRepository;
+    private final JdbcTemplate jdbcTemplate;
+
+    @Value("${jobs.maxAttempts:5}")
+    private int maxAttempts;
+
+    @Value("${jobs.leaseDuration:5m}")
+    private Duration leaseDuration;
+
+    @Value("${jobs.backoff.initial:10s}")
+    private Duration initialBackoff;
+
+    @Value("${jobs.backoff.max:1h}")
+    private Duration maxBackoff;
+
+    public JobQueue(JobRepository jobRepository, JdbcTemplate jdbcTemplate, ClusterMembership clusterMembership) {
+        this.jobRepository = jobRepository;
+        this.jdbcTemplate = jdbcTemplate;
+        this.nodeId = clusterMembership.nodeId();
+    }
+
+    /**
+     * Add a job to the queue which can be claimed immediately. Its run time is taken from the database clock like
+     * every other timestamp of the queue, so a node whose clock is ahead does not delay it.
+     *
+     * @param type     Type of the job, which selects the {@link JobHandler}
+     * @param payload  Payload of the job
+     * @param priority Priority of the job, higher priorities are claimed first
+     * @return {@link Job} which was saved
+     */
+    public Job enqueue(String type, String payload, int priority) {
+        return jobRepository.save(Job.builder()
+                .type(type)
+                .payload(payload)
+                .status(JobStatus.PENDING)
+                .priority(priority)
+                .maxAttempts(maxAttempts)
+                .build());
+    }
+
+    /**
+     * Claim up to {@code limit} runnable jobs, in order of priority and run time, and lease them to this node
+     *
+     * @param limit Maximum number of jobs to claim
+     * @return Claimed {@link Job}s
+     */
+    public List<Job> claim(int limit) {
+        if (limit <= 0) {
+            return List.of();
+        }
+        return jdbcTemplate.query(CLAIM, JOB_ROW_MAPPER, nodeId, leaseDuration.toMillis(), limit);
+    }
+
+    /**
+     * Move the jobs whose lease expired on their last attempt to {@link JobStatus#DEAD}
+     *
+     * @return Number of jobs which were moved
+     */
+    public int reap() {
+        return jdbcTemplate.update(REAP);
+    }
+
+    /**
+     * Extend the lease of the jobs held by this node
+     *
+     * @param jobs {@link Job}s to renew
+     */
+    public void renew(List<Job> jobs) {
+        if (jobs.isEmpty()) {
+            return;
+        }
+
+        jdbcTemplate.batchUpdate(RENEW, jobs, jobs.size(), (preparedStatement, job) -> {
+            preparedStatement.setLong(1, leaseDuration.toMillis());
+            preparedStatement.setLong(2, job.id());
+            preparedStatement.setString(3, nodeId);
+            preparedStatement.setInt(4, job.attempts());
+        });
+    }
+
+    /**
+     * Mark the job as succeeded
+     *
+     * @param job {@link Job} to complete
+     * @return {@code true} if the job was completed, {@code false} if the lease was lost to another node
+     */
+    public boolean complete(Job job) {
+        return jdbcTemplate.update(COMPLETE, job.id(), nodeId, job.attempts()) == 1;
+    }
+
+    /**
+     * Schedule the job to be retried with backoff, or move it to {@link JobStatus#DEAD} if it has no attempts left
+     *
+     * @param job   {@link Job} which failed
+     * @param error Reason of the failure
+     * @return {@code true} if the job was updated, {@code false} if the lease was lost to another node
+     */
+    public boolean fail(Job job, String error) {
+        if (job.attempts() >= job.maxAttempts()) {
+            return bury(job, error);
+        }
+
+        long backoff = backoff(job.attempts(), initialBackoff, maxBackoff).toMillis();
+        return jdbcTemplate.update(RETRY, truncate(error), backoff, job.id(), nodeId, job.attempts()) == 1;
+    }
+
+    /**
+     * Move the job to {@link JobStatus#DEAD} without retrying it
+     *
+     * @param job   {@link Job} which failed
+     * @param error Reason of the failure
+     * @return {@code true} if the job was updated, {@code false} if the lease was lost to another node
+     */
+    public boolean bury(Job job, String error) {
+        return jdbcTemplate.update(BURY, truncate(error), job.id(), nodeId, job.attempts()) == 1;
+    }
+
+    /**
+     * Move a {@link JobStatus#DEAD} job back to the queue with a fresh set of attempts
+     *
+     * @param jobId Job id
+     * @return {@code true} if the job was dead and has been queued again
+     */
+    public boolean retry(long jobId) {
+        return jdbcTemplate.update(RESURRECT, jobId) == 1;
+    }
+
+    /**
+     * Backoff before the next attempt: {@code initial * 2^(attempts - 1)} capped at {@code max}, with the upper
+     * half randomized so that jobs which failed together do not retry together
+     *
+     * @param attempts Number of attempts made so far
+     * @param initial  Backoff after the first attempt
+     * @param max      Maximum backoff
+     * @return Backoff before the next attempt
+     */
+    static Duration backoff(int attempts, Duration initial, Duration max) {
+        int exponent = Math.min(Math.max(attempts - 1, 0), 30);
+        long backoff = Math.min(initial.toMillis() << exponent, max.toMillis());
+        if (backoff <= 0) {
+            backoff = max.toMillis();
+        }
+        long half = backoff / 2;
+        return Duration.ofMillis(half + ThreadLocalRandom.current().nextLong(backoff - half + 1));
+    }
+
+    String nodeId() {
+        return nodeId;
+    }
+
+    private static String truncate(String error) {
+        return error == null || error.length() <= 1024 ? error : error.substring(0, 1024);
+    }
+
+    private static Instant toInstant(Timestamp timestamp) {
+        return timestamp == null ? null : timestamp.toInstant();
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.services.job;
+
+import in.codebuckets.acmemanager.server.jpa.Job;
+import jakarta.annotation.PreDestroy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Claims {@link Job}s from the {@link JobQueue} and executes them with their {@link JobHandler}.
+ * </br>
+ *
+ * Every node runs a worker which keeps up to {@code jobs.concurrency} jobs in flight on virtual threads, so the
+ * throughput of the queue grows with the number of nodes. The leases of the jobs in flight are renewed while
+ * they run, so a long running job is not claimed again by another node.
+ */
+@Service
+public class JobWorker {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private final Map<Long, Job> inFlight = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final JobQueue jobQueue;
+    private final Map<String, JobHandler> handlers;
+
+    @Value("${jobs.concurrency:16}")
+    private int concurrency;
+
+    @Value("${jobs.leaseDuration:5m}")
+    private Duration leaseDuration;
+
+    private volatile long lastRenewal = System.nanoTime();
+
+    public JobWorker(JobQueue jobQueue, List<JobHandler> handlers) {
+        this.jobQueue = jobQueue;
+        this.handlers = handlers.stream().collect(Collectors.toMap(JobHandler::type, Function.identity()));
+    }
+
+    /**
+     * Renew the leases of the jobs in flight and claim as many jobs as there are free slots
+     */
+    @Scheduled(initialDelay = 1, fixedDelay = 1, timeUnit = SECONDS)
+    public void poll() {
+        try {
+            renewLeases();
+            jobQueue.reap();
+
+            while (true) {
+                int free = concurrency - inFlight.size();
+                if (free <= 0) {
+                    return;
+                }
+
+                List<Job> jobs = jobQueue.claim(free);
+                for (Job job : jobs) {
+                    inFlight.put(job.id(), job);
+                    executor.execute(() -> run(job));
+                }
+
+                // The queue has no more runnable jobs
+                if (jobs.size() < free) {
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Failed to poll jobs", e);
+        }
+    }
+
+    /**
+     * Number of jobs in flight on this node
+     */
+    public int inFlight() {
+        return inFlight.size();
+    }
+
+    @PreDestroy
+    public void stop() {
+        // Jobs which are interrupted are claimed again once their lease expires
+        executor.shutdownNow();
+    }
+
+    void run(Job job) {
+        try {
+            JobHandler handler = handlers.get(job.type());
+            if (handler == null) {
+                logger.error("No handler for job {} of type: {}", job.id(), job.type());
+                jobQueue.bury(job, "No handler for job type: " + job.type());
+                return;
+            }
+
+            handler.handle(job);
+            if (!jobQueue.complete(job)) {
+                logger.warn("Lease of job {} was lost before it completed", job.id());
+            }
+        } catch (Exception e) {
+            logger.error("Job {} of type {} failed on attempt {} of {}", job.id(), job.type(), job.attempts(), job.maxAttempts(), e);
+            try {
+                jobQueue.fail(job, e.getMessage() == null ? e.getClass().getName() : e.getMessage());
+            } catch (Exception failException) {
+                logger.error("Failed to record the failure of job {}", job.id(), failException);
+            }
+        } finally {
+            inFlight.remove(job.id());
+        }
+    }
+
+    private void renewLeases() {
+        // Leases are renewed three times per lease duration, so a single failed renewal does not lose them
+        long now = System.nanoTime();
+        if (now - lastRenewal < leaseDuration.toNanos() / 3) {
+            return;
+        }
+
+        lastRenewal = now;
+        jobQueue.renew(new ArrayList<>(inFlight.values()));
+    }
+}
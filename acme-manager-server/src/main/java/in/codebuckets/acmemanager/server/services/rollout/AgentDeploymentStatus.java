@@ -0,0 +1,51 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.services.rollout;
+
+/**
+ * Status of the deployment of a rollout to a single agent
+ */
+public enum AgentDeploymentStatus {
+
+    /**
+     * The wave of the agent has not started yet
+     */
+    PENDING,
+
+    /**
+     * The certificate is being deployed to the agent
+     */
+    IN_PROGRESS,
+
+    /**
+     * The agent has deployed the certificate
+     */
+    SUCCEEDED,
+
+    /**
+     * The agent has failed to deploy the certificate
+     */
+    FAILED,
+
+    /**
+     * The agent is not connected, the {@link in.codebuckets.acmemanager.server.services.DeliverySpool} delivers
+     * the certificate when it reconnects
+     */
+    DEFERRED
+}
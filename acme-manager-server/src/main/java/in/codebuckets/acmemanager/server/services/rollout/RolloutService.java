@@ -0,0 +1,359 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.services.rollout;
+
+import in.codebuckets.acmemanager.server.dto.AgentDeployment;
+import in.codebuckets.acmemanager.server.dto.DesiredCertificate;
+import in.codebuckets.acmemanager.server.dto.RolloutProgress;
+import in.codebuckets.acmemanager.server.dto.SyncResult;
+import in.codebuckets.acmemanager.server.jpa.Agent;
+import in.codebuckets.acmemanager.server.jpa.Rollout;
+import in.codebuckets.acmemanager.server.services.AgentRegistry;
+import in.codebuckets.acmemanager.server.services.AgentSyncService;
+import in.codebuckets.acmemanager.server.services.PrivateKeyCipher;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Rolls a certificate out to a set of agents in waves.
+ * </br>
+ *
+ * The first wave is a canary of {@code agent.rollout.canarySize} agents, and every following wave is
+ * {@code agent.rollout.waveGrowthFactor} times larger than the previous one, up to {@code agent.rollout.maxWaveSize}.
+ * At most {@code agent.rollout.waveConcurrency} agents of a wave are deployed at the same time. A wave starts only
+ * once the previous wave has completed, and if more than {@code agent.rollout.maxErrorRate} of the agents of a wave
+ * fail, the rollout is paused until an operator resumes or cancels it.
+ * </p>
+ * Deploying to an agent adds the certificate to its desired state and synchronizes it. Disconnected agents are
+ * not counted as failures, they receive the certificate with their next sync. The rollout keeps the private key
+ * encrypted with the {@link PrivateKeyCipher} until it is added to the desired state of an agent.
+ * </p>
+ * Rollouts are stored by the {@link RolloutStore}, so they can be inspected and controlled from every node. The waves
+ * are deployed by the node which holds the lease of the rollout, and a running rollout whose node has died or
+ * restarted is continued by the next node which finds its lease expired.
+ */
+@Service
+public class RolloutService {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private final AgentRegistry agentRegistry;
+    private final AgentSyncService agentSyncService;
+    private final PrivateKeyCipher privateKeyCipher;
+    private final RolloutStore rolloutStore;
+
+    @Value("${agent.rollout.canarySize:1}")
+    private int canarySize;
+
+    @Value("${agent.rollout.waveGrowthFactor:4}")
+    private double waveGrowthFactor;
+
+    @Value("${agent.rollout.maxWaveSize:1000}")
+    private int maxWaveSize;
+
+    @Value("${agent.rollout.waveConcurrency:64}")
+    private int waveConcurrency;
+
+    @Value("${agent.rollout.maxErrorRate:0.05}")
+    private double maxErrorRate;
+
+    @Value("${agent.rollout.syncTimeout:2m}")
+    private Duration syncTimeout;
+
+    @Value("${agent.rollout.history:100}")
+    private int history;
+
+    /**
+     * Rollouts whose waves are being deployed by this node
+     */
+    private final Set<Long> deploying = ConcurrentHashMap.newKeySet();
+
+    public RolloutService(AgentRegistry agentRegistry, AgentSyncService agentSyncService, PrivateKeyCipher privateKeyCipher,
+                          RolloutStore rolloutStore) {
+        this.agentRegistry = agentRegistry;
+        this.agentSyncService = agentSyncService;
+        this.privateKeyCipher = privateKeyCipher;
+        this.rolloutStore = rolloutStore;
+    }
+
+    /**
+     * Start rolling the certificate out to the agents, cancelling the unfinished rollouts of the same domain
+     *
+     * @param certificate Certificate to deploy
+     * @param agentIds    Ids of the target agents
+     * @return {@link RolloutProgress} of the new rollout
+     */
+    public RolloutProgress start(DesiredCertificate certificate, Collection<Long> agentIds) {
+        for (Long rolloutId : rolloutStore.cancelUnfinished(certificate.domain())) {
+            logger.info("Rollout {} of {} is superseded by a newer certificate", rolloutId, certificate.domain());
+        }
+
+        List<Long> sortedAgentIds = agentIds.stream().distinct().sorted().toList();
+        long rolloutId = rolloutStore.create(certificate.domain(), certificate.certificate(),
+                privateKeyCipher.encrypt(certificate.privateKey()), plan(sortedAgentIds, canarySize, waveGrowthFactor, maxWaveSize));
+        rolloutStore.prune(history);
+
+        logger.info("Starting rollout {} of {} to {} agents", rolloutId, certificate.domain(), sortedAgentIds.size());
+        deploy(rolloutId);
+        return rolloutStore.progress(rolloutId).orElseThrow();
+    }
+
+    public Optional<RolloutProgress> progress(long rolloutId) {
+        return rolloutStore.progress(rolloutId);
+    }
+
+    public List<RolloutProgress> progress() {
+        return rolloutStore.progress();
+    }
+
+    public Optional<List<AgentDeployment>> deployments(long rolloutId) {
+        return rolloutStore.deployments(rolloutId);
+    }
+
+    /**
+     * Pause the rollout once the current wave has completed
+     *
+     * @return {@code true} if the rollout was running
+     */
+    public boolean pause(long rolloutId) {
+        return rolloutStore.pause(rolloutId, "Paused by operator");
+    }
+
+    /**
+     * Resume a paused rollout with its next wave
+     *
+     * @return {@code true} if the rollout was paused
+     */
+    public boolean resume(long rolloutId) {
+        if (!rolloutStore.resume(rolloutId)) {
+            return false;
+        }
+
+        // The node which is still deploying the current wave continues with the next wave instead
+        deploy(rolloutId);
+        return true;
+    }
+
+    /**
+     * Cancel the rollout, the agents of the current wave which have already started are still deployed
+     *
+     * @return {@code true} if the rollout was running or paused
+     */
+    public boolean cancel(long rolloutId) {
+        return rolloutStore.cancel(rolloutId);
+    }
+
+    /**
+     * Renew the leases of the rollouts deployed by this node, and continue the running rollouts which are not
+     * deployed by any node
+     */
+    @Scheduled(initialDelay = 0, fixedDelayString = "${agent.rollout.renewIntervalSeconds:30}", timeUnit = SECONDS)
+    public void renewLeases() {
+        for (Long rolloutId : deploying) {
+            try {
+                if (!rolloutStore.renew(rolloutId)) {
+                    logger.warn("Lost the lease of rollout {}", rolloutId);
+                }
+            } catch (Exception e) {
+                logger.error("Failed to renew the lease of rollout {}", rolloutId, e);
+            }
+        }
+
+        try {
+            for (Long rolloutId : rolloutStore.claimAbandoned()) {
+                logger.info("Continuing rollout {} which is not deployed by any node", rolloutId);
+                deployClaimed(rolloutId);
+            }
+        } catch (Exception e) {
+            logger.error("Failed to claim the abandoned rollouts", e);
+        }
+    }
+
+    /**
+     * Split the agents into waves, starting with the canary wave and growing every wave by the growth factor
+     *
+     * @param agentIds         Ids of the agents in the order they should be deployed
+     * @param canarySize       Size of the first wave
+     * @param waveGrowthFactor Factor by which every wave is larger than the previous wave
+     * @param maxWaveSize      Maximum size of a wave
+     * @return Agent ids of every wave
+     */
+    static List<List<Long>> plan(List<Long> agentIds, int canarySize, double waveGrowthFactor, int maxWaveSize) {
+        List<List<Long>> waves = new ArrayList<>();
+        int waveSize = Math.max(1, Math.min(canarySize, maxWaveSize));
+        for (int start = 0; start < agentIds.size(); ) {
+            int end = Math.min(agentIds.size(), start + waveSize);
+            waves.add(List.copyOf(agentIds.subList(start, end)));
+            start = end;
+            waveSize = (int) Math.min(maxWaveSize, Math.max(waveSize + 1L, (long) Math.ceil(waveSize * waveGrowthFactor)));
+        }
+        return waves;
+    }
+
+    /**
+     * Deploy the waves of the rollout on a new thread, unless another node holds its lease
+     */
+    private void deploy(long rolloutId) {
+        if (rolloutStore.claim(rolloutId)) {
+            deployClaimed(rolloutId);
+        }
+    }
+
+    private void deployClaimed(long rolloutId) {
+        if (deploying.add(rolloutId)) {
+            Thread.ofVirtual()
+                    .name("Rollout-" + rolloutId)
+                    .start(() -> {
+                        try {
+                            deployWaves(rolloutId);
+                        } catch (Exception e) {
+                            // The lease expires and the rollout is continued by the next node which claims it
+                            logger.error("Failed to deploy rollout {}", rolloutId, e);
+                        } finally {
+                            deploying.remove(rolloutId);
+                        }
+                    });
+        }
+    }
+
+    private void deployWaves(long rolloutId) {
+        while (true) {
+            Optional<Rollout> optionalRollout = rolloutStore.find(rolloutId);
+            if (optionalRollout.isEmpty() || !rolloutStore.holdsLease(optionalRollout.get())) {
+                logger.warn("Rollout {} is no longer leased by this node", rolloutId);
+                return;
+            }
+
+            Rollout rollout = optionalRollout.get();
+            if (rollout.status() != RolloutStatus.RUNNING) {
+                // The lease is kept if the rollout has been resumed since it was read
+                if (rolloutStore.release(rolloutId)) {
+                    logger.info("Rollout {} of {} is {}", rolloutId, rollout.domain(), rollout.status());
+                    return;
+                }
+                continue;
+            }
+
+            int wave = rollout.nextWave();
+            if (wave >= rollout.waves()) {
+                if (rolloutStore.complete(rolloutId)) {
+                    logger.info("Rollout {} of {} is {}", rolloutId, rollout.domain(), RolloutStatus.COMPLETED);
+                    return;
+                }
+                continue;
+            }
+
+            // Agents which were deployed before the rollout was continued by this node are not deployed again
+            deployWave(rollout, rolloutStore.pendingAgents(rolloutId, wave));
+
+            String pauseReason = pauseReason(rolloutStore.waveResult(rolloutId, wave), wave, maxErrorRate);
+            if (rolloutStore.completeWave(rolloutId, wave, pauseReason) && pauseReason != null) {
+                logger.warn("Paused rollout {} of {}: {}", rolloutId, rollout.domain(), pauseReason);
+            }
+        }
+    }
+
+    /**
+     * Reason to pause the rollout after the wave, if its error rate exceeds the threshold
+     *
+     * @return Pause reason, or {@code null} if the rollout continues
+     */
+    static String pauseReason(RolloutStore.WaveResult waveResult, int wave, double maxErrorRate) {
+        int deployed = waveResult.succeeded() + waveResult.failed();
+        double errorRate = deployed == 0 ? 0 : (double) waveResult.failed() / deployed;
+        if (errorRate > maxErrorRate) {
+            return String.format("%d of %d agents failed in wave %d", waveResult.failed(), deployed, wave);
+        }
+        return null;
+    }
+
+    private void deployWave(Rollout rollout, List<Long> wave) {
+        Semaphore semaphore = new Semaphore(waveConcurrency);
+        try (ExecutorService executorService = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Long agentId : wave) {
+                semaphore.acquireUninterruptibly();
+
+                // The rollout may have been cancelled or superseded while the agent was waiting for a slot
+                if (rolloutStore.status(rollout.id()).orElse(RolloutStatus.CANCELLED) == RolloutStatus.CANCELLED) {
+                    semaphore.release();
+                    break;
+                }
+
+                executorService.execute(() -> {
+                    try {
+                        deployAgent(rollout, agentId);
+                    } finally {
+                        semaphore.release();
+                    }
+                });
+            }
+        }
+    }
+
+    private void deployAgent(Rollout rollout, long agentId) {
+        rolloutStore.updateDeployment(rollout.id(), agentId, AgentDeploymentStatus.IN_PROGRESS, null);
+
+        try {
+            Optional<Agent> optionalAgent = agentRegistry.findById(agentId);
+            if (optionalAgent.isEmpty()) {
+                rolloutStore.updateDeployment(rollout.id(), agentId, AgentDeploymentStatus.FAILED, "Agent not found");
+                return;
+            }
+
+            Agent agent = optionalAgent.get();
+            agentSyncService.setDesiredCertificate(agent, new DesiredCertificate(rollout.domain(), rollout.certificate(),
+                    privateKeyCipher.decrypt(rollout.privateKey())));
+
+            if (!agent.isConnected()) {
+                rolloutStore.updateDeployment(rollout.id(), agentId, AgentDeploymentStatus.DEFERRED, null);
+                return;
+            }
+
+            SyncResult syncResult = agentSyncService.sync(agent).get(syncTimeout.toMillis(), TimeUnit.MILLISECONDS);
+            if (syncResult.error() != null) {
+                rolloutStore.updateDeployment(rollout.id(), agentId, AgentDeploymentStatus.FAILED, syncResult.error());
+            } else if (syncResult.failed().contains(rollout.domain().toLowerCase())) {
+                rolloutStore.updateDeployment(rollout.id(), agentId, AgentDeploymentStatus.FAILED, "Agent failed to deploy the certificate");
+            } else {
+                rolloutStore.updateDeployment(rollout.id(), agentId, AgentDeploymentStatus.SUCCEEDED, null);
+            }
+        } catch (Exception e) {
+            logger.debug("Failed to deploy rollout {} to agent {}", rollout.id(), agentId, e);
+            rolloutStore.updateDeployment(rollout.id(), agentId, AgentDeploymentStatus.FAILED,
+                    e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage());
+        }
+    }
+}
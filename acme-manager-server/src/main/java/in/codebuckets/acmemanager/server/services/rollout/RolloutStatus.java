@@ -0,0 +1,45 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.services.rollout;
+
+/**
+ * Status of a rollout
+ */
+public enum RolloutStatus {
+
+    /**
+     * Waves are being deployed
+     */
+    RUNNING,
+
+    /**
+     * Paused by an operator or because the error rate of a wave exceeded the threshold
+     */
+    PAUSED,
+
+    /**
+     * Every wave has been deployed
+     */
+    COMPLETED,
+
+    /**
+     * Cancelled by an operator or superseded by a newer rollout of the same domain
+     */
+    CANCELLED
+}
@@ -0,0 +1,388 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.services.rollout;
+
+import in.codebuckets.acmemanager.server.dto.AgentDeployment;
+import in.codebuckets.acmemanager.server.dto.RolloutProgress;
+import in.codebuckets.acmemanager.server.jpa.Rollout;
+import in.codebuckets.acmemanager.server.jpa.RolloutDeployment;
+import in.codebuckets.acmemanager.server.jpa.RolloutDeploymentRepository;
+import in.codebuckets.acmemanager.server.jpa.RolloutRepository;
+import in.codebuckets.acmemanager.server.services.cluster.ClusterMembership;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Stores the rollouts and the deployments of their agents, so that a rollout can be controlled from every node
+ * and is continued by another node if the node deploying it dies.
+ * </br>
+ *
+ * The waves of a rollout are deployed by the node which holds its lease. Every transition is a conditional update,
+ * so a rollout paused, resumed or cancelled on one node is seen by the node deploying it before its next wave.
+ */
+@Component
+class RolloutStore {
+
+    private static final String CANCEL_DOMAIN = """
+            UPDATE rollouts SET status = 'CANCELLED', private_key = NULL, completed_at = now()
+            WHERE lower(domain) = lower(?) AND status IN ('RUNNING', 'PAUSED')
+            RETURNING id""";
+
+    private static final String CLAIM = """
+            UPDATE rollouts SET leased_by = ?, lease_expires_at = now() + ? * INTERVAL '1 millisecond'
+            WHERE id = ? AND status = 'RUNNING' AND (leased_by IS NULL OR lease_expires_at < now())""";
+
+    private static final String CLAIM_ABANDONED = """
+            UPDATE rollouts SET leased_by = ?, lease_expires_at = now() + ? * INTERVAL '1 millisecond'
+            WHERE id IN (SELECT id FROM rollouts
+                         WHERE status = 'RUNNING' AND (leased_by IS NULL OR lease_expires_at < now())
+                         ORDER BY id
+                         FOR UPDATE SKIP LOCKED)
+            RETURNING id""";
+
+    private static final String RENEW = """
+            UPDATE rollouts SET lease_expires_at = now() + ? * INTERVAL '1 millisecond'
+            WHERE id = ? AND leased_by = ?""";
+
+    private static final String RELEASE = """
+            UPDATE rollouts SET leased_by = NULL, lease_expires_at = NULL
+            WHERE id = ? AND leased_by = ? AND status <> 'RUNNING'""";
+
+    private static final String PAUSE = """
+            UPDATE rollouts SET status = 'PAUSED', pause_reason = ?
+            WHERE id = ? AND status = 'RUNNING'""";
+
+    private static final String RESUME = """
+            UPDATE rollouts SET status = 'RUNNING', pause_reason = NULL
+            WHERE id = ? AND status = 'PAUSED'""";
+
+    private static final String CANCEL = """
+            UPDATE rollouts SET status = 'CANCELLED', private_key = NULL, completed_at = now()
+            WHERE id = ? AND status IN ('RUNNING', 'PAUSED')""";
+
+    private static final String COMPLETE = """
+            UPDATE rollouts SET status = 'COMPLETED', private_key = NULL, leased_by = NULL, lease_expires_at = NULL,
+                completed_at = now()
+            WHERE id = ? AND status = 'RUNNING' AND leased_by = ?""";
+
+    private static final String COMPLETE_WAVE = """
+            UPDATE rollouts
+            SET next_wave = next_wave + 1,
+                pause_reason = CASE WHEN ? AND status = 'RUNNING' THEN ? ELSE pause_reason END,
+                status = CASE WHEN ? AND status = 'RUNNING' THEN 'PAUSED' ELSE status END
+            WHERE id = ? AND next_wave = ? AND leased_by = ?""";
+
+    private static final String FIND = """
+            SELECT id, domain, certificate, private_key, status, waves, next_wave, pause_reason, leased_by, lease_expires_at,
+                   created_at, completed_at
+            FROM rollouts WHERE id = ?""";
+
+    private static final String STATUS = "SELECT status FROM rollouts WHERE id = ?";
+
+    private static final String WAVE = """
+            SELECT agent_id FROM rollout_deployments
+            WHERE rollout_id = ? AND wave = ? AND status IN ('PENDING', 'IN_PROGRESS')
+            ORDER BY agent_id""";
+
+    private static final String WAVE_COUNTS = """
+            SELECT count(*) FILTER (WHERE status = 'SUCCEEDED'), count(*) FILTER (WHERE status = 'FAILED')
+            FROM rollout_deployments WHERE rollout_id = ? AND wave = ?""";
+
+    private static final String UPDATE_DEPLOYMENT = """
+            UPDATE rollout_deployments SET status = ?, error = ? WHERE rollout_id = ? AND agent_id = ?""";
+
+    private static final String DEPLOYMENTS = """
+            SELECT agent_id, wave, status, error FROM rollout_deployments
+            WHERE rollout_id = ?
+            ORDER BY wave, agent_id""";
+
+    private static final String PROGRESS = """
+            SELECT r.id, r.domain, r.status, r.waves, r.next_wave, r.pause_reason, r.created_at, r.completed_at,
+                   count(d.id) AS agents,
+                   count(d.id) FILTER (WHERE d.status IN ('PENDING', 'IN_PROGRESS')) AS pending,
+                   count(d.id) FILTER (WHERE d.status = 'SUCCEEDED') AS succeeded,
+                   count(d.id) FILTER (WHERE d.status = 'FAILED') AS failed,
+                   count(d.id) FILTER (WHERE d.status = 'DEFERRED') AS deferred
+            FROM rollouts r LEFT JOIN rollout_deployments d ON d.rollout_id = r.id
+            """;
+
+    private static final String PRUNE_DEPLOYMENTS = """
+            DELETE FROM rollout_deployments WHERE rollout_id IN (SELECT id FROM rollouts
+                                                                 WHERE status IN ('COMPLETED', 'CANCELLED')
+                                                                 ORDER BY id DESC
+                                                                 OFFSET ?)""";
+
+    private static final String PRUNE_ROLLOUTS = """
+            DELETE FROM rollouts WHERE id IN (SELECT id FROM rollouts
+                                              WHERE status IN ('COMPLETED', 'CANCELLED')
+                                              ORDER BY id DESC
+                                              OFFSET ?)""";
+
+    private static final RowMapper<Rollout> ROLLOUT_ROW_MAPPER = (resultSet, rowNum) -> Rollout.builder()
+            .id(resultSet.getLong("id"))
+            .domain(resultSet.getString("domain"))
+            .certificate(resultSet.getString("certificate"))
+            .privateKey(resultSet.getString("private_key"))
+            .status(RolloutStatus.valueOf(resultSet.getString("status")))
+            .waves(resultSet.getInt("waves"))
+            .nextWave(resultSet.getInt("next_wave"))
+            .pauseReason(resultSet.getString("pause_reason"))
+            .leasedBy(resultSet.getString("leased_by"))
+            .leaseExpiresAt(toInstant(resultSet.getTimestamp("lease_expires_at")))
+            .createdAt(toInstant(resultSet.getTimestamp("created_at")))
+            .completedAt(toInstant(resultSet.getTimestamp("completed_at")))
+            .build();
+
+    private static final RowMapper<RolloutProgress> PROGRESS_ROW_MAPPER = (resultSet, rowNum) -> new RolloutProgress(
+            resultSet.getLong("id"),
+            resultSet.getString("domain"),
+            RolloutStatus.valueOf(resultSet.getString("status")),
+            resultSet.getInt("waves"),
+            resultSet.getInt("next_wave"),
+            resultSet.getInt("agents"),
+            resultSet.getInt("pending"),
+            resultSet.getInt("succeeded"),
+            resultSet.getInt("failed"),
+            resultSet.getInt("deferred"),
+            resultSet.getString("pause_reason"),
+            toInstant(resultSet.getTimestamp("created_at")),
+            toInstant(resultSet.getTimestamp("completed_at")));
+
+    private static final RowMapper<AgentDeployment> DEPLOYMENT_ROW_MAPPER = (resultSet, rowNum) -> new AgentDeployment(
+            resultSet.getLong("agent_id"),
+            resultSet.getInt("wave"),
+            AgentDeploymentStatus.valueOf(resultSet.getString("status")),
+            resultSet.getString("error"));
+
+    /**
+     * Identifies the leases held by this node
+     */
+    private final String nodeId;
+
+    private final RolloutRepository rolloutRepository;
+    private final RolloutDeploymentRepository rolloutDeploymentRepository;
+    private final JdbcTemplate jdbcTemplate;
+
+    @Value("${agent.rollout.leaseDuration:2m}")
+    private Duration leaseDuration;
+
+    RolloutStore(RolloutRepository rolloutRepository, RolloutDeploymentRepository rolloutDeploymentRepository,
+                 JdbcTemplate jdbcTemplate, ClusterMembership clusterMembership) {
+        this.rolloutRepository = rolloutRepository;
+        this.rolloutDeploymentRepository = rolloutDeploymentRepository;
+        this.jdbcTemplate = jdbcTemplate;
+        this.nodeId = clusterMembership.nodeId();
+    }
+
+    /**
+     * Save a running rollout with a pending deployment for every agent of its waves
+     *
+     * @param domain      Domain of the certificate
+     * @param certificate Certificate chain
+     * @param privateKey  Private key encrypted by the {@link in.codebuckets.acmemanager.server.services.PrivateKeyCipher}
+     * @param waves       Agent ids of every wave
+     * @return Id of the rollout
+     */
+    @Transactional
+    long create(String domain, String certificate, String privateKey, List<List<Long>> waves) {
+        Rollout rollout = rolloutRepository.save(Rollout.builder()
+                .domain(domain)
+                .certificate(certificate)
+                .privateKey(privateKey)
+                .status(RolloutStatus.RUNNING)
+                .waves(waves.size())
+                .build());
+
+        List<RolloutDeployment> deployments = new ArrayList<>();
+        for (int wave = 0; wave < waves.size(); wave++) {
+            for (Long agentId : waves.get(wave)) {
+                deployments.add(RolloutDeployment.builder()
+                        .rolloutId(rollout.id())
+                        .agentId(agentId)
+                        .wave(wave)
+                        .status(AgentDeploymentStatus.PENDING)
+                        .build());
+            }
+        }
+        rolloutDeploymentRepository.saveAll(deployments);
+
+        return rollout.id();
+    }
+
+    /**
+     * Cancel the unfinished rollouts of the domain
+     *
+     * @return Ids of the cancelled rollouts
+     */
+    List<Long> cancelUnfinished(String domain) {
+        return jdbcTemplate.queryForList(CANCEL_DOMAIN, Long.class, domain);
+    }
+
+    /**
+     * Lease the running rollout to this node, unless another node holds its lease
+     *
+     * @return {@code true} if this node has to deploy the rollout
+     */
+    boolean claim(long rolloutId) {
+        return jdbcTemplate.update(CLAIM, nodeId, leaseDuration.toMillis(), rolloutId) == 1;
+    }
+
+    /**
+     * Lease the running rollouts which are not leased, or whose node has not renewed their lease, to this node
+     *
+     * @return Ids of the claimed rollouts
+     */
+    List<Long> claimAbandoned() {
+        return jdbcTemplate.queryForList(CLAIM_ABANDONED, Long.class, nodeId, leaseDuration.toMillis());
+    }
+
+    /**
+     * Extend the lease of the rollout held by this node
+     *
+     * @return {@code false} if the lease was lost to another node
+     */
+    boolean renew(long rolloutId) {
+        return jdbcTemplate.update(RENEW, leaseDuration.toMillis(), rolloutId, nodeId) == 1;
+    }
+
+    /**
+     * Release the lease of the rollout held by this node, unless the rollout is running again
+     *
+     * @return {@code false} if the rollout has been resumed and has to be deployed further
+     */
+    boolean release(long rolloutId) {
+        return jdbcTemplate.update(RELEASE, rolloutId, nodeId) == 1;
+    }
+
+    boolean pause(long rolloutId, String reason) {
+        return jdbcTemplate.update(PAUSE, reason, rolloutId) == 1;
+    }
+
+    boolean resume(long rolloutId) {
+        return jdbcTemplate.update(RESUME, rolloutId) == 1;
+    }
+
+    boolean cancel(long rolloutId) {
+        return jdbcTemplate.update(CANCEL, rolloutId) == 1;
+    }
+
+    /**
+     * Complete the running rollout leased by this node and forget its private key
+     *
+     * @return {@code false} if the rollout is no longer running or its lease was lost
+     */
+    boolean complete(long rolloutId) {
+        return jdbcTemplate.update(COMPLETE, rolloutId, nodeId) == 1;
+    }
+
+    /**
+     * Move the rollout leased by this node to its next wave, pausing it if a pause reason is given
+     *
+     * @param rolloutId   Rollout id
+     * @param wave        Index of the wave which has been deployed
+     * @param pauseReason Reason to pause the rollout, or {@code null} to keep it running
+     * @return {@code false} if the wave has already been completed or the lease was lost
+     */
+    boolean completeWave(long rolloutId, int wave, String pauseReason) {
+        boolean pause = pauseReason != null;
+        return jdbcTemplate.update(COMPLETE_WAVE, pause, pauseReason, pause, rolloutId, wave, nodeId) == 1;
+    }
+
+    /**
+     * Whether the rollout is leased by this node
+     */
+    boolean holdsLease(Rollout rollout) {
+        return nodeId.equals(rollout.leasedBy());
+    }
+
+    Optional<Rollout> find(long rolloutId) {
+        return jdbcTemplate.query(FIND, ROLLOUT_ROW_MAPPER, rolloutId).stream().findFirst();
+    }
+
+    Optional<RolloutStatus> status(long rolloutId) {
+        return jdbcTemplate.queryForList(STATUS, String.class, rolloutId).stream().findFirst().map(RolloutStatus::valueOf);
+    }
+
+    /**
+     * Agents of the wave which have not been deployed yet, in the order they should be deployed
+     */
+    List<Long> pendingAgents(long rolloutId, int wave) {
+        return jdbcTemplate.queryForList(WAVE, Long.class, rolloutId, wave);
+    }
+
+    /**
+     * Number of agents of the wave which have succeeded and failed
+     */
+    WaveResult waveResult(long rolloutId, int wave) {
+        return jdbcTemplate.queryForObject(WAVE_COUNTS, (resultSet, rowNum) -> new WaveResult(resultSet.getInt(1), resultSet.getInt(2)),
+                rolloutId, wave);
+    }
+
+    void updateDeployment(long rolloutId, long agentId, AgentDeploymentStatus status, String error) {
+        jdbcTemplate.update(UPDATE_DEPLOYMENT, status.name(), truncate(error), rolloutId, agentId);
+    }
+
+    Optional<RolloutProgress> progress(long rolloutId) {
+        return jdbcTemplate.query(PROGRESS + "WHERE r.id = ? GROUP BY r.id", PROGRESS_ROW_MAPPER, rolloutId).stream().findFirst();
+    }
+
+    /**
+     * Progress of every rollout, newest first
+     */
+    List<RolloutProgress> progress() {
+        return jdbcTemplate.query(PROGRESS + "GROUP BY r.id ORDER BY r.id DESC", PROGRESS_ROW_MAPPER);
+    }
+
+    Optional<List<AgentDeployment>> deployments(long rolloutId) {
+        if (status(rolloutId).isEmpty()) {
+            return Optional.empty();
+        }
+        return Optional.of(jdbcTemplate.query(DEPLOYMENTS, DEPLOYMENT_ROW_MAPPER, rolloutId));
+    }
+
+    /**
+     * Delete the oldest finished rollouts beyond the newest {@code history} finished rollouts
+     */
+    @Transactional
+    void prune(int history) {
+        jdbcTemplate.update(PRUNE_DEPLOYMENTS, history);
+        jdbcTemplate.update(PRUNE_ROLLOUTS, history);
+    }
+
+    record WaveResult(int succeeded, int failed) {
+    }
+
+    private static String truncate(String error) {
+        return error == null || error.length() <= 1024 ? error : error.substring(0, 1024);
+    }
+
+    private static Instant toInstant(Timestamp timestamp) {
+        return timestamp == null ? null : timestamp.toInstant();
+    }
+}
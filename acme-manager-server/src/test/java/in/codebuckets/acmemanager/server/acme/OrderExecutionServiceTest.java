@@ -0,0 +1,361 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.acme;
+
+import in.codebuckets.acmemanager.server.ServiceException;
+import in.codebuckets.acmemanager.server.jpa.Certificate;
+import in.codebuckets.acmemanager.server.jpa.CertificateRepository;
+import in.codebuckets.acmemanager.server.jpa.CertificateStatus;
+import in.codebuckets.acmemanager.server.services.AccountService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class OrderExecutionServiceTest {
+
+    private static final String ORDER_ID = "order-1";
+
+    private static final int POOL_SIZE = 2;
+
+    private final Certificate certificate = certificate(ORDER_ID);
+
+    /**
+     * Owner and expiry of the lease of every order, as stored in the certificates table
+     */
+    private final Map<String, Lease> leases = new ConcurrentHashMap<>();
+
+    /**
+     * Orders without a row in the certificates table
+     */
+    private final Set<String> missingOrderIds = ConcurrentHashMap.newKeySet();
+
+    private AcmeService acmeService;
+    private CertificateRepository certificateRepository;
+    private PooledDataSource dataSource;
+    private OrderExecutionService orderExecutionService;
+
+    @BeforeEach
+    void setUp() {
+        acmeService = mock(AcmeService.class);
+
+        certificateRepository = mock(CertificateRepository.class);
+        when(certificateRepository.findByOrderId(ORDER_ID)).thenReturn(Optional.of(certificate));
+        when(certificateRepository.existsByOrderId(anyString())).thenAnswer(invocation -> !missingOrderIds.contains(invocation.getArgument(0)));
+
+        dataSource = new PooledDataSource(POOL_SIZE, leases, missingOrderIds);
+
+        orderExecutionService = new OrderExecutionService(acmeService, mock(AccountService.class), certificateRepository,
+                new JdbcTemplate(dataSource));
+        ReflectionTestUtils.setField(orderExecutionService, "lockWaitTimeout", Duration.ofMillis(200));
+        ReflectionTestUtils.setField(orderExecutionService, "lockPollInterval", Duration.ofMillis(10));
+        ReflectionTestUtils.setField(orderExecutionService, "leaseDuration", Duration.ofMinutes(2));
+    }
+
+    @Test
+    void execute_concurrentCallersAttachToRunningExecution() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(acmeService.executeOrder(any(), any())).thenAnswer(invocation -> {
+            started.countDown();
+            release.await(10, TimeUnit.SECONDS);
+            certificate.certificateStatus(CertificateStatus.CERTIFICATE_ISSUED);
+            return null;
+        });
+
+        List<Future<Certificate>> futures = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            futures.add(executor.submit(() -> orderExecutionService.execute(ORDER_ID)));
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            for (int i = 0; i < 10; i++) {
+                futures.add(executor.submit(() -> orderExecutionService.execute(ORDER_ID)));
+            }
+            release.countDown();
+
+            for (Future<Certificate> future : futures) {
+                assertSame(certificate, future.get(10, TimeUnit.SECONDS));
+            }
+        }
+
+        verify(acmeService, times(1)).executeOrder(any(), any());
+        assertEquals(0, orderExecutionService.running());
+        assertTrue(leases.isEmpty());
+    }
+
+    @Test
+    void execute_skipsOrderIssuedByAnotherNode() throws Exception {
+        certificate.certificateStatus(CertificateStatus.CERTIFICATE_ISSUED);
+
+        assertSame(certificate, orderExecutionService.execute(ORDER_ID));
+        verify(acmeService, never()).executeOrder(any(), any());
+    }
+
+    @Test
+    void execute_timesOutWhileAnotherNodeHoldsTheLease() throws Exception {
+        leases.put(ORDER_ID, new Lease("other-node", System.currentTimeMillis() + 60_000));
+
+        assertThrows(ServiceException.class, () -> orderExecutionService.execute(ORDER_ID));
+        verify(acmeService, never()).executeOrder(any(), any());
+        assertEquals(0, orderExecutionService.running());
+        assertEquals("other-node", leases.get(ORDER_ID).owner());
+    }
+
+    @Test
+    void execute_missingCertificate_failsWithoutWaiting() throws Exception {
+        missingOrderIds.add("missing");
+        ReflectionTestUtils.setField(orderExecutionService, "lockWaitTimeout", Duration.ofMinutes(10));
+
+        long startNanos = System.nanoTime();
+        ServiceException serviceException = assertThrows(ServiceException.class, () -> orderExecutionService.execute("missing"));
+
+        assertEquals("Certificate not found for Order ID: missing", serviceException.getMessage());
+        assertTrue(Duration.ofNanos(System.nanoTime() - startNanos).compareTo(Duration.ofSeconds(5)) < 0);
+        verify(acmeService, never()).executeOrder(any(), any());
+    }
+
+    @Test
+    void execute_claimsExpiredLeaseOfDeadNode() throws Exception {
+        leases.put(ORDER_ID, new Lease("dead-node", System.currentTimeMillis() - 1));
+
+        assertSame(certificate, orderExecutionService.execute(ORDER_ID));
+        verify(acmeService, times(1)).executeOrder(any(), any());
+        assertTrue(leases.isEmpty());
+    }
+
+    @Test
+    void execute_moreOrdersThanConnections() throws Exception {
+        int orders = POOL_SIZE * 4;
+        CountDownLatch executing = new CountDownLatch(orders);
+        when(certificateRepository.findByOrderId(anyString())).thenAnswer(invocation -> Optional.of(certificate(invocation.getArgument(0))));
+
+        // Every execution waits for all the others and saves the certificate with a connection of its own
+        when(acmeService.executeOrder(any(), any())).thenAnswer(invocation -> {
+            executing.countDown();
+            assertTrue(executing.await(10, TimeUnit.SECONDS), "Executions did not run concurrently");
+            dataSource.getConnection().close();
+            return null;
+        });
+
+        List<Future<Certificate>> futures = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < orders; i++) {
+                String orderId = "order-" + i;
+                futures.add(executor.submit(() -> orderExecutionService.execute(orderId)));
+            }
+
+            for (Future<Certificate> future : futures) {
+                future.get(20, TimeUnit.SECONDS);
+            }
+        }
+
+        verify(acmeService, times(orders)).executeOrder(any(), any());
+        assertTrue(leases.isEmpty());
+    }
+
+    @Test
+    void renewLeases_extendsLeasesOfRunningExecutions() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(acmeService.executeOrder(any(), any())).thenAnswer(invocation -> {
+            started.countDown();
+            release.await(10, TimeUnit.SECONDS);
+            return null;
+        });
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            Future<Certificate> future = executor.submit(() -> orderExecutionService.execute(ORDER_ID));
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            Lease claimed = leases.get(ORDER_ID);
+            leases.put(ORDER_ID, new Lease(claimed.owner(), System.currentTimeMillis() + 1000));
+            orderExecutionService.renewLeases();
+            assertTrue(leases.get(ORDER_ID).expiresAtMillis() > System.currentTimeMillis() + 60_000);
+
+            release.countDown();
+            future.get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static Certificate certificate(String orderId) {
+        return Certificate.builder()
+                .orderId(orderId)
+                .acmeProvider(AcmeProvider.LETS_ENCRYPT_STAGING)
+                .certificateStatus(CertificateStatus.VALIDATION_PENDING)
+                .build();
+    }
+
+    private record Lease(String owner, long expiresAtMillis) {
+    }
+
+    /**
+     * {@link DataSource} with a fixed number of connections, like a connection pool, which runs the lease statements
+     * of {@link OrderExecutionService} against {@link #leases}, matching no row for {@link #missingOrderIds}
+     */
+    private static final class PooledDataSource implements DataSource {
+
+        private final Semaphore connections;
+        private final Map<String, Lease> leases;
+        private final Set<String> missingOrderIds;
+
+        PooledDataSource(int poolSize, Map<String, Lease> leases, Set<String> missingOrderIds) {
+            this.connections = new Semaphore(poolSize);
+            this.leases = leases;
+            this.missingOrderIds = missingOrderIds;
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            try {
+                if (!connections.tryAcquire(1, TimeUnit.SECONDS)) {
+                    throw new SQLTransientConnectionException("Connection is not available, request timed out");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException(e);
+            }
+
+            boolean[] closed = new boolean[1];
+            return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class}, (proxy, method, args) ->
+                    switch (method.getName()) {
+                        case "prepareStatement" -> statement((String) args[0]);
+                        case "close" -> {
+                            if (!closed[0]) {
+                                closed[0] = true;
+                                connections.release();
+                            }
+                            yield null;
+                        }
+                        case "isClosed" -> closed[0];
+                        case "getAutoCommit" -> true;
+                        default -> null;
+                    });
+        }
+
+        private PreparedStatement statement(String sql) {
+            Map<Integer, Object> parameters = new HashMap<>();
+            return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{PreparedStatement.class}, (proxy, method, args) ->
+                    switch (method.getName()) {
+                        case "setString", "setLong", "setObject" -> {
+                            parameters.put((Integer) args[0], args[1]);
+                            yield null;
+                        }
+                        case "executeUpdate" -> executeUpdate(sql, parameters);
+                        default -> null;
+                    });
+        }
+
+        private synchronized int executeUpdate(String sql, Map<Integer, Object> parameters) {
+            long now = System.currentTimeMillis();
+            if (sql.equals(OrderExecutionService.CLAIM)) {
+                String orderId = (String) parameters.get(3);
+                Lease lease = leases.get(orderId);
+                if (missingOrderIds.contains(orderId) || lease != null && lease.expiresAtMillis() >= now) {
+                    return 0;
+                }
+                leases.put(orderId, new Lease((String) parameters.get(1), now + ((Number) parameters.get(2)).longValue()));
+                return 1;
+            } else if (sql.equals(OrderExecutionService.RENEW)) {
+                String orderId = (String) parameters.get(2);
+                Lease lease = leases.get(orderId);
+                if (lease == null || !lease.owner().equals(parameters.get(3))) {
+                    return 0;
+                }
+                leases.put(orderId, new Lease(lease.owner(), now + ((Number) parameters.get(1)).longValue()));
+                return 1;
+            } else if (sql.equals(OrderExecutionService.RELEASE)) {
+                String orderId = (String) parameters.get(1);
+                Lease lease = leases.get(orderId);
+                return lease != null && lease.owner().equals(parameters.get(2)) && leases.remove(orderId, lease) ? 1 : 0;
+            }
+            throw new UnsupportedOperationException(sql);
+        }
+
+        @Override
+        public Connection getConnection(String username, String password) throws SQLException {
+            return getConnection();
+        }
+
+        @Override
+        public java.io.PrintWriter getLogWriter() {
+            return null;
+        }
+
+        @Override
+        public void setLogWriter(java.io.PrintWriter out) {
+        }
+
+        @Override
+        public void setLoginTimeout(int seconds) {
+        }
+
+        @Override
+        public int getLoginTimeout() {
+            return 0;
+        }
+
+        @Override
+        public java.util.logging.Logger getParentLogger() {
+            return null;
+        }
+
+        @Override
+        public <T> T unwrap(Class<T> iface) throws SQLException {
+            throw new SQLException("Not a wrapper");
+        }
+
+        @Override
+        public boolean isWrapperFor(Class<?> iface) {
+            return false;
+        }
+    }
+}
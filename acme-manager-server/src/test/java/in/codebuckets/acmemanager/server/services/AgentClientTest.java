@@ -0,0 +1,177 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.server.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import in.codebuckets.acmemanager.server.dto.AgentPushStats;
+import in.codebuckets.acmemanager.server.dto.DesiredCertificate;
+import in.codebuckets.acmemanager.server.jpa.Agent;
+import in.codebuckets.acmemanager.server.jpa.AgentRepository;
+import in.codebuckets.acmemanager.server.services.channel.AgentChannelRegistry;
+import in.codebuckets.acmemanager.server.services.cluster.ClusterMembership;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static in.codebuckets.acmemanager.server.services.AgentClient.AUTH_HEADER;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class AgentClientTest {
+
+    private final Queue<String> requests = new ConcurrentLinkedQueue<>();
+    private final AgentRepository agentRepository = mock(AgentRepository.class);
+    private final AgentChannelRegistry agentChannelRegistry = new AgentChannelRegistry(64);
+    private final ClusterMembership clusterMembership = mock(ClusterMembership.class);
+    private final JwtService jwtService = new JwtService("secret");
+
+    private HttpServer httpServer;
+    private AgentClient agentClient;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        httpServer.createContext("/", exchange -> {
+            String body = new String(exchange.getRequestBody().readAllBytes(), UTF_8);
+            requests.add(exchange.getRequestMethod() + " " + exchange.getRequestURI() + " " + body);
+
+            int status = "valid-token".equals(exchange.getRequestHeaders().getFirst(AUTH_HEADER)) ? 200 : 401;
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+        });
+        // Another server node which holds the control channels of the agents
+        httpServer.createContext(AgentClient.FORWARD_PATH, exchange -> {
+            String body = new String(exchange.getRequestBody().readAllBytes(), UTF_8);
+            requests.add(exchange.getRequestMethod() + " " + exchange.getRequestURI() + " " + body);
+
+            byte[] response = "[{\"domain\":\"example.com\",\"success\":false}]".getBytes(UTF_8);
+            if (jwtService.isNodeJwtValid(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+            } else {
+                exchange.sendResponseHeaders(401, -1);
+            }
+            exchange.close();
+        });
+        httpServer.start();
+
+        when(clusterMembership.nodeId()).thenReturn("node-a");
+        when(clusterMembership.nodeUrl("node-b")).thenReturn(Optional.of("http://localhost:" + httpServer.getAddress().getPort()));
+        when(clusterMembership.nodeUrl("node-dead")).thenReturn(Optional.empty());
+
+        agentClient = new AgentClient(agentRepository, HttpClient.newHttpClient(), new ObjectMapper().findAndRegisterModules(),
+                agentChannelRegistry, clusterMembership, jwtService);
+        ReflectionTestUtils.setField(agentClient, "pushTimeout", Duration.ofSeconds(5));
+        ReflectionTestUtils.setField(agentClient, "deployTimeout", Duration.ofSeconds(30));
+    }
+
+    @AfterEach
+    void tearDown() {
+        httpServer.stop(0);
+    }
+
+    @Test
+    void pushChallenge_allAgentsAcknowledge() {
+        when(agentRepository.findAllByIsConnectedTrue()).thenReturn(List.of(agent(1L, "valid-token"), agent(2L, "valid-token")));
+
+        agentClient.pushChallenge("token", "authorization", Instant.now()).join();
+
+        assertEquals(2, requests.size());
+        assertTrue(requests.stream().allMatch(request -> request.startsWith("POST /.well-known/acme-challenge/")
+                && request.contains("\"challengeToken\":\"token\"")));
+
+        List<AgentPushStats> pushStats = agentClient.pushStats();
+        assertEquals(2, pushStats.size());
+        assertTrue(pushStats.stream().allMatch(stats -> stats.pushes() == 1 && stats.failures() == 0));
+    }
+
+    @Test
+    void pushChallenge_agentRejects_fails() {
+        when(agentRepository.findAllByIsConnectedTrue()).thenReturn(List.of(agent(1L, "valid-token"), agent(2L, "invalid-token")));
+
+        assertThrows(CompletionException.class, () -> agentClient.pushChallenge("token", "authorization", null).join());
+    }
+
+    @Test
+    void pushChallenge_noConnectedAgents_fails() {
+        when(agentRepository.findAllByIsConnectedTrue()).thenReturn(List.of());
+
+        assertThrows(CompletionException.class, () -> agentClient.pushChallenge("token", "authorization", null).join());
+    }
+
+    @Test
+    void removeChallenge() {
+        when(agentRepository.findAllByIsConnectedTrue()).thenReturn(List.of(agent(1L, "valid-token")));
+
+        agentClient.removeChallenge("token").join();
+
+        assertEquals("DELETE /.well-known/acme-challenge/?challengeToken=token ", requests.peek());
+    }
+
+    @Test
+    void deploy_channelOnAnotherNode_forwardsCommandToThatNode() {
+        Agent agent = agent(1L, "valid-token").channelNodeId("node-b");
+
+        List<String> failed = agentClient.deploy(agent, List.of(new DesiredCertificate("example.com", "certificate", "key"))).join();
+
+        assertEquals(List.of("example.com"), failed);
+        assertEquals(1, requests.size());
+        assertTrue(requests.peek().startsWith("POST " + AgentClient.FORWARD_PATH + "1 "));
+        assertTrue(requests.peek().contains("\"command\":\"DEPLOY_CERTIFICATE\""));
+        // The other node waits for the agent as long as a deployment may take, not as long as a challenge push
+        assertTrue(requests.peek().contains("\"timeoutMillis\":30000"));
+        assertEquals(1, agentClient.pushStats().get(0).pushes());
+    }
+
+    @Test
+    void pushChallenge_channelOnDeadNode_sendsHttpRequest() {
+        when(agentRepository.findAllByIsConnectedTrue()).thenReturn(List.of(agent(1L, "valid-token").channelNodeId("node-dead")));
+
+        agentClient.pushChallenge("token", "authorization", null).join();
+
+        assertEquals(1, requests.size());
+        assertTrue(requests.peek().startsWith("POST /.well-known/acme-challenge/"));
+    }
+
+    private Agent agent(long id, String token) {
+        return Agent.builder()
+                .id(id)
+                .name("agent-" + id)
+                .token(token)
+                .url("http://localhost:" + httpServer.getAddress().getPort())
+                .isConnected(true)
+                .build();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AgentLabelIndexTest {
+
+    @Test
+    void parse_supportsEqualityAndSetRequirements() {
+        LabelSelector labelSelector = LabelSelector.parse("role==edge, region in (eu-west, eu-north),tier!=gold,env notin (dev),canary,!draining");
+
+        assertEquals(6, labelSelector.requirements().size());
+        assertEquals("role=edge,region in (eu-west,eu-north),tier!=gold,env notin (dev),canary,!draining", labelSelector.toString());
+
+        assertTrue(labelSelector.matches(Map.of("role", "edge", "region", "eu-west", "env", "prod", "canary", "true")));
+        assertFalse(labelSelector.matches(Map.of("role", "edge", "region", "eu-west", "canary", "true", "draining", "true")));
+        assertFalse(labelSelector.matches(Map.of("role", "edge", "region", "us-east", "canary", "true")));
+        assertTrue(LabelSelector.parse("").matches(Map.of()));
+    }
+
+    @Test
+    void parse_rejectsInvalidSelectors() {
+        assertThrows(IllegalArgumentException.class, () -> LabelSelector.parse("region in (eu-west"));
+        assertThrows(IllegalArgumentException.class, () -> LabelSelector.parse("=edge"));
+        assertThrows(IllegalArgumentException.class, () -> LabelSelector.parse("role=edge node"));
+    }
+
+    @Test
+    void select_matchesTheSameAgentsAsTheSelector() {
+        AgentLabelIndex agentLabelIndex = new AgentLabelIndex();
+        agentLabelIndex.put(1, Map.of("role", "edge", "region", "eu-west"));
+        agentLabelIndex.put(2, Map.of("role", "edge", "region", "us-east", "canary", "true"));
+        agentLabelIndex.put(3, Map.of("role", "origin", "region", "eu-west"));
+        agentLabelIndex.put(4, Map.of());
+
+        assertEquals(Set.of(1L, 2L), agentLabelIndex.select(LabelSelector.parse("role=edge")));
+        assertEquals(Set.of(1L), agentLabelIndex.select(LabelSelector.parse("role=edge,region in (eu-west,eu-north)")));
+        assertEquals(Set.of(2L), agentLabelIndex.select(LabelSelector.parse("canary")));
+        assertEquals(Set.of(1L, 3L, 4L), agentLabelIndex.select(LabelSelector.parse("!canary")));
+        assertEquals(Set.of(3L, 4L), agentLabelIndex.select(LabelSelector.parse("role!=edge")));
+        assertEquals(Set.of(2L, 4L), agentLabelIndex.select(LabelSelector.parse("region notin (eu-west)")));
+        assertEquals(Set.of(1L, 2L, 3L, 4L), agentLabelIndex.select(LabelSelector.parse(null)));
+    }
+
+    @Test
+    void put_replacesPreviousLabels() {
+        AgentLabelIndex agentLabelIndex = new AgentLabelIndex();
+        agentLabelIndex.put(1, Map.of("role", "edge"));
+        agentLabelIndex.put(1, Map.of("role", "origin"));
+
+        assertTrue(agentLabelIndex.select(LabelSelector.parse("role=edge")).isEmpty());
+        assertEquals(Set.of(1L), agentLabelIndex.select(LabelSelector.parse("role=origin")));
+
+        agentLabelIndex.remove(1);
+        assertTrue(agentLabelIndex.select(LabelSelector.parse("role")).isEmpty());
+        assertEquals(0, agentLabelIndex.size());
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.services;
+
+import in.codebuckets.acmemanager.server.jpa.Agent;
+import in.codebuckets.acmemanager.server.jpa.AgentRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class AgentRegistryTest {
+
+    private AgentRepository agentRepository;
+    private JdbcTemplate jdbcTemplate;
+    private List<Object> events;
+    private AgentRegistry agentRegistry;
+
+    @BeforeEach
+    void setUp() {
+        agentRepository = mock(AgentRepository.class);
+        jdbcTemplate = mock(JdbcTemplate.class);
+        when(agentRepository.save(any(Agent.class))).thenAnswer(invocation -> invocation.getArgument(0));
+        events = new ArrayList<>();
+        agentRegistry = new AgentRegistry(agentRepository, jdbcTemplate, events::add, Duration.ofSeconds(1), Duration.ofSeconds(5));
+    }
+
+    @Test
+    void findByToken_answersFromMemoryOnceWarmed() {
+        when(agentRepository.findAll(any(Pageable.class))).thenReturn(new PageImpl<>(List.of(agent(1, "token-1"), agent(2, "token-2"))));
+        agentRegistry.warm();
+        agentRegistry.markComplete();
+
+        assertEquals(2, agentRegistry.size());
+        assertEquals(1L, agentRegistry.findByToken("token-1").orElseThrow().id());
+        assertEquals(2L, agentRegistry.findById(2).orElseThrow().id());
+        assertTrue(agentRegistry.findByToken("unknown").isEmpty());
+
+        verify(agentRepository, never()).findAgentByToken(anyString());
+        verify(agentRepository, never()).findById(anyLong());
+    }
+
+    @Test
+    void findByToken_fallsBackToDatabaseUntilComplete() {
+        when(agentRepository.findAgentByToken("token-1")).thenReturn(Optional.of(agent(1, "token-1")));
+
+        assertEquals(1L, agentRegistry.findByToken("token-1").orElseThrow().id());
+
+        // The agent is cached after the first lookup
+        agentRegistry.findByToken("token-1");
+        verify(agentRepository).findAgentByToken("token-1");
+    }
+
+    @Test
+    void findByToken_returnsCopies() {
+        agentRegistry.save(agent(1, "token-1"));
+
+        agentRegistry.findByToken("token-1").orElseThrow().isConnected(true);
+
+        assertFalse(agentRegistry.findByToken("token-1").orElseThrow().isConnected());
+    }
+
+    @Test
+    void save_writesThroughAndNotifiesOtherNodes() {
+        Agent agent = agentRegistry.save(agent(1, "token-1"));
+        agent.isConnected(true);
+        agentRegistry.save(agent);
+
+        verify(agentRepository).save(agent);
+        assertTrue(agentRegistry.findByToken("token-1").orElseThrow().isConnected());
+        verify(jdbcTemplate).query(eq("SELECT pg_notify(?, ?)"), any(RowCallbackHandler.class),
+                eq(AgentRegistry.CHANNEL), eq(agentRegistry.nodeId() + ":1"));
+    }
+
+    @Test
+    void saveAll_insertsInOneCallAndNotifiesOnce() {
+        when(agentRepository.saveAll(any())).thenAnswer(invocation -> invocation.getArgument(0));
+
+        List<Agent> saved = agentRegistry.saveAll(List.of(agent(1, "token-1"), agent(2, "token-2")));
+
+        assertEquals(2, saved.size());
+        assertEquals(2L, agentRegistry.findByToken("token-2").orElseThrow().id());
+        verify(jdbcTemplate).query(eq("SELECT pg_notify(?, ?)"), any(RowCallbackHandler.class),
+                eq(AgentRegistry.CHANNEL), eq(agentRegistry.nodeId() + ":1,2"));
+    }
+
+    @Test
+    void updateAll_updatesInOneBatch() {
+        agentRegistry.save(agent(1, "token-1"));
+        agentRegistry.save(agent(2, "token-2"));
+
+        Agent agent1 = agentRegistry.findById(1).orElseThrow().url("https://agent-1").isConnected(true);
+        Agent agent2 = agentRegistry.findById(2).orElseThrow().url("https://agent-2").isConnected(true);
+        agentRegistry.updateAll(List.of(agent1, agent2));
+
+        verify(jdbcTemplate).batchUpdate(anyString(), eq(List.of(agent1, agent2)), eq(2), any());
+        assertTrue(agentRegistry.findByToken("token-1").orElseThrow().isConnected());
+        assertEquals("https://agent-2", agentRegistry.findByToken("token-2").orElseThrow().url());
+    }
+
+    @Test
+    void save_publishesEventOnlyWhenAgentConnects() {
+        Agent agent = agentRegistry.save(agent(1, "token-1"));
+        assertTrue(events.isEmpty());
+
+        agentRegistry.save(agent.isConnected(true));
+        agentRegistry.save(agent.url("https://agent-1"));
+        assertEquals(List.of(new AgentConnectedEvent(1)), events);
+
+        agentRegistry.save(agent.isConnected(false));
+        agentRegistry.updateAll(List.of(agent.isConnected(true)));
+        assertEquals(List.of(new AgentConnectedEvent(1), new AgentConnectedEvent(1)), events);
+    }
+
+    @Test
+    void onNotification_reloadsAgentsChangedByOtherNodes() {
+        agentRegistry.save(agent(1, "token-1"));
+        agentRegistry.save(agent(2, "token-2"));
+        agentRegistry.markComplete();
+
+        Agent changed = agent(1, "token-3");
+        changed.updatedAt(Instant.now().plusSeconds(1));
+        when(agentRepository.findById(1L)).thenReturn(Optional.of(changed));
+        when(agentRepository.findById(2L)).thenReturn(Optional.empty());
+
+        agentRegistry.onNotification("other-node:1,2");
+
+        assertTrue(agentRegistry.findByToken("token-1").isEmpty());
+        assertEquals(1L, agentRegistry.findByToken("token-3").orElseThrow().id());
+        assertTrue(agentRegistry.findById(2).isEmpty());
+    }
+
+    @Test
+    void onNotification_ignoresOwnNotifications() {
+        agentRegistry.save(agent(1, "token-1"));
+
+        agentRegistry.onNotification(agentRegistry.nodeId() + ":1");
+
+        verify(agentRepository, never()).findById(anyLong());
+    }
+
+    private static Agent agent(long id, String token) {
+        return Agent.builder()
+                .id(id)
+                .name("agent-" + id)
+                .token(token)
+                .updatedAt(Instant.now())
+                .build();
+    }
+}
@@ -17,16 +17,44 @@
 
 package in.codebuckets.acmemanager.server.services;
 
+import com.sun.net.httpserver.HttpServer;
 import in.codebuckets.acmemanager.server.controllers.AbstractTest;
 import in.codebuckets.acmemanager.server.jpa.Agent;
+import in.codebuckets.acmemanager.server.jpa.AgentRepository;
+import in.codebuckets.acmemanager.server.services.channel.AgentChannelRegistry;
+import in.codebuckets.acmemanager.server.services.cluster.ClusterMembership;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.InjectMocks;
 import org.mockito.MockitoAnnotations;
 import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 class AgentServiceTest extends AbstractTest {
 
@@ -65,4 +93,199 @@ class AgentServiceTest extends AbstractTest {
         agent.isConnected(false);
         assertFalse(agentService.unregister(agent));
     }
+
+    @Test
+    void testWatch_checksAgentsConcurrently() throws IOException {
+        // Every healthy agent takes 500 ms to respond, and unhealthy agents never respond
+        HttpServer httpServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        httpServer.setExecutor(Executors.newCachedThreadPool());
+        httpServer.createContext("/healthy", exchange -> {
+            sleep(500);
+            // Like the agent, requests without the token are rejected
+            boolean isAuthenticated = "token".equals(exchange.getRequestHeaders().getFirst(AgentClient.AUTH_HEADER));
+            exchange.sendResponseHeaders(isAuthenticated ? 200 : 401, -1);
+            exchange.close();
+        });
+        httpServer.createContext("/unhealthy", exchange -> sleep(5000));
+        httpServer.start();
+
+        try {
+            String url = "http://localhost:" + httpServer.getAddress().getPort();
+            List<Agent> agents = new ArrayList<>();
+            for (long id = 1; id <= 20; id++) {
+                boolean isHealthy = id % 2 == 0;
+                agents.add(Agent.builder()
+                        .id(id)
+                        .name("agent-" + id)
+                        .url(url + (isHealthy ? "/healthy" : "/unhealthy"))
+                        .token("token")
+                        .isConnected(!isHealthy)
+                        .build());
+            }
+
+            AgentRepository agentRepository = mock(AgentRepository.class);
+            when(agentRepository.findAll(any(Pageable.class))).thenReturn(new PageImpl<>(agents));
+            when(agentRepository.findById(anyLong())).thenAnswer(invocation -> agents.stream()
+                    .filter(agent -> agent.id().equals(invocation.getArgument(0)))
+                    .findFirst());
+            when(agentRepository.save(any(Agent.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+            AgentRegistry agentRegistry = new AgentRegistry(agentRepository, mock(JdbcTemplate.class), event -> {
+            }, Duration.ofSeconds(1), Duration.ofSeconds(5));
+            ClusterMembership clusterMembership = mock(ClusterMembership.class);
+            when(clusterMembership.owns(anyLong())).thenReturn(true);
+
+            AgentService service = new AgentService(agentRepository, HttpClient.newHttpClient(), new AgentChannelRegistry(64), agentRegistry,
+                    clusterMembership);
+            ReflectionTestUtils.setField(service, "healthCheckConcurrency", 20);
+            ReflectionTestUtils.setField(service, "healthCheckTimeout", Duration.ofSeconds(1));
+            ReflectionTestUtils.setField(service, "healthCheckMinInterval", Duration.ofSeconds(10));
+            ReflectionTestUtils.setField(service, "healthCheckMaxInterval", Duration.ofMinutes(5));
+            ReflectionTestUtils.setField(service, "healthCheckPhiThreshold", 8.0);
+            service.watch();
+
+            long startNanos = System.nanoTime();
+            service.check().join();
+            long sweepMillis = Duration.ofNanos(System.nanoTime() - startNanos).toMillis();
+
+            // A sequential sweep would take 15 seconds
+            assertTrue(sweepMillis < 3000, "Sweep took " + sweepMillis + " ms");
+            assertEquals(20, service.elementsProcessed());
+
+            // Every agent changed state, healthy agents are connected and unhealthy agents are disconnected
+            verify(agentRepository, times(20)).save(any(Agent.class));
+            assertTrue(agents.stream().allMatch(agent -> agentRegistry.findById(agent.id()).orElseThrow().isConnected() == (agent.id() % 2 == 0)));
+
+            // The agents are not due again until the check interval has passed
+            service.watch();
+            service.check().join();
+            verify(agentRepository, times(20)).save(any(Agent.class));
+            assertTrue(service.healthStats().stream().allMatch(stats -> stats.intervalMillis() == 10_000));
+        } finally {
+            httpServer.stop(0);
+        }
+    }
+
+    @Test
+    void testCheck_disconnectsAgentWhichFailsAfterFirstHeartbeat() throws IOException {
+        AtomicBoolean isHealthy = new AtomicBoolean(true);
+        HttpServer httpServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        httpServer.createContext("/", exchange -> {
+            exchange.sendResponseHeaders(isHealthy.get() ? 200 : 503, -1);
+            exchange.close();
+        });
+        httpServer.start();
+
+        try {
+            Agent agent = Agent.builder()
+                    .id(1L)
+                    .name("agent-1")
+                    .url("http://localhost:" + httpServer.getAddress().getPort())
+                    .token("token")
+                    .isConnected(true)
+                    .build();
+
+            AgentRepository agentRepository = mock(AgentRepository.class);
+            when(agentRepository.findAll(any(Pageable.class))).thenReturn(new PageImpl<>(List.of(agent)));
+            when(agentRepository.findById(anyLong())).thenReturn(Optional.of(agent));
+            when(agentRepository.save(any(Agent.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+            AgentRegistry agentRegistry = new AgentRegistry(agentRepository, mock(JdbcTemplate.class), event -> {
+            }, Duration.ofSeconds(1), Duration.ofSeconds(5));
+            ClusterMembership clusterMembership = mock(ClusterMembership.class);
+            when(clusterMembership.owns(anyLong())).thenReturn(true);
+
+            AgentService service = new AgentService(agentRepository, HttpClient.newHttpClient(), new AgentChannelRegistry(64), agentRegistry,
+                    clusterMembership);
+            ReflectionTestUtils.setField(service, "healthCheckConcurrency", 1);
+            ReflectionTestUtils.setField(service, "healthCheckTimeout", Duration.ofSeconds(1));
+            ReflectionTestUtils.setField(service, "healthCheckMinInterval", Duration.ofMillis(100));
+            ReflectionTestUtils.setField(service, "healthCheckMaxInterval", Duration.ofMillis(100));
+            ReflectionTestUtils.setField(service, "healthCheckPhiThreshold", 8.0);
+            service.watch();
+
+            // The only heartbeat the failure detector ever sees
+            service.check().join();
+            assertTrue(agentRegistry.findById(1).orElseThrow().isConnected());
+
+            isHealthy.set(false);
+            long deadlineMillis = System.currentTimeMillis() + 5000;
+            while (agentRegistry.findById(1).orElseThrow().isConnected() && System.currentTimeMillis() < deadlineMillis) {
+                service.check().join();
+                sleep(20);
+            }
+
+            assertFalse(agentRegistry.findById(1).orElseThrow().isConnected());
+            verify(agentRepository, times(1)).save(any(Agent.class));
+        } finally {
+            httpServer.stop(0);
+        }
+    }
+
+    @Test
+    void testCheck_skipsAgentWithChannelOnAnotherNode() throws IOException {
+        AtomicInteger probes = new AtomicInteger();
+        HttpServer httpServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        httpServer.createContext("/", exchange -> {
+            probes.incrementAndGet();
+            exchange.sendResponseHeaders(401, -1);
+            exchange.close();
+        });
+        httpServer.start();
+
+        try {
+            // The agent is behind a NAT and only reachable over its channel to node-b
+            Agent agent = Agent.builder()
+                    .id(1L)
+                    .name("agent-1")
+                    .url("http://localhost:" + httpServer.getAddress().getPort())
+                    .token("token")
+                    .isConnected(true)
+                    .channelNodeId("node-b")
+                    .build();
+
+            AgentRepository agentRepository = mock(AgentRepository.class);
+            when(agentRepository.findAll(any(Pageable.class))).thenReturn(new PageImpl<>(List.of(agent)));
+            when(agentRepository.findById(anyLong())).thenReturn(Optional.of(agent));
+            when(agentRepository.save(any(Agent.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+            AgentRegistry agentRegistry = new AgentRegistry(agentRepository, mock(JdbcTemplate.class), event -> {
+            }, Duration.ofSeconds(1), Duration.ofSeconds(5));
+            ClusterMembership clusterMembership = mock(ClusterMembership.class);
+            when(clusterMembership.owns(anyLong())).thenReturn(true);
+            when(clusterMembership.nodeIds()).thenReturn(List.of("node-a", "node-b"));
+
+            AgentService service = new AgentService(agentRepository, HttpClient.newHttpClient(), new AgentChannelRegistry(64), agentRegistry,
+                    clusterMembership);
+            ReflectionTestUtils.setField(service, "healthCheckConcurrency", 1);
+            ReflectionTestUtils.setField(service, "healthCheckTimeout", Duration.ofSeconds(1));
+            ReflectionTestUtils.setField(service, "healthCheckMinInterval", Duration.ofSeconds(10));
+            ReflectionTestUtils.setField(service, "healthCheckMaxInterval", Duration.ofMinutes(5));
+            ReflectionTestUtils.setField(service, "healthCheckPhiThreshold", 8.0);
+            service.watch();
+
+            service.check().join();
+            assertEquals(0, probes.get());
+            verify(agentRepository, never()).save(any(Agent.class));
+
+            // Once node-b has left the cluster, its channel is gone and the agent is probed again
+            when(clusterMembership.nodeIds()).thenReturn(List.of("node-a"));
+            service.check().join();
+            assertEquals(1, probes.get());
+
+            Agent saved = agentRegistry.findById(1).orElseThrow();
+            assertFalse(saved.isConnected());
+            assertNull(saved.channelNodeId());
+        } finally {
+            httpServer.stop(0);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 }
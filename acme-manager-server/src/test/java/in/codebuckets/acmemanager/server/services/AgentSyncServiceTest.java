@@ -0,0 +1,214 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.server.services;
+
+import in.codebuckets.acmemanager.server.ServiceException;
+import in.codebuckets.acmemanager.server.dto.DesiredCertificate;
+import in.codebuckets.acmemanager.server.dto.SyncResult;
+import in.codebuckets.acmemanager.server.jpa.Agent;
+import in.codebuckets.acmemanager.server.jpa.AgentCertificate;
+import in.codebuckets.acmemanager.server.jpa.AgentCertificateRepository;
+import in.codebuckets.acmemanager.server.jpa.AgentRepository;
+import in.codebuckets.acmemanager.server.jpa.PendingDelivery;
+import in.codebuckets.acmemanager.server.jpa.PendingDeliveryRepository;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import static in.codebuckets.acmemanager.common.utils.FingerprintUtil.fingerprint;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class AgentSyncServiceTest {
+
+    private static final PrivateKeyCipher PRIVATE_KEY_CIPHER = new PrivateKeyCipher("secret");
+
+    // Self-signed for example.com, valid from 2026-10-19T00:57:11Z
+    private static final String CERTIFICATE = """
+            -----BEGIN CERTIFICATE-----
+            MIIBgjCCASegAwIBAgIUK0OdDtw/1gw2UeiK8p59mipk19QwCgYIKoZIzj0EAwIw
+            FjEUMBIGA1UEAwwLZXhhbXBsZS5jb20wHhcNMjYxMDE5MDA1NzExWhcNMjcwMTE3
+            MDA1NzExWjAWMRQwEgYDVQQDDAtleGFtcGxlLmNvbTBZMBMGByqGSM49AgEGCCqG
+            SM49AwEHA0IABMEl1kV5ASAe9NJy/ycCvrim84P5+SEOb9bXeYdKE4v1RxKpE0dp
+            /ssY0AauzipOyBDMvsHgcF/cqfHeJk0npEOjUzBRMB0GA1UdDgQWBBSWpF+PvMZ9
+            JuFYW2FPS2eB4V0SMzAfBgNVHSMEGDAWgBSWpF+PvMZ9JuFYW2FPS2eB4V0SMzAP
+            BgNVHRMBAf8EBTADAQH/MAoGCCqGSM49BAMCA0kAMEYCIQDjMsM/4Gahs/nNP5ai
+            sY+hpgWEeBqE4/oY9C68nQr5tgIhAKgeMH1ONSx0wY3exWilH00X9t5mxB48J3TY
+            gs53Ws0/
+            -----END CERTIFICATE-----
+            """;
+
+    @Test
+    void changed_returnsOnlyMissingAndChangedCertificates() {
+        List<AgentCertificate> desiredCertificates = List.of(
+                agentCertificate("unchanged.example.com", "certificate1"),
+                agentCertificate("changed.example.com", "certificate2"),
+                agentCertificate("missing.example.com", "certificate3"));
+
+        Map<String, String> inventory = Map.of(
+                "unchanged.example.com", fingerprint("certificate1", "key"),
+                "changed.example.com", fingerprint("old", "key"),
+                "extra.example.com", fingerprint("certificate4", "key"));
+
+        List<DesiredCertificate> changed = AgentSyncService.changed(desiredCertificates, inventory, PRIVATE_KEY_CIPHER);
+
+        assertEquals(List.of(new DesiredCertificate("changed.example.com", "certificate2", "key"),
+                new DesiredCertificate("missing.example.com", "certificate3", "key")), changed);
+    }
+
+    @Test
+    void sync_removesOnlyConfirmedPendingDeliveries() {
+        Agent agent = Agent.builder().id(1L).name("agent-1").isConnected(true).build();
+        List<AgentCertificate> desiredCertificates = List.of(
+                agentCertificate("deployed.example.com", "certificate1"),
+                agentCertificate("failed.example.com", "certificate2"));
+
+        AgentCertificateRepository agentCertificateRepository = mock(AgentCertificateRepository.class);
+        when(agentCertificateRepository.findAllByAgent(agent)).thenReturn(desiredCertificates);
+
+        PendingDeliveryRepository pendingDeliveryRepository = mock(PendingDeliveryRepository.class);
+        when(pendingDeliveryRepository.findAllByAgentId(1L)).thenReturn(List.of(
+                pendingDelivery(10L, "deployed.example.com", desiredCertificates.get(0).fingerprint()),
+                pendingDelivery(11L, "failed.example.com", desiredCertificates.get(1).fingerprint())));
+
+        AgentClient agentClient = mock(AgentClient.class);
+        when(agentClient.inventory(agent)).thenReturn(CompletableFuture.completedFuture(Map.of()));
+        when(agentClient.deploy(any(Agent.class), any())).thenReturn(CompletableFuture.completedFuture(List.of("failed.example.com")));
+
+        AgentSyncService agentSyncService = new AgentSyncService(agentCertificateRepository, mock(AgentRepository.class),
+                pendingDeliveryRepository, agentClient, PRIVATE_KEY_CIPHER);
+        SyncResult syncResult = agentSyncService.sync(agent).join();
+
+        assertEquals(1, syncResult.deployed());
+        verify(pendingDeliveryRepository).deleteDelivered(10L, desiredCertificates.get(0).fingerprint());
+        verify(pendingDeliveryRepository, never()).deleteDelivered(11L, desiredCertificates.get(1).fingerprint());
+        verify(pendingDeliveryRepository).recordFailure(1L, "Failed to deploy: failed.example.com");
+    }
+
+    @Test
+    void sync_keepsPendingDeliveriesWhenAgentIsUnreachable() {
+        Agent agent = Agent.builder().id(1L).name("agent-1").isConnected(true).build();
+
+        PendingDeliveryRepository pendingDeliveryRepository = mock(PendingDeliveryRepository.class);
+        when(pendingDeliveryRepository.findAllByAgentId(1L)).thenReturn(List.of(pendingDelivery(10L, "example.com", "fingerprint")));
+
+        AgentClient agentClient = mock(AgentClient.class);
+        when(agentClient.inventory(agent)).thenReturn(CompletableFuture.failedFuture(new IllegalStateException("Connection refused")));
+
+        AgentSyncService agentSyncService = new AgentSyncService(mock(AgentCertificateRepository.class), mock(AgentRepository.class),
+                pendingDeliveryRepository, agentClient, PRIVATE_KEY_CIPHER);
+        SyncResult syncResult = agentSyncService.sync(agent).join();
+
+        assertEquals("java.lang.IllegalStateException: Connection refused", syncResult.error());
+        verify(pendingDeliveryRepository, never()).deleteDelivered(anyLong(), anyString());
+        verify(pendingDeliveryRepository).recordFailure(1L, "java.lang.IllegalStateException: Connection refused");
+    }
+
+    @Test
+    void notBefore_parsesLeafCertificate() {
+        assertEquals(Instant.parse("2026-10-19T00:57:11Z"), AgentSyncService.notBefore(CERTIFICATE));
+        assertNull(AgentSyncService.notBefore("certificate"));
+    }
+
+    @Test
+    void setDesiredCertificate_refusesToReplaceNewerCertificate() {
+        Agent agent = Agent.builder().id(1L).name("agent-1").build();
+        AgentCertificate existing = agentCertificate("example.com", "newer");
+        existing.id(10L);
+
+        AgentCertificateRepository agentCertificateRepository = mock(AgentCertificateRepository.class);
+        when(agentCertificateRepository.findByAgentAndDomain(agent, "example.com")).thenReturn(Optional.of(existing));
+        when(agentCertificateRepository.replaceUnlessNewer(anyLong(), anyString(), anyString(), anyString(), any(), any())).thenReturn(0);
+
+        PendingDeliveryRepository pendingDeliveryRepository = mock(PendingDeliveryRepository.class);
+        AgentSyncService agentSyncService = new AgentSyncService(agentCertificateRepository, mock(AgentRepository.class),
+                pendingDeliveryRepository, mock(AgentClient.class), PRIVATE_KEY_CIPHER);
+
+        assertThrows(ServiceException.class, () -> agentSyncService.setDesiredCertificate(agent, new DesiredCertificate("example.com", CERTIFICATE, "key")));
+        verify(agentCertificateRepository).replaceUnlessNewer(eq(10L), eq(CERTIFICATE), anyString(), eq(fingerprint(CERTIFICATE, "key")),
+                eq(Instant.parse("2026-10-19T00:57:11Z")), any());
+        verify(pendingDeliveryRepository, never()).save(any());
+        assertEquals("newer", existing.certificate());
+    }
+
+    @Test
+    void setDesiredCertificate_storesPrivateKeyEncrypted() {
+        Agent agent = Agent.builder().id(1L).name("agent-1").build();
+
+        AgentCertificateRepository agentCertificateRepository = mock(AgentCertificateRepository.class);
+        when(agentCertificateRepository.save(any(AgentCertificate.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+        AgentSyncService agentSyncService = new AgentSyncService(agentCertificateRepository, mock(AgentRepository.class),
+                mock(PendingDeliveryRepository.class), mock(AgentClient.class), PRIVATE_KEY_CIPHER);
+        AgentCertificate saved = agentSyncService.setDesiredCertificate(agent, new DesiredCertificate("example.com", CERTIFICATE, "key"));
+
+        assertTrue(PrivateKeyCipher.isEncrypted(saved.privateKey()));
+        assertEquals("key", PRIVATE_KEY_CIPHER.decrypt(saved.privateKey()));
+        assertEquals(fingerprint(CERTIFICATE, "key"), saved.fingerprint());
+    }
+
+    @Test
+    void encryptPlaintextKeys_encryptsKeysStoredBeforeEncryption() {
+        AgentCertificate plaintext = agentCertificate("example.com", "certificate");
+        plaintext.id(10L);
+        plaintext.privateKey("key");
+
+        AgentCertificateRepository agentCertificateRepository = mock(AgentCertificateRepository.class);
+        when(agentCertificateRepository.findAllByPrivateKeyNotLike("enc:v1:%")).thenReturn(List.of(plaintext));
+
+        AgentSyncService agentSyncService = new AgentSyncService(agentCertificateRepository, mock(AgentRepository.class),
+                mock(PendingDeliveryRepository.class), mock(AgentClient.class), PRIVATE_KEY_CIPHER);
+        agentSyncService.encryptPlaintextKeys();
+
+        verify(agentCertificateRepository).replacePrivateKey(eq(10L), eq("key"),
+                argThat(privateKey -> "key".equals(PRIVATE_KEY_CIPHER.decrypt(privateKey))));
+    }
+
+    private static PendingDelivery pendingDelivery(long id, String domain, String fingerprint) {
+        return PendingDelivery.builder()
+                .id(id)
+                .agentId(1L)
+                .domain(domain)
+                .fingerprint(fingerprint)
+                .build();
+    }
+
+    private static AgentCertificate agentCertificate(String domain, String certificate) {
+        return AgentCertificate.builder()
+                .domain(domain)
+                .certificate(certificate)
+                .privateKey(PRIVATE_KEY_CIPHER.encrypt("key"))
+                .fingerprint(fingerprint(certificate, "key"))
+                .build();
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.services;
+
+import in.codebuckets.acmemanager.server.dto.SyncResult;
+import in.codebuckets.acmemanager.server.jpa.Agent;
+import in.codebuckets.acmemanager.server.jpa.PendingDelivery;
+import in.codebuckets.acmemanager.server.jpa.PendingDeliveryRepository;
+import in.codebuckets.acmemanager.server.services.cluster.ClusterMembership;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class DeliverySpoolTest {
+
+    private static final int AGENTS = 200;
+    private static final int CONCURRENCY = 4;
+
+    private final Set<Long> disconnectedAgentIds = ConcurrentHashMap.newKeySet();
+    private PendingDeliveryRepository pendingDeliveryRepository;
+    private AgentSyncService agentSyncService;
+    private DeliverySpool deliverySpool;
+
+    @BeforeEach
+    void setUp() {
+        pendingDeliveryRepository = mock(PendingDeliveryRepository.class);
+        when(pendingDeliveryRepository.findAllByAgentId(anyLong())).thenAnswer(invocation -> {
+            long agentId = invocation.getArgument(0);
+            return agentId % 2 == 0 ? List.of(pendingDelivery(agentId)) : List.of();
+        });
+
+        AgentRegistry agentRegistry = mock(AgentRegistry.class);
+        when(agentRegistry.findById(anyLong())).thenAnswer(invocation -> {
+            long agentId = invocation.getArgument(0);
+            return Optional.of(Agent.builder()
+                    .id(agentId)
+                    .name("agent-" + agentId)
+                    .isConnected(!disconnectedAgentIds.contains(agentId))
+                    .build());
+        });
+
+        agentSyncService = mock(AgentSyncService.class);
+        when(agentSyncService.sync(any(Agent.class))).thenAnswer(invocation -> {
+            Agent agent = invocation.getArgument(0);
+            return CompletableFuture.completedFuture(new SyncResult(agent.id(), 1, 0, 1, List.of(), null));
+        });
+
+        ClusterMembership clusterMembership = mock(ClusterMembership.class);
+        when(clusterMembership.owns(anyLong())).thenAnswer(invocation -> (long) invocation.getArgument(0) != 6);
+
+        deliverySpool = new DeliverySpool(pendingDeliveryRepository, agentRegistry, agentSyncService, clusterMembership, CONCURRENCY,
+                Duration.ofSeconds(5));
+    }
+
+    @Test
+    void drain_syncsConnectedAgentWithPendingDeliveries() throws Exception {
+        Optional<SyncResult> syncResult = deliverySpool.drain(2);
+
+        assertEquals(2L, syncResult.orElseThrow().agentId());
+    }
+
+    @Test
+    void drain_skipsAgentsWithoutPendingDeliveries() throws Exception {
+        assertTrue(deliverySpool.drain(1).isEmpty());
+        verify(agentSyncService, never()).sync(any(Agent.class));
+    }
+
+    @Test
+    void drain_skipsDisconnectedAgents() throws Exception {
+        disconnectedAgentIds.add(2L);
+
+        assertTrue(deliverySpool.drain(2).isEmpty());
+        verify(agentSyncService, never()).sync(any(Agent.class));
+    }
+
+    @Test
+    void onAgentConnected_drainsEveryAgentWithBoundedConcurrency() throws Exception {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        CountDownLatch drained = new CountDownLatch(AGENTS / 2);
+
+        when(agentSyncService.sync(any(Agent.class))).thenAnswer(invocation -> {
+            Agent agent = invocation.getArgument(0);
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            Thread.sleep(5);
+            inFlight.decrementAndGet();
+            drained.countDown();
+            return CompletableFuture.completedFuture(new SyncResult(agent.id(), 1, 0, 1, List.of(), null));
+        });
+
+        for (long agentId = 1; agentId <= AGENTS; agentId++) {
+            deliverySpool.onAgentConnected(new AgentConnectedEvent(agentId));
+        }
+
+        assertTrue(drained.await(10, TimeUnit.SECONDS));
+        assertTrue(maxInFlight.get() <= CONCURRENCY);
+    }
+
+    @Test
+    void sweep_schedulesOwnedConnectedAgentsWithPendingDeliveries() throws Exception {
+        CountDownLatch drained = new CountDownLatch(1);
+        Set<Long> syncedAgentIds = ConcurrentHashMap.newKeySet();
+        when(pendingDeliveryRepository.findAgentIds()).thenReturn(List.of(2L, 4L, 6L));
+        disconnectedAgentIds.add(4L);
+        when(agentSyncService.sync(any(Agent.class))).thenAnswer(invocation -> {
+            Agent agent = invocation.getArgument(0);
+            syncedAgentIds.add(agent.id());
+            drained.countDown();
+            return CompletableFuture.completedFuture(new SyncResult(agent.id(), 1, 0, 1, List.of(), null));
+        });
+
+        deliverySpool.sweep();
+
+        assertTrue(drained.await(10, TimeUnit.SECONDS));
+        verify(agentSyncService, after(200).never()).sync(argThat(agent -> agent.id() == 6L));
+        assertEquals(Set.of(2L), syncedAgentIds);
+    }
+
+    private static PendingDelivery pendingDelivery(long agentId) {
+        return PendingDelivery.builder()
+                .id(agentId)
+                .agentId(agentId)
+                .domain("example.com")
+                .fingerprint("fingerprint")
+                .build();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.services;
+
+import in.codebuckets.acmemanager.server.jpa.DomainRoute;
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DomainRoutingTableTest {
+
+    private static final DomainRoutingTable.Node ROOT = DomainRoutingTable.build(List.of(
+            route(1, "www.example.com", "role=web"),
+            route(2, "*.example.com", "role=edge"),
+            route(3, ".example.com", "region=eu"),
+            route(4, ".com", "tier=gold"),
+            route(5, "api.example.org", "role=api")));
+
+    @Test
+    void collect_matchesExactWildcardAndSuffixRoutes() {
+        assertEquals(Set.of("www.example.com", "*.example.com", ".example.com", ".com"), patterns("www.example.com"));
+        assertEquals(Set.of("*.example.com", ".example.com", ".com"), patterns("shop.example.com"));
+        assertEquals(Set.of(".example.com", ".com"), patterns("a.b.example.com"));
+        assertEquals(Set.of(".example.com", ".com"), patterns("example.com"));
+        assertEquals(Set.of("api.example.org"), patterns("API.example.org"));
+        assertEquals(Set.of(), patterns("www.example.net"));
+    }
+
+    @Test
+    void collect_matchesWildcardCertificateNames() {
+        assertEquals(Set.of("*.example.com", ".example.com", ".com"), patterns("*.example.com"));
+    }
+
+    @Test
+    void normalizePattern_rejectsInvalidPatterns() {
+        assertEquals("*.example.com", DomainRoutingTable.normalizePattern(" *.Example.com "));
+        assertEquals(".example.com", DomainRoutingTable.normalizePattern(".example.com"));
+        assertThrows(IllegalArgumentException.class, () -> DomainRoutingTable.normalizePattern("www.*.example.com"));
+        assertThrows(IllegalArgumentException.class, () -> DomainRoutingTable.normalizePattern("example..com"));
+        assertThrows(IllegalArgumentException.class, () -> DomainRoutingTable.normalizePattern(""));
+    }
+
+    private static Set<String> patterns(String domain) {
+        Set<DomainRoutingTable.Route> routes = new LinkedHashSet<>();
+        DomainRoutingTable.collect(ROOT, domain, routes);
+        return routes.stream().map(DomainRoutingTable.Route::pattern).collect(Collectors.toSet());
+    }
+
+    private static DomainRoute route(long id, String pattern, String selector) {
+        return DomainRoute.builder()
+                .id(id)
+                .pattern(pattern)
+                .selector(selector)
+                .build();
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.services;
+
+import in.codebuckets.acmemanager.server.AvailableFilters;
+import in.codebuckets.acmemanager.server.Filters;
+import in.codebuckets.acmemanager.server.PagedResponse;
+import in.codebuckets.acmemanager.server.acme.AcmeProvider;
+import in.codebuckets.acmemanager.server.jpa.Certificate;
+import in.codebuckets.acmemanager.server.jpa.CertificateRepository;
+import in.codebuckets.acmemanager.server.jpa.CertificateStatus;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Walks every cursor page of certificates stored in the database
+ */
+@SpringBootTest
+class FilterServiceCursorTest {
+
+    private static final int ROWS = 23;
+    private static final Instant UPDATED_AT = Instant.parse("2024-05-01T10:00:00Z");
+
+    @Autowired
+    private FilterService filterService;
+
+    @Autowired
+    private CertificateRepository certificateRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private final String orderIdPrefix = "cursor-" + UUID.randomUUID() + '-';
+    private final List<Long> ids = new ArrayList<>();
+    private final Map<Long, Instant> updatedAts = new HashMap<>();
+
+    @BeforeEach
+    void setUp() {
+        for (int i = 0; i < ROWS; i++) {
+            Certificate certificate = certificateRepository.save(Certificate.builder()
+                    .orderId(orderIdPrefix + i)
+                    .acmeProvider(AcmeProvider.LETS_ENCRYPT_STAGING)
+                    .certificateStatus(CertificateStatus.VALIDATION_PENDING)
+                    .domains(List.of("example.com"))
+                    .build());
+            ids.add(certificate.id());
+
+            // Every fourth row has no sort key, the others share one of three sort keys
+            Instant updatedAt = i % 4 == 0 ? null : UPDATED_AT.plusSeconds(i % 3);
+            jdbcTemplate.update("UPDATE certificates SET updated_at = ? WHERE id = ?",
+                    updatedAt == null ? null : Timestamp.from(updatedAt), certificate.id());
+            updatedAts.put(certificate.id(), updatedAt);
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        certificateRepository.deleteAllById(ids);
+    }
+
+    @Test
+    void cursor_returnsEveryRowOnceInAscendingOrder() {
+        Comparator<Long> byKey = Comparator.comparing(updatedAts::get, Comparator.nullsLast(Comparator.naturalOrder()));
+        assertEquals(sorted(byKey.thenComparing(Comparator.naturalOrder())), walk(Filters.SortOrder.ASC));
+    }
+
+    @Test
+    void cursor_returnsEveryRowOnceInDescendingOrder() {
+        Comparator<Long> byKey = Comparator.comparing(updatedAts::get, Comparator.nullsLast(Comparator.<Instant>reverseOrder()));
+        assertEquals(sorted(byKey.thenComparing(Comparator.reverseOrder())), walk(Filters.SortOrder.DESC));
+    }
+
+    private List<Long> walk(Filters.SortOrder order) {
+        List<Filters.Filter> filters = List.of(new Filters.Filter(Filters.Type.CONTAINS, "orderId", orderIdPrefix));
+        Filters.Sort sort = new Filters.Sort("updatedAt", order);
+
+        List<Long> walked = new ArrayList<>();
+        String cursor = "";
+        for (int page = 0; cursor != null; page++) {
+            PagedResponse<Certificate> response = filterService.filter(new Filters("", filters, 1, 4, sort, cursor),
+                    AvailableFilters.CERTIFICATE_FILTER_KEYS, Certificate.class);
+            if (page == 0) {
+                assertEquals(ROWS, response.totalElements());
+            }
+
+            response.content().forEach(certificate -> walked.add(certificate.id()));
+            cursor = response.nextCursor();
+        }
+
+        assertEquals(ROWS, new HashSet<>(walked).size());
+        return walked;
+    }
+
+    private List<Long> sorted(Comparator<Long> comparator) {
+        List<Long> sorted = new ArrayList<>(ids);
+        sorted.sort(comparator);
+        return sorted;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.services;
+
+import in.codebuckets.acmemanager.server.AvailableFilters;
+import in.codebuckets.acmemanager.server.Filters;
+import in.codebuckets.acmemanager.server.jpa.Certificate;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.List;
+
+import static in.codebuckets.acmemanager.common.json.Jackson.JSON_MAPPER;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FilterServiceTest {
+
+    @Test
+    void cursor_roundTripsSortKeyAndId() throws Exception {
+        Instant createdAt = Instant.parse("2024-05-01T10:15:30.123456Z");
+        String cursor = FilterService.encodeCursor(createdAt, 42L);
+
+        // Cursors are sent back in request bodies and query strings as-is
+        assertTrue(cursor.matches("[A-Za-z0-9_-]+"));
+
+        FilterService.Cursor decoded = FilterService.decodeCursor(cursor);
+        assertEquals(createdAt, JSON_MAPPER.treeToValue(decoded.key(), Instant.class));
+        assertEquals(42L, JSON_MAPPER.treeToValue(decoded.id(), Long.class));
+    }
+
+    @Test
+    void cursor_keepsNullSortKey() {
+        FilterService.Cursor decoded = FilterService.decodeCursor(FilterService.encodeCursor(null, 7L));
+        assertTrue(decoded.key().isNull());
+        assertEquals(7L, decoded.id().asLong());
+    }
+
+    @Test
+    void decodeCursor_rejectsInvalidCursors() {
+        assertThrows(IllegalArgumentException.class, () -> FilterService.decodeCursor("not a cursor"));
+        assertThrows(IllegalArgumentException.class, () -> FilterService.decodeCursor("e30"));
+        assertThrows(IllegalArgumentException.class, () -> FilterService.decodeCursor(FilterService.encodeCursor("key", null)));
+    }
+
+    @Test
+    void filter_rejectsEmptyPages() {
+        FilterService filterService = new FilterService(null);
+        assertThrows(IllegalArgumentException.class, () -> filterService.filter(new Filters(1, 0), AvailableFilters.CERTIFICATE_FILTER_KEYS, Certificate.class));
+        assertThrows(IllegalArgumentException.class, () -> filterService.filter(new Filters("", List.of(), 1, 0, null, ""),
+                AvailableFilters.CERTIFICATE_FILTER_KEYS, Certificate.class));
+    }
+}
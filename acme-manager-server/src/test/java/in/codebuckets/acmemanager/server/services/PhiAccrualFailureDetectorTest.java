@@ -0,0 +1,90 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.server.services;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PhiAccrualFailureDetectorTest {
+
+    @Test
+    void phi_noHeartbeat_infinite() {
+        PhiAccrualFailureDetector failureDetector = new PhiAccrualFailureDetector(10, 100, 0, 1000);
+
+        assertEquals(Double.POSITIVE_INFINITY, failureDetector.phi(0));
+    }
+
+    @Test
+    void phi_singleHeartbeat_usesFirstHeartbeatEstimate() {
+        PhiAccrualFailureDetector failureDetector = new PhiAccrualFailureDetector(10, 100, 0, 1000);
+        failureDetector.heartbeat(1000);
+
+        // A process which stops after its first heartbeat is suspected like one with regular heartbeats
+        assertTrue(failureDetector.phi(2000) < 1);
+        assertTrue(failureDetector.phi(4000) > 8);
+    }
+
+    @Test
+    void phi_growsWithTimeSinceLastHeartbeat() {
+        PhiAccrualFailureDetector failureDetector = new PhiAccrualFailureDetector(10, 100, 0, 1000);
+        for (long millis = 0; millis <= 10_000; millis += 1000) {
+            failureDetector.heartbeat(millis);
+        }
+
+        // On time
+        assertTrue(failureDetector.phi(11_000) < 1);
+
+        double late = failureDetector.phi(11_300);
+        double later = failureDetector.phi(12_000);
+        assertTrue(late > failureDetector.phi(11_000));
+        assertTrue(later > late);
+        assertTrue(later > 8);
+    }
+
+    @Test
+    void phi_acceptablePause_delaysSuspicion() {
+        PhiAccrualFailureDetector strict = new PhiAccrualFailureDetector(10, 100, 0, 1000);
+        PhiAccrualFailureDetector tolerant = new PhiAccrualFailureDetector(10, 100, 2000, 1000);
+        for (long millis = 0; millis <= 10_000; millis += 1000) {
+            strict.heartbeat(millis);
+            tolerant.heartbeat(millis);
+        }
+
+        assertTrue(strict.phi(12_000) > 8);
+        assertTrue(tolerant.phi(12_000) < 1);
+    }
+
+    @Test
+    void heartbeat_windowKeepsLatestIntervals() {
+        PhiAccrualFailureDetector failureDetector = new PhiAccrualFailureDetector(3, 100, 0, 1000);
+
+        // Slow heartbeats which fall out of the window
+        long millis = 0;
+        for (int i = 0; i < 5; i++) {
+            failureDetector.heartbeat(millis += 10_000);
+        }
+        for (int i = 0; i < 3; i++) {
+            failureDetector.heartbeat(millis += 1000);
+        }
+
+        assertEquals(millis, failureDetector.lastHeartbeatMillis());
+        assertTrue(failureDetector.phi(millis + 5000) > 8);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package in.codebuckets.acmemanager.server.services.channel;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import in.codebuckets.acmemanager.common.channel.ChannelMessage;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AgentChannelTest {
+
+    private final AgentChannelRegistry agentChannelRegistry = new AgentChannelRegistry(8);
+
+    @Test
+    void send_acknowledged_completes() {
+        AgentChannel agentChannel = agentChannelRegistry.open(1L);
+        List<ChannelMessage> outbound = new CopyOnWriteArrayList<>();
+        agentChannel.outbound().subscribe(outbound::add);
+
+        CompletableFuture<ChannelMessage> future = agentChannel.send(ChannelMessage.INVENTORY, null, Duration.ofSeconds(5));
+
+        assertEquals(1, outbound.size());
+        assertEquals(ChannelMessage.Type.COMMAND, outbound.get(0).type());
+        assertEquals(ChannelMessage.INVENTORY, outbound.get(0).command());
+
+        agentChannel.receive(ChannelMessage.ack(outbound.get(0).id(), JsonNodeFactory.instance.objectNode().put("example.com", "ABCD")));
+        assertEquals("ABCD", future.join().payload().path("example.com").asText());
+    }
+
+    @Test
+    void send_rejected_fails() {
+        AgentChannel agentChannel = agentChannelRegistry.open(1L);
+        List<ChannelMessage> outbound = new CopyOnWriteArrayList<>();
+        agentChannel.outbound().subscribe(outbound::add);
+
+        CompletableFuture<ChannelMessage> future = agentChannel.send("UNKNOWN", null, Duration.ofSeconds(5));
+        agentChannel.receive(ChannelMessage.nack(outbound.get(0).id(), "Unknown command: UNKNOWN"));
+
+        assertThrows(CompletionException.class, future::join);
+    }
+
+    @Test
+    void send_notAcknowledged_timesOut() {
+        AgentChannel agentChannel = agentChannelRegistry.open(1L);
+        agentChannel.outbound().subscribe();
+
+        assertThrows(CompletionException.class, () -> agentChannel.send(ChannelMessage.INVENTORY, null, Duration.ofMillis(50)).join());
+    }
+
+    @Test
+    void send_queueFull_failsImmediately() {
+        // Nothing drains the channel, so only the queue size of commands can be queued
+        AgentChannel agentChannel = agentChannelRegistry.open(1L);
+        for (int i = 0; i < 8; i++) {
+            assertFalse(agentChannel.send(ChannelMessage.INVENTORY, null, Duration.ofSeconds(5)).isDone());
+        }
+
+        CompletableFuture<ChannelMessage> future = agentChannel.send(ChannelMessage.INVENTORY, null, Duration.ofSeconds(5));
+        assertTrue(future.isCompletedExceptionally());
+    }
+
+    @Test
+    void open_replacesPreviousChannel() {
+        AgentChannel previous = agentChannelRegistry.open(1L);
+        previous.outbound().subscribe();
+        CompletableFuture<ChannelMessage> pending = previous.send(ChannelMessage.INVENTORY, null, Duration.ofSeconds(5));
+
+        AgentChannel current = agentChannelRegistry.open(1L);
+
+        assertThrows(CompletionException.class, pending::join);
+        assertEquals(current, agentChannelRegistry.channel(1L).orElseThrow());
+
+        // Closing the replaced channel keeps the new channel registered
+        assertFalse(agentChannelRegistry.close(previous));
+        assertTrue(agentChannelRegistry.isConnected(1L));
+
+        assertTrue(agentChannelRegistry.close(current));
+        assertFalse(agentChannelRegistry.isConnected(1L));
+    }
+}
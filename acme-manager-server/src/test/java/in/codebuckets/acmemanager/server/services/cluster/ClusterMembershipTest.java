@@ -0,0 +1,82 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.services.cluster;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+class ClusterMembershipTest {
+
+    private List<Object> events;
+    private ClusterMembership clusterMembership;
+
+    @BeforeEach
+    void setUp() {
+        events = new ArrayList<>();
+        clusterMembership = new ClusterMembership(mock(JdbcTemplate.class), events::add, Duration.ofSeconds(15), 128);
+    }
+
+    @Test
+    void owns_everyKeyUntilOtherNodesJoin() {
+        assertTrue(LongStream.range(0, 1000).allMatch(clusterMembership::owns));
+        assertTrue(clusterMembership.isLeader());
+    }
+
+    @Test
+    void apply_shardsKeysAcrossLiveNodes() {
+        String other = "00000000-0000-0000-0000-000000000000";
+        clusterMembership.apply(List.of(other, clusterMembership.nodeId()), System.nanoTime());
+
+        long owned = LongStream.range(0, 10_000).filter(clusterMembership::owns).count();
+        assertTrue(owned > 4000 && owned < 6000, owned + " keys owned");
+        assertFalse(clusterMembership.isLeader());
+        assertEquals(List.of(new ClusterChangedEvent(List.of(other, clusterMembership.nodeId()))), events);
+
+        // Unchanged membership does not publish an event
+        clusterMembership.apply(List.of(other, clusterMembership.nodeId()), System.nanoTime());
+        assertEquals(1, events.size());
+    }
+
+    @Test
+    void apply_keepsThisNodeWhenMissingFromLiveNodes() {
+        clusterMembership.apply(List.of(), System.nanoTime());
+
+        assertEquals(List.of(clusterMembership.nodeId()), clusterMembership.nodeIds());
+        assertTrue(clusterMembership.owns(1));
+    }
+
+    @Test
+    void owns_nothingOnceLeaseHasExpired() {
+        clusterMembership.apply(List.of(clusterMembership.nodeId()), System.nanoTime() - Duration.ofSeconds(16).toNanos());
+
+        assertFalse(clusterMembership.owns(1));
+        assertFalse(clusterMembership.isLeader());
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.services.cluster;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HashRingTest {
+
+    private static final int KEYS = 100_000;
+    private static final List<String> NODES = List.of("node-a", "node-b", "node-c", "node-d");
+
+    @Test
+    void owner_isSameForEveryInstance() {
+        HashRing hashRing = new HashRing(NODES, 128);
+        HashRing reversed = new HashRing(NODES.reversed(), 128);
+
+        for (long key = 0; key < 1000; key++) {
+            assertEquals(hashRing.owner(key), reversed.owner(key));
+        }
+    }
+
+    @Test
+    void owner_spreadsSequentialKeysEvenly() {
+        HashRing hashRing = new HashRing(NODES, 128);
+
+        Map<String, Integer> counts = new HashMap<>();
+        for (long key = 0; key < KEYS; key++) {
+            counts.merge(hashRing.owner(key), 1, Integer::sum);
+        }
+
+        int expected = KEYS / NODES.size();
+        for (String node : NODES) {
+            int count = counts.getOrDefault(node, 0);
+            assertTrue(Math.abs(count - expected) < expected * 0.25, node + " owns " + count + " keys");
+        }
+    }
+
+    @Test
+    void owner_movesOnlyKeysOfJoiningNode() {
+        HashRing before = new HashRing(NODES, 128);
+        HashRing after = new HashRing(List.of("node-a", "node-b", "node-c", "node-d", "node-e"), 128);
+
+        long moved = IntStream.range(0, KEYS)
+                .filter(key -> !before.owner(key).equals(after.owner(key)))
+                .peek(key -> assertEquals("node-e", after.owner(key)))
+                .count();
+
+        // About a fifth of the keys move to the new node
+        assertTrue(moved > KEYS * 0.15 && moved < KEYS * 0.25, moved + " keys moved");
+    }
+
+    @Test
+    void owner_isNullForEmptyRing() {
+        assertNull(new HashRing(List.of(), 128).owner(1));
+        assertEquals(List.of(), new HashRing(List.of(), 128).nodeIds());
+    }
+}
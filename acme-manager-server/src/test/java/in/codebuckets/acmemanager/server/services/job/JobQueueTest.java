@@ -0,0 +1,50 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.services.job;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JobQueueTest {
+
+    private static final Duration INITIAL = Duration.ofSeconds(10);
+    private static final Duration MAX = Duration.ofHours(1);
+
+    @Test
+    void backoff_doublesWithEveryAttempt() {
+        for (int attempts = 1; attempts <= 5; attempts++) {
+            long expected = INITIAL.toMillis() << (attempts - 1);
+            for (int i = 0; i < 100; i++) {
+                long backoff = JobQueue.backoff(attempts, INITIAL, MAX).toMillis();
+                assertTrue(backoff >= expected / 2 && backoff <= expected, "Backoff " + backoff + " for attempt " + attempts);
+            }
+        }
+    }
+
+    @Test
+    void backoff_isCappedAtMax() {
+        for (int attempts : new int[]{10, 31, 64, Integer.MAX_VALUE}) {
+            long backoff = JobQueue.backoff(attempts, INITIAL, MAX).toMillis();
+            assertTrue(backoff >= MAX.toMillis() / 2 && backoff <= MAX.toMillis(), "Backoff " + backoff + " for attempt " + attempts);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.services.job;
+
+import in.codebuckets.acmemanager.server.jpa.Job;
+import in.codebuckets.acmemanager.server.jpa.JobStatus;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class JobWorkerTest {
+
+    private JobQueue jobQueue;
+
+    @BeforeEach
+    void setUp() {
+        jobQueue = mock(JobQueue.class);
+        when(jobQueue.complete(any(Job.class))).thenReturn(true);
+    }
+
+    @Test
+    void run_completesSucceededJob() {
+        JobWorker jobWorker = worker(handler("ok", job -> {
+        }));
+
+        Job job = job(1, "ok");
+        jobWorker.run(job);
+
+        verify(jobQueue).complete(job);
+        verify(jobQueue, never()).fail(any(Job.class), anyString());
+    }
+
+    @Test
+    void run_failsJobWhenHandlerThrows() {
+        JobWorker jobWorker = worker(handler("broken", job -> {
+            throw new IllegalStateException("ACME server unavailable");
+        }));
+
+        Job job = job(1, "broken");
+        jobWorker.run(job);
+
+        verify(jobQueue).fail(job, "ACME server unavailable");
+        verify(jobQueue, never()).complete(any(Job.class));
+    }
+
+    @Test
+    void run_buriesJobWithoutHandler() {
+        JobWorker jobWorker = worker();
+
+        Job job = job(1, "unknown");
+        jobWorker.run(job);
+
+        verify(jobQueue).bury(job, "No handler for job type: unknown");
+    }
+
+    @Test
+    void poll_claimsOnlyFreeSlots() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        JobWorker jobWorker = worker(handler("slow", job -> release.await(10, TimeUnit.SECONDS)));
+
+        when(jobQueue.claim(4)).thenReturn(List.of(job(1, "slow"), job(2, "slow"), job(3, "slow")));
+        jobWorker.poll();
+        assertEquals(3, jobWorker.inFlight());
+
+        when(jobQueue.claim(1)).thenReturn(List.of(job(4, "slow")));
+        jobWorker.poll();
+        assertEquals(4, jobWorker.inFlight());
+
+        // Every slot is taken
+        jobWorker.poll();
+        verify(jobQueue, never()).claim(eq(0));
+
+        release.countDown();
+        verify(jobQueue, timeout(5000).times(4)).complete(any(Job.class));
+        assertTrue(jobWorker.inFlight() <= 4);
+        jobWorker.stop();
+    }
+
+    private JobWorker worker(JobHandler... handlers) {
+        JobWorker jobWorker = new JobWorker(jobQueue, List.of(handlers));
+        ReflectionTestUtils.setField(jobWorker, "concurrency", 4);
+        ReflectionTestUtils.setField(jobWorker, "leaseDuration", Duration.ofMinutes(5));
+        return jobWorker;
+    }
+
+    private static JobHandler handler(String type, ThrowingConsumer consumer) {
+        return new JobHandler() {
+            @Override
+            public String type() {
+                return type;
+            }
+
+            @Override
+            public void handle(Job job) throws Exception {
+                consumer.accept(job);
+            }
+        };
+    }
+
+    private static Job job(long id, String type) {
+        return Job.builder()
+                .id(id)
+                .type(type)
+                .status(JobStatus.RUNNING)
+                .attempts(1)
+                .maxAttempts(5)
+                .build();
+    }
+
+    @FunctionalInterface
+    private interface ThrowingConsumer {
+
+        void accept(Job job) throws Exception;
+    }
+}
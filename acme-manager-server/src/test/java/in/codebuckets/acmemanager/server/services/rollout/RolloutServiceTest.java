@@ -0,0 +1,613 @@
+/*
+ *    Copyright 2024, Codebucket Solutions Private Limited
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package in.codebuckets.acmemanager.server.services.rollout;
+
+import in.codebuckets.acmemanager.server.dto.AgentDeployment;
+import in.codebuckets.acmemanager.server.dto.DesiredCertificate;
+import in.codebuckets.acmemanager.server.dto.RolloutProgress;
+import in.codebuckets.acmemanager.server.dto.SyncResult;
+import in.codebuckets.acmemanager.server.jpa.Agent;
+import in.codebuckets.acmemanager.server.jpa.Rollout;
+import in.codebuckets.acmemanager.server.services.AgentRegistry;
+import in.codebuckets.acmemanager.server.services.AgentSyncService;
+import in.codebuckets.acmemanager.server.services.PrivateKeyCipher;
+import in.codebuckets.acmemanager.server.services.cluster.ClusterMembership;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class RolloutServiceTest {
+
+    private static final DesiredCertificate CERTIFICATE = new DesiredCertificate("example.com", "certificate", "key");
+
+    private static final PrivateKeyCipher PRIVATE_KEY_CIPHER = new PrivateKeyCipher("secret");
+
+    private final Set<Long> failingAgentIds = ConcurrentHashMap.newKeySet();
+    private final CountDownLatch syncStarted = new CountDownLatch(1);
+
+    /**
+     * Blocks the first sync until it is counted down, if set
+     */
+    private final AtomicReference<CountDownLatch> firstSyncGate = new AtomicReference<>();
+
+    /**
+     * Rollouts stored in the database which is shared by every node
+     */
+    private final InMemoryRolloutStore.Database database = new InMemoryRolloutStore.Database();
+
+    private AgentRegistry agentRegistry;
+    private AgentSyncService agentSyncService;
+    private RolloutService rolloutService;
+
+    @BeforeEach
+    void setUp() {
+        agentRegistry = mock(AgentRegistry.class);
+        when(agentRegistry.findById(anyLong())).thenAnswer(invocation -> {
+            long agentId = invocation.getArgument(0);
+            return Optional.of(Agent.builder()
+                    .id(agentId)
+                    .name("agent-" + agentId)
+                    .isConnected(agentId % 10 != 0)
+                    .build());
+        });
+
+        agentSyncService = mock(AgentSyncService.class);
+        when(agentSyncService.sync(any(Agent.class))).thenAnswer(invocation -> {
+            CountDownLatch gate = firstSyncGate.getAndSet(null);
+            if (gate != null) {
+                syncStarted.countDown();
+                gate.await(10, TimeUnit.SECONDS);
+            }
+
+            Agent agent = invocation.getArgument(0);
+            return CompletableFuture.completedFuture(failingAgentIds.contains(agent.id())
+                    ? SyncResult.failed(agent.id(), "Connection refused")
+                    : new SyncResult(agent.id(), 1, 0, 1, List.of(), null));
+        });
+
+        rolloutService = rolloutService("node-a");
+    }
+
+    @Test
+    void plan_startsWithCanaryAndGrowsUpToMaxWaveSize() {
+        List<Long> agentIds = LongStream.rangeClosed(1, 300).boxed().toList();
+
+        List<Integer> waveSizes = RolloutService.plan(agentIds, 1, 4, 100).stream().map(List::size).toList();
+
+        assertEquals(List.of(1, 4, 16, 64, 100, 100, 15), waveSizes);
+    }
+
+    @Test
+    void start_deploysEveryWave() throws InterruptedException {
+        RolloutProgress progress = rolloutService.start(CERTIFICATE, LongStream.rangeClosed(1, 200).boxed().toList());
+
+        progress = await(progress.rolloutId());
+        assertEquals(RolloutStatus.COMPLETED, progress.status());
+        assertEquals(180, progress.succeeded());
+        assertEquals(20, progress.deferred());
+        assertEquals(0, progress.pending());
+    }
+
+    @Test
+    void start_pausesWhenCanaryFailsAndResumes() throws InterruptedException {
+        failingAgentIds.add(1L);
+
+        RolloutProgress progress = rolloutService.start(CERTIFICATE, LongStream.rangeClosed(1, 50).boxed().toList());
+
+        progress = await(progress.rolloutId());
+        assertEquals(RolloutStatus.PAUSED, progress.status());
+        assertEquals(1, progress.nextWave());
+        assertEquals(1, progress.failed());
+        assertEquals(49, progress.pending());
+
+        assertTrue(rolloutService.resume(progress.rolloutId()));
+
+        progress = await(progress.rolloutId());
+        assertEquals(RolloutStatus.COMPLETED, progress.status());
+        assertEquals(1, progress.failed());
+
+        AgentDeployment canary = rolloutService.deployments(progress.rolloutId()).orElseThrow().get(0);
+        assertEquals(AgentDeploymentStatus.FAILED, canary.status());
+        assertEquals("Connection refused", canary.error());
+    }
+
+    @Test
+    void start_cancelsUnfinishedRolloutOfTheSameDomain() throws InterruptedException {
+        failingAgentIds.add(1L);
+        RolloutProgress paused = await(rolloutService.start(CERTIFICATE, List.of(1L, 2L)).rolloutId());
+        assertEquals(RolloutStatus.PAUSED, paused.status());
+
+        failingAgentIds.clear();
+        RolloutProgress progress = rolloutService.start(CERTIFICATE, List.of(1L, 2L));
+
+        assertEquals(RolloutStatus.CANCELLED, rolloutService.progress(paused.rolloutId()).orElseThrow().status());
+        assertEquals(RolloutStatus.COMPLETED, await(progress.rolloutId()).status());
+    }
+
+    @Test
+    void start_cancelledRolloutDoesNotDeployToRemainingAgents() throws InterruptedException {
+        ReflectionTestUtils.setField(rolloutService, "canarySize", 10);
+        ReflectionTestUtils.setField(rolloutService, "waveConcurrency", 1);
+
+        CountDownLatch gate = new CountDownLatch(1);
+        firstSyncGate.set(gate);
+        RolloutProgress older = rolloutService.start(CERTIFICATE, LongStream.rangeClosed(1, 10).boxed().toList());
+        assertTrue(syncStarted.await(10, TimeUnit.SECONDS));
+
+        // The newer certificate supersedes the rollout while its first agent is being deployed
+        DesiredCertificate newer = new DesiredCertificate("example.com", "newer-certificate", "key");
+        RolloutProgress progress = rolloutService.start(newer, LongStream.rangeClosed(1, 10).boxed().toList());
+        assertEquals(RolloutStatus.COMPLETED, await(progress.rolloutId()).status());
+        gate.countDown();
+
+        // The agents which were waiting for a slot of the older rollout are left alone
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (rolloutService.progress(older.rolloutId()).orElseThrow().pending() > 9 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+
+        verify(agentSyncService, times(1)).setDesiredCertificate(any(Agent.class), eq(CERTIFICATE));
+        verify(agentSyncService, times(10)).setDesiredCertificate(any(Agent.class), eq(newer));
+        assertEquals(9, rolloutService.progress(older.rolloutId()).orElseThrow().pending());
+    }
+
+    @Test
+    void resume_onAnotherNodeDeploysTheRemainingWaves() throws InterruptedException {
+        failingAgentIds.add(1L);
+        RolloutProgress progress = await(rolloutService.start(CERTIFICATE, LongStream.rangeClosed(1, 50).boxed().toList()).rolloutId());
+        assertEquals(RolloutStatus.PAUSED, progress.status());
+        awaitReleased(progress.rolloutId());
+
+        RolloutService otherNode = rolloutService("node-b");
+        assertTrue(otherNode.resume(progress.rolloutId()));
+
+        progress = await(progress.rolloutId());
+        assertEquals(RolloutStatus.COMPLETED, progress.status());
+        assertEquals(RolloutStatus.COMPLETED, otherNode.progress(progress.rolloutId()).orElseThrow().status());
+        assertEquals(0, progress.pending());
+        assertEquals("node-b", database.lastLeasedBy(progress.rolloutId()));
+    }
+
+    @Test
+    void renewLeases_continuesRolloutOfDeadNode() throws InterruptedException {
+        InMemoryRolloutStore deadNode = new InMemoryRolloutStore(database, "node-dead");
+        long rolloutId = deadNode.create("example.com", "certificate", PRIVATE_KEY_CIPHER.encrypt("key"),
+                RolloutService.plan(LongStream.rangeClosed(1, 20).boxed().toList(), 1, 4, 100));
+        assertTrue(deadNode.claim(rolloutId));
+
+        // The node died while deploying the second wave
+        deadNode.updateDeployment(rolloutId, 1, AgentDeploymentStatus.SUCCEEDED, null);
+        assertTrue(deadNode.completeWave(rolloutId, 0, null));
+        deadNode.updateDeployment(rolloutId, 2, AgentDeploymentStatus.SUCCEEDED, null);
+
+        // Its lease is still valid
+        rolloutService.renewLeases();
+        assertEquals("node-dead", database.leasedBy(rolloutId));
+
+        database.expireLeases();
+        rolloutService.renewLeases();
+
+        RolloutProgress progress = await(rolloutId);
+        assertEquals(RolloutStatus.COMPLETED, progress.status());
+        assertEquals(18, progress.succeeded());
+        assertEquals(2, progress.deferred());
+        verify(agentSyncService, never()).setDesiredCertificate(argThat(agent -> agent.id() <= 2), any());
+    }
+
+    @Test
+    void pauseReason_pausesWhenErrorRateExceedsThreshold() {
+        assertNull(RolloutService.pauseReason(new RolloutStore.WaveResult(0, 0), 0, 0.05));
+        assertNull(RolloutService.pauseReason(new RolloutStore.WaveResult(99, 1), 2, 0.05));
+        assertEquals("1 of 1 agents failed in wave 0", RolloutService.pauseReason(new RolloutStore.WaveResult(0, 1), 0, 0.05));
+    }
+
+    private RolloutService rolloutService(String nodeId) {
+        RolloutService rolloutService = new RolloutService(agentRegistry, agentSyncService, PRIVATE_KEY_CIPHER,
+                new InMemoryRolloutStore(database, nodeId));
+        ReflectionTestUtils.setField(rolloutService, "canarySize", 1);
+        ReflectionTestUtils.setField(rolloutService, "waveGrowthFactor", 4.0);
+        ReflectionTestUtils.setField(rolloutService, "maxWaveSize", 100);
+        ReflectionTestUtils.setField(rolloutService, "waveConcurrency", 8);
+        ReflectionTestUtils.setField(rolloutService, "maxErrorRate", 0.05);
+        ReflectionTestUtils.setField(rolloutService, "syncTimeout", Duration.ofSeconds(5));
+        ReflectionTestUtils.setField(rolloutService, "history", 10);
+        return rolloutService;
+    }
+
+    private void awaitReleased(long rolloutId) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (database.leasedBy(rolloutId) != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private RolloutProgress await(long rolloutId) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        RolloutProgress progress = rolloutService.progress(rolloutId).orElseThrow();
+        while (progress.status() == RolloutStatus.RUNNING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            progress = rolloutService.progress(rolloutId).orElseThrow();
+        }
+        return progress;
+    }
+
+    /**
+     * {@link RolloutStore} which applies the conditional updates of its statements to rollouts held in memory
+     */
+    static final class InMemoryRolloutStore extends RolloutStore {
+
+        private static final Duration LEASE_DURATION = Duration.ofMinutes(2);
+
+        private final Database database;
+        private final String nodeId;
+
+        InMemoryRolloutStore(Database database, String nodeId) {
+            super(null, null, null, clusterMembership(nodeId));
+            this.database = database;
+            this.nodeId = nodeId;
+        }
+
+        @Override
+        long create(String domain, String certificate, String privateKey, List<List<Long>> waves) {
+            synchronized (database) {
+                Row row = new Row(++database.lastRolloutId, domain, certificate, privateKey, waves.size());
+                for (int wave = 0; wave < waves.size(); wave++) {
+                    for (Long agentId : waves.get(wave)) {
+                        row.deployments.put(agentId, new AgentDeployment(agentId, wave, AgentDeploymentStatus.PENDING, null));
+                    }
+                }
+                database.rollouts.put(row.id, row);
+                return row.id;
+            }
+        }
+
+        @Override
+        List<Long> cancelUnfinished(String domain) {
+            synchronized (database) {
+                List<Long> cancelled = new ArrayList<>();
+                for (Row row : database.rollouts.values()) {
+                    if (row.domain.equalsIgnoreCase(domain) && cancel(row.id)) {
+                        cancelled.add(row.id);
+                    }
+                }
+                return cancelled;
+            }
+        }
+
+        @Override
+        boolean claim(long rolloutId) {
+            synchronized (database) {
+                Row row = database.rollouts.get(rolloutId);
+                if (row == null || row.status != RolloutStatus.RUNNING || !row.leaseExpired()) {
+                    return false;
+                }
+                row.lease(nodeId);
+                database.lastLeasedBy.put(rolloutId, nodeId);
+                return true;
+            }
+        }
+
+        @Override
+        List<Long> claimAbandoned() {
+            synchronized (database) {
+                return database.rollouts.keySet().stream().filter(this::claim).toList();
+            }
+        }
+
+        @Override
+        boolean renew(long rolloutId) {
+            synchronized (database) {
+                Row row = database.rollouts.get(rolloutId);
+                if (row == null || !nodeId.equals(row.leasedBy)) {
+                    return false;
+                }
+                row.lease(nodeId);
+                database.lastLeasedBy.put(rolloutId, nodeId);
+                return true;
+            }
+        }
+
+        @Override
+        boolean release(long rolloutId) {
+            synchronized (database) {
+                Row row = database.rollouts.get(rolloutId);
+                if (row == null || !nodeId.equals(row.leasedBy) || row.status == RolloutStatus.RUNNING) {
+                    return false;
+                }
+                row.leasedBy = null;
+                row.leaseExpiresAt = null;
+                return true;
+            }
+        }
+
+        @Override
+        boolean pause(long rolloutId, String reason) {
+            synchronized (database) {
+                Row row = database.rollouts.get(rolloutId);
+                if (row == null || row.status != RolloutStatus.RUNNING) {
+                    return false;
+                }
+                row.status = RolloutStatus.PAUSED;
+                row.pauseReason = reason;
+                return true;
+            }
+        }
+
+        @Override
+        boolean resume(long rolloutId) {
+            synchronized (database) {
+                Row row = database.rollouts.get(rolloutId);
+                if (row == null || row.status != RolloutStatus.PAUSED) {
+                    return false;
+                }
+                row.status = RolloutStatus.RUNNING;
+                row.pauseReason = null;
+                return true;
+            }
+        }
+
+        @Override
+        boolean cancel(long rolloutId) {
+            synchronized (database) {
+                Row row = database.rollouts.get(rolloutId);
+                if (row == null || (row.status != RolloutStatus.RUNNING && row.status != RolloutStatus.PAUSED)) {
+                    return false;
+                }
+                row.finish(RolloutStatus.CANCELLED);
+                return true;
+            }
+        }
+
+        @Override
+        boolean complete(long rolloutId) {
+            synchronized (database) {
+                Row row = database.rollouts.get(rolloutId);
+                if (row == null || row.status != RolloutStatus.RUNNING || !nodeId.equals(row.leasedBy)) {
+                    return false;
+                }
+                row.finish(RolloutStatus.COMPLETED);
+                row.leasedBy = null;
+                row.leaseExpiresAt = null;
+                return true;
+            }
+        }
+
+        @Override
+        boolean completeWave(long rolloutId, int wave, String pauseReason) {
+            synchronized (database) {
+                Row row = database.rollouts.get(rolloutId);
+                if (row == null || row.nextWave != wave || !nodeId.equals(row.leasedBy)) {
+                    return false;
+                }
+                row.nextWave++;
+                if (pauseReason != null && row.status == RolloutStatus.RUNNING) {
+                    row.status = RolloutStatus.PAUSED;
+                    row.pauseReason = pauseReason;
+                }
+                return true;
+            }
+        }
+
+        @Override
+        Optional<Rollout> find(long rolloutId) {
+            synchronized (database) {
+                return Optional.ofNullable(database.rollouts.get(rolloutId)).map(Row::toRollout);
+            }
+        }
+
+        @Override
+        Optional<RolloutStatus> status(long rolloutId) {
+            synchronized (database) {
+                return Optional.ofNullable(database.rollouts.get(rolloutId)).map(row -> row.status);
+            }
+        }
+
+        @Override
+        List<Long> pendingAgents(long rolloutId, int wave) {
+            synchronized (database) {
+                return database.rollouts.get(rolloutId).deployments.values().stream()
+                        .filter(deployment -> deployment.wave() == wave)
+                        .filter(deployment -> deployment.status() == AgentDeploymentStatus.PENDING
+                                || deployment.status() == AgentDeploymentStatus.IN_PROGRESS)
+                        .map(AgentDeployment::agentId)
+                        .toList();
+            }
+        }
+
+        @Override
+        WaveResult waveResult(long rolloutId, int wave) {
+            synchronized (database) {
+                List<AgentDeployment> deployments = database.rollouts.get(rolloutId).deployments.values().stream()
+                        .filter(deployment -> deployment.wave() == wave)
+                        .toList();
+                return new WaveResult(count(deployments, AgentDeploymentStatus.SUCCEEDED), count(deployments, AgentDeploymentStatus.FAILED));
+            }
+        }
+
+        @Override
+        void updateDeployment(long rolloutId, long agentId, AgentDeploymentStatus status, String error) {
+            synchronized (database) {
+                Map<Long, AgentDeployment> deployments = database.rollouts.get(rolloutId).deployments;
+                deployments.computeIfPresent(agentId, (id, deployment) -> new AgentDeployment(agentId, deployment.wave(), status, error));
+            }
+        }
+
+        @Override
+        Optional<RolloutProgress> progress(long rolloutId) {
+            synchronized (database) {
+                return Optional.ofNullable(database.rollouts.get(rolloutId)).map(Row::progress);
+            }
+        }
+
+        @Override
+        List<RolloutProgress> progress() {
+            synchronized (database) {
+                return database.rollouts.descendingMap().values().stream().map(Row::progress).toList();
+            }
+        }
+
+        @Override
+        Optional<List<AgentDeployment>> deployments(long rolloutId) {
+            synchronized (database) {
+                return Optional.ofNullable(database.rollouts.get(rolloutId)).map(row -> List.copyOf(row.deployments.values()));
+            }
+        }
+
+        @Override
+        void prune(int history) {
+            synchronized (database) {
+                List<Long> finished = database.rollouts.descendingMap().values().stream()
+                        .filter(row -> row.status == RolloutStatus.COMPLETED || row.status == RolloutStatus.CANCELLED)
+                        .map(row -> row.id)
+                        .toList();
+                finished.stream().skip(history).forEach(database.rollouts::remove);
+            }
+        }
+
+        private static int count(List<AgentDeployment> deployments, AgentDeploymentStatus status) {
+            return (int) deployments.stream().filter(deployment -> deployment.status() == status).count();
+        }
+
+        private static ClusterMembership clusterMembership(String nodeId) {
+            ClusterMembership clusterMembership = mock(ClusterMembership.class);
+            when(clusterMembership.nodeId()).thenReturn(nodeId);
+            return clusterMembership;
+        }
+
+        private static final class Row {
+
+            private final long id;
+            private final String domain;
+            private final String certificate;
+            private final int waves;
+            private final Instant createdAt = Instant.now();
+            private final Map<Long, AgentDeployment> deployments = new LinkedHashMap<>();
+
+            private String privateKey;
+            private RolloutStatus status = RolloutStatus.RUNNING;
+            private int nextWave;
+            private String pauseReason;
+            private String leasedBy;
+            private Instant leaseExpiresAt;
+            private Instant completedAt;
+
+            private Row(long id, String domain, String certificate, String privateKey, int waves) {
+                this.id = id;
+                this.domain = domain;
+                this.certificate = certificate;
+                this.privateKey = privateKey;
+                this.waves = waves;
+            }
+
+            private boolean leaseExpired() {
+                return leasedBy == null || leaseExpiresAt.isBefore(Instant.now());
+            }
+
+            private void lease(String nodeId) {
+                leasedBy = nodeId;
+                leaseExpiresAt = Instant.now().plus(LEASE_DURATION);
+            }
+
+            private void finish(RolloutStatus status) {
+                this.status = status;
+                privateKey = null;
+                completedAt = Instant.now();
+            }
+
+            private Rollout toRollout() {
+                return Rollout.builder()
+                        .id(id)
+                        .domain(domain)
+                        .certificate(certificate)
+                        .privateKey(privateKey)
+                        .status(status)
+                        .waves(waves)
+                        .nextWave(nextWave)
+                        .pauseReason(pauseReason)
+                        .leasedBy(leasedBy)
+                        .leaseExpiresAt(leaseExpiresAt)
+                        .createdAt(createdAt)
+                        .completedAt(completedAt)
+                        .build();
+            }
+
+            private RolloutProgress progress() {
+                List<AgentDeployment> values = List.copyOf(deployments.values());
+                int pending = count(values, AgentDeploymentStatus.PENDING) + count(values, AgentDeploymentStatus.IN_PROGRESS);
+                return new RolloutProgress(id, domain, status, waves, nextWave, values.size(), pending,
+                        count(values, AgentDeploymentStatus.SUCCEEDED), count(values, AgentDeploymentStatus.FAILED),
+                        count(values, AgentDeploymentStatus.DEFERRED), pauseReason, createdAt, completedAt);
+            }
+        }
+
+        static final class Database {
+
+            private final TreeMap<Long, Row> rollouts = new TreeMap<>();
+            private final Map<Long, String> lastLeasedBy = new HashMap<>();
+            private long lastRolloutId;
+
+            synchronized void expireLeases() {
+                for (Row row : rollouts.values()) {
+                    if (row.leaseExpiresAt != null) {
+                        row.leaseExpiresAt = Instant.now().minusSeconds(1);
+                    }
+                }
+            }
+
+            synchronized String lastLeasedBy(long rolloutId) {
+                return lastLeasedBy.get(rolloutId);
+            }
+
+            synchronized String leasedBy(long rolloutId) {
+                return rollouts.get(rolloutId).leasedBy;
+            }
+        }
+    }
+}